@@ -74,6 +74,7 @@ public class PlainAccessValidator implements AccessValidator {
                     accessResource.addResourceAndPerm(request.getExtFields().get("topic"), Permission.PUB);
                     break;
                 case RequestCode.SEND_MESSAGE_V2:
+                case RequestCode.SEND_BATCH_MESSAGE_IN_STORE_FORMAT:
                     accessResource.addResourceAndPerm(request.getExtFields().get("b"), Permission.PUB);
                     break;
                 case RequestCode.CONSUMER_SEND_MSG_BACK:
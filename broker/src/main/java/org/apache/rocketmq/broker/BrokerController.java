@@ -47,6 +47,7 @@ import org.apache.rocketmq.broker.filter.ConsumerFilterManager;
 import org.apache.rocketmq.broker.filtersrv.FilterServerManager;
 import org.apache.rocketmq.broker.latency.BrokerFastFailure;
 import org.apache.rocketmq.broker.latency.BrokerFixedThreadPoolExecutor;
+import org.apache.rocketmq.broker.latency.WeightedFairBlockingQueue;
 import org.apache.rocketmq.broker.longpolling.NotifyMessageArrivingListener;
 import org.apache.rocketmq.broker.longpolling.PullRequestHoldService;
 import org.apache.rocketmq.broker.mqtrace.ConsumeMessageHook;
@@ -63,10 +64,12 @@ import org.apache.rocketmq.broker.processor.PullMessageProcessor;
 import org.apache.rocketmq.broker.processor.QueryMessageProcessor;
 import org.apache.rocketmq.broker.processor.ReplyMessageProcessor;
 import org.apache.rocketmq.broker.processor.SendMessageProcessor;
+import org.apache.rocketmq.broker.quota.QuotaManager;
 import org.apache.rocketmq.broker.slave.SlaveSynchronize;
 import org.apache.rocketmq.broker.subscription.SubscriptionGroupManager;
 import org.apache.rocketmq.broker.topic.TopicConfigManager;
 import org.apache.rocketmq.broker.transaction.AbstractTransactionalMessageCheckListener;
+import org.apache.rocketmq.broker.transaction.TransactionCheckDispatcher;
 import org.apache.rocketmq.broker.transaction.TransactionalMessageCheckService;
 import org.apache.rocketmq.broker.transaction.TransactionalMessageService;
 import org.apache.rocketmq.broker.transaction.queue.DefaultTransactionalMessageCheckListener;
@@ -161,6 +164,7 @@ public class BrokerController {
     private ExecutorService heartbeatExecutor;
     private ExecutorService consumerManageExecutor;
     private ExecutorService endTransactionExecutor;
+    private ExecutorService endTransactionOpExecutor;
     private boolean updateMasterHAServerAddrPeriodically = false;
     private BrokerStats brokerStats;
     private InetSocketAddress storeHost;
@@ -170,6 +174,8 @@ public class BrokerController {
     private TransactionalMessageCheckService transactionalMessageCheckService;
     private TransactionalMessageService transactionalMessageService;
     private AbstractTransactionalMessageCheckListener transactionalMessageCheckListener;
+    private TransactionCheckDispatcher transactionCheckDispatcher;
+    private final QuotaManager quotaManager;
     private Future<?> slaveSyncFuture;
     private Map<Class,AccessValidator> accessValidatorMap = new HashMap<Class, AccessValidator>();
 
@@ -201,10 +207,10 @@ public class BrokerController {
         // 数据同步
         this.slaveSynchronize = new SlaveSynchronize(this);
 
-        this.sendThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getSendThreadPoolQueueCapacity());
-        this.pullThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getPullThreadPoolQueueCapacity());
+        this.sendThreadPoolQueue = this.newFairThreadPoolQueue(this.brokerConfig.getSendThreadPoolQueueCapacity());
+        this.pullThreadPoolQueue = this.newFairThreadPoolQueue(this.brokerConfig.getPullThreadPoolQueueCapacity());
         this.replyThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getReplyThreadPoolQueueCapacity());
-        this.queryThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getQueryThreadPoolQueueCapacity());
+        this.queryThreadPoolQueue = this.newFairThreadPoolQueue(this.brokerConfig.getQueryThreadPoolQueueCapacity());
         this.clientManagerThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getClientManagerThreadPoolQueueCapacity());
         this.consumerManagerThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getConsumerManagerThreadPoolQueueCapacity());
         this.heartbeatThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getHeartbeatThreadPoolQueueCapacity());
@@ -214,6 +220,7 @@ public class BrokerController {
         this.setStoreHost(new InetSocketAddress(this.getBrokerConfig().getBrokerIP1(), this.getNettyServerConfig().getListenPort()));
 
         this.brokerFastFailure = new BrokerFastFailure(this);
+        this.quotaManager = new QuotaManager(this);
         this.configuration = new Configuration(
             log,
             BrokerPathConfigHelper.getBrokerConfigPath(),
@@ -264,6 +271,7 @@ public class BrokerController {
                 //load plugin
                 MessageStorePluginContext context = new MessageStorePluginContext(messageStoreConfig, brokerStatsManager, messageArrivingListener, brokerConfig);
                 this.messageStore = MessageStoreFactory.build(context, this.messageStore);
+                this.messageStore.setTopicConfigTable(this.topicConfigManager.getTopicConfigTable());
                 // 拦截器链
                 this.messageStore.getDispatcherList().addFirst(new CommitLogDispatcherCalcBitMap(this.brokerConfig, this.consumerFilterManager));
             } catch (IOException e) {
@@ -347,6 +355,17 @@ public class BrokerController {
                 this.endTransactionThreadPoolQueue,
                 new ThreadFactoryImpl("EndTransactionThread_"));
 
+            // 事务消息批量结束时写OP消息的线程池，不和请求排在同一个队列里
+            if (this.brokerConfig.isEndTransactionBatchEnable()) {
+                this.endTransactionOpExecutor = new ThreadPoolExecutor(
+                    this.brokerConfig.getEndTransactionOpThreadPoolNums(),
+                    this.brokerConfig.getEndTransactionOpThreadPoolNums(),
+                    1000 * 60,
+                    TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(this.brokerConfig.getEndTransactionPoolQueueCapacity()),
+                    new ThreadFactoryImpl("EndTransactionOpThread_"));
+            }
+
             //管理consumer的线程池
             this.consumerManageExecutor =
                 Executors.newFixedThreadPool(this.brokerConfig.getConsumerManageThreadPoolNums(), new ThreadFactoryImpl(
@@ -419,6 +438,30 @@ public class BrokerController {
                 }
             }, 10, 1, TimeUnit.SECONDS);
 
+            if (this.brokerConfig.isExecutorFairQueueEnable()) {
+                this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            BrokerController.this.printQueueTimeDistribution();
+                        } catch (Throwable e) {
+                            log.error("printQueueTimeDistribution error.", e);
+                        }
+                    }
+                }, 60, 60, TimeUnit.SECONDS);
+            }
+
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BrokerController.this.quotaManager.cleanIdleBuckets();
+                    } catch (Throwable e) {
+                        log.error("cleanIdleBuckets error.", e);
+                    }
+                }
+            }, 1, 1, TimeUnit.MINUTES);
+
             //定时进行落后commitlog分发的任务
             this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
 
@@ -531,8 +574,13 @@ public class BrokerController {
             this.transactionalMessageCheckListener = new DefaultTransactionalMessageCheckListener();
             log.warn("Load default discard message hook service: {}", DefaultTransactionalMessageCheckListener.class.getSimpleName());
         }
+        this.transactionalMessageService.open();
         this.transactionalMessageCheckListener.setBrokerController(this);
         this.transactionalMessageCheckService = new TransactionalMessageCheckService(this);
+        if (this.brokerConfig.isTransactionCheckDispatchEnable()) {
+            this.transactionCheckDispatcher = new TransactionCheckDispatcher(this.brokerConfig);
+            this.transactionCheckDispatcher.start();
+        }
     }
 
     private void initialAcl() {
@@ -589,6 +637,7 @@ public class BrokerController {
         this.remotingServer.registerProcessor(RequestCode.SEND_MESSAGE, sendProcessor, this.sendMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.SEND_MESSAGE_V2, sendProcessor, this.sendMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.SEND_BATCH_MESSAGE, sendProcessor, this.sendMessageExecutor);
+        this.remotingServer.registerProcessor(RequestCode.SEND_BATCH_MESSAGE_IN_STORE_FORMAT, sendProcessor, this.sendMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.CONSUMER_SEND_MSG_BACK, sendProcessor, this.sendMessageExecutor);
         // 注册消息发送处理器(里面有存储逻辑)
         this.fastRemotingServer.registerProcessor(RequestCode.SEND_MESSAGE, sendProcessor, this.sendMessageExecutor);
@@ -596,6 +645,7 @@ public class BrokerController {
 
 
         this.fastRemotingServer.registerProcessor(RequestCode.SEND_BATCH_MESSAGE, sendProcessor, this.sendMessageExecutor);
+        this.fastRemotingServer.registerProcessor(RequestCode.SEND_BATCH_MESSAGE_IN_STORE_FORMAT, sendProcessor, this.sendMessageExecutor);
         this.fastRemotingServer.registerProcessor(RequestCode.CONSUMER_SEND_MSG_BACK, sendProcessor, this.sendMessageExecutor);
         /**
          * PullMessageProcessor
@@ -726,6 +776,27 @@ public class BrokerController {
         LOG_WATER_MARK.info("[WATERMARK] Transaction Queue Size: {} SlowTimeMills: {}", this.endTransactionThreadPoolQueue.size(), headSlowTimeMills4EndTransactionThreadPoolQueue());
     }
 
+    private BlockingQueue<Runnable> newFairThreadPoolQueue(int capacity) {
+        if (this.brokerConfig.isExecutorFairQueueEnable()) {
+            return new WeightedFairBlockingQueue(capacity, this.brokerConfig);
+        }
+        return new LinkedBlockingQueue<Runnable>(capacity);
+    }
+
+    private void printQueueTimeDistribution() {
+        this.printQueueTimeDistribution("Send", this.sendThreadPoolQueue);
+        this.printQueueTimeDistribution("Pull", this.pullThreadPoolQueue);
+        this.printQueueTimeDistribution("Query", this.queryThreadPoolQueue);
+    }
+
+    private void printQueueTimeDistribution(String name, BlockingQueue<Runnable> q) {
+        if (q instanceof WeightedFairBlockingQueue) {
+            WeightedFairBlockingQueue fairQueue = (WeightedFairBlockingQueue) q;
+            LOG_WATER_MARK.info("[WATERMARK] {} Queue Tenants: {} TenantRejected: {} QueueTimeDistribution: {}", name,
+                fairQueue.getTenantNums(), fairQueue.getTenantRejectedNums(), fairQueue.takeQueueTimeDistribution());
+        }
+    }
+
     public MessageStore getMessageStore() {
         return messageStore;
     }
@@ -871,9 +942,21 @@ public class BrokerController {
             this.transactionalMessageCheckService.shutdown(false);
         }
 
+        if (this.transactionCheckDispatcher != null) {
+            this.transactionCheckDispatcher.shutdown();
+        }
+
+        if (this.transactionalMessageService != null) {
+            this.transactionalMessageService.close();
+        }
+
         if (this.endTransactionExecutor != null) {
             this.endTransactionExecutor.shutdown();
         }
+
+        if (this.endTransactionOpExecutor != null) {
+            this.endTransactionOpExecutor.shutdown();
+        }
     }
 
     private void unregisterBrokerAll() {
@@ -1177,6 +1260,14 @@ public class BrokerController {
         this.transactionalMessageCheckListener = transactionalMessageCheckListener;
     }
 
+    public QuotaManager getQuotaManager() {
+        return quotaManager;
+    }
+
+    public TransactionCheckDispatcher getTransactionCheckDispatcher() {
+        return transactionCheckDispatcher;
+    }
+
 
     public BlockingQueue<Runnable> getEndTransactionThreadPoolQueue() {
         return endTransactionThreadPoolQueue;
@@ -1302,4 +1393,8 @@ public class BrokerController {
     public ExecutorService getSendMessageExecutor() {
         return sendMessageExecutor;
     }
+
+    public ExecutorService getEndTransactionOpExecutor() {
+        return endTransactionOpExecutor;
+    }
 }
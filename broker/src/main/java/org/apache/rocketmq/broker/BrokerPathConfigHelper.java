@@ -46,4 +46,8 @@ public class BrokerPathConfigHelper {
     public static String getConsumerFilterPath(final String rootDir) {
         return rootDir + File.separator + "config" + File.separator + "consumerFilter.json";
     }
+
+    public static String getTransactionHalfIndexPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "transactionHalfIndex";
+    }
 }
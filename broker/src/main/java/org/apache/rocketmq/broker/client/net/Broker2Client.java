@@ -59,7 +59,10 @@ public class Broker2Client {
         this.brokerController = brokerController;
     }
 
-    public void checkProducerTransactionState(
+    /**
+     * @return false if the request could not be sent to the producer
+     */
+    public boolean checkProducerTransactionState(
         final String group,
         final Channel channel,
         final CheckTransactionStateRequestHeader requestHeader,
@@ -69,9 +72,11 @@ public class Broker2Client {
         request.setBody(MessageDecoder.encode(messageExt, false));
         try {
             this.brokerController.getRemotingServer().invokeOneway(channel, request, 10);
+            return true;
         } catch (Exception e) {
             log.error("Check transaction failed because invoke producer exception. group={}, msgId={}, error={}",
                     group, messageExt.getMsgId(), e.toString());
+            return false;
         }
     }
 
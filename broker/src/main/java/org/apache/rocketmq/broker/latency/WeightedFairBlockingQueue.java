@@ -0,0 +1,464 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.latency;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.remoting.common.RemotingHelper;
+import org.apache.rocketmq.remoting.netty.RequestTask;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+
+/**
+ * Work queue of the broker executors serving the waiting requests weighted round robin among tenants, a tenant being
+ * the topic, group or client of the request. Each round a tenant gets as many requests served as its weight, and a
+ * tenant having executorFairQueueTenantCapacity requests waiting gets the next ones rejected, so the other tenants keep
+ * their share of the queue.
+ * <p>
+ * {@link #peek()} returns the request waiting longest rather than the next one served, that is what the fast failure
+ * and the water mark look at.
+ */
+public class WeightedFairBlockingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    public static final String TENANT_KEY_TOPIC = "topic";
+    public static final String TENANT_KEY_GROUP = "group";
+    public static final String TENANT_KEY_CLIENT = "client";
+
+    private static final String[] QUEUE_TIME_DESC = new String[] {
+        "[<=0ms]", "[0~10ms]", "[10~50ms]", "[50~100ms]", "[100~200ms]", "[200~500ms]", "[500ms~1s]", "[1~3s]",
+        "[3~5s]", "[5~10s]", "[10s~]"
+    };
+    private static final long[] QUEUE_TIME_BOUNDS = new long[] {1, 10, 50, 100, 200, 500, 1000, 3000, 5000, 10000};
+
+    private final int capacity;
+    private final BrokerConfig brokerConfig;
+    private final String tenantKey;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+    private final ArrayDeque<Tenant> activeTenants = new ArrayDeque<Tenant>();
+    private int count;
+
+    private String parsedWeights;
+    private Map<String, Integer> tenantWeights = Collections.emptyMap();
+
+    private final AtomicLong tenantRejectedNums = new AtomicLong(0);
+    private volatile AtomicLong[] queueTimeDistribution;
+
+    public WeightedFairBlockingQueue(final int capacity, final BrokerConfig brokerConfig) {
+        this.capacity = capacity;
+        this.brokerConfig = brokerConfig;
+        // fixed for the life of the queue, a queued request has to be found under the key it was put with
+        this.tenantKey = brokerConfig.getExecutorFairQueueTenantKey();
+        this.initQueueTimeDistribution();
+    }
+
+    private AtomicLong[] initQueueTimeDistribution() {
+        AtomicLong[] next = new AtomicLong[QUEUE_TIME_DESC.length];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = new AtomicLong(0);
+        }
+        AtomicLong[] old = this.queueTimeDistribution;
+        this.queueTimeDistribution = next;
+        return old;
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lock();
+        try {
+            return this.enqueue(runnable);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) throws InterruptedException {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lockInterruptibly();
+        try {
+            while (!this.enqueue(runnable)) {
+                this.notFull.await();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (!this.enqueue(runnable)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = this.notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        this.lock.lock();
+        try {
+            return this.count == 0 ? null : this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                this.notEmpty.await();
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = this.notEmpty.awaitNanos(nanos);
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        this.lock.lock();
+        try {
+            Node oldest = null;
+            for (Tenant tenant : this.activeTenants) {
+                Node head = tenant.nodes.peekFirst();
+                if (oldest == null || head.enqueueTimestamp < oldest.enqueueTimestamp) {
+                    oldest = head;
+                }
+            }
+            return oldest == null ? null : oldest.runnable;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable)) {
+            return false;
+        }
+        this.lock.lock();
+        try {
+            Tenant tenant = this.tenants.get(this.tenantKeyOf((Runnable) o));
+            if (tenant == null) {
+                return false;
+            }
+            Iterator<Node> it = tenant.nodes.iterator();
+            while (it.hasNext()) {
+                if (o.equals(it.next().runnable)) {
+                    it.remove();
+                    this.count--;
+                    if (tenant.nodes.isEmpty()) {
+                        this.activeTenants.remove(tenant);
+                        this.tenants.remove(tenant.key);
+                    }
+                    this.notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        this.lock.lock();
+        try {
+            return this.capacity - this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        this.lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && this.count > 0) {
+                c.add(this.dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the queue.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<Runnable>();
+        this.lock.lock();
+        try {
+            for (Tenant tenant : this.activeTenants) {
+                for (Node node : tenant.nodes) {
+                    snapshot.add(node.runnable);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        final Iterator<Runnable> it = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                this.last = it.next();
+                return this.last;
+            }
+
+            @Override
+            public void remove() {
+                if (this.last == null) {
+                    throw new IllegalStateException();
+                }
+                WeightedFairBlockingQueue.this.remove(this.last);
+                this.last = null;
+            }
+        };
+    }
+
+    private boolean enqueue(Runnable runnable) {
+        if (this.count >= this.capacity) {
+            return false;
+        }
+        String key = this.tenantKeyOf(runnable);
+        Tenant tenant = this.tenants.get(key);
+        if (tenant == null) {
+            tenant = new Tenant(key, this.weightOf(key));
+            this.tenants.put(key, tenant);
+            this.activeTenants.addLast(tenant);
+        } else if (tenant.nodes.size() >= this.brokerConfig.getExecutorFairQueueTenantCapacity()) {
+            this.tenantRejectedNums.incrementAndGet();
+            return false;
+        }
+        tenant.nodes.addLast(new Node(runnable));
+        this.count++;
+        this.notEmpty.signal();
+        return true;
+    }
+
+    private Runnable dequeue() {
+        Tenant tenant = this.activeTenants.peekFirst();
+        if (tenant.credit <= 0) {
+            tenant.credit = tenant.weight;
+        }
+        Node node = tenant.nodes.pollFirst();
+        tenant.credit--;
+        this.count--;
+        if (tenant.nodes.isEmpty()) {
+            this.activeTenants.pollFirst();
+            this.tenants.remove(tenant.key);
+        } else if (tenant.credit <= 0) {
+            this.activeTenants.pollFirst();
+            this.activeTenants.addLast(tenant);
+        }
+        this.notFull.signal();
+        this.recordQueueTime(System.currentTimeMillis() - node.enqueueTimestamp);
+        return node.runnable;
+    }
+
+    private void recordQueueTime(long queueTimeMills) {
+        int i = 0;
+        while (i < QUEUE_TIME_BOUNDS.length && queueTimeMills >= QUEUE_TIME_BOUNDS[i]) {
+            i++;
+        }
+        this.queueTimeDistribution[i].incrementAndGet();
+    }
+
+    String tenantKeyOf(Runnable runnable) {
+        Runnable inner = runnable instanceof FutureTaskExt ? ((FutureTaskExt) runnable).getRunnable() : runnable;
+        if (!(inner instanceof RequestTask)) {
+            return "";
+        }
+        RequestTask requestTask = (RequestTask) inner;
+        RemotingCommand request = requestTask.getRequest();
+        String key = null;
+        if (request != null && request.getExtFields() != null && !TENANT_KEY_CLIENT.equals(this.tenantKey)) {
+            Map<String, String> extFields = request.getExtFields();
+            boolean headerV2 = request.getCode() == RequestCode.SEND_MESSAGE_V2
+                || request.getCode() == RequestCode.SEND_BATCH_MESSAGE
+                || request.getCode() == RequestCode.SEND_BATCH_MESSAGE_IN_STORE_FORMAT
+                || request.getCode() == RequestCode.SEND_REPLY_MESSAGE_V2;
+            if (TENANT_KEY_TOPIC.equals(this.tenantKey)) {
+                key = extFields.get(headerV2 ? "b" : "topic");
+            } else if (headerV2) {
+                key = extFields.get("a");
+            } else {
+                key = extFields.get("producerGroup");
+                if (key == null) {
+                    key = extFields.get("consumerGroup");
+                }
+            }
+        }
+        if (key == null) {
+            key = RemotingHelper.parseChannelRemoteAddr(requestTask.getChannel());
+        }
+        return key;
+    }
+
+    private int weightOf(String key) {
+        String weights = this.brokerConfig.getExecutorFairQueueTenantWeights();
+        if (weights == null ? this.parsedWeights != null : !weights.equals(this.parsedWeights)) {
+            Map<String, Integer> parsed = new HashMap<String, Integer>();
+            if (weights != null) {
+                for (String item : weights.split(";")) {
+                    int index = item.lastIndexOf(':');
+                    if (index > 0) {
+                        try {
+                            parsed.put(item.substring(0, index).trim(),
+                                Math.max(1, Integer.parseInt(item.substring(index + 1).trim())));
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                }
+            }
+            this.tenantWeights = parsed;
+            this.parsedWeights = weights;
+        }
+        Integer weight = this.tenantWeights.get(key);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * @return the queue time distribution since the last call
+     */
+    public String takeQueueTimeDistribution() {
+        final AtomicLong[] times = this.initQueueTimeDistribution();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times.length; i++) {
+            sb.append(String.format("%s:%d", QUEUE_TIME_DESC[i], times[i].get()));
+            sb.append(" ");
+        }
+        return sb.toString();
+    }
+
+    public long getTenantRejectedNums() {
+        return tenantRejectedNums.get();
+    }
+
+    public int getTenantNums() {
+        this.lock.lock();
+        try {
+            return this.tenants.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private static class Node {
+        private final Runnable runnable;
+        private final long enqueueTimestamp = System.currentTimeMillis();
+
+        Node(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private static class Tenant {
+        private final String key;
+        private final int weight;
+        private final ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+        private int credit;
+
+        Tenant(String key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
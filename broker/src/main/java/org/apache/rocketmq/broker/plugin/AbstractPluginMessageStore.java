@@ -21,6 +21,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.TopicConfig;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
 import org.apache.rocketmq.store.CommitLogDispatcher;
@@ -264,4 +266,9 @@ public abstract class AbstractPluginMessageStore implements MessageStore {
     public BrokerStatsManager getBrokerStatsManager() {
         return next.getBrokerStatsManager();
     };
+
+    @Override
+    public void setTopicConfigTable(ConcurrentMap<String, TopicConfig> topicConfigTable) {
+        next.setTopicConfigTable(topicConfigTable);
+    }
 }
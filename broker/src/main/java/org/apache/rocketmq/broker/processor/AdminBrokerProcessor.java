@@ -268,6 +268,11 @@ public class AdminBrokerProcessor extends AsyncNettyRequestProcessor implements
         topicConfig.setTopicFilterType(requestHeader.getTopicFilterTypeEnum());
         topicConfig.setPerm(requestHeader.getPerm());
         topicConfig.setTopicSysFlag(requestHeader.getTopicSysFlag() == null ? 0 : requestHeader.getTopicSysFlag());
+        topicConfig.setFlushType(requestHeader.getFlushTypeEnum());
+        topicConfig.setFileReservedTime(requestHeader.getFileReservedTime() == null ? -1 : requestHeader.getFileReservedTime());
+        topicConfig.setProduceQuotaTps(requestHeader.getProduceQuotaTps() == null ? -1 : requestHeader.getProduceQuotaTps());
+        topicConfig.setProduceQuotaBytes(requestHeader.getProduceQuotaBytes() == null ? -1 : requestHeader.getProduceQuotaBytes());
+        topicConfig.setCompactConsumeQueue(requestHeader.getCompactConsumeQueue() != null && requestHeader.getCompactConsumeQueue());
 
         this.brokerController.getTopicConfigManager().updateTopicConfig(topicConfig);
 
@@ -34,11 +34,18 @@ import org.apache.rocketmq.remoting.common.RemotingHelper;
 import org.apache.rocketmq.remoting.exception.RemotingCommandException;
 import org.apache.rocketmq.remoting.netty.AsyncNettyRequestProcessor;
 import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
+import org.apache.rocketmq.remoting.netty.RemotingResponseCallback;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.store.MessageExtBrokerInner;
 import org.apache.rocketmq.store.PutMessageResult;
 import org.apache.rocketmq.store.config.BrokerRole;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
 /**
  * EndTransaction processor: process commit and rollback message
  */
@@ -65,6 +72,41 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
     @Override
     public RemotingCommand processRequest(ChannelHandlerContext ctx, RemotingCommand request) throws
         RemotingCommandException {
+        try {
+            return asyncProcessRequest(ctx, request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return processError(request, e);
+        } catch (ExecutionException e) {
+            return processError(request, e.getCause());
+        }
+    }
+
+    @Override
+    public void asyncProcessRequest(ChannelHandlerContext ctx, RemotingCommand request,
+        RemotingResponseCallback responseCallback) throws Exception {
+        asyncProcessRequest(ctx, request).whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                responseCallback.callback(processError(request, throwable));
+                return;
+            }
+            responseCallback.callback(response);
+        });
+    }
+
+    private RemotingCommand processError(RemotingCommand request, Throwable throwable) {
+        LOGGER.error("process EndTransaction error, request : " + request.toString(), throwable);
+        return RemotingCommand.createResponseCommand(ResponseCode.SYSTEM_ERROR, "process EndTransaction error: "
+            + throwable);
+    }
+
+    /**
+     * With endTransactionBatchEnable the committed message is stored asynchronously and the op message is written
+     * along with those of concurrent requests, the future completes once both are written. Otherwise the future is
+     * already completed on return.
+     */
+    public CompletableFuture<RemotingCommand> asyncProcessRequest(ChannelHandlerContext ctx,
+        RemotingCommand request) throws RemotingCommandException {
         // 创建响应
         final RemotingCommand response = RemotingCommand.createResponseCommand(null);
         final EndTransactionRequestHeader requestHeader =
@@ -74,7 +116,7 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
         if (BrokerRole.SLAVE == brokerController.getMessageStoreConfig().getBrokerRole()) {
             response.setCode(ResponseCode.SLAVE_NOT_AVAILABLE);
             LOGGER.warn("Message store is slave mode, so end transaction is forbidden. ");
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (requestHeader.getFromTransactionCheck()) {
@@ -85,7 +127,7 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
                         RemotingHelper.parseChannelRemoteAddr(ctx.channel()),
                         requestHeader.toString(),
                         request.getRemark());
-                    return null;
+                    return CompletableFuture.completedFuture(null);
                 }
 
                 case MessageSysFlag.TRANSACTION_COMMIT_TYPE: {
@@ -107,7 +149,7 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
                     break;
                 }
                 default:
-                    return null;
+                    return CompletableFuture.completedFuture(null);
             }
         } else {
             switch (requestHeader.getCommitOrRollback()) {
@@ -117,7 +159,7 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
                         RemotingHelper.parseChannelRemoteAddr(ctx.channel()),
                         requestHeader.toString(),
                         request.getRemark());
-                    return null;
+                    return CompletableFuture.completedFuture(null);
                 }
 
                 case MessageSysFlag.TRANSACTION_COMMIT_TYPE: {
@@ -133,7 +175,7 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
                     break;
                 }
                 default:
-                    return null;
+                    return CompletableFuture.completedFuture(null);
             }
         }
         OperationResult result = new OperationResult();
@@ -154,17 +196,24 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
                     msgInner.setStoreTimestamp(result.getPrepareMessage().getStoreTimestamp());
                     MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TRANSACTION_PREPARED);
                     // 同步存储消息
-                    RemotingCommand sendResult = sendFinalMessage(msgInner);
-                    // 如果存储(store)层返回success
-                    if (sendResult.getCode() == ResponseCode.SUCCESS) {
-                        //删除half消息, 不会直接删除消息
-                        // 由于CommitLog追加写的性质，RocketMQ并不会直接将half消息从CommitLog中删除，而是使用了另外一个
-                        // OP主题RMQ_SYS_TRANS_OP_HALF_TOPIC（以下简称OP主题/队列），将已经提交/回滚的消息记录在OP主题队列中
-                        this.brokerController.getTransactionalMessageService().deletePrepareMessage(result.getPrepareMessage());
+                    final MessageExt prepareMessage = result.getPrepareMessage();
+                    Function<RemotingCommand, CompletableFuture<RemotingCommand>> deleteIfSent = sendResult -> {
+                        // 如果存储(store)层返回success
+                        if (sendResult.getCode() == ResponseCode.SUCCESS) {
+                            //删除half消息, 不会直接删除消息
+                            // 由于CommitLog追加写的性质，RocketMQ并不会直接将half消息从CommitLog中删除，而是使用了另外一个
+                            // OP主题RMQ_SYS_TRANS_OP_HALF_TOPIC（以下简称OP主题/队列），将已经提交/回滚的消息记录在OP主题队列中
+                            return deletePrepareMessage(prepareMessage).thenApply(deleted -> sendResult);
+                        }
+                        return CompletableFuture.completedFuture(sendResult);
+                    };
+                    if (isBatchEnable()) {
+                        // the put completes on the flush or HA thread, writing the op messages is not left to it
+                        return sendFinalMessage(msgInner).thenComposeAsync(deleteIfSent, this::executeOpWrite);
                     }
-                    return sendResult;
+                    return sendFinalMessage(msgInner).thenCompose(deleteIfSent);
                 }
-                return res;
+                return CompletableFuture.completedFuture(res);
             }
         } else if (MessageSysFlag.TRANSACTION_ROLLBACK_TYPE == requestHeader.getCommitOrRollback()) {  // 如果是回滚
             // 回滚消息 根据消息的偏移量从commitLog中获取消息
@@ -173,14 +222,43 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
                 RemotingCommand res = checkPrepareMessage(result.getPrepareMessage(), requestHeader);
                 if (res.getCode() == ResponseCode.SUCCESS) {
                     // 删除half消息,其实就是添加到Op 消息队列中
-                    this.brokerController.getTransactionalMessageService().deletePrepareMessage(result.getPrepareMessage());
+                    return deletePrepareMessage(result.getPrepareMessage()).thenApply(deleted -> res);
                 }
-                return res;
+                return CompletableFuture.completedFuture(res);
             }
         }
         response.setCode(result.getResponseCode());
         response.setRemark(result.getResponseRemark());
-        return response;
+        return CompletableFuture.completedFuture(response);
+    }
+
+    private boolean isBatchEnable() {
+        return this.brokerController.getBrokerConfig().isEndTransactionBatchEnable();
+    }
+
+    /**
+     * The committed message is stored by now, so its op message is written even if the op executor turns it down,
+     * otherwise the producer would be checked again and the message committed twice.
+     */
+    private void executeOpWrite(Runnable opWrite) {
+        ExecutorService executor = this.brokerController.getEndTransactionOpExecutor();
+        if (executor != null) {
+            try {
+                executor.execute(opWrite);
+                return;
+            } catch (RejectedExecutionException e) {
+                LOGGER.warn("End transaction op executor rejected the op message, write it in place");
+            }
+        }
+        opWrite.run();
+    }
+
+    private CompletableFuture<Boolean> deletePrepareMessage(MessageExt prepareMessage) {
+        if (isBatchEnable()) {
+            return this.brokerController.getTransactionalMessageService().asyncDeletePrepareMessage(prepareMessage);
+        }
+        return CompletableFuture.completedFuture(
+            this.brokerController.getTransactionalMessageService().deletePrepareMessage(prepareMessage));
     }
 
     @Override
@@ -250,10 +328,17 @@ public class EndTransactionProcessor extends AsyncNettyRequestProcessor implemen
         return msgInner;
     }
 
-    private RemotingCommand sendFinalMessage(MessageExtBrokerInner msgInner) {
-        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+    private CompletableFuture<RemotingCommand> sendFinalMessage(MessageExtBrokerInner msgInner) {
+        if (isBatchEnable()) {
+            return this.brokerController.getMessageStore().asyncPutMessage(msgInner).thenApply(this::handlePutMessageResult);
+        }
         // 同步存储消息
-        final PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
+        return CompletableFuture.completedFuture(
+            handlePutMessageResult(this.brokerController.getMessageStore().putMessage(msgInner)));
+    }
+
+    private RemotingCommand handlePutMessageResult(PutMessageResult putMessageResult) {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
         if (putMessageResult != null) {
             switch (putMessageResult.getPutMessageStatus()) {
                 // Success
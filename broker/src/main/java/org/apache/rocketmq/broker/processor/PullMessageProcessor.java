@@ -260,12 +260,21 @@ public class PullMessageProcessor extends AsyncNettyRequestProcessor implements
             messageFilter = new ExpressionMessageFilter(subscriptionData, consumerFilterData,
                 this.brokerController.getConsumerFilterManager());
         }
+        final boolean quotaEnable = this.brokerController.getBrokerConfig().isQuotaEnable();
+        if (quotaEnable
+            && this.brokerController.getQuotaManager().checkConsume(subscriptionGroupConfig, channel, response) != null) {
+            return response;
+        }
         // 拉取消息
         // 根据拉取偏移量获取消息
         final GetMessageResult getMessageResult =
             this.brokerController.getMessageStore().getMessage(requestHeader.getConsumerGroup(), requestHeader.getTopic(),
                 requestHeader.getQueueId(), requestHeader.getQueueOffset(), requestHeader.getMaxMsgNums(), messageFilter);
         if (getMessageResult != null) {
+            if (quotaEnable && getMessageResult.getMessageCount() > 0) {
+                this.brokerController.getQuotaManager().chargeConsume(subscriptionGroupConfig, channel,
+                    getMessageResult.getMessageCount(), getMessageResult.getBufferTotalSize());
+            }
             // 设置拉取结果
             response.setRemark(getMessageResult.getStatus().name());
             // 设置下一次的拉取偏移量
@@ -396,7 +396,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             putMessageResult = this.brokerController.getMessageStore().asyncPutMessage(msgInner);
         }
         // 返回消息持久化结果
-        return handlePutMessageResultFuture(putMessageResult, response, request, msgInner, responseHeader, mqtraceContext, ctx, queueIdInt);
+        return handlePutMessageResultFuture(chargeProduceQuota(putMessageResult, requestHeader, ctx), response, request, msgInner, responseHeader, mqtraceContext, ctx, queueIdInt);
     }
 
     private CompletableFuture<RemotingCommand> handlePutMessageResultFuture(CompletableFuture<PutMessageResult> putMessageResult,
@@ -674,6 +674,20 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         messageExtBatch.setFlag(requestHeader.getFlag());
         MessageAccessor.setProperties(messageExtBatch, MessageDecoder.string2messageProperties(requestHeader.getProperties()));
         messageExtBatch.setBody(request.getBody());
+        if (request.getCode() == RequestCode.SEND_BATCH_MESSAGE_IN_STORE_FORMAT) {
+            if (this.brokerController.getMessageStoreConfig().isEnableDLegerCommitLog()) {
+                // the DLedger commit log encodes on its own, the batch properties stay embedded in every message
+                try {
+                    messageExtBatch.setBody(MessageDecoder.convertStoreFormatBatch(request.getBody()));
+                } catch (Exception e) {
+                    response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+                    response.setRemark("illegal batch in store format: " + e.getMessage());
+                    return CompletableFuture.completedFuture(response);
+                }
+            } else {
+                messageExtBatch.setStoreFormat(true);
+            }
+        }
         messageExtBatch.setBornTimestamp(requestHeader.getBornTimestamp());
         messageExtBatch.setBornHost(ctx.channel().remoteAddress());
         messageExtBatch.setStoreHost(this.getStoreHost());
@@ -682,7 +696,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         MessageAccessor.putProperty(messageExtBatch, MessageConst.PROPERTY_CLUSTER, clusterName);
 
         CompletableFuture<PutMessageResult> putMessageResult = this.brokerController.getMessageStore().asyncPutMessages(messageExtBatch);
-        return handlePutMessageResultFuture(putMessageResult, response, request, messageExtBatch, responseHeader, mqtraceContext, ctx, queueIdInt);
+        return handlePutMessageResultFuture(chargeProduceQuota(putMessageResult, requestHeader, ctx), response, request, messageExtBatch, responseHeader, mqtraceContext, ctx, queueIdInt);
     }
 
 
@@ -768,6 +782,32 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             return response;
         }
 
+        if (this.brokerController.getBrokerConfig().isQuotaEnable()) {
+            TopicConfig topicConfig = this.brokerController.getTopicConfigManager().selectTopicConfig(requestHeader.getTopic());
+            if (topicConfig != null) {
+                this.brokerController.getQuotaManager().checkProduce(topicConfig, requestHeader.getProducerGroup(),
+                    ctx.channel(), response);
+            }
+        }
+
         return response;
     }
+
+    private CompletableFuture<PutMessageResult> chargeProduceQuota(CompletableFuture<PutMessageResult> putMessageResult,
+        SendMessageRequestHeader requestHeader, ChannelHandlerContext ctx) {
+        if (!this.brokerController.getBrokerConfig().isQuotaEnable()) {
+            return putMessageResult;
+        }
+        final TopicConfig topicConfig = this.brokerController.getTopicConfigManager().selectTopicConfig(requestHeader.getTopic());
+        if (topicConfig == null) {
+            return putMessageResult;
+        }
+        return putMessageResult.whenComplete((result, throwable) -> {
+            if (result != null && result.isOk()) {
+                this.brokerController.getQuotaManager().chargeProduce(topicConfig, requestHeader.getProducerGroup(),
+                    ctx.channel(), result.getAppendMessageResult().getMsgNum(),
+                    result.getAppendMessageResult().getWroteBytes());
+            }
+        });
+    }
 }
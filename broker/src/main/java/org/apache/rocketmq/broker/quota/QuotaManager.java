@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.quota;
+
+import io.netty.channel.Channel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.broker.client.ClientChannelInfo;
+import org.apache.rocketmq.broker.client.ConsumerGroupInfo;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.common.subscription.SubscriptionGroupConfig;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.remoting.common.RemotingHelper;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+
+/**
+ * Token bucket quotas in messages and bytes a second, for the topic and producer group of a send, the consumer group
+ * of a pull and the client of both. How much a request costs is only known once the store is done with it, so a
+ * request is let through as long as none of its buckets is in debt and charged afterwards, a big batch then pushes the
+ * following requests back for as long as it overdrew.
+ */
+public class QuotaManager {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
+
+    /**
+     * Buckets not used for this long are full again and dropped.
+     */
+    private static final long IDLE_BUCKET_MILLS = 60 * 1000;
+
+    private final BrokerController brokerController;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    public QuotaManager(final BrokerController brokerController) {
+        this.brokerController = brokerController;
+    }
+
+    /**
+     * @return the response telling the producer to back off, null if the send may go on
+     */
+    public RemotingCommand checkProduce(final TopicConfig topicConfig, final String producerGroup,
+        final Channel channel, final RemotingCommand response) {
+        BrokerConfig brokerConfig = this.brokerController.getBrokerConfig();
+        long now = System.currentTimeMillis();
+        long waitMills = this.waitMills("topic@" + topicConfig.getTopicName(), now,
+            topicConfig.getProduceQuotaTps(), topicConfig.getProduceQuotaBytes());
+        if (waitMills > 0) {
+            return this.quotaExceeded(response, "topic " + topicConfig.getTopicName(), waitMills);
+        }
+        waitMills = this.waitMills("producer@" + producerGroup, now,
+            brokerConfig.getProducerGroupQuotaTps(), brokerConfig.getProducerGroupQuotaBytes());
+        if (waitMills > 0) {
+            return this.quotaExceeded(response, "producer group " + producerGroup, waitMills);
+        }
+        String clientId = this.producerClientId(producerGroup, channel);
+        waitMills = this.waitMills("produceClient@" + clientId, now,
+            brokerConfig.getClientQuotaTps(), brokerConfig.getClientQuotaBytes());
+        if (waitMills > 0) {
+            return this.quotaExceeded(response, "client " + clientId, waitMills);
+        }
+        return null;
+    }
+
+    public void chargeProduce(final TopicConfig topicConfig, final String producerGroup, final Channel channel,
+        final int msgNums, final long bytes) {
+        BrokerConfig brokerConfig = this.brokerController.getBrokerConfig();
+        this.charge("topic@" + topicConfig.getTopicName(),
+            topicConfig.getProduceQuotaTps(), topicConfig.getProduceQuotaBytes(), msgNums, bytes);
+        this.charge("producer@" + producerGroup,
+            brokerConfig.getProducerGroupQuotaTps(), brokerConfig.getProducerGroupQuotaBytes(), msgNums, bytes);
+        this.charge("produceClient@" + this.producerClientId(producerGroup, channel),
+            brokerConfig.getClientQuotaTps(), brokerConfig.getClientQuotaBytes(), msgNums, bytes);
+    }
+
+    /**
+     * @return the response telling the consumer to back off, null if the pull may go on
+     */
+    public RemotingCommand checkConsume(final SubscriptionGroupConfig groupConfig, final Channel channel,
+        final RemotingCommand response) {
+        BrokerConfig brokerConfig = this.brokerController.getBrokerConfig();
+        long now = System.currentTimeMillis();
+        long waitMills = this.waitMills("consumer@" + groupConfig.getGroupName(), now,
+            groupConfig.getConsumeQuotaTps(), groupConfig.getConsumeQuotaBytes());
+        if (waitMills > 0) {
+            return this.quotaExceeded(response, "consumer group " + groupConfig.getGroupName(), waitMills);
+        }
+        String clientId = this.consumerClientId(groupConfig.getGroupName(), channel);
+        waitMills = this.waitMills("consumeClient@" + clientId, now,
+            brokerConfig.getClientQuotaTps(), brokerConfig.getClientQuotaBytes());
+        if (waitMills > 0) {
+            return this.quotaExceeded(response, "client " + clientId, waitMills);
+        }
+        return null;
+    }
+
+    public void chargeConsume(final SubscriptionGroupConfig groupConfig, final Channel channel, final int msgNums,
+        final long bytes) {
+        BrokerConfig brokerConfig = this.brokerController.getBrokerConfig();
+        this.charge("consumer@" + groupConfig.getGroupName(),
+            groupConfig.getConsumeQuotaTps(), groupConfig.getConsumeQuotaBytes(), msgNums, bytes);
+        this.charge("consumeClient@" + this.consumerClientId(groupConfig.getGroupName(), channel),
+            brokerConfig.getClientQuotaTps(), brokerConfig.getClientQuotaBytes(), msgNums, bytes);
+    }
+
+    public void cleanIdleBuckets() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Bucket>> it = this.buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().getLastRefillTime() > IDLE_BUCKET_MILLS) {
+                it.remove();
+            }
+        }
+    }
+
+    private long waitMills(String key, long now, int tpsQuota, long bytesQuota) {
+        if (tpsQuota < 0 && bytesQuota < 0) {
+            return 0;
+        }
+        Bucket bucket = this.buckets.get(key);
+        return bucket == null ? 0 : bucket.waitMills(now, tpsQuota, bytesQuota);
+    }
+
+    private void charge(String key, int tpsQuota, long bytesQuota, int msgNums, long bytes) {
+        if (tpsQuota < 0 && bytesQuota < 0) {
+            return;
+        }
+        Bucket bucket = this.buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(tpsQuota, bytesQuota);
+            Bucket prev = this.buckets.putIfAbsent(key, bucket);
+            if (prev != null) {
+                bucket = prev;
+            }
+        }
+        bucket.charge(System.currentTimeMillis(), tpsQuota, bytesQuota, msgNums, bytes);
+    }
+
+    private RemotingCommand quotaExceeded(RemotingCommand response, String who, long waitMills) {
+        log.debug("Quota of {} exceeded, back off {}ms", who, waitMills);
+        response.setCode(ResponseCode.QUOTA_EXCEEDED);
+        response.setRemark(String.format("[QUOTA_EXCEEDED]quota of %s exceeded, retry after %dms", who, waitMills));
+        return response;
+    }
+
+    private String producerClientId(String producerGroup, Channel channel) {
+        Map<Channel, ClientChannelInfo> channelInfoTable =
+            this.brokerController.getProducerManager().getGroupChannelTable().get(producerGroup);
+        ClientChannelInfo clientChannelInfo = channelInfoTable != null ? channelInfoTable.get(channel) : null;
+        return clientChannelInfo != null ? clientChannelInfo.getClientId() : RemotingHelper.parseChannelRemoteAddr(channel);
+    }
+
+    private String consumerClientId(String consumerGroup, Channel channel) {
+        ConsumerGroupInfo consumerGroupInfo = this.brokerController.getConsumerManager().getConsumerGroupInfo(consumerGroup);
+        ClientChannelInfo clientChannelInfo =
+            consumerGroupInfo != null ? consumerGroupInfo.getChannelInfoTable().get(channel) : null;
+        return clientChannelInfo != null ? clientChannelInfo.getClientId() : RemotingHelper.parseChannelRemoteAddr(channel);
+    }
+
+    /**
+     * Holds one second worth of each quota, the tokens go negative when a request takes more than is left.
+     */
+    static class Bucket {
+        private double msgTokens;
+        private double byteTokens;
+        private long lastRefillTime;
+
+        Bucket(int tpsQuota, long bytesQuota) {
+            this.msgTokens = Math.max(tpsQuota, 0);
+            this.byteTokens = Math.max(bytesQuota, 0);
+            this.lastRefillTime = System.currentTimeMillis();
+        }
+
+        synchronized long waitMills(long now, int tpsQuota, long bytesQuota) {
+            this.refill(now, tpsQuota, bytesQuota);
+            return Math.max(waitMills(this.msgTokens, tpsQuota), waitMills(this.byteTokens, bytesQuota));
+        }
+
+        synchronized void charge(long now, int tpsQuota, long bytesQuota, int msgNums, long bytes) {
+            this.refill(now, tpsQuota, bytesQuota);
+            this.msgTokens -= msgNums;
+            this.byteTokens -= bytes;
+        }
+
+        private void refill(long now, int tpsQuota, long bytesQuota) {
+            long elapsed = Math.max(now - this.lastRefillTime, 0);
+            if (tpsQuota >= 0) {
+                this.msgTokens = Math.min(tpsQuota, this.msgTokens + elapsed * tpsQuota / 1000.0);
+            }
+            if (bytesQuota >= 0) {
+                this.byteTokens = Math.min(bytesQuota, this.byteTokens + elapsed * bytesQuota / 1000.0);
+            }
+            this.lastRefillTime = now;
+        }
+
+        private static long waitMills(double tokens, long quota) {
+            if (quota < 0 || tokens > 0) {
+                return 0;
+            }
+            if (quota == 0) {
+                return 1000;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / quota));
+        }
+
+        synchronized long getLastRefillTime() {
+            return lastRefillTime;
+        }
+    }
+}
@@ -62,9 +62,10 @@ public abstract class AbstractTransactionalMessageCheckListener {
      * sendCheckMessage方法在AbstractTransactionalMessageCheckListener中实现，主要是构建请求信息，然后向消息的生产者发送事务状态回查的请求
      *
      * @param msgExt
+     * @return false if the producer group has no channel or the request could not be sent
      * @throws Exception
      */
-    public void sendCheckMessage(MessageExt msgExt) throws Exception {
+    public boolean sendCheckMessage(MessageExt msgExt) throws Exception {
         // 构建回查请求头
         CheckTransactionStateRequestHeader checkTransactionStateRequestHeader = new CheckTransactionStateRequestHeader();
         // 设置Commitlog偏移量
@@ -84,17 +85,33 @@ public abstract class AbstractTransactionalMessageCheckListener {
         if (channel != null) {
             // 发送回查请求  事务状态回查请求的处理在{@see org.apache.rocketmq.client.impl.ClientRemotingProcessor.processRequest}中
             // ，如果请求类型是CHECK_TRANSACTION_STATE表示是事务状态回查请求，调用checkTransactionState方法进行事务状态检查
-            brokerController.getBroker2Client().checkProducerTransactionState(groupId, channel, checkTransactionStateRequestHeader, msgExt);
+            return brokerController.getBroker2Client().checkProducerTransactionState(groupId, channel, checkTransactionStateRequestHeader, msgExt);
         } else {
             LOGGER.warn("Check transaction failed, channel is null. groupId={}", groupId);
+            return false;
         }
     }
 
     /**
      * 向客户端发送事务状态回查的请求，可以看到是通过线程池异步实现的
      * @param msgExt
+     * @return false if the check is not sent but left to the next check round
      */
-    public void resolveHalfMsg(final MessageExt msgExt) {
+    public boolean resolveHalfMsg(final MessageExt msgExt) {
+        return resolveHalfMsg(msgExt, null);
+    }
+
+    /**
+     * @param msgExt
+     * @param onDropped run if the check is taken on but dropped before it is sent, may be null
+     * @return false if the check is not sent but left to the next check round, onDropped is not run then
+     */
+    public boolean resolveHalfMsg(final MessageExt msgExt, final Runnable onDropped) {
+        TransactionCheckDispatcher checkDispatcher =
+            brokerController != null ? brokerController.getTransactionCheckDispatcher() : null;
+        if (checkDispatcher != null) {
+            return checkDispatcher.dispatch(msgExt, this, onDropped);
+        }
         executorService.execute(new Runnable() {
             @Override
             public void run() {
@@ -106,6 +123,7 @@ public abstract class AbstractTransactionalMessageCheckListener {
                 }
             }
         });
+        return true;
     }
 
     public BrokerController getBrokerController() {
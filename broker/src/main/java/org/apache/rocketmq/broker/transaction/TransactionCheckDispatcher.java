@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.transaction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Sends the transaction check requests per producer group. Every group gets a token bucket refilled with
+ * transactionCheckRatePerGroup tokens a second, and a group whose check cannot be sent is left alone for a back-off
+ * that doubles with every further failure, so a producer coming back from an outage is not flooded with the checks
+ * piled up meanwhile. Check requests that are throttled or fail are dropped, the half message has already been put
+ * back and is checked again in the next check round. So are the ones pending when the group starts backing off and the
+ * ones coming in while it does, sending them later would check the same transaction again beside the put-back copy.
+ * Only the checks handed to the producer count towards transactionCheckMax, a pending check dropped here runs the
+ * callback it was dispatched with so the check round can take its count back.
+ */
+public class TransactionCheckDispatcher {
+    private static final InternalLogger LOGGER = InternalLoggerFactory.getLogger(LoggerName.TRANSACTION_LOGGER_NAME);
+
+    /**
+     * Check requests sent for one group before the thread moves on to the other groups.
+     */
+    private static final int MAX_SEND_NUM_PER_RUN = 32;
+
+    private final BrokerConfig brokerConfig;
+    private final ScheduledExecutorService sendExecutor;
+    private final ConcurrentMap<String, GroupState> groupStates = new ConcurrentHashMap<String, GroupState>();
+
+    private final AtomicLong sentNums = new AtomicLong(0);
+    private final AtomicLong failedNums = new AtomicLong(0);
+    private final AtomicLong throttledNums = new AtomicLong(0);
+    private final AtomicLong windowSendNums = new AtomicLong(0);
+    private final AtomicLong windowSendMicros = new AtomicLong(0);
+    private final AtomicLong windowMaxSendMicros = new AtomicLong(0);
+
+    public TransactionCheckDispatcher(final BrokerConfig brokerConfig) {
+        this.brokerConfig = brokerConfig;
+        this.sendExecutor = Executors.newScheduledThreadPool(brokerConfig.getTransactionCheckDispatchThreadPoolNums(),
+            new ThreadFactoryImpl("TransactionCheckDispatchThread_"));
+    }
+
+    public void start() {
+        this.sendExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TransactionCheckDispatcher.this.logStats();
+                } catch (Throwable e) {
+                    LOGGER.error("Log transaction check stats error", e);
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void shutdown() {
+        this.sendExecutor.shutdown();
+    }
+
+    /**
+     * @param onDropped run if the check is accepted but dropped later on because its group starts backing off, may be
+     * null
+     * @return false if the check request is left to the next check round because its group has too many pending or
+     * is backing off
+     */
+    public boolean dispatch(final MessageExt msgExt, final AbstractTransactionalMessageCheckListener listener,
+        final Runnable onDropped) {
+        String group = String.valueOf(msgExt.getProperty(MessageConst.PROPERTY_PRODUCER_GROUP));
+        GroupState state = this.groupStates.get(group);
+        if (state == null) {
+            state = new GroupState(group);
+            GroupState prev = this.groupStates.putIfAbsent(group, state);
+            if (prev != null) {
+                state = prev;
+            }
+        }
+
+        if (System.currentTimeMillis() < state.backoffUntil) {
+            this.throttledNums.incrementAndGet();
+            return false;
+        }
+        if (state.pendingNums.incrementAndGet() > this.brokerConfig.getTransactionCheckMaxPendingPerGroup()) {
+            state.pendingNums.decrementAndGet();
+            this.throttledNums.incrementAndGet();
+            return false;
+        }
+        state.pendingChecks.add(new PendingCheck(msgExt, listener, onDropped));
+        this.schedule(state, 0);
+        return true;
+    }
+
+    private void schedule(final GroupState state, long delayMills) {
+        if (!state.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.sendExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    TransactionCheckDispatcher.this.send(state);
+                }
+            }, delayMills, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            state.scheduled.set(false);
+            LOGGER.warn("Transaction check dispatcher is shut down, group={}", state.group);
+        }
+    }
+
+    private void send(final GroupState state) {
+        long delayMills = 0;
+        try {
+            for (int i = 0; i < MAX_SEND_NUM_PER_RUN; i++) {
+                long now = System.currentTimeMillis();
+                if (now < state.backoffUntil) {
+                    delayMills = state.backoffUntil - now;
+                    break;
+                }
+                if (state.pendingChecks.isEmpty()) {
+                    break;
+                }
+                long waitMills = state.acquire(now, this.brokerConfig.getTransactionCheckRatePerGroup());
+                if (waitMills > 0) {
+                    delayMills = waitMills;
+                    break;
+                }
+                PendingCheck pendingCheck = state.pendingChecks.poll();
+                state.pendingNums.decrementAndGet();
+                this.sendCheck(state, pendingCheck);
+            }
+        } finally {
+            state.scheduled.set(false);
+        }
+        // a check added after the last look found the flag still taken, so look again after letting go
+        if (!state.pendingChecks.isEmpty()) {
+            this.schedule(state, delayMills);
+        }
+    }
+
+    private void sendCheck(final GroupState state, final PendingCheck pendingCheck) {
+        long beginTime = System.nanoTime();
+        boolean ok;
+        try {
+            ok = pendingCheck.listener.sendCheckMessage(pendingCheck.msgExt);
+        } catch (Throwable e) {
+            LOGGER.error("Send check message error, group={}", state.group, e);
+            ok = false;
+        }
+        long sendMicros = (System.nanoTime() - beginTime) / 1000;
+        this.windowSendNums.incrementAndGet();
+        this.windowSendMicros.addAndGet(sendMicros);
+        long max = this.windowMaxSendMicros.get();
+        while (sendMicros > max && !this.windowMaxSendMicros.compareAndSet(max, sendMicros)) {
+            max = this.windowMaxSendMicros.get();
+        }
+
+        if (ok) {
+            this.sentNums.incrementAndGet();
+            state.backoffMills = 0;
+            return;
+        }
+        this.failedNums.incrementAndGet();
+        state.backoffMills = state.backoffMills == 0 ? this.brokerConfig.getTransactionCheckBackoffMinMills()
+            : Math.min(state.backoffMills * 2, this.brokerConfig.getTransactionCheckBackoffMaxMills());
+        state.backoffUntil = System.currentTimeMillis() + state.backoffMills;
+        int droppedNums = 0;
+        PendingCheck droppedCheck;
+        while ((droppedCheck = state.pendingChecks.poll()) != null) {
+            state.pendingNums.decrementAndGet();
+            droppedNums++;
+            this.drop(droppedCheck);
+        }
+        this.throttledNums.addAndGet(droppedNums);
+        LOGGER.warn("Check transaction of group={} failed, back off {}ms, dropped={}", state.group, state.backoffMills,
+            droppedNums);
+    }
+
+    private void drop(final PendingCheck pendingCheck) {
+        if (pendingCheck.onDropped == null) {
+            return;
+        }
+        try {
+            pendingCheck.onDropped.run();
+        } catch (Throwable e) {
+            LOGGER.error("Resolve dropped check error", e);
+        }
+    }
+
+    private void logStats() {
+        long sendNums = this.windowSendNums.getAndSet(0);
+        long sendMicros = this.windowSendMicros.getAndSet(0);
+        long maxSendMicros = this.windowMaxSendMicros.getAndSet(0);
+        StringBuilder pending = new StringBuilder();
+        for (Map.Entry<String, GroupState> entry : this.groupStates.entrySet()) {
+            GroupState state = entry.getValue();
+            if (state.pendingNums.get() > 0 || state.backoffMills > 0) {
+                pending.append(entry.getKey()).append('=').append(state.pendingNums.get())
+                    .append('(').append(state.backoffMills).append("ms) ");
+            }
+        }
+        LOGGER.info("[TRANSACTION CHECK] tps={} avgSendMicros={} maxSendMicros={} sent={} failed={} throttled={} "
+                + "pending={}", String.format("%.2f", sendNums / 60.0), sendNums == 0 ? 0 : sendMicros / sendNums,
+            maxSendMicros, this.sentNums.get(), this.failedNums.get(), this.throttledNums.get(), pending);
+    }
+
+    public long getSentNums() {
+        return sentNums.get();
+    }
+
+    public long getFailedNums() {
+        return failedNums.get();
+    }
+
+    public long getThrottledNums() {
+        return throttledNums.get();
+    }
+
+    private static class PendingCheck {
+        private final MessageExt msgExt;
+        private final AbstractTransactionalMessageCheckListener listener;
+        private final Runnable onDropped;
+
+        PendingCheck(MessageExt msgExt, AbstractTransactionalMessageCheckListener listener, Runnable onDropped) {
+            this.msgExt = msgExt;
+            this.listener = listener;
+            this.onDropped = onDropped;
+        }
+    }
+
+    /**
+     * Apart from the pending checks, only touched by the one thread sending for the group at a time.
+     */
+    private static class GroupState {
+        private final String group;
+        private final ConcurrentLinkedQueue<PendingCheck> pendingChecks = new ConcurrentLinkedQueue<PendingCheck>();
+        private final AtomicInteger pendingNums = new AtomicInteger(0);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile long backoffMills;
+        private volatile long backoffUntil;
+        private double tokens = -1;
+        private long lastRefillTime;
+
+        GroupState(String group) {
+            this.group = group;
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise the time until the next token
+         */
+        long acquire(long now, int ratePerSecond) {
+            if (ratePerSecond <= 0) {
+                return 0;
+            }
+            if (this.tokens < 0) {
+                this.tokens = ratePerSecond;
+            } else {
+                this.tokens = Math.min(ratePerSecond, this.tokens + (now - this.lastRefillTime) * ratePerSecond / 1000.0);
+            }
+            this.lastRefillTime = now;
+            if (this.tokens >= 1) {
+                this.tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - this.tokens) * 1000 / ratePerSecond));
+        }
+    }
+}
@@ -48,6 +48,16 @@ public interface TransactionalMessageService {
      */
     boolean deletePrepareMessage(MessageExt messageExt);
 
+    /**
+     * Delete prepare message in async manner, implementations may write it together with those of concurrent requests.
+     *
+     * @param messageExt Prepare(Half) message that was committed or rolled back.
+     * @return CompletableFuture of the delete result.
+     */
+    default CompletableFuture<Boolean> asyncDeletePrepareMessage(MessageExt messageExt) {
+        return CompletableFuture.completedFuture(deletePrepareMessage(messageExt));
+    }
+
     /**
      * Invoked to process commit prepare message.
      * 处理事物提交了消息
@@ -0,0 +1,420 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.transaction.queue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * The half messages that are neither committed nor rolled back yet, per half queue and keyed by half queue offset.
+ * The index follows the half queue and the op queue from where it stopped last time, so every half and op message is
+ * read once, and commits and rollbacks also drop their entry right away. The replay positions are checkpointed along
+ * with the entries, a broker restart only replays what was appended after the last checkpoint.
+ */
+public class HalfMessageIndex {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.TRANSACTION_LOGGER_NAME);
+
+    private static final int CHECKPOINT_MAGIC = 0x48414C46;
+
+    private final String checkpointPath;
+    private final ConcurrentMap<Integer/* queueId */, QueueIndex> queueIndexTable =
+        new ConcurrentHashMap<Integer, QueueIndex>();
+
+    public HalfMessageIndex(final String checkpointPath) {
+        this.checkpointPath = checkpointPath;
+    }
+
+    /**
+     * The key the op message of this half message refers to, a half message written back by the immunity check
+     * still stands for the offset of the original one.
+     */
+    public static long indexKey(final MessageExt msgExt) {
+        String prepareQueueOffset = msgExt.getUserProperty(MessageConst.PROPERTY_TRANSACTION_PREPARED_QUEUE_OFFSET);
+        if (prepareQueueOffset != null) {
+            try {
+                return Long.parseLong(prepareQueueOffset);
+            } catch (NumberFormatException e) {
+                log.warn("Illegal prepared queue offset {} of half message {}", prepareQueueOffset, msgExt.getMsgId());
+            }
+        }
+        return msgExt.getQueueOffset();
+    }
+
+    /**
+     * A missing or damaged checkpoint leaves the index empty, the queues are then rebuilt from the check progress.
+     */
+    public void load() {
+        File file = new File(this.checkpointPath);
+        if (!file.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            int queueNum = in.readInt();
+            for (int i = 0; i < queueNum; i++) {
+                int queueId = in.readInt();
+                QueueIndex queueIndex = new QueueIndex(in.readLong(), in.readLong());
+                int size = in.readInt();
+                for (int j = 0; j < size; j++) {
+                    queueIndex.put(in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readInt());
+                }
+                this.queueIndexTable.put(queueId, queueIndex);
+            }
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("truncated");
+            }
+            log.info("Load half message index, {} open half messages in {} queues", this.size(), queueNum);
+        } catch (IOException e) {
+            log.warn("Half message index checkpoint damaged, rebuild it from the queues, " + this.checkpointPath, e);
+            this.queueIndexTable.clear();
+        }
+    }
+
+    public void persist() {
+        File file = new File(this.checkpointPath);
+        File tmpFile = new File(this.checkpointPath + ".tmp");
+        try {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeInt(this.queueIndexTable.size());
+                for (Map.Entry<Integer, QueueIndex> entry : this.queueIndexTable.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    entry.getValue().writeTo(out);
+                }
+                out.writeInt(CHECKPOINT_MAGIC);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Persist half message index failed, " + this.checkpointPath, e);
+        }
+    }
+
+    public QueueIndex findQueueIndex(final int queueId) {
+        return this.queueIndexTable.get(queueId);
+    }
+
+    public QueueIndex createQueueIndex(final int queueId, final long halfReplayOffset, final long opReplayOffset) {
+        QueueIndex queueIndex = new QueueIndex(halfReplayOffset, opReplayOffset);
+        QueueIndex oldQueueIndex = this.queueIndexTable.putIfAbsent(queueId, queueIndex);
+        return oldQueueIndex != null ? oldQueueIndex : queueIndex;
+    }
+
+    public boolean remove(final int queueId, final long queueOffset) {
+        QueueIndex queueIndex = this.queueIndexTable.get(queueId);
+        return queueIndex != null && queueIndex.remove(queueOffset);
+    }
+
+    public long size() {
+        long size = 0;
+        for (QueueIndex queueIndex : this.queueIndexTable.values()) {
+            size += queueIndex.size();
+        }
+        return size;
+    }
+
+    /**
+     * Open addressing table of one half queue, linear probing on primitive arrays and backward shift deletion, so
+     * neither lookups nor removals box the offsets or leave tombstones behind.
+     */
+    public static class QueueIndex {
+        private static final long EMPTY = -1L;
+        private static final int INITIAL_CAPACITY = 64;
+
+        private long[] keys;
+        private long[] commitLogOffsets;
+        private long[] bornTimestamps;
+        private int[] checkImmunitySeconds;
+        private int[] checkTimes;
+        private int size;
+
+        /**
+         * Only the check thread moves the replay positions.
+         */
+        private volatile long halfReplayOffset;
+        private volatile long opReplayOffset;
+
+        /**
+         * Replay positions at the end of past checks, every op message before such an op position refers to a half
+         * message before the half position taken along with it.
+         */
+        private final ArrayDeque<long[]> marks = new ArrayDeque<long[]>();
+
+        QueueIndex(final long halfReplayOffset, final long opReplayOffset) {
+            this.halfReplayOffset = halfReplayOffset;
+            this.opReplayOffset = opReplayOffset;
+            this.allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(final int capacity) {
+            this.keys = new long[capacity];
+            Arrays.fill(this.keys, EMPTY);
+            this.commitLogOffsets = new long[capacity];
+            this.bornTimestamps = new long[capacity];
+            this.checkImmunitySeconds = new int[capacity];
+            this.checkTimes = new int[capacity];
+        }
+
+        private int slot(final long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (this.keys.length - 1);
+        }
+
+        private int indexOf(final long key) {
+            int mask = this.keys.length - 1;
+            for (int i = this.slot(key); ; i = (i + 1) & mask) {
+                if (this.keys[i] == key) {
+                    return i;
+                }
+                if (this.keys[i] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * @param checkImmunity seconds before the first check, -1 for the transaction timeout
+         * @return false if the half message was indexed already, its entry is left alone then
+         */
+        public synchronized boolean put(final long queueOffset, final long commitLogOffset, final long bornTimestamp,
+            final int checkImmunity, final int checkTime) {
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.rehash(this.keys.length * 2);
+            }
+
+            int mask = this.keys.length - 1;
+            int i = this.slot(queueOffset);
+            while (this.keys[i] != EMPTY) {
+                if (this.keys[i] == queueOffset) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = queueOffset;
+            this.commitLogOffsets[i] = commitLogOffset;
+            this.bornTimestamps[i] = bornTimestamp;
+            this.checkImmunitySeconds[i] = checkImmunity;
+            this.checkTimes[i] = checkTime;
+            this.size++;
+            return true;
+        }
+
+        private void rehash(final int capacity) {
+            long[] oldKeys = this.keys;
+            long[] oldCommitLogOffsets = this.commitLogOffsets;
+            long[] oldBornTimestamps = this.bornTimestamps;
+            int[] oldCheckImmunitySeconds = this.checkImmunitySeconds;
+            int[] oldCheckTimes = this.checkTimes;
+            this.allocate(capacity);
+            this.size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    this.put(oldKeys[i], oldCommitLogOffsets[i], oldBornTimestamps[i], oldCheckImmunitySeconds[i],
+                        oldCheckTimes[i]);
+                }
+            }
+        }
+
+        public synchronized boolean remove(final long queueOffset) {
+            int hole = this.indexOf(queueOffset);
+            if (hole < 0) {
+                return false;
+            }
+
+            int mask = this.keys.length - 1;
+            for (int i = (hole + 1) & mask; this.keys[i] != EMPTY; i = (i + 1) & mask) {
+                int home = this.slot(this.keys[i]);
+                // move the entry back unless its home slot lies cyclically within (hole, i]
+                boolean stays = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+                if (!stays) {
+                    this.keys[hole] = this.keys[i];
+                    this.commitLogOffsets[hole] = this.commitLogOffsets[i];
+                    this.bornTimestamps[hole] = this.bornTimestamps[i];
+                    this.checkImmunitySeconds[hole] = this.checkImmunitySeconds[i];
+                    this.checkTimes[hole] = this.checkTimes[i];
+                    hole = i;
+                }
+            }
+            this.keys[hole] = EMPTY;
+            this.size--;
+            return true;
+        }
+
+        public synchronized boolean contains(final long queueOffset) {
+            return this.indexOf(queueOffset) >= 0;
+        }
+
+        /**
+         * @return the check times after this check, -1 if the half message was resolved meanwhile
+         */
+        public synchronized int incCheckTimes(final long queueOffset) {
+            int i = this.indexOf(queueOffset);
+            return i < 0 ? -1 : ++this.checkTimes[i];
+        }
+
+        /**
+         * Take back the count of a check that was not sent after all.
+         */
+        public synchronized void decCheckTimes(final long queueOffset) {
+            int i = this.indexOf(queueOffset);
+            if (i >= 0 && this.checkTimes[i] > 0) {
+                this.checkTimes[i]--;
+            }
+        }
+
+        public synchronized int size() {
+            return this.size;
+        }
+
+        /**
+         * @return the open half messages, oldest first
+         */
+        public synchronized Entry[] snapshot() {
+            Entry[] entries = new Entry[this.size];
+            int n = 0;
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] != EMPTY) {
+                    entries[n++] = new Entry(this.keys[i], this.commitLogOffsets[i], this.bornTimestamps[i],
+                        this.checkImmunitySeconds[i], this.checkTimes[i]);
+                }
+            }
+            Arrays.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry o1, Entry o2) {
+                    return Long.compare(o1.queueOffset, o2.queueOffset);
+                }
+            });
+            return entries;
+        }
+
+        /**
+         * Remembers the current replay positions and drops the marks that are no longer needed.
+         *
+         * @return the latest positions a rebuild could start from without missing an open half message, null if
+         * there are none yet
+         */
+        public synchronized long[] markReplayOffset() {
+            this.marks.addLast(new long[] {this.halfReplayOffset, this.opReplayOffset});
+
+            long minOpenOffset = this.halfReplayOffset;
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] != EMPTY && this.keys[i] < minOpenOffset) {
+                    minOpenOffset = this.keys[i];
+                }
+            }
+
+            long[] safeMark = null;
+            while (!this.marks.isEmpty() && this.marks.peekFirst()[0] <= minOpenOffset) {
+                safeMark = this.marks.pollFirst();
+            }
+            if (safeMark != null) {
+                this.marks.addFirst(safeMark);
+            }
+            return safeMark;
+        }
+
+        private synchronized void writeTo(final DataOutputStream out) throws IOException {
+            out.writeLong(this.halfReplayOffset);
+            out.writeLong(this.opReplayOffset);
+            out.writeInt(this.size);
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] != EMPTY) {
+                    out.writeLong(this.keys[i]);
+                    out.writeLong(this.commitLogOffsets[i]);
+                    out.writeLong(this.bornTimestamps[i]);
+                    out.writeInt(this.checkImmunitySeconds[i]);
+                    out.writeInt(this.checkTimes[i]);
+                }
+            }
+        }
+
+        public long getHalfReplayOffset() {
+            return halfReplayOffset;
+        }
+
+        public void setHalfReplayOffset(long halfReplayOffset) {
+            this.halfReplayOffset = halfReplayOffset;
+        }
+
+        public long getOpReplayOffset() {
+            return opReplayOffset;
+        }
+
+        public void setOpReplayOffset(long opReplayOffset) {
+            this.opReplayOffset = opReplayOffset;
+        }
+    }
+
+    public static class Entry {
+        private final long queueOffset;
+        private final long commitLogOffset;
+        private final long bornTimestamp;
+        private final int checkImmunitySeconds;
+        private final int checkTimes;
+
+        Entry(long queueOffset, long commitLogOffset, long bornTimestamp, int checkImmunitySeconds, int checkTimes) {
+            this.queueOffset = queueOffset;
+            this.commitLogOffset = commitLogOffset;
+            this.bornTimestamp = bornTimestamp;
+            this.checkImmunitySeconds = checkImmunitySeconds;
+            this.checkTimes = checkTimes;
+        }
+
+        public long getQueueOffset() {
+            return queueOffset;
+        }
+
+        public long getCommitLogOffset() {
+            return commitLogOffset;
+        }
+
+        public long getBornTimestamp() {
+            return bornTimestamp;
+        }
+
+        public int getCheckImmunitySeconds() {
+            return checkImmunitySeconds;
+        }
+
+        public int getCheckTimes() {
+            return checkTimes;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.transaction.queue;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.logging.InnerLoggerFactory;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.store.MessageStore;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+
+/**
+ * Groups the op messages of concurrent commits and rollbacks, all op messages waiting for the same op queue go to
+ * the commit log as one batch. There is no thread of its own: whoever finds nobody appending takes all pending op
+ * messages, so a lone request is written right away and requests arriving meanwhile simply make the next batch
+ * bigger.
+ */
+public class OpMessageBatcher {
+    private static final InternalLogger LOGGER = InnerLoggerFactory.getLogger(LoggerName.TRANSACTION_LOGGER_NAME);
+
+    /**
+     * Op messages are tiny, this keeps a batch far below the max message size.
+     */
+    private static final int MAX_BATCH_NUM = 256;
+
+    private final MessageStore store;
+    private final SocketAddress storeHost;
+    private final ConcurrentLinkedQueue<PendingOp> pendingOps = new ConcurrentLinkedQueue<PendingOp>();
+    private final AtomicBoolean appending = new AtomicBoolean(false);
+    private final AtomicLong batchTimes = new AtomicLong(0);
+    private final AtomicLong batchedOpNums = new AtomicLong(0);
+
+    public OpMessageBatcher(final MessageStore store, final SocketAddress storeHost) {
+        this.store = store;
+        this.storeHost = storeHost;
+    }
+
+    /**
+     * @return completed with true once the op message is in the commit log
+     */
+    public CompletableFuture<Boolean> putOpMessage(final MessageQueue opQueue, final Message opMessage) {
+        PendingOp pendingOp = new PendingOp(opQueue, opMessage);
+        this.pendingOps.add(pendingOp);
+        this.drain();
+        return pendingOp.future;
+    }
+
+    private void drain() {
+        // check again after letting go, an op added just before that found the flag still taken
+        while (!this.pendingOps.isEmpty() && this.appending.compareAndSet(false, true)) {
+            try {
+                Map<MessageQueue, List<PendingOp>> batches = new LinkedHashMap<MessageQueue, List<PendingOp>>();
+                PendingOp pendingOp;
+                for (int i = 0; i < MAX_BATCH_NUM && (pendingOp = this.pendingOps.poll()) != null; i++) {
+                    List<PendingOp> batch = batches.get(pendingOp.opQueue);
+                    if (batch == null) {
+                        batch = new ArrayList<PendingOp>();
+                        batches.put(pendingOp.opQueue, batch);
+                    }
+                    batch.add(pendingOp);
+                }
+                for (Map.Entry<MessageQueue, List<PendingOp>> entry : batches.entrySet()) {
+                    this.putBatch(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                this.appending.set(false);
+            }
+        }
+    }
+
+    private void putBatch(final MessageQueue opQueue, final List<PendingOp> batch) {
+        List<Message> messages = new ArrayList<Message>(batch.size());
+        for (PendingOp pendingOp : batch) {
+            messages.add(pendingOp.opMessage);
+        }
+
+        CompletableFuture<PutMessageResult> putMessageResult;
+        try {
+            MessageExtBatch messageExtBatch = new MessageExtBatch();
+            messageExtBatch.setTopic(opQueue.getTopic());
+            messageExtBatch.setQueueId(opQueue.getQueueId());
+            messageExtBatch.setSysFlag(0);
+            messageExtBatch.setBody(MessageDecoder.encodeMessages(messages));
+            messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+            messageExtBatch.setBornHost(this.storeHost);
+            messageExtBatch.setStoreHost(this.storeHost);
+            messageExtBatch.setWaitStoreMsgOK(false);
+            putMessageResult = this.store.asyncPutMessages(messageExtBatch);
+        } catch (Throwable e) {
+            LOGGER.error("Put op message batch failed, queue: " + opQueue, e);
+            putMessageResult = CompletableFuture.completedFuture(null);
+        }
+        this.batchTimes.incrementAndGet();
+        this.batchedOpNums.addAndGet(batch.size());
+
+        putMessageResult.whenComplete((result, throwable) -> {
+            boolean ok = result != null && result.getPutMessageStatus() == PutMessageStatus.PUT_OK;
+            if (!ok) {
+                LOGGER.error("Put op message batch failed, queue: {}, size: {}, result: {}", opQueue, batch.size(),
+                    throwable != null ? throwable : result);
+            }
+            for (PendingOp pendingOp : batch) {
+                pendingOp.future.complete(ok);
+            }
+        });
+    }
+
+    public long getBatchTimes() {
+        return batchTimes.get();
+    }
+
+    public long getBatchedOpNums() {
+        return batchedOpNums.get();
+    }
+
+    private static class PendingOp {
+        private final MessageQueue opQueue;
+        private final Message opMessage;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+
+        PendingOp(MessageQueue opQueue, Message opMessage) {
+            this.opQueue = opQueue;
+            this.opMessage = opMessage;
+        }
+    }
+}
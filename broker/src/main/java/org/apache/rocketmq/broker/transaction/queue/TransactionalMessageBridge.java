@@ -57,6 +57,7 @@ public class TransactionalMessageBridge {
     private final BrokerController brokerController;
     private final MessageStore store;
     private final SocketAddress storeHost;
+    private final OpMessageBatcher opMessageBatcher;
 
     public TransactionalMessageBridge(BrokerController brokerController, MessageStore store) {
         try {
@@ -65,6 +66,7 @@ public class TransactionalMessageBridge {
             this.storeHost =
                 new InetSocketAddress(brokerController.getBrokerConfig().getBrokerIP1(),
                     brokerController.getNettyServerConfig().getListenPort());
+            this.opMessageBatcher = new OpMessageBatcher(store, this.storeHost);
         } catch (Exception e) {
             LOGGER.error("Init TransactionBridge error", e);
             throw new RuntimeException(e);
@@ -91,7 +93,12 @@ public class TransactionalMessageBridge {
         Set<MessageQueue> mqSet = new HashSet<>();
         TopicConfig topicConfig = selectTopicConfig(topic);
         if (topicConfig != null && topicConfig.getReadQueueNums() > 0) {
-            for (int i = 0; i < topicConfig.getReadQueueNums(); i++) {
+            int queueNums = topicConfig.getReadQueueNums();
+            if (TransactionalMessageUtil.buildHalfTopic().equals(topic)) {
+                // the half topic may have been created before transactionHalfQueueNums was raised
+                queueNums = Math.max(queueNums, brokerController.getBrokerConfig().getTransactionHalfQueueNums());
+            }
+            for (int i = 0; i < queueNums; i++) {
                 MessageQueue mq = new MessageQueue();
                 mq.setTopic(topic);
                 mq.setBrokerName(brokerController.getBrokerConfig().getBrokerName());
@@ -108,6 +115,10 @@ public class TransactionalMessageBridge {
             mq.getQueueId(), offset);
     }
 
+    public long getMaxOffsetInQueue(MessageQueue mq) {
+        return store.getMaxOffsetInQueue(mq.getTopic(), mq.getQueueId());
+    }
+
     public PullResult getHalfMessage(int queueId, long offset, int nums) {
         String group = TransactionalMessageUtil.buildConsumerGroup();
         String topic = TransactionalMessageUtil.buildHalfTopic();
@@ -243,7 +254,8 @@ public class TransactionalMessageBridge {
         // 设置事务主题RMQ_SYS_TRANS_HALF_TOPIC
         msgInner.setTopic(TransactionalMessageUtil.buildHalfTopic());
         // 设置事务队列ID
-        msgInner.setQueueId(0);
+        msgInner.setQueueId(selectHalfQueueId(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC),
+            Integer.parseInt(msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID))));
         msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
         return msgInner;
     }
@@ -270,6 +282,21 @@ public class TransactionalMessageBridge {
         return true;
     }
 
+    /**
+     * Same op message as {@link #putOpMessage}, but written along with the op messages of concurrent requests.
+     */
+    public CompletableFuture<Boolean> asyncPutOpMessage(MessageExt messageExt, String opType) {
+        if (!TransactionalMessageUtil.REMOVETAG.equals(opType)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        MessageQueue messageQueue = new MessageQueue(messageExt.getTopic(),
+            this.brokerController.getBrokerConfig().getBrokerName(), messageExt.getQueueId());
+        Message message = new Message(TransactionalMessageUtil.buildOpTopic(), TransactionalMessageUtil.REMOVETAG,
+            String.valueOf(messageExt.getQueueOffset()).getBytes(TransactionalMessageUtil.charset));
+        MessageClientIDSetter.setUniqID(message);
+        return this.opMessageBatcher.putOpMessage(getOpQueueByHalf(messageQueue), message);
+    }
+
     public PutMessageResult putMessageReturnResult(MessageExtBrokerInner messageInner) {
         LOGGER.debug("[BUG-TO-FIX] Thread:{} msgID:{}", Thread.currentThread().getName(), messageInner.getMsgId());
         return store.putMessage(messageInner);
@@ -339,11 +366,27 @@ public class TransactionalMessageBridge {
         return msgInner;
     }
 
+    /**
+     * Half messages of one real queue always go to the same half queue, the half queues then share the check work
+     * evenly.
+     */
+    private int selectHalfQueueId(String realTopic, int realQueueId) {
+        int halfQueueNums = brokerController.getBrokerConfig().getTransactionHalfQueueNums();
+        if (halfQueueNums <= 1) {
+            return 0;
+        }
+        return ((realTopic.hashCode() * 31 + realQueueId) & Integer.MAX_VALUE) % halfQueueNums;
+    }
+
     private TopicConfig selectTopicConfig(String topic) {
         TopicConfig topicConfig = brokerController.getTopicConfigManager().selectTopicConfig(topic);
         if (topicConfig == null) {
+            int queueNums = 1;
+            if (TransactionalMessageUtil.buildHalfTopic().equals(topic)) {
+                queueNums = Math.max(1, brokerController.getBrokerConfig().getTransactionHalfQueueNums());
+            }
             topicConfig = this.brokerController.getTopicConfigManager().createTopicInSendMessageBackMethod(
-                topic, 1, PermName.PERM_WRITE | PermName.PERM_READ, 0);
+                topic, queueNums, PermName.PERM_WRITE | PermName.PERM_READ, 0);
         }
         return topicConfig;
     }
@@ -400,6 +443,10 @@ public class TransactionalMessageBridge {
         return this.store.lookMessageByOffset(commitLogOffset);
     }
 
+    public OpMessageBatcher getOpMessageBatcher() {
+        return opMessageBatcher;
+    }
+
     public BrokerController getBrokerController() {
         return brokerController;
     }
@@ -16,11 +16,14 @@
  */
 package org.apache.rocketmq.broker.transaction.queue;
 
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.broker.BrokerPathConfigHelper;
 import org.apache.rocketmq.broker.transaction.AbstractTransactionalMessageCheckListener;
 import org.apache.rocketmq.broker.transaction.OperationResult;
 import org.apache.rocketmq.broker.transaction.TransactionalMessageService;
 import org.apache.rocketmq.client.consumer.PullResult;
 import org.apache.rocketmq.client.consumer.PullStatus;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageExt;
@@ -42,6 +45,13 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 public class TransactionalMessageServiceImpl implements TransactionalMessageService {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.TRANSACTION_LOGGER_NAME);
@@ -54,6 +64,25 @@ public class TransactionalMessageServiceImpl implements TransactionalMessageServ
 
     private static final int MAX_RETRY_COUNT_WHEN_HALF_NULL = 1;
 
+    private static final int REPLAY_MSG_NUMBER = 32;
+
+    /**
+     * Open half messages, only set up by {@link #open()} when transactionHalfIndexEnable is on.
+     */
+    private volatile HalfMessageIndex halfMessageIndex;
+
+    /**
+     * Checks the half queues side by side, only set up by {@link #open()} when transactionCheckThreadPoolNums is above
+     * one.
+     */
+    private volatile ExecutorService checkExecutor;
+
+    /**
+     * Queue offsets of the put-back half messages whose check was not sent after all, per half queue id. The check
+     * count stored with such a message is one too high.
+     */
+    private final ConcurrentMap<Integer, ConcurrentSkipListSet<Long>> unsentCheckOffsets = new ConcurrentHashMap<>();
+
     public TransactionalMessageServiceImpl(TransactionalMessageBridge transactionBridge) {
         this.transactionalMessageBridge = transactionBridge;
     }
@@ -90,6 +119,10 @@ public class TransactionalMessageServiceImpl implements TransactionalMessageServ
         int checkTime = 1;
         if (null != checkTimes) {
             checkTime = getInt(checkTimes);
+            // 上一次回查没有发出，不计入检查次数
+            if (getUnsentCheckOffsets(msgExt.getQueueId()).remove(msgExt.getQueueOffset())) {
+                checkTime = Math.max(checkTime - 1, 0);
+            }
             // 如果检查次数大于事务最大的检查次数，表示需要丢弃
             if (checkTime >= transactionCheckMax) {
                 return true;
@@ -230,6 +263,10 @@ public class TransactionalMessageServiceImpl implements TransactionalMessageServ
     @Override
     public void check(long transactionTimeout, int transactionCheckMax,
         AbstractTransactionalMessageCheckListener listener) {
+        if (this.halfMessageIndex != null) {
+            checkByIndex(transactionTimeout, transactionCheckMax, listener);
+            return;
+        }
         try {
             //
             String topic = TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC;
@@ -241,179 +278,401 @@ public class TransactionalMessageServiceImpl implements TransactionalMessageServ
             }
             log.debug("Check topic={}, queues={}", topic, msgQueues);
             // 遍历所有的消息队列
+            checkQueues(msgQueues, messageQueue -> checkQueue(messageQueue, transactionTimeout, transactionCheckMax,
+                listener));
+        } catch (Throwable e) {
+            log.error("Check error", e);
+        }
+
+    }
+
+    /**
+     * Same decisions as {@link #check}, but taken on the open half messages of the index, so the op queue is never
+     * rescanned and nothing is written back to the half queue.
+     */
+    private void checkByIndex(long transactionTimeout, int transactionCheckMax,
+        AbstractTransactionalMessageCheckListener listener) {
+        try {
+            String topic = TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC;
+            Set<MessageQueue> msgQueues = transactionalMessageBridge.fetchMessageQueues(topic);
+            if (msgQueues == null || msgQueues.size() == 0) {
+                log.warn("The queue of topic is empty :" + topic);
+                return;
+            }
+            checkQueues(msgQueues, messageQueue -> checkQueueByIndex(messageQueue, transactionTimeout,
+                transactionCheckMax, listener));
+        } catch (Throwable e) {
+            log.error("Check error", e);
+        }
+        halfMessageIndex.persist();
+    }
+
+    /**
+     * Check the given half queues, on the check threads when there are more than one.
+     */
+    private void checkQueues(Set<MessageQueue> msgQueues, Consumer<MessageQueue> queueCheck) {
+        ExecutorService executor = this.checkExecutor;
+        if (executor == null || msgQueues.size() == 1) {
             for (MessageQueue messageQueue : msgQueues) {
-                // 获取当前时间做为开始时间
-                long startTime = System.currentTimeMillis();
-                // 获取当前half消息队列对应的OP队列的MessageQueue对象，实际上是创建了一个MessageQueue对象，设置为OP队列的主题、以及Broker名称和队列的ID
-                MessageQueue opQueue = getOpQueue(messageQueue);
-                // 获取half队列的消费进度
-                long halfOffset = transactionalMessageBridge.fetchConsumeOffset(messageQueue);
-                // 获取op消息队列的消费进度
-                long opOffset = transactionalMessageBridge.fetchConsumeOffset(opQueue);
-                log.info("Before check, the queue={} msgOffset={} opOffset={}", messageQueue, halfOffset, opOffset);
-                // 如果消费进度小于0表示不合法
-                if (halfOffset < 0 || opOffset < 0) {
-                    log.error("MessageQueue: {} illegal offset read: {}, op offset: {},skip this queue", messageQueue,
-                        halfOffset, opOffset);
-                    continue;
-                }
+                queueCheck.accept(messageQueue);
+            }
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(msgQueues.size());
+        for (final MessageQueue messageQueue : msgQueues) {
+            futures.add(executor.submit(() -> queueCheck.accept(messageQueue)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.error("Check error", e.getCause());
+            }
+        }
+    }
 
-                // 存储已处理的消息
-                List<Long> doneOpOffset = new ArrayList<>();
-                HashMap<Long, Long> removeMap = new HashMap<>();
-                // 根据消费进度从op队列中拉取消息，拉取的消费放入removeMap中，用于判断half消息是否已经处理
-                PullResult pullResult = fillOpRemoveMap(removeMap, opQueue, opOffset, halfOffset, doneOpOffset);
-                // 如果拉取消息为空，打印错误继续处理下一个消息队列
-                if (null == pullResult) {
-                    log.error("The queue={} check msgOffset={} with opOffset={} failed, pullResult is null",
-                        messageQueue, halfOffset, opOffset);
-                    continue;
-                }
-                // single thread
-                // 获取消息为空的数量默认为1
-                int getMessageNullCount = 1;
-                // 新的进度
-                long newOffset = halfOffset;
-                // 获取half队列的消费进度，赋值给i
-                long i = halfOffset;
-                // 开启while循环，从half队列的消费进度处开始，处理每一个half消息
-                while (true) {
-                    // 如果当前时间减去检查开始时间大于最大处理时间，此时终止循环
-                    if (System.currentTimeMillis() - startTime > MAX_PROCESS_TIME_LIMIT) {
-                        log.info("Queue={} process time reach max={}", messageQueue, MAX_PROCESS_TIME_LIMIT);
+    private void checkQueue(MessageQueue messageQueue, long transactionTimeout, int transactionCheckMax,
+        AbstractTransactionalMessageCheckListener listener) {
+        // 获取当前时间做为开始时间
+        long startTime = System.currentTimeMillis();
+        // 获取当前half消息队列对应的OP队列的MessageQueue对象，实际上是创建了一个MessageQueue对象，设置为OP队列的主题、以及Broker名称和队列的ID
+        MessageQueue opQueue = getOpQueue(messageQueue);
+        // 获取half队列的消费进度
+        long halfOffset = transactionalMessageBridge.fetchConsumeOffset(messageQueue);
+        // 获取op消息队列的消费进度
+        long opOffset = transactionalMessageBridge.fetchConsumeOffset(opQueue);
+        log.info("Before check, the queue={} msgOffset={} opOffset={}", messageQueue, halfOffset, opOffset);
+        // 如果消费进度小于0表示不合法
+        if (halfOffset < 0 || opOffset < 0) {
+            log.error("MessageQueue: {} illegal offset read: {}, op offset: {},skip this queue", messageQueue,
+                halfOffset, opOffset);
+            return;
+        }
+
+        // 存储已处理的消息
+        List<Long> doneOpOffset = new ArrayList<>();
+        HashMap<Long, Long> removeMap = new HashMap<>();
+        // 根据消费进度从op队列中拉取消息，拉取的消费放入removeMap中，用于判断half消息是否已经处理
+        PullResult pullResult = fillOpRemoveMap(removeMap, opQueue, opOffset, halfOffset, doneOpOffset);
+        // 如果拉取消息为空，打印错误继续处理下一个消息队列
+        if (null == pullResult) {
+            log.error("The queue={} check msgOffset={} with opOffset={} failed, pullResult is null",
+                messageQueue, halfOffset, opOffset);
+            return;
+        }
+        // single thread
+        // 获取消息为空的数量默认为1
+        int getMessageNullCount = 1;
+        // 新的进度
+        long newOffset = halfOffset;
+        // 获取half队列的消费进度，赋值给i
+        long i = halfOffset;
+        // 开启while循环，从half队列的消费进度处开始，处理每一个half消息
+        while (true) {
+            // 如果当前时间减去检查开始时间大于最大处理时间，此时终止循环
+            if (System.currentTimeMillis() - startTime > MAX_PROCESS_TIME_LIMIT) {
+                log.info("Queue={} process time reach max={}", messageQueue, MAX_PROCESS_TIME_LIMIT);
+                break;
+            }
+            // 如果OP队列中包含当前偏移量，表示消息已经被处理，加入到已处理集合中
+            if (removeMap.containsKey(i)) {
+                log.info("Half offset {} has been committed/rolled back", i);
+                // 如果removeMap中包含当前half消息，表示消息已经被处理，放入到已处理消息集合中doneOpOffset
+                Long removedOpOffset = removeMap.remove(i);
+                // 加入到doneOpOffset集合中
+                doneOpOffset.add(removedOpOffset);
+            } else {// 如果已处理队列中不包含当前消息
+
+                //如果removeMap不包含当前half消息， 调用getHalfMsg方法根据偏移量从half队列获取half消息，如果消息获取不为空继续下一步，否则进行如下处理
+                // 根据偏移量从half队列获取half消息
+                GetResult getResult = getHalfMsg(messageQueue, i);
+                // 获取消息对象
+                MessageExt msgExt = getResult.getMsg();
+                // 如果获取消息为空
+                if (msgExt == null) {
+                    //判断获取空消息的次数是否大于MAX_RETRY_COUNT_WHEN_HALF_NULL，如果大于将终止本次循环，处理下一个half消息队列
+                    if (getMessageNullCount++ > MAX_RETRY_COUNT_WHEN_HALF_NULL) {
                         break;
                     }
-                    // 如果OP队列中包含当前偏移量，表示消息已经被处理，加入到已处理集合中
-                    if (removeMap.containsKey(i)) {
-                        log.info("Half offset {} has been committed/rolled back", i);
-                        // 如果removeMap中包含当前half消息，表示消息已经被处理，放入到已处理消息集合中doneOpOffset
-                        Long removedOpOffset = removeMap.remove(i);
-                        // 加入到doneOpOffset集合中
-                        doneOpOffset.add(removedOpOffset);
-                    } else {// 如果已处理队列中不包含当前消息
-
-                        //如果removeMap不包含当前half消息， 调用getHalfMsg方法根据偏移量从half队列获取half消息，如果消息获取不为空继续下一步，否则进行如下处理
-                        // 根据偏移量从half队列获取half消息
-                        GetResult getResult = getHalfMsg(messageQueue, i);
-                        // 获取消息对象
-                        MessageExt msgExt = getResult.getMsg();
-                        // 如果获取消息为空
-                        if (msgExt == null) {
-                            //判断获取空消息的次数是否大于MAX_RETRY_COUNT_WHEN_HALF_NULL，如果大于将终止本次循环，处理下一个half消息队列
-                            if (getMessageNullCount++ > MAX_RETRY_COUNT_WHEN_HALF_NULL) {
-                                break;
-                            }
-                            // 判断拉取消息的状态是否为NO_NEW_MSG，如果是表示队列中没有消息，先终止循环
-                            // 判断从half队列获取消息的结果是NO_NEW_MSG，表示没有消息，此时终止循环等待下一次进行检查
-                            if (getResult.getPullResult().getPullStatus() == PullStatus.NO_NEW_MSG) {
-                                log.debug("No new msg, the miss offset={} in={}, continue check={}, pull result={}", i,
-                                    messageQueue, getMessageNullCount, getResult.getPullResult());
-                                break;
-                            } else {
-                                // 如果拉取消息的状态是不是NO_NEW_MSG，表示消费进度不合法，获取half消息队列中下一条消息进行处理
-                                log.info("Illegal offset, the miss offset={} in={}, continue check={}, pull result={}",
-                                    i, messageQueue, getMessageNullCount, getResult.getPullResult());
-                                // 走到这里说明消息的偏移量不合法，继续获取下一条消息进行处理
-                                i = getResult.getPullResult().getNextBeginOffset();
-                                newOffset = i;
-                                continue;
-                            }
-                        }
-                        // 调用needDiscard判断是否需要丢弃half消息，或者调用needSkip判断是否需要跳过当前half消息：
-                        if (needDiscard(msgExt, transactionCheckMax) || needSkip(msgExt)) {
-                            listener.resolveDiscardMsg(msgExt);
-                            // 继续处理下一条消息
+                    // 判断拉取消息的状态是否为NO_NEW_MSG，如果是表示队列中没有消息，先终止循环
+                    // 判断从half队列获取消息的结果是NO_NEW_MSG，表示没有消息，此时终止循环等待下一次进行检查
+                    if (getResult.getPullResult().getPullStatus() == PullStatus.NO_NEW_MSG) {
+                        log.debug("No new msg, the miss offset={} in={}, continue check={}, pull result={}", i,
+                            messageQueue, getMessageNullCount, getResult.getPullResult());
+                        break;
+                    } else {
+                        // 如果拉取消息的状态是不是NO_NEW_MSG，表示消费进度不合法，获取half消息队列中下一条消息进行处理
+                        log.info("Illegal offset, the miss offset={} in={}, continue check={}, pull result={}",
+                            i, messageQueue, getMessageNullCount, getResult.getPullResult());
+                        // 走到这里说明消息的偏移量不合法，继续获取下一条消息进行处理
+                        i = getResult.getPullResult().getNextBeginOffset();
+                        newOffset = i;
+                        continue;
+                    }
+                }
+                // 调用needDiscard判断是否需要丢弃half消息，或者调用needSkip判断是否需要跳过当前half消息：
+                if (needDiscard(msgExt, transactionCheckMax) || needSkip(msgExt)) {
+                    listener.resolveDiscardMsg(msgExt);
+                    // 继续处理下一条消息
+                    newOffset = i + 1;
+                    i++;
+                    continue;
+                }
+                // 判断消息的的存入时间是否大于本次开始检查的时间，如果大于说明是新加入的消息，由于事务消息发送后不会立刻提交
+                // ，所以此时暂不需要进行检查，中断循环即可
+
+                // 如果消息的添加时间是否大于等于本次检查的开始时间，说明是在检查开始之后加入的消息，暂不进行处理
+                if (msgExt.getStoreTimestamp() >= startTime) {
+                    log.debug("Fresh stored. the miss offset={}, check it later, store={}", i,
+                        new Date(msgExt.getStoreTimestamp()));
+                    break;
+                }
+                // 计算half消息在队列中的保留时间：当前时间减去消息加入的时间
+                long valueOfCurrentMinusBorn = System.currentTimeMillis() - msgExt.getBornTimestamp();
+                // 设置立刻回查事务状态的时间（事务的超时时间）
+                long checkImmunityTime = transactionTimeout;
+                // 获取PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS属性，表示事务回查最晚的时间
+                // 下面一个if 逻辑总结：如果事务设置了PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS属性，并且half消息的存留时间小于立刻检查事务的时间
+                // ，说明还未到时间不需要进行状态检查，此时获取消息在half队列的偏移量，如果获取为空，将消息重新加入到half队列中，如果获取不为空判断是否已经在OP处理队列中，如果返回true处理下一个消息即可，否则同样将消息重新加入half队列中。
+                String checkImmunityTimeStr = msgExt.getUserProperty(MessageConst.PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS);
+                // 如果PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS属性不为空
+                if (null != checkImmunityTimeStr) {
+                    // 如果checkImmunityTimeStr获取不为空，调用getImmunityTime方法计算事务立刻回查时间，并赋值给checkImmunityTime，
+                    // 从代码中可以看出如果checkImmunityTimeStr为-1则返回事务的超时时间，否则返回checkImmunityTimeStr的值并乘以1000转为秒
+                    checkImmunityTime = getImmunityTime(checkImmunityTimeStr, transactionTimeout);
+                    // 如果消息的保留时间小于事务回查最晚检查时间
+                    if (valueOfCurrentMinusBorn < checkImmunityTime) {
+                        // 如果是表明还未到事务的超时时间，此时调用checkPrepareQueueOffset检查half消息在队列中的偏移量，根据检查结果判断是否需要跳过当前消息
+                        // 检查half消息在队列中的偏移量，如果返回true跳过本条消息
+                        if (checkPrepareQueueOffset(removeMap, doneOpOffset, msgExt)) {
+                            // 处理下一个消息
                             newOffset = i + 1;
                             i++;
                             continue;
                         }
-                        // 判断消息的的存入时间是否大于本次开始检查的时间，如果大于说明是新加入的消息，由于事务消息发送后不会立刻提交
-                        // ，所以此时暂不需要进行检查，中断循环即可
-
-                        // 如果消息的添加时间是否大于等于本次检查的开始时间，说明是在检查开始之后加入的消息，暂不进行处理
-                        if (msgExt.getStoreTimestamp() >= startTime) {
-                            log.debug("Fresh stored. the miss offset={}, check it later, store={}", i,
-                                new Date(msgExt.getStoreTimestamp()));
-                            break;
-                        }
-                        // 计算half消息在队列中的保留时间：当前时间减去消息加入的时间
-                        long valueOfCurrentMinusBorn = System.currentTimeMillis() - msgExt.getBornTimestamp();
-                        // 设置立刻回查事务状态的时间（事务的超时时间）
-                        long checkImmunityTime = transactionTimeout;
-                        // 获取PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS属性，表示事务回查最晚的时间
-                        // 下面一个if 逻辑总结：如果事务设置了PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS属性，并且half消息的存留时间小于立刻检查事务的时间
-                        // ，说明还未到时间不需要进行状态检查，此时获取消息在half队列的偏移量，如果获取为空，将消息重新加入到half队列中，如果获取不为空判断是否已经在OP处理队列中，如果返回true处理下一个消息即可，否则同样将消息重新加入half队列中。
+                    }
+                } else {
+                    // 如果checkImmunityTimeStr获取为空，判断valueOfCurrentMinusBorn（消息存留时间）是否大于等于0并且小于checkImmunityTime（事务超时时间）
+                    // ，如果满足条件表示新加入的消息并且还未过事务的超时时间，此时终止循环暂不进行回查，否则进入下一步
+                    if ((0 <= valueOfCurrentMinusBorn) && (valueOfCurrentMinusBorn < checkImmunityTime)) {
+                        log.debug("New arrived, the miss offset={}, check it later checkImmunity={}, born={}", i,
+                            checkImmunityTime, new Date(msgExt.getBornTimestamp()));
+                        break;
+                    }
+                }
+                // 获取OP消息
+                List<MessageExt> opMsg = pullResult.getMsgFoundList();
+                // 判断是否需要进行状态回查isNeedCheck，满足检查的条件为以下三种情况之一
+                // （1）从OP队列中拉取消息为空并且当前half消息的存留时间已经大于事务设置的最晚回查时间
+                // （2）从OP队列中拉取的消息不为空，并且拉取的最后一条消息的存入时间减去本次开始检查时间大于事务的超时时间
+                // （3）half消息在队列中的保留时间小于等于1，说明加入half消息的时间大于本次开始检查的时间
+                boolean isNeedCheck = (opMsg == null && valueOfCurrentMinusBorn > checkImmunityTime)
+                    || (opMsg != null && (opMsg.get(opMsg.size() - 1).getBornTimestamp() - startTime > transactionTimeout))
+                    || (valueOfCurrentMinusBorn <= -1);
+
+                // 如果需要进行回查
+                if (isNeedCheck) {
+                    // 需要回查：调用putBackHalfMsgQueue将half消息重新加入到队列中，如果加入失败继续循环再次处理，如果加入成功调用resolveHalfMsg发送回查请求
+                    // 将half消息重新加入到队列中
+                    if (!putBackHalfMsgQueue(msgExt, i)) {
+                        continue;
+                    }
+                    // 向客户端发送事务状态回查的请求，可以看到是通过线程池异步实现的
+                    // 回查没有发出时，记下重新加入的half消息的偏移量，下一轮检查不计入这次的检查次数
+                    final Set<Long> unsentOffsets = getUnsentCheckOffsets(messageQueue.getQueueId());
+                    final long putBackOffset = msgExt.getQueueOffset();
+                    Runnable unsent = () -> unsentOffsets.add(putBackOffset);
+                    if (!listener.resolveHalfMsg(msgExt, unsent)) {
+                        unsent.run();
+                    }
+                } else {
+                    // 不需要回查：调用fillOpRemoveMap继续从OP队列中拉取消息判断
+                    pullResult = fillOpRemoveMap(removeMap, opQueue, pullResult.getNextBeginOffset(), halfOffset, doneOpOffset);
+                    log.debug("The miss offset:{} in messageQueue:{} need to get more opMsg, result is:{}", i,
+                        messageQueue, pullResult);
+                    continue;
+                }
+            }
+            // 更新i的值，继续处理下一个half消息
+            newOffset = i + 1;
+            i++;
+        }
+        if (newOffset != halfOffset) {
+            // 更新消费进度
+            transactionalMessageBridge.updateConsumeOffset(messageQueue, newOffset);
+        }
+        // 已经处理过的half消息不会再被读到
+        getUnsentCheckOffsets(messageQueue.getQueueId()).headSet(newOffset).clear();
+        long newOpOffset = calculateOpOffset(doneOpOffset, opOffset);
+        if (newOpOffset != opOffset) {
+            // 更新处理进度
+            transactionalMessageBridge.updateConsumeOffset(opQueue, newOpOffset);
+        }
+    }
+
+    private void checkQueueByIndex(MessageQueue messageQueue, long transactionTimeout, int transactionCheckMax,
+        AbstractTransactionalMessageCheckListener listener) {
+        long startTime = System.currentTimeMillis();
+        MessageQueue opQueue = getOpQueue(messageQueue);
+        HalfMessageIndex.QueueIndex queueIndex = halfMessageIndex.findQueueIndex(messageQueue.getQueueId());
+        if (queueIndex == null) {
+            long halfOffset = transactionalMessageBridge.fetchConsumeOffset(messageQueue);
+            long opOffset = transactionalMessageBridge.fetchConsumeOffset(opQueue);
+            if (halfOffset < 0 || opOffset < 0) {
+                log.error("MessageQueue: {} illegal offset read: {}, op offset: {},skip this queue", messageQueue,
+                    halfOffset, opOffset);
+                return;
+            }
+            log.info("Build half message index of queue={} from msgOffset={} opOffset={}", messageQueue,
+                halfOffset, opOffset);
+            queueIndex = halfMessageIndex.createQueueIndex(messageQueue.getQueueId(), halfOffset, opOffset);
+        }
+
+        // op messages land in the op queue only after their half message reached the half queue, so an op
+        // replay bounded by the op queue end taken before the half replay never misses its half message
+        long opBound = transactionalMessageBridge.getMaxOffsetInQueue(opQueue);
+        if (replayHalfMsg(queueIndex, messageQueue, startTime)) {
+            replayOpMsg(queueIndex, opQueue, opBound, startTime);
+        }
+        resolveByIndex(queueIndex, transactionTimeout, transactionCheckMax, listener, startTime);
+
+        long[] safeMark = queueIndex.markReplayOffset();
+        if (safeMark != null) {
+            if (safeMark[0] != transactionalMessageBridge.fetchConsumeOffset(messageQueue)) {
+                transactionalMessageBridge.updateConsumeOffset(messageQueue, safeMark[0]);
+            }
+            if (safeMark[1] != transactionalMessageBridge.fetchConsumeOffset(opQueue)) {
+                transactionalMessageBridge.updateConsumeOffset(opQueue, safeMark[1]);
+            }
+        }
+        log.info("After check, the queue={} open half messages={} msgOffset={} opOffset={}", messageQueue,
+            queueIndex.size(), queueIndex.getHalfReplayOffset(), queueIndex.getOpReplayOffset());
+    }
+
+    /**
+     * Index the half messages appended since the last check.
+     *
+     * @return true if the index caught up with the half queue
+     */
+    private boolean replayHalfMsg(HalfMessageIndex.QueueIndex queueIndex, MessageQueue messageQueue, long startTime) {
+        long offset = queueIndex.getHalfReplayOffset();
+        try {
+            while (System.currentTimeMillis() - startTime <= MAX_PROCESS_TIME_LIMIT) {
+                PullResult pullResult = pullHalfMsg(messageQueue, offset, REPLAY_MSG_NUMBER);
+                if (null == pullResult || pullResult.getPullStatus() == PullStatus.NO_NEW_MSG) {
+                    return null != pullResult;
+                }
+                List<MessageExt> msgExts = pullResult.getMsgFoundList();
+                if (msgExts != null) {
+                    for (MessageExt msgExt : msgExts) {
+                        String checkTimes = msgExt.getUserProperty(MessageConst.PROPERTY_TRANSACTION_CHECK_TIMES);
                         String checkImmunityTimeStr = msgExt.getUserProperty(MessageConst.PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS);
-                        // 如果PROPERTY_CHECK_IMMUNITY_TIME_IN_SECONDS属性不为空
-                        if (null != checkImmunityTimeStr) {
-                            // 如果checkImmunityTimeStr获取不为空，调用getImmunityTime方法计算事务立刻回查时间，并赋值给checkImmunityTime，
-                            // 从代码中可以看出如果checkImmunityTimeStr为-1则返回事务的超时时间，否则返回checkImmunityTimeStr的值并乘以1000转为秒
-                            checkImmunityTime = getImmunityTime(checkImmunityTimeStr, transactionTimeout);
-                            // 如果消息的保留时间小于事务回查最晚检查时间
-                            if (valueOfCurrentMinusBorn < checkImmunityTime) {
-                                // 如果是表明还未到事务的超时时间，此时调用checkPrepareQueueOffset检查half消息在队列中的偏移量，根据检查结果判断是否需要跳过当前消息
-                                // 检查half消息在队列中的偏移量，如果返回true跳过本条消息
-                                if (checkPrepareQueueOffset(removeMap, doneOpOffset, msgExt)) {
-                                    // 处理下一个消息
-                                    newOffset = i + 1;
-                                    i++;
-                                    continue;
-                                }
-                            }
-                        } else {
-                            // 如果checkImmunityTimeStr获取为空，判断valueOfCurrentMinusBorn（消息存留时间）是否大于等于0并且小于checkImmunityTime（事务超时时间）
-                            // ，如果满足条件表示新加入的消息并且还未过事务的超时时间，此时终止循环暂不进行回查，否则进入下一步
-                            if ((0 <= valueOfCurrentMinusBorn) && (valueOfCurrentMinusBorn < checkImmunityTime)) {
-                                log.debug("New arrived, the miss offset={}, check it later checkImmunity={}, born={}", i,
-                                    checkImmunityTime, new Date(msgExt.getBornTimestamp()));
-                                break;
-                            }
-                        }
-                        // 获取OP消息
-                        List<MessageExt> opMsg = pullResult.getMsgFoundList();
-                        // 判断是否需要进行状态回查isNeedCheck，满足检查的条件为以下三种情况之一
-                        // （1）从OP队列中拉取消息为空并且当前half消息的存留时间已经大于事务设置的最晚回查时间
-                        // （2）从OP队列中拉取的消息不为空，并且拉取的最后一条消息的存入时间减去本次开始检查时间大于事务的超时时间
-                        // （3）half消息在队列中的保留时间小于等于1，说明加入half消息的时间大于本次开始检查的时间
-                        boolean isNeedCheck = (opMsg == null && valueOfCurrentMinusBorn > checkImmunityTime)
-                            || (opMsg != null && (opMsg.get(opMsg.size() - 1).getBornTimestamp() - startTime > transactionTimeout))
-                            || (valueOfCurrentMinusBorn <= -1);
-
-                        // 如果需要进行回查
-                        if (isNeedCheck) {
-                            // 需要回查：调用putBackHalfMsgQueue将half消息重新加入到队列中，如果加入失败继续循环再次处理，如果加入成功调用resolveHalfMsg发送回查请求
-                            // 将half消息重新加入到队列中
-                            if (!putBackHalfMsgQueue(msgExt, i)) {
-                                continue;
-                            }
-                            // 向客户端发送事务状态回查的请求，可以看到是通过线程池异步实现的
-                            listener.resolveHalfMsg(msgExt);
-                        } else {
-                            // 不需要回查：调用fillOpRemoveMap继续从OP队列中拉取消息判断
-                            pullResult = fillOpRemoveMap(removeMap, opQueue, pullResult.getNextBeginOffset(), halfOffset, doneOpOffset);
-                            log.debug("The miss offset:{} in messageQueue:{} need to get more opMsg, result is:{}", i,
-                                messageQueue, pullResult);
-                            continue;
-                        }
+                        queueIndex.put(HalfMessageIndex.indexKey(msgExt), msgExt.getCommitLogOffset(),
+                            msgExt.getBornTimestamp(), null == checkImmunityTimeStr ? -1 : getInt(checkImmunityTimeStr),
+                            null == checkTimes ? 0 : Math.max(getInt(checkTimes), 0));
                     }
-                    // 更新i的值，继续处理下一个half消息
-                    newOffset = i + 1;
-                    i++;
+                } else {
+                    log.info("Illegal offset, the miss offset={} in={}, pull result={}", offset, messageQueue, pullResult);
                 }
-                if (newOffset != halfOffset) {
-                    // 更新消费进度
-                    transactionalMessageBridge.updateConsumeOffset(messageQueue, newOffset);
+                if (pullResult.getNextBeginOffset() == offset && msgExts == null) {
+                    return false;
                 }
-                long newOpOffset = calculateOpOffset(doneOpOffset, opOffset);
-                if (newOpOffset != opOffset) {
-                    // 更新处理进度
-                    transactionalMessageBridge.updateConsumeOffset(opQueue, newOpOffset);
+                offset = pullResult.getNextBeginOffset();
+            }
+            return false;
+        } finally {
+            queueIndex.setHalfReplayOffset(offset);
+        }
+    }
+
+    /**
+     * Drop the half messages committed or rolled back since the last check, up to opBound.
+     */
+    private void replayOpMsg(HalfMessageIndex.QueueIndex queueIndex, MessageQueue opQueue, long opBound,
+        long startTime) {
+        long offset = queueIndex.getOpReplayOffset();
+        while (offset < opBound && System.currentTimeMillis() - startTime <= MAX_PROCESS_TIME_LIMIT) {
+            PullResult pullResult = pullOpMsg(opQueue, offset, REPLAY_MSG_NUMBER);
+            if (null == pullResult || pullResult.getPullStatus() == PullStatus.NO_NEW_MSG) {
+                break;
+            }
+            List<MessageExt> opMsg = pullResult.getMsgFoundList();
+            if (opMsg == null) {
+                if (pullResult.getNextBeginOffset() <= offset) {
+                    break;
                 }
+                offset = Math.min(pullResult.getNextBeginOffset(), opBound);
+                continue;
+            }
+            for (MessageExt opMessageExt : opMsg) {
+                if (opMessageExt.getQueueOffset() >= opBound) {
+                    break;
+                }
+                if (TransactionalMessageUtil.REMOVETAG.equals(opMessageExt.getTags())) {
+                    queueIndex.remove(getLong(new String(opMessageExt.getBody(), TransactionalMessageUtil.charset)));
+                } else {
+                    log.error("Found a illegal tag in opMessageExt= {} ", opMessageExt);
+                }
+                offset = opMessageExt.getQueueOffset() + 1;
             }
-        } catch (Throwable e) {
-            log.error("Check error", e);
         }
+        queueIndex.setOpReplayOffset(offset);
+    }
+
+    private void resolveByIndex(HalfMessageIndex.QueueIndex queueIndex, long transactionTimeout,
+        int transactionCheckMax, AbstractTransactionalMessageCheckListener listener, long startTime) {
+        long fileReservedTime = transactionalMessageBridge.getBrokerController().getMessageStoreConfig().getFileReservedTime()
+            * 3600L * 1000;
+        for (HalfMessageIndex.Entry entry : queueIndex.snapshot()) {
+            if (System.currentTimeMillis() - startTime > MAX_PROCESS_TIME_LIMIT) {
+                log.info("Half message index process time reach max={}", MAX_PROCESS_TIME_LIMIT);
+                break;
+            }
+            long valueOfCurrentMinusBorn = System.currentTimeMillis() - entry.getBornTimestamp();
+            long checkImmunityTime = -1 == entry.getCheckImmunitySeconds()
+                ? transactionTimeout : entry.getCheckImmunitySeconds() * 1000L;
+            if ((0 <= valueOfCurrentMinusBorn) && (valueOfCurrentMinusBorn < checkImmunityTime)) {
+                continue;
+            }
 
+            MessageExt msgExt = transactionalMessageBridge.lookMessageByOffset(entry.getCommitLogOffset());
+            if (msgExt == null) {
+                log.warn("Half message of offset={} is gone, drop it from the index", entry.getQueueOffset());
+                queueIndex.remove(entry.getQueueOffset());
+                continue;
+            }
+            if (entry.getCheckTimes() >= transactionCheckMax || valueOfCurrentMinusBorn > fileReservedTime) {
+                queueIndex.remove(entry.getQueueOffset());
+                listener.resolveDiscardMsg(msgExt);
+                continue;
+            }
+            final long queueOffset = entry.getQueueOffset();
+            int checkTimes = queueIndex.incCheckTimes(queueOffset);
+            if (checkTimes < 0) {
+                continue;
+            }
+            msgExt.putUserProperty(MessageConst.PROPERTY_TRANSACTION_CHECK_TIMES, String.valueOf(checkTimes));
+            // a check that is not sent does not count
+            Runnable unsent = () -> queueIndex.decCheckTimes(queueOffset);
+            if (!listener.resolveHalfMsg(msgExt, unsent)) {
+                unsent.run();
+            }
+        }
+    }
+
+    private ConcurrentSkipListSet<Long> getUnsentCheckOffsets(int queueId) {
+        ConcurrentSkipListSet<Long> offsets = this.unsentCheckOffsets.get(queueId);
+        if (offsets == null) {
+            offsets = new ConcurrentSkipListSet<>();
+            ConcurrentSkipListSet<Long> prev = this.unsentCheckOffsets.putIfAbsent(queueId, offsets);
+            if (prev != null) {
+                offsets = prev;
+            }
+        }
+        return offsets;
     }
 
     private long getImmunityTime(String checkImmunityTimeStr, long transactionTimeout) {
@@ -668,6 +927,9 @@ public class TransactionalMessageServiceImpl implements TransactionalMessageServ
         // 添加到OP消息队列
         if (this.transactionalMessageBridge.putOpMessage(msgExt, TransactionalMessageUtil.REMOVETAG)) {
             log.debug("Transaction op message write successfully. messageId={}, queueId={} msgExt:{}", msgExt.getMsgId(), msgExt.getQueueId(), msgExt);
+            if (this.halfMessageIndex != null) {
+                this.halfMessageIndex.remove(msgExt.getQueueId(), HalfMessageIndex.indexKey(msgExt));
+            }
             return true;
         } else {
             log.error("Transaction op message write failed. messageId is {}, queueId is {}", msgExt.getMsgId(), msgExt.getQueueId());
@@ -675,6 +937,21 @@ public class TransactionalMessageServiceImpl implements TransactionalMessageServ
         }
     }
 
+    @Override
+    public CompletableFuture<Boolean> asyncDeletePrepareMessage(MessageExt msgExt) {
+        return this.transactionalMessageBridge.asyncPutOpMessage(msgExt, TransactionalMessageUtil.REMOVETAG).thenApply(ok -> {
+            if (ok) {
+                log.debug("Transaction op message write successfully. messageId={}, queueId={} msgExt:{}", msgExt.getMsgId(), msgExt.getQueueId(), msgExt);
+                if (this.halfMessageIndex != null) {
+                    this.halfMessageIndex.remove(msgExt.getQueueId(), HalfMessageIndex.indexKey(msgExt));
+                }
+            } else {
+                log.error("Transaction op message write failed. messageId is {}, queueId is {}", msgExt.getMsgId(), msgExt.getQueueId());
+            }
+            return ok;
+        });
+    }
+
     @Override
     public OperationResult commitMessage(EndTransactionRequestHeader requestHeader) {
         return getHalfMessageByOffset(requestHeader.getCommitLogOffset());
@@ -687,12 +964,33 @@ public class TransactionalMessageServiceImpl implements TransactionalMessageServ
 
     @Override
     public boolean open() {
+        BrokerController brokerController = this.transactionalMessageBridge.getBrokerController();
+        if (brokerController != null && brokerController.getBrokerConfig().isTransactionHalfIndexEnable()) {
+            HalfMessageIndex index = new HalfMessageIndex(BrokerPathConfigHelper.getTransactionHalfIndexPath(
+                brokerController.getMessageStoreConfig().getStorePathRootDir()));
+            index.load();
+            this.halfMessageIndex = index;
+        }
+        if (brokerController != null && brokerController.getBrokerConfig().getTransactionCheckThreadPoolNums() > 1) {
+            this.checkExecutor = Executors.newFixedThreadPool(
+                brokerController.getBrokerConfig().getTransactionCheckThreadPoolNums(),
+                new ThreadFactoryImpl("TransactionCheckThread_"));
+        }
         return true;
     }
 
     @Override
     public void close() {
+        if (this.checkExecutor != null) {
+            this.checkExecutor.shutdown();
+        }
+        if (this.halfMessageIndex != null) {
+            this.halfMessageIndex.persist();
+        }
+    }
 
+    public HalfMessageIndex getHalfMessageIndex() {
+        return halfMessageIndex;
     }
 
 }
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.latency;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.remoting.netty.RequestTask;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeightedFairBlockingQueueTest {
+    private final BrokerConfig brokerConfig = new BrokerConfig();
+
+    @Test
+    public void testWeightedRoundRobin() {
+        brokerConfig.setExecutorFairQueueTenantWeights("groupA:2");
+        WeightedFairBlockingQueue queue = new WeightedFairBlockingQueue(100, brokerConfig);
+        for (int i = 0; i < 6; i++) {
+            assertThat(queue.offer(createSendTask("groupA", i))).isTrue();
+        }
+        for (int i = 0; i < 3; i++) {
+            assertThat(queue.offer(createPullTask("groupB", i))).isTrue();
+        }
+
+        List<String> served = new ArrayList<String>();
+        Runnable runnable;
+        while ((runnable = queue.poll()) != null) {
+            served.add(queue.tenantKeyOf(runnable) + ((RequestTask) runnable).getRequest().getOpaque());
+        }
+        assertThat(served).containsExactly("groupA0", "groupA1", "groupB0", "groupA2", "groupA3", "groupB1",
+            "groupA4", "groupA5", "groupB2");
+        assertThat(queue.getTenantNums()).isEqualTo(0);
+    }
+
+    @Test
+    public void testTenantCapacity() {
+        brokerConfig.setExecutorFairQueueTenantCapacity(2);
+        WeightedFairBlockingQueue queue = new WeightedFairBlockingQueue(3, brokerConfig);
+        assertThat(queue.offer(createSendTask("groupA", 0))).isTrue();
+        assertThat(queue.offer(createSendTask("groupA", 1))).isTrue();
+        assertThat(queue.offer(createSendTask("groupA", 2))).isFalse();
+        assertThat(queue.getTenantRejectedNums()).isEqualTo(1);
+
+        assertThat(queue.offer(createSendTask("groupB", 0))).isTrue();
+        assertThat(queue.remainingCapacity()).isEqualTo(0);
+        assertThat(queue.offer(createSendTask("groupC", 0))).isFalse();
+    }
+
+    @Test
+    public void testPeekOldestAndRemove() {
+        brokerConfig.setExecutorFairQueueTenantKey(WeightedFairBlockingQueue.TENANT_KEY_TOPIC);
+        WeightedFairBlockingQueue queue = new WeightedFairBlockingQueue(100, brokerConfig);
+        RequestTask first = createSendTask("groupA", 0);
+        RequestTask second = createSendTask("groupA", 1);
+        queue.offer(first);
+        queue.offer(second);
+        assertThat(queue.tenantKeyOf(first)).isEqualTo("TopicTest");
+        assertThat(queue.peek()).isSameAs(first);
+
+        assertThat(queue.remove(first)).isTrue();
+        assertThat(queue.remove(first)).isFalse();
+        assertThat(queue.peek()).isSameAs(second);
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(queue.takeQueueTimeDistribution()).startsWith("[<=0ms]:0 ");
+    }
+
+    private RequestTask createSendTask(String producerGroup, int opaque) {
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, null);
+        request.addExtField("a", producerGroup);
+        request.addExtField("b", "TopicTest");
+        request.setOpaque(opaque);
+        return new RequestTask(null, null, request);
+    }
+
+    private RequestTask createPullTask(String consumerGroup, int opaque) {
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.PULL_MESSAGE, null);
+        request.addExtField("consumerGroup", consumerGroup);
+        request.addExtField("topic", "TopicTest");
+        request.setOpaque(opaque);
+        return new RequestTask(null, null, request);
+    }
+}
@@ -21,6 +21,7 @@ import org.apache.rocketmq.broker.BrokerController;
 import org.apache.rocketmq.broker.transaction.OperationResult;
 import org.apache.rocketmq.broker.transaction.TransactionalMessageService;
 import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.message.MessageAccessor;
 import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageExt;
@@ -39,6 +40,7 @@ import org.apache.rocketmq.store.MessageStore;
 import org.apache.rocketmq.store.PutMessageResult;
 import org.apache.rocketmq.store.PutMessageStatus;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -46,8 +48,17 @@ import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -69,6 +80,9 @@ public class EndTransactionProcessorTest {
     @Mock
     private TransactionalMessageService transactionMsgService;
 
+    private final ExecutorService endTransactionOpExecutor =
+        Executors.newSingleThreadExecutor(new ThreadFactoryImpl("EndTransactionOpThread_"));
+
     @Before
     public void init() {
         brokerController.setMessageStore(messageStore);
@@ -76,6 +90,11 @@ public class EndTransactionProcessorTest {
         endTransactionProcessor = new EndTransactionProcessor(brokerController);
     }
 
+    @After
+    public void destroy() {
+        endTransactionOpExecutor.shutdown();
+    }
+
     private OperationResult createResponse(int status){
         OperationResult response = new OperationResult();
         response.setPrepareMessage(createDefaultMessageExt());
@@ -119,6 +138,67 @@ public class EndTransactionProcessorTest {
         assertThat(response.getCode()).isEqualTo(ResponseCode.SUCCESS);
     }
 
+    @Test
+    public void testProcessRequest_Batch() throws Exception {
+        brokerController.getBrokerConfig().setEndTransactionBatchEnable(true);
+        doReturn(endTransactionOpExecutor).when(brokerController).getEndTransactionOpExecutor();
+        when(transactionMsgService.commitMessage(any(EndTransactionRequestHeader.class))).thenReturn(createResponse(ResponseCode.SUCCESS));
+        CompletableFuture<PutMessageResult> putFuture = new CompletableFuture<>();
+        when(messageStore.asyncPutMessage(any(MessageExtBrokerInner.class))).thenReturn(putFuture);
+        CompletableFuture<Boolean> deleteFuture = new CompletableFuture<>();
+        AtomicReference<String> deleteThread = new AtomicReference<>();
+        when(transactionMsgService.asyncDeletePrepareMessage(any(MessageExt.class))).thenAnswer(invocation -> {
+            deleteThread.set(Thread.currentThread().getName());
+            return deleteFuture;
+        });
+        RemotingCommand request = createEndTransactionMsgCommand(MessageSysFlag.TRANSACTION_COMMIT_TYPE, false);
+        CompletableFuture<RemotingCommand> response = endTransactionProcessor.asyncProcessRequest(handlerContext, request);
+        putFuture.complete(new PutMessageResult(PutMessageStatus.PUT_OK, new AppendMessageResult(AppendMessageStatus.PUT_OK)));
+        // the response waits for the op message, which is written on the op executor
+        Thread.sleep(100);
+        assertThat(response.isDone()).isFalse();
+        assertThat(deleteThread.get()).startsWith("EndTransactionOpThread_");
+        deleteFuture.complete(true);
+        assertThat(response.get(3, TimeUnit.SECONDS).getCode()).isEqualTo(ResponseCode.SUCCESS);
+        verify(messageStore, never()).putMessage(any(MessageExtBrokerInner.class));
+        verify(transactionMsgService, never()).deletePrepareMessage(any(MessageExt.class));
+    }
+
+    @Test
+    public void testProcessRequest_BatchOpExecutorRejected() throws Exception {
+        brokerController.getBrokerConfig().setEndTransactionBatchEnable(true);
+        endTransactionOpExecutor.shutdown();
+        doReturn(endTransactionOpExecutor).when(brokerController).getEndTransactionOpExecutor();
+        when(transactionMsgService.commitMessage(any(EndTransactionRequestHeader.class))).thenReturn(createResponse(ResponseCode.SUCCESS));
+        CompletableFuture<PutMessageResult> putFuture = new CompletableFuture<>();
+        when(messageStore.asyncPutMessage(any(MessageExtBrokerInner.class))).thenReturn(putFuture);
+        when(transactionMsgService.asyncDeletePrepareMessage(any(MessageExt.class))).thenReturn(CompletableFuture.completedFuture(true));
+        RemotingCommand request = createEndTransactionMsgCommand(MessageSysFlag.TRANSACTION_COMMIT_TYPE, false);
+        CompletableFuture<RemotingCommand> response = endTransactionProcessor.asyncProcessRequest(handlerContext, request);
+        putFuture.complete(new PutMessageResult(PutMessageStatus.PUT_OK, new AppendMessageResult(AppendMessageStatus.PUT_OK)));
+        // the committed message is stored, so the op message is still written
+        assertThat(response.get(3, TimeUnit.SECONDS).getCode()).isEqualTo(ResponseCode.SUCCESS);
+        verify(transactionMsgService).asyncDeletePrepareMessage(any(MessageExt.class));
+    }
+
+    @Test
+    public void testProcessRequest_BatchPutError() throws Exception {
+        brokerController.getBrokerConfig().setEndTransactionBatchEnable(true);
+        when(transactionMsgService.commitMessage(any(EndTransactionRequestHeader.class)))
+            .thenReturn(createResponse(ResponseCode.SUCCESS), createResponse(ResponseCode.SUCCESS));
+        CompletableFuture<PutMessageResult> putFuture = new CompletableFuture<>();
+        putFuture.completeExceptionally(new RuntimeException("put error"));
+        when(messageStore.asyncPutMessage(any(MessageExtBrokerInner.class))).thenReturn(putFuture);
+        RemotingCommand request = createEndTransactionMsgCommand(MessageSysFlag.TRANSACTION_COMMIT_TYPE, false);
+
+        assertThat(endTransactionProcessor.processRequest(handlerContext, request).getCode())
+            .isEqualTo(ResponseCode.SYSTEM_ERROR);
+        AtomicReference<RemotingCommand> response = new AtomicReference<>();
+        endTransactionProcessor.asyncProcessRequest(handlerContext, request, response::set);
+        assertThat(response.get().getCode()).isEqualTo(ResponseCode.SYSTEM_ERROR);
+        verify(transactionMsgService, never()).asyncDeletePrepareMessage(any(MessageExt.class));
+    }
+
     private MessageExt createDefaultMessageExt() {
         MessageExt messageExt = new MessageExt();
         messageExt.setMsgId("12345678");
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.quota;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.common.subscription.SubscriptionGroupConfig;
+import org.apache.rocketmq.remoting.netty.NettyClientConfig;
+import org.apache.rocketmq.remoting.netty.NettyServerConfig;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QuotaManagerTest {
+    private final BrokerConfig brokerConfig = new BrokerConfig();
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+
+    private QuotaManager quotaManager;
+
+    @Before
+    public void init() {
+        BrokerController brokerController = new BrokerController(brokerConfig, new NettyServerConfig(),
+            new NettyClientConfig(), new MessageStoreConfig());
+        quotaManager = new QuotaManager(brokerController);
+    }
+
+    @Test
+    public void testTopicQuota() {
+        TopicConfig topicConfig = new TopicConfig("TopicTest");
+        topicConfig.setProduceQuotaTps(10);
+        assertThat(quotaManager.checkProduce(topicConfig, "group", channel, createResponse())).isNull();
+
+        quotaManager.chargeProduce(topicConfig, "group", channel, 32, 1024);
+        RemotingCommand response = quotaManager.checkProduce(topicConfig, "group", channel, createResponse());
+        assertThat(response).isNotNull();
+        assertThat(response.getCode()).isEqualTo(ResponseCode.QUOTA_EXCEEDED);
+        assertThat(response.getRemark()).contains("topic TopicTest");
+
+        // topics without a quota are never held back
+        TopicConfig otherTopic = new TopicConfig("OtherTopic");
+        quotaManager.chargeProduce(otherTopic, "group", channel, 32, 1024);
+        assertThat(quotaManager.checkProduce(otherTopic, "group", channel, createResponse())).isNull();
+    }
+
+    @Test
+    public void testClientQuota() {
+        brokerConfig.setClientQuotaBytes(1024);
+        SubscriptionGroupConfig groupConfig = new SubscriptionGroupConfig();
+        groupConfig.setGroupName("group");
+        quotaManager.chargeConsume(groupConfig, channel, 1, 4096);
+        RemotingCommand response = quotaManager.checkConsume(groupConfig, channel, createResponse());
+        assertThat(response).isNotNull();
+        assertThat(response.getCode()).isEqualTo(ResponseCode.QUOTA_EXCEEDED);
+        assertThat(response.getRemark()).contains("client");
+    }
+
+    @Test
+    public void testBucketWaitMills() {
+        QuotaManager.Bucket bucket = new QuotaManager.Bucket(100, -1);
+        long now = bucket.getLastRefillTime();
+        assertThat(bucket.waitMills(now, 100, -1)).isEqualTo(0);
+
+        bucket.charge(now, 100, -1, 150, 0);
+        // 50 messages in debt plus the one to take, at 100 a second
+        assertThat(bucket.waitMills(now, 100, -1)).isEqualTo(510);
+        assertThat(bucket.waitMills(now + 510, 100, -1)).isEqualTo(0);
+    }
+
+    private RemotingCommand createResponse() {
+        return RemotingCommand.createResponseCommand(null);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.transaction;
+
+import java.util.concurrent.CountDownLatch;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TransactionCheckDispatcherTest {
+    private final BrokerConfig brokerConfig = new BrokerConfig();
+
+    @Mock
+    private AbstractTransactionalMessageCheckListener listener;
+
+    private TransactionCheckDispatcher dispatcher;
+
+    @Before
+    public void init() {
+        brokerConfig.setTransactionCheckDispatchThreadPoolNums(1);
+        brokerConfig.setTransactionCheckMaxPendingPerGroup(2);
+        brokerConfig.setTransactionCheckBackoffMinMills(60 * 1000);
+        dispatcher = new TransactionCheckDispatcher(brokerConfig);
+    }
+
+    @After
+    public void destroy() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testBackoffFailedGroup() throws Exception {
+        MessageExt failedMsg = createMessageExt("failedGroup");
+        when(listener.sendCheckMessage(failedMsg)).thenReturn(false);
+        assertThat(dispatcher.dispatch(failedMsg, listener, null)).isTrue();
+        waitFor(() -> dispatcher.getFailedNums() == 1);
+
+        // backing off, so these are left to the next check round instead of piling up
+        assertThat(dispatcher.dispatch(createMessageExt("failedGroup"), listener, null)).isFalse();
+        assertThat(dispatcher.dispatch(createMessageExt("failedGroup"), listener, null)).isFalse();
+        assertThat(dispatcher.getThrottledNums()).isEqualTo(2);
+
+        MessageExt okMsg = createMessageExt("okGroup");
+        when(listener.sendCheckMessage(okMsg)).thenReturn(true);
+        assertThat(dispatcher.dispatch(okMsg, listener, null)).isTrue();
+        waitFor(() -> dispatcher.getSentNums() == 1);
+        assertThat(dispatcher.getFailedNums()).isEqualTo(1);
+        verify(listener, times(2)).sendCheckMessage(any(MessageExt.class));
+    }
+
+    @Test
+    public void testRateLimitPerGroup() throws Exception {
+        brokerConfig.setTransactionCheckRatePerGroup(1);
+        when(listener.sendCheckMessage(any(MessageExt.class))).thenReturn(true);
+        dispatcher.dispatch(createMessageExt("group"), listener, null);
+        dispatcher.dispatch(createMessageExt("group"), listener, null);
+        waitFor(() -> dispatcher.getSentNums() == 1);
+        Thread.sleep(200);
+        assertThat(dispatcher.getSentNums()).isEqualTo(1);
+        waitFor(() -> dispatcher.getSentNums() == 2);
+    }
+
+    @Test
+    public void testDropPendingOnBackoff() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch failing = new CountDownLatch(1);
+        when(listener.sendCheckMessage(any(MessageExt.class))).thenAnswer(invocation -> {
+            sending.countDown();
+            failing.await();
+            return false;
+        });
+        assertThat(dispatcher.dispatch(createMessageExt("group"), listener, null)).isTrue();
+        sending.await();
+        final CountDownLatch dropped = new CountDownLatch(1);
+        assertThat(dispatcher.dispatch(createMessageExt("group"), listener, dropped::countDown)).isTrue();
+        failing.countDown();
+        waitFor(() -> dispatcher.getFailedNums() == 1);
+
+        // the one pending behind the failed check is dropped, the check round puts it back again
+        waitFor(() -> dispatcher.getThrottledNums() == 1);
+        assertThat(dropped.getCount()).isEqualTo(0);
+        Thread.sleep(200);
+        verify(listener, times(1)).sendCheckMessage(any(MessageExt.class));
+    }
+
+    private void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.reached()) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private MessageExt createMessageExt(String producerGroup) {
+        MessageExt messageExt = new MessageExt();
+        MessageAccessor.putProperty(messageExt, MessageConst.PROPERTY_PRODUCER_GROUP, producerGroup);
+        return messageExt;
+    }
+
+    private interface Condition {
+        boolean reached();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.transaction.queue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import org.apache.rocketmq.common.UtilAll;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HalfMessageIndexTest {
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-"
+        + UUID.randomUUID() + File.separator + "transactionHalfIndex";
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File(storePath).getParentFile());
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        HalfMessageIndex.QueueIndex queueIndex = new HalfMessageIndex(storePath).createQueueIndex(0, 0, 0);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            long queueOffset = random.nextInt(5000);
+            if (random.nextBoolean()) {
+                assertThat(queueIndex.put(queueOffset, queueOffset * 100, 0, -1, 0))
+                    .isEqualTo(expected.put(queueOffset, queueOffset * 100) == null);
+            } else {
+                assertThat(queueIndex.remove(queueOffset)).isEqualTo(expected.remove(queueOffset) != null);
+            }
+        }
+
+        assertThat(queueIndex.size()).isEqualTo(expected.size());
+        HalfMessageIndex.Entry[] entries = queueIndex.snapshot();
+        assertThat(entries).hasSize(expected.size());
+        for (int i = 0; i < entries.length; i++) {
+            assertThat(expected.get(entries[i].getQueueOffset())).isEqualTo(entries[i].getCommitLogOffset());
+            if (i > 0) {
+                assertThat(entries[i].getQueueOffset()).isGreaterThan(entries[i - 1].getQueueOffset());
+            }
+        }
+        for (long queueOffset = 0; queueOffset < 5000; queueOffset++) {
+            assertThat(queueIndex.contains(queueOffset)).isEqualTo(expected.containsKey(queueOffset));
+        }
+    }
+
+    @Test
+    public void testCheckpoint() {
+        HalfMessageIndex index = new HalfMessageIndex(storePath);
+        HalfMessageIndex.QueueIndex queueIndex = index.createQueueIndex(1, 10, 4);
+        queueIndex.put(3, 300, 1000, 60, 0);
+        queueIndex.put(7, 700, 2000, -1, 2);
+        assertThat(queueIndex.incCheckTimes(3)).isEqualTo(1);
+        assertThat(index.remove(1, 7)).isTrue();
+        assertThat(queueIndex.incCheckTimes(7)).isEqualTo(-1);
+        index.persist();
+
+        HalfMessageIndex loaded = new HalfMessageIndex(storePath);
+        loaded.load();
+        assertThat(loaded.size()).isEqualTo(1);
+        HalfMessageIndex.QueueIndex loadedQueueIndex = loaded.findQueueIndex(1);
+        assertThat(loadedQueueIndex.getHalfReplayOffset()).isEqualTo(10);
+        assertThat(loadedQueueIndex.getOpReplayOffset()).isEqualTo(4);
+        HalfMessageIndex.Entry entry = loadedQueueIndex.snapshot()[0];
+        assertThat(entry.getQueueOffset()).isEqualTo(3);
+        assertThat(entry.getCommitLogOffset()).isEqualTo(300);
+        assertThat(entry.getBornTimestamp()).isEqualTo(1000);
+        assertThat(entry.getCheckImmunitySeconds()).isEqualTo(60);
+        assertThat(entry.getCheckTimes()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMarkReplayOffset() {
+        HalfMessageIndex.QueueIndex queueIndex = new HalfMessageIndex(storePath).createQueueIndex(0, 0, 0);
+        queueIndex.put(0, 0, 0, -1, 0);
+        queueIndex.setHalfReplayOffset(5);
+        queueIndex.setOpReplayOffset(2);
+        // offset 0 is still open, a rebuild has to start before it
+        assertThat(queueIndex.markReplayOffset()).isNull();
+
+        queueIndex.remove(0);
+        queueIndex.put(6, 0, 0, -1, 0);
+        queueIndex.setHalfReplayOffset(8);
+        queueIndex.setOpReplayOffset(6);
+        assertThat(queueIndex.markReplayOffset()).containsExactly(5, 2);
+
+        queueIndex.remove(6);
+        assertThat(queueIndex.markReplayOffset()).containsExactly(8, 6);
+    }
+}
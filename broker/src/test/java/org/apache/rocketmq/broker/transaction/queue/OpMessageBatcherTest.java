@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.transaction.queue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.store.AppendMessageResult;
+import org.apache.rocketmq.store.AppendMessageStatus;
+import org.apache.rocketmq.store.MessageStore;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OpMessageBatcherTest {
+    private final MessageQueue opQueue = new MessageQueue(TransactionalMessageUtil.buildOpTopic(), "DefaultCluster", 0);
+
+    @Mock
+    private MessageStore messageStore;
+
+    private OpMessageBatcher opMessageBatcher;
+
+    @Before
+    public void init() {
+        opMessageBatcher = new OpMessageBatcher(messageStore, new InetSocketAddress("127.0.0.1", 10911));
+    }
+
+    @Test
+    public void testGroupConcurrentOps() throws Exception {
+        final List<MessageExtBatch> batches = new ArrayList<>();
+        final List<CompletableFuture<Boolean>> concurrentFutures = new ArrayList<>();
+        final CompletableFuture<PutMessageResult> firstResult = new CompletableFuture<>();
+        when(messageStore.asyncPutMessages(any(MessageExtBatch.class))).thenAnswer(invocation -> {
+            batches.add(invocation.getArgument(0));
+            if (batches.size() == 1) {
+                // these arrive while the first batch is appended and have to wait for the next one
+                concurrentFutures.add(opMessageBatcher.putOpMessage(opQueue, createOpMessage(2)));
+                concurrentFutures.add(opMessageBatcher.putOpMessage(opQueue, createOpMessage(3)));
+                return firstResult;
+            }
+            return CompletableFuture.completedFuture(
+                new PutMessageResult(PutMessageStatus.PUT_OK, new AppendMessageResult(AppendMessageStatus.PUT_OK)));
+        });
+
+        CompletableFuture<Boolean> firstFuture = opMessageBatcher.putOpMessage(opQueue, createOpMessage(1));
+        assertThat(batches).hasSize(2);
+        assertThat(opMessageBatcher.getBatchTimes()).isEqualTo(2);
+        assertThat(opMessageBatcher.getBatchedOpNums()).isEqualTo(3);
+
+        List<Message> grouped = MessageDecoder.decodeMessages(ByteBuffer.wrap(batches.get(1).getBody()));
+        assertThat(grouped).hasSize(2);
+        assertThat(new String(grouped.get(0).getBody(), TransactionalMessageUtil.charset)).isEqualTo("2");
+        assertThat(new String(grouped.get(1).getBody(), TransactionalMessageUtil.charset)).isEqualTo("3");
+        assertThat(batches.get(1).getTopic()).isEqualTo(opQueue.getTopic());
+        assertThat(concurrentFutures.get(0).get()).isTrue();
+        assertThat(concurrentFutures.get(1).get()).isTrue();
+
+        assertThat(firstFuture.isDone()).isFalse();
+        firstResult.complete(new PutMessageResult(PutMessageStatus.OS_PAGECACHE_BUSY, null));
+        assertThat(firstFuture.get()).isFalse();
+    }
+
+    private Message createOpMessage(long halfOffset) {
+        return new Message(opQueue.getTopic(), TransactionalMessageUtil.REMOVETAG,
+            String.valueOf(halfOffset).getBytes(TransactionalMessageUtil.charset));
+    }
+}
@@ -23,6 +23,7 @@ import org.apache.rocketmq.broker.transaction.TransactionalMessageService;
 import org.apache.rocketmq.client.consumer.PullResult;
 import org.apache.rocketmq.client.consumer.PullStatus;
 import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageQueue;
@@ -47,10 +48,12 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -59,6 +62,8 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -143,13 +148,93 @@ public class TransactionalMessageServiceImplTest {
             @Override
             public Object answer(InvocationOnMock invocation) {
                 checkMessage.addAndGet(1);
-                return checkMessage;
+                return true;
             }
-        }).when(listener).resolveHalfMsg(any(MessageExt.class));
+        }).when(listener).resolveHalfMsg(any(MessageExt.class), any(Runnable.class));
         queueTransactionMsgService.check(timeOut, checkMax, listener);
         assertThat(checkMessage.get()).isEqualTo(1);
     }
 
+    @Test
+    public void testCheck_withHalfIndex() {
+        String storePathRootDir = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+        brokerController.getBrokerConfig().setTransactionHalfIndexEnable(true);
+        brokerController.getMessageStoreConfig().setStorePathRootDir(storePathRootDir);
+        try {
+            MessageQueue halfQueue = new MessageQueue(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC, "DefaultCluster", 0);
+            when(bridge.getBrokerController()).thenReturn(this.brokerController);
+            when(bridge.fetchMessageQueues(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC)).thenReturn(createMessageQueueSet(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC));
+            when(bridge.fetchConsumeOffset(any(MessageQueue.class))).thenReturn(0L);
+            when(bridge.getMaxOffsetInQueue(any(MessageQueue.class))).thenReturn(1L);
+            List<MessageExt> halfMsgs = getMessageList(0, TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC, "hello", 1);
+            halfMsgs.addAll(getMessageList(1, TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC, "hello", 1));
+            when(bridge.getHalfMessage(0, 0, 32)).thenReturn(new PullResult(PullStatus.FOUND, 2, 0, 2, halfMsgs));
+            when(bridge.getHalfMessage(0, 2, 32)).thenReturn(createPullResult(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC, 2, "hello", 0));
+            when(bridge.getOpMessage(0, 0, 32)).thenReturn(createOpPulResult(TopicValidator.RMQ_SYS_TRANS_OP_HALF_TOPIC, 0, "0", 1));
+            when(bridge.lookMessageByOffset(anyLong())).thenReturn(createMessageBrokerInner());
+            when(bridge.putOpMessage(any(MessageExt.class), anyString())).thenReturn(true);
+            final AtomicInteger checkMessage = new AtomicInteger(0);
+            doAnswer(new Answer() {
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    checkMessage.addAndGet(1);
+                    return true;
+                }
+            }).when(listener).resolveHalfMsg(any(MessageExt.class), any(Runnable.class));
+            queueTransactionMsgService.open();
+            long timeOut = this.brokerController.getBrokerConfig().getTransactionTimeOut();
+            int checkMax = this.brokerController.getBrokerConfig().getTransactionCheckMax();
+
+            // offset 0 was rolled back already, only offset 1 is checked and nothing is written back
+            queueTransactionMsgService.check(timeOut, checkMax, listener);
+            assertThat(checkMessage.get()).isEqualTo(1);
+            HalfMessageIndex halfMessageIndex = ((TransactionalMessageServiceImpl) queueTransactionMsgService).getHalfMessageIndex();
+            assertThat(halfMessageIndex.size()).isEqualTo(1);
+            verify(bridge, never()).putMessageReturnResult(any(MessageExtBrokerInner.class));
+            verify(bridge, never()).updateConsumeOffset(any(MessageQueue.class), anyLong());
+
+            assertThat(queueTransactionMsgService.deletePrepareMessage(createMessageBrokerInner())).isTrue();
+            assertThat(halfMessageIndex.size()).isEqualTo(0);
+            queueTransactionMsgService.check(timeOut, checkMax, listener);
+            assertThat(checkMessage.get()).isEqualTo(1);
+            verify(bridge).updateConsumeOffset(halfQueue, 2);
+        } finally {
+            UtilAll.deleteFile(new File(storePathRootDir));
+        }
+    }
+
+    @Test
+    public void testCheck_withHalfIndexWhileGroupBacksOff() {
+        String storePathRootDir = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+        brokerController.getBrokerConfig().setTransactionHalfIndexEnable(true);
+        brokerController.getMessageStoreConfig().setStorePathRootDir(storePathRootDir);
+        try {
+            when(bridge.getBrokerController()).thenReturn(this.brokerController);
+            when(bridge.fetchMessageQueues(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC)).thenReturn(createMessageQueueSet(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC));
+            when(bridge.fetchConsumeOffset(any(MessageQueue.class))).thenReturn(0L);
+            when(bridge.getMaxOffsetInQueue(any(MessageQueue.class))).thenReturn(1L);
+            when(bridge.getHalfMessage(0, 0, 32)).thenReturn(createPullResult(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC, 0, "hello", 1));
+            when(bridge.getHalfMessage(0, 1, 32)).thenReturn(createPullResult(TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC, 1, "hello", 0));
+            when(bridge.getOpMessage(0, 0, 32)).thenReturn(createPullResult(TopicValidator.RMQ_SYS_TRANS_OP_HALF_TOPIC, 0, "0", 0));
+            when(bridge.lookMessageByOffset(anyLong())).thenReturn(createMessageBrokerInner());
+            // the producer group backs off, so the dispatcher leaves every check to the next round
+            when(listener.resolveHalfMsg(any(MessageExt.class), any(Runnable.class))).thenReturn(false);
+            queueTransactionMsgService.open();
+            long timeOut = this.brokerController.getBrokerConfig().getTransactionTimeOut();
+            int checkMax = 2;
+
+            for (int i = 0; i <= checkMax + 1; i++) {
+                queueTransactionMsgService.check(timeOut, checkMax, listener);
+            }
+            verify(listener, never()).resolveDiscardMsg(any(MessageExt.class));
+            HalfMessageIndex halfMessageIndex = ((TransactionalMessageServiceImpl) queueTransactionMsgService).getHalfMessageIndex();
+            assertThat(halfMessageIndex.size()).isEqualTo(1);
+            assertThat(halfMessageIndex.findQueueIndex(0).snapshot()[0].getCheckTimes()).isEqualTo(0);
+        } finally {
+            UtilAll.deleteFile(new File(storePathRootDir));
+        }
+    }
+
     @Test
     public void testDeletePrepareMessage() {
         when(bridge.putOpMessage(any(MessageExt.class), anyString())).thenReturn(true);
@@ -278,6 +278,11 @@ public class MQClientAPIImpl {
         requestHeader.setTopicFilterType(topicConfig.getTopicFilterType().name());
         requestHeader.setTopicSysFlag(topicConfig.getTopicSysFlag());
         requestHeader.setOrder(topicConfig.isOrder());
+        requestHeader.setFlushType(topicConfig.getFlushType().name());
+        requestHeader.setFileReservedTime(topicConfig.getFileReservedTime());
+        requestHeader.setProduceQuotaTps(topicConfig.getProduceQuotaTps());
+        requestHeader.setProduceQuotaBytes(topicConfig.getProduceQuotaBytes());
+        requestHeader.setCompactConsumeQueue(topicConfig.isCompactConsumeQueue());
 
         RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.UPDATE_AND_CREATE_TOPIC, requestHeader);
 
@@ -457,7 +462,10 @@ public class MQClientAPIImpl {
                 request = RemotingCommand.createRequestCommand(RequestCode.SEND_REPLY_MESSAGE, requestHeader);
             }
         } else {
-            if (sendSmartMsg || msg instanceof MessageBatch) {
+            if (msg instanceof MessageBatch && ((MessageBatch) msg).isStoreFormat()) {
+                SendMessageRequestHeaderV2 requestHeaderV2 = SendMessageRequestHeaderV2.createSendMessageRequestHeaderV2(requestHeader);
+                request = RemotingCommand.createRequestCommand(RequestCode.SEND_BATCH_MESSAGE_IN_STORE_FORMAT, requestHeaderV2);
+            } else if (sendSmartMsg || msg instanceof MessageBatch) {
                 SendMessageRequestHeaderV2 requestHeaderV2 = SendMessageRequestHeaderV2.createSendMessageRequestHeaderV2(requestHeader);
                 request = RemotingCommand.createRequestCommand(msg instanceof MessageBatch ? RequestCode.SEND_BATCH_MESSAGE : RequestCode.SEND_MESSAGE_V2, requestHeaderV2);
             } else {
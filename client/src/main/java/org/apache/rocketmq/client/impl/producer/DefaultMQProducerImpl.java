@@ -20,8 +20,10 @@ import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.Timer;
@@ -84,6 +86,8 @@ import org.apache.rocketmq.common.protocol.ResponseCode;
 import org.apache.rocketmq.common.protocol.header.CheckTransactionStateRequestHeader;
 import org.apache.rocketmq.common.protocol.header.EndTransactionRequestHeader;
 import org.apache.rocketmq.common.protocol.header.SendMessageRequestHeader;
+import org.apache.rocketmq.common.protocol.route.BrokerData;
+import org.apache.rocketmq.common.protocol.route.TopicRouteData;
 import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.common.utils.CorrelationIdUtil;
 import org.apache.rocketmq.logging.InternalLogger;
@@ -710,6 +714,7 @@ public class DefaultMQProducerImpl implements MQProducerInner {
                             case ResponseCode.NO_PERMISSION:
                             case ResponseCode.NO_BUYER_ID:
                             case ResponseCode.NOT_IN_CURRENT_UNIT:
+                            case ResponseCode.QUOTA_EXCEEDED:
                                 continue;
                             default:
                                 if (sendResult != null) {
@@ -799,6 +804,33 @@ public class DefaultMQProducerImpl implements MQProducerInner {
         }
     }
 
+    /**
+     * Lay the batch out as the broker stores it, including the batch properties and the cluster name the broker
+     * would otherwise add to every message while encoding it.
+     */
+    private void encodeBatchInStoreFormat(final MessageBatch msgBatch, final MessageQueue mq,
+        final TopicPublishInfo topicPublishInfo, final SendMessageRequestHeader requestHeader) {
+        String clusterName = null;
+        TopicRouteData topicRouteData = topicPublishInfo.getTopicRouteData();
+        if (topicRouteData != null && topicRouteData.getBrokerDatas() != null) {
+            for (BrokerData brokerData : topicRouteData.getBrokerDatas()) {
+                if (brokerData.getBrokerName().equals(mq.getBrokerName())) {
+                    clusterName = brokerData.getCluster();
+                    break;
+                }
+            }
+        }
+        if (null == clusterName) {
+            return;
+        }
+
+        Map<String, String> batchProperties = new HashMap<String, String>(msgBatch.getProperties());
+        batchProperties.put(MessageConst.PROPERTY_CLUSTER, clusterName);
+        msgBatch.setBody(msgBatch.encodeInStoreFormat(MessageDecoder.messageProperties2String(batchProperties),
+            requestHeader.getBornTimestamp()));
+        msgBatch.setStoreFormat(true);
+    }
+
     /**
      * 向broker 发送消息
      * @param msg
@@ -926,6 +958,12 @@ public class DefaultMQProducerImpl implements MQProducerInner {
                     }
                 }
 
+                // async sends with a namespace go out as a plain clone, which can not carry the store format
+                if (msg instanceof MessageBatch && this.defaultMQProducer.isSendBatchInStoreFormat()
+                    && !(communicationMode == CommunicationMode.ASYNC && topicWithNamespace)) {
+                    this.encodeBatchInStoreFormat((MessageBatch) msg, mq, topicPublishInfo, requestHeader);
+                }
+
                 SendResult sendResult = null;
                 switch (communicationMode) {
                     case ASYNC:
@@ -1013,6 +1051,9 @@ public class DefaultMQProducerImpl implements MQProducerInner {
                 throw e;
             } finally {
                 msg.setBody(prevBody);
+                if (msg instanceof MessageBatch) {
+                    ((MessageBatch) msg).setStoreFormat(false);
+                }
                 msg.setTopic(NamespaceUtil.withoutNamespace(msg.getTopic(), this.defaultMQProducer.getNamespace()));
             }
         }
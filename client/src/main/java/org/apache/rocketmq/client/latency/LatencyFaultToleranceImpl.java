@@ -163,7 +163,7 @@ public class LatencyFaultToleranceImpl implements LatencyFaultTolerance<String>
                 if (this.isAvailable())// 如果当前对象为true
                     return -1; // 当前对象小
 
-                if (other.isAvailable()// 如果other对象为true
+                if (other.isAvailable())// 如果other对象为true
                     return 1; // other对象大
             }
 
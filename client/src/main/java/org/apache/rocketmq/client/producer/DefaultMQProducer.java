@@ -117,6 +117,13 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
      */
     private int maxMessageSize = 1024 * 1024 * 4; // 4M
 
+    /**
+     * Send batches laid out exactly as the broker stores them, so the broker appends them without encoding them
+     * again. Only brokers supporting {@link org.apache.rocketmq.common.protocol.RequestCode#SEND_BATCH_MESSAGE_IN_STORE_FORMAT}
+     * accept such batches.
+     */
+    private boolean sendBatchInStoreFormat = false;
+
     /**
      * Interface of asynchronous transfer data
      */
@@ -1095,4 +1102,12 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
         return traceDispatcher;
     }
 
+    public boolean isSendBatchInStoreFormat() {
+        return sendBatchInStoreFormat;
+    }
+
+    public void setSendBatchInStoreFormat(final boolean sendBatchInStoreFormat) {
+        this.sendBatchInStoreFormat = sendBatchInStoreFormat;
+    }
+
 }
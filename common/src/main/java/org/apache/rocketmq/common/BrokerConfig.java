@@ -92,6 +92,40 @@ public class BrokerConfig {
     private int heartbeatThreadPoolQueueCapacity = 50000;
     private int endTransactionPoolQueueCapacity = 100000;
 
+    /**
+     * Serve the requests waiting in the send, pull and query queues weighted-fair among tenants instead of first come
+     * first served, so one noisy tenant cannot starve the others.
+     */
+    private boolean executorFairQueueEnable = false;
+    /**
+     * What makes a tenant: topic, group or client.
+     */
+    private String executorFairQueueTenantKey = "group";
+    /**
+     * Requests one tenant may have waiting in one queue.
+     */
+    private int executorFairQueueTenantCapacity = 2000;
+    /**
+     * Tenants served more than once a round, e.g. "groupA:4;groupB:2", all other tenants have weight 1.
+     */
+    private String executorFairQueueTenantWeights = "";
+
+    /**
+     * Enforce the produce quotas of topics and the consume quotas of subscription groups, plus the quotas below, before
+     * the store is accessed.
+     */
+    private boolean quotaEnable = false;
+    /**
+     * Messages and bytes a second one producer group may send, negative for no limit.
+     */
+    private int producerGroupQuotaTps = -1;
+    private long producerGroupQuotaBytes = -1;
+    /**
+     * Messages and bytes a second one client may send, and separately pull, negative for no limit.
+     */
+    private int clientQuotaTps = -1;
+    private long clientQuotaBytes = -1;
+
     private int filterServerNums = 0;
 
     private boolean longPollingEnable = true;
@@ -177,6 +211,52 @@ public class BrokerConfig {
     @ImportantField
     private long transactionCheckInterval = 60 * 1000;
 
+    /**
+     * Keep the open half messages in a checkpointed in-memory index, the check then works from the index instead of
+     * rescanning the op queue and writing every checked half message back to the half queue.
+     */
+    private boolean transactionHalfIndexEnable = false;
+
+    /**
+     * Store the messages of committed transactions asynchronously and write the op messages of concurrent commits and
+     * rollbacks as one batch, EndTransaction threads no longer wait for the store.
+     */
+    private boolean endTransactionBatchEnable = false;
+
+    /**
+     * Thread numbers writing the op messages once the committed messages are stored, only with
+     * endTransactionBatchEnable.
+     */
+    private int endTransactionOpThreadPoolNums = 2;
+
+    /**
+     * Queue nums of the transaction half topic, half messages are spread over them by their real queue so that the
+     * check threads can work on several half queues at once.
+     */
+    private int transactionHalfQueueNums = 1;
+
+    /**
+     * Threads checking the half queues, one half queue is only ever checked by one of them.
+     */
+    private int transactionCheckThreadPoolNums = 1;
+
+    /**
+     * Send the transaction check requests through a dispatcher which limits them per producer group and backs off from
+     * producer groups that cannot be reached, instead of handing all of them to the producers at once.
+     */
+    private boolean transactionCheckDispatchEnable = false;
+    private int transactionCheckDispatchThreadPoolNums = 4;
+    /**
+     * Check requests sent to one producer group per second.
+     */
+    private int transactionCheckRatePerGroup = 100;
+    /**
+     * Check requests of one producer group waiting to be sent, more are left to the next check round.
+     */
+    private int transactionCheckMaxPendingPerGroup = 10000;
+    private long transactionCheckBackoffMinMills = 1000;
+    private long transactionCheckBackoffMaxMills = 60 * 1000;
+
     /**
      * Acl feature switch
      */
@@ -804,4 +884,164 @@ public class BrokerConfig {
     public void setAutoDeleteUnusedStats(boolean autoDeleteUnusedStats) {
         this.autoDeleteUnusedStats = autoDeleteUnusedStats;
     }
+
+    public boolean isTransactionHalfIndexEnable() {
+        return transactionHalfIndexEnable;
+    }
+
+    public void setTransactionHalfIndexEnable(boolean transactionHalfIndexEnable) {
+        this.transactionHalfIndexEnable = transactionHalfIndexEnable;
+    }
+
+    public boolean isEndTransactionBatchEnable() {
+        return endTransactionBatchEnable;
+    }
+
+    public void setEndTransactionBatchEnable(boolean endTransactionBatchEnable) {
+        this.endTransactionBatchEnable = endTransactionBatchEnable;
+    }
+
+    public int getEndTransactionOpThreadPoolNums() {
+        return endTransactionOpThreadPoolNums;
+    }
+
+    public void setEndTransactionOpThreadPoolNums(int endTransactionOpThreadPoolNums) {
+        this.endTransactionOpThreadPoolNums = endTransactionOpThreadPoolNums;
+    }
+
+    public int getTransactionHalfQueueNums() {
+        return transactionHalfQueueNums;
+    }
+
+    public void setTransactionHalfQueueNums(int transactionHalfQueueNums) {
+        this.transactionHalfQueueNums = transactionHalfQueueNums;
+    }
+
+    public int getTransactionCheckThreadPoolNums() {
+        return transactionCheckThreadPoolNums;
+    }
+
+    public void setTransactionCheckThreadPoolNums(int transactionCheckThreadPoolNums) {
+        this.transactionCheckThreadPoolNums = transactionCheckThreadPoolNums;
+    }
+
+    public boolean isTransactionCheckDispatchEnable() {
+        return transactionCheckDispatchEnable;
+    }
+
+    public void setTransactionCheckDispatchEnable(boolean transactionCheckDispatchEnable) {
+        this.transactionCheckDispatchEnable = transactionCheckDispatchEnable;
+    }
+
+    public int getTransactionCheckDispatchThreadPoolNums() {
+        return transactionCheckDispatchThreadPoolNums;
+    }
+
+    public void setTransactionCheckDispatchThreadPoolNums(int transactionCheckDispatchThreadPoolNums) {
+        this.transactionCheckDispatchThreadPoolNums = transactionCheckDispatchThreadPoolNums;
+    }
+
+    public int getTransactionCheckRatePerGroup() {
+        return transactionCheckRatePerGroup;
+    }
+
+    public void setTransactionCheckRatePerGroup(int transactionCheckRatePerGroup) {
+        this.transactionCheckRatePerGroup = transactionCheckRatePerGroup;
+    }
+
+    public int getTransactionCheckMaxPendingPerGroup() {
+        return transactionCheckMaxPendingPerGroup;
+    }
+
+    public void setTransactionCheckMaxPendingPerGroup(int transactionCheckMaxPendingPerGroup) {
+        this.transactionCheckMaxPendingPerGroup = transactionCheckMaxPendingPerGroup;
+    }
+
+    public long getTransactionCheckBackoffMinMills() {
+        return transactionCheckBackoffMinMills;
+    }
+
+    public void setTransactionCheckBackoffMinMills(long transactionCheckBackoffMinMills) {
+        this.transactionCheckBackoffMinMills = transactionCheckBackoffMinMills;
+    }
+
+    public long getTransactionCheckBackoffMaxMills() {
+        return transactionCheckBackoffMaxMills;
+    }
+
+    public void setTransactionCheckBackoffMaxMills(long transactionCheckBackoffMaxMills) {
+        this.transactionCheckBackoffMaxMills = transactionCheckBackoffMaxMills;
+    }
+
+    public boolean isExecutorFairQueueEnable() {
+        return executorFairQueueEnable;
+    }
+
+    public void setExecutorFairQueueEnable(boolean executorFairQueueEnable) {
+        this.executorFairQueueEnable = executorFairQueueEnable;
+    }
+
+    public String getExecutorFairQueueTenantKey() {
+        return executorFairQueueTenantKey;
+    }
+
+    public void setExecutorFairQueueTenantKey(String executorFairQueueTenantKey) {
+        this.executorFairQueueTenantKey = executorFairQueueTenantKey;
+    }
+
+    public int getExecutorFairQueueTenantCapacity() {
+        return executorFairQueueTenantCapacity;
+    }
+
+    public void setExecutorFairQueueTenantCapacity(int executorFairQueueTenantCapacity) {
+        this.executorFairQueueTenantCapacity = executorFairQueueTenantCapacity;
+    }
+
+    public String getExecutorFairQueueTenantWeights() {
+        return executorFairQueueTenantWeights;
+    }
+
+    public void setExecutorFairQueueTenantWeights(String executorFairQueueTenantWeights) {
+        this.executorFairQueueTenantWeights = executorFairQueueTenantWeights;
+    }
+
+    public boolean isQuotaEnable() {
+        return quotaEnable;
+    }
+
+    public void setQuotaEnable(boolean quotaEnable) {
+        this.quotaEnable = quotaEnable;
+    }
+
+    public int getProducerGroupQuotaTps() {
+        return producerGroupQuotaTps;
+    }
+
+    public void setProducerGroupQuotaTps(int producerGroupQuotaTps) {
+        this.producerGroupQuotaTps = producerGroupQuotaTps;
+    }
+
+    public long getProducerGroupQuotaBytes() {
+        return producerGroupQuotaBytes;
+    }
+
+    public void setProducerGroupQuotaBytes(long producerGroupQuotaBytes) {
+        this.producerGroupQuotaBytes = producerGroupQuotaBytes;
+    }
+
+    public int getClientQuotaTps() {
+        return clientQuotaTps;
+    }
+
+    public void setClientQuotaTps(int clientQuotaTps) {
+        this.clientQuotaTps = clientQuotaTps;
+    }
+
+    public long getClientQuotaBytes() {
+        return clientQuotaBytes;
+    }
+
+    public void setClientQuotaBytes(long clientQuotaBytes) {
+        this.clientQuotaBytes = clientQuotaBytes;
+    }
 }
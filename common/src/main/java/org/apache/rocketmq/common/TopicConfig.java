@@ -29,6 +29,21 @@ public class TopicConfig {
     private TopicFilterType topicFilterType = TopicFilterType.SINGLE_TAG;
     private int topicSysFlag = 0;
     private boolean order = false;
+    private TopicFlushType flushType = TopicFlushType.DEFAULT;
+    /**
+     * Hours messages of this topic stay readable, negative to follow the fileReservedTime of the broker.
+     */
+    private int fileReservedTime = -1;
+    /**
+     * Messages and bytes a second producers may write to this topic, negative for no limit.
+     */
+    private int produceQuotaTps = -1;
+    private long produceQuotaBytes = -1;
+    /**
+     * Consume queues of this topic created from now on use the block encoded compact format, queues already on
+     * disk keep the format they were created with.
+     */
+    private boolean compactConsumeQueue = false;
 
     public TopicConfig() {
     }
@@ -134,6 +149,46 @@ public class TopicConfig {
         this.order = isOrder;
     }
 
+    public TopicFlushType getFlushType() {
+        return flushType;
+    }
+
+    public void setFlushType(TopicFlushType flushType) {
+        this.flushType = flushType;
+    }
+
+    public int getFileReservedTime() {
+        return fileReservedTime;
+    }
+
+    public void setFileReservedTime(int fileReservedTime) {
+        this.fileReservedTime = fileReservedTime;
+    }
+
+    public int getProduceQuotaTps() {
+        return produceQuotaTps;
+    }
+
+    public void setProduceQuotaTps(int produceQuotaTps) {
+        this.produceQuotaTps = produceQuotaTps;
+    }
+
+    public long getProduceQuotaBytes() {
+        return produceQuotaBytes;
+    }
+
+    public void setProduceQuotaBytes(long produceQuotaBytes) {
+        this.produceQuotaBytes = produceQuotaBytes;
+    }
+
+    public boolean isCompactConsumeQueue() {
+        return compactConsumeQueue;
+    }
+
+    public void setCompactConsumeQueue(boolean compactConsumeQueue) {
+        this.compactConsumeQueue = compactConsumeQueue;
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o)
@@ -153,6 +208,16 @@ public class TopicConfig {
             return false;
         if (order != that.order)
             return false;
+        if (fileReservedTime != that.fileReservedTime)
+            return false;
+        if (flushType != that.flushType)
+            return false;
+        if (produceQuotaTps != that.produceQuotaTps)
+            return false;
+        if (produceQuotaBytes != that.produceQuotaBytes)
+            return false;
+        if (compactConsumeQueue != that.compactConsumeQueue)
+            return false;
         if (topicName != null ? !topicName.equals(that.topicName) : that.topicName != null)
             return false;
         return topicFilterType == that.topicFilterType;
@@ -168,6 +233,11 @@ public class TopicConfig {
         result = 31 * result + (topicFilterType != null ? topicFilterType.hashCode() : 0);
         result = 31 * result + topicSysFlag;
         result = 31 * result + (order ? 1 : 0);
+        result = 31 * result + (flushType != null ? flushType.hashCode() : 0);
+        result = 31 * result + fileReservedTime;
+        result = 31 * result + produceQuotaTps;
+        result = 31 * result + (int) (produceQuotaBytes ^ (produceQuotaBytes >>> 32));
+        result = 31 * result + (compactConsumeQueue ? 1 : 0);
         return result;
     }
 
@@ -176,6 +246,8 @@ public class TopicConfig {
         return "TopicConfig [topicName=" + topicName + ", readQueueNums=" + readQueueNums
             + ", writeQueueNums=" + writeQueueNums + ", perm=" + PermName.perm2String(perm)
             + ", topicFilterType=" + topicFilterType + ", topicSysFlag=" + topicSysFlag + ", order="
-            + order + "]";
+            + order + ", flushType=" + flushType + ", fileReservedTime=" + fileReservedTime
+            + ", produceQuotaTps=" + produceQuotaTps + ", produceQuotaBytes=" + produceQuotaBytes
+            + ", compactConsumeQueue=" + compactConsumeQueue + "]";
     }
 }
@@ -149,6 +149,26 @@ public class Message implements Serializable {
         this.putProperty(MessageConst.PROPERTY_DELAY_TIME_LEVEL, String.valueOf(level));
     }
 
+    /**
+     * @return the absolute delivery time in milliseconds, or 0 if the message is not a timer message
+     */
+    public long getDeliverTimeMs() {
+        String t = this.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        if (t != null) {
+            return Long.parseLong(t);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Deliver the message at an arbitrary point in time instead of one of the fixed delay levels, brokers round it
+     * up to the next second.
+     */
+    public void setDeliverTimeMs(long deliverTimeMs) {
+        this.putProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS, String.valueOf(deliverTimeMs));
+    }
+
     public boolean isWaitStoreMsgOK() {
         String result = this.getProperty(MessageConst.PROPERTY_WAIT_STORE_MSG_OK);
         if (null == result)
@@ -26,6 +26,7 @@ public class MessageBatch extends Message implements Iterable<Message> {
 
     private static final long serialVersionUID = 621335151046335557L;
     private final List<Message> messages;
+    private transient boolean storeFormat = false;
 
     private MessageBatch(List<Message> messages) {
         this.messages = messages;
@@ -35,6 +36,21 @@ public class MessageBatch extends Message implements Iterable<Message> {
         return MessageDecoder.encodeMessages(messages);
     }
 
+    public byte[] encodeInStoreFormat(String batchProperties, long bornTimestamp) {
+        return MessageDecoder.encodeMessagesInStoreFormat(messages, getTopic(), batchProperties, bornTimestamp);
+    }
+
+    /**
+     * Whether the body currently set is laid out in commit log format.
+     */
+    public boolean isStoreFormat() {
+        return storeFormat;
+    }
+
+    public void setStoreFormat(boolean storeFormat) {
+        this.storeFormat = storeFormat;
+    }
+
     public Iterator<Message> iterator() {
         return messages.iterator();
     }
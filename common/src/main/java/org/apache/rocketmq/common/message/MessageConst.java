@@ -52,6 +52,7 @@ public class MessageConst {
     public static final String PROPERTY_PUSH_REPLY_TIME = "PUSH_REPLY_TIME";
     public static final String PROPERTY_CLUSTER = "CLUSTER";
     public static final String PROPERTY_MESSAGE_TYPE = "MSG_TYPE";
+    public static final String PROPERTY_TIMER_DELIVER_MS = "TIMER_DELIVER_MS";
 
     public static final String KEY_SEPARATOR = " ";
 
@@ -88,5 +89,6 @@ public class MessageConst {
         STRING_HASH_SET.add(PROPERTY_PUSH_REPLY_TIME);
         STRING_HASH_SET.add(PROPERTY_CLUSTER);
         STRING_HASH_SET.add(PROPERTY_MESSAGE_TYPE);
+        STRING_HASH_SET.add(PROPERTY_TIMER_DELIVER_MS);
     }
 }
@@ -44,6 +44,8 @@ public class MessageDecoder {
     public static final int PHY_POS_POSITION = 4 + 4 + 4 + 4 + 4 + 8;
     public static final int QUEUE_OFFSET_POSITION = 4 + 4 + 4 + 4 + 4;
     public static final int SYSFLAG_POSITION = 4 + 4 + 4 + 4 + 4 + 8 + 8;
+    // position of BODYLENGTH when both hosts are IPv4
+    public static final int STORE_FORMAT_BODY_POSITION = SYSFLAG_POSITION + 4 + 8 + 8 + 8 + 8 + 4 + 8;
 //    public static final int BODY_SIZE_POSITION = 4 // 1 TOTALSIZE
 //        + 4 // 2 MAGICCODE
 //        + 4 // 3 BODYCRC
@@ -531,6 +533,115 @@ public class MessageDecoder {
         return allBytes;
     }
 
+    /**
+     * Encode a batch exactly as the broker lays it out in the commit log for IPv4 hosts, so the broker only has to
+     * patch queue id, offsets, hosts and timestamps in place. Fields only the broker knows are left zero.
+     *
+     * @param batchProperties property string appended to the properties of every message, e.g. those of the batch
+     */
+    public static byte[] encodeMessagesInStoreFormat(List<Message> messages, String topic, String batchProperties,
+        long bornTimestamp) {
+        byte[] topicBytes = topic.getBytes(CHARSET_UTF8);
+        byte[] batchPropertiesBytes = batchProperties == null ? new byte[0] : batchProperties.getBytes(CHARSET_UTF8);
+        List<byte[]> propertiesList = new ArrayList<byte[]>(messages.size());
+        int allSize = 0;
+        for (Message message : messages) {
+            byte[] propertiesBytes = messageProperties2String(message.getProperties()).getBytes(CHARSET_UTF8);
+            propertiesList.add(propertiesBytes);
+            allSize += storeFormatLength(message.getBody().length, topicBytes.length,
+                propertiesBytes.length + batchPropertiesBytes.length);
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(allSize);
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            byte[] body = message.getBody();
+            byte[] propertiesBytes = propertiesList.get(i);
+            int propertiesLength = propertiesBytes.length + batchPropertiesBytes.length;
+            // 1 TOTALSIZE
+            byteBuffer.putInt(storeFormatLength(body.length, topicBytes.length, propertiesLength));
+            // 2 MAGICCODE
+            byteBuffer.putInt(MESSAGE_MAGIC_CODE);
+            // 3 BODYCRC
+            byteBuffer.putInt(UtilAll.crc32(body));
+            // 4 QUEUEID
+            byteBuffer.putInt(0);
+            // 5 FLAG
+            byteBuffer.putInt(message.getFlag());
+            // 6 QUEUEOFFSET
+            byteBuffer.putLong(0);
+            // 7 PHYSICALOFFSET
+            byteBuffer.putLong(0);
+            // 8 SYSFLAG
+            byteBuffer.putInt(0);
+            // 9 BORNTIMESTAMP
+            byteBuffer.putLong(bornTimestamp);
+            // 10 BORNHOST
+            byteBuffer.putLong(0);
+            // 11 STORETIMESTAMP
+            byteBuffer.putLong(0);
+            // 12 STOREHOSTADDRESS
+            byteBuffer.putLong(0);
+            // 13 RECONSUMETIMES
+            byteBuffer.putInt(0);
+            // 14 Prepared Transaction Offset
+            byteBuffer.putLong(0);
+            // 15 BODY
+            byteBuffer.putInt(body.length);
+            byteBuffer.put(body);
+            // 16 TOPIC
+            byteBuffer.put((byte) topicBytes.length);
+            byteBuffer.put(topicBytes);
+            // 17 PROPERTIES
+            byteBuffer.putShort((short) propertiesLength);
+            byteBuffer.put(propertiesBytes);
+            byteBuffer.put(batchPropertiesBytes);
+        }
+        return byteBuffer.array();
+    }
+
+    /**
+     * Convert a batch encoded by {@link #encodeMessagesInStoreFormat} back to the format of {@link #encodeMessages},
+     * for stores that can not take it as is. The batch properties stay embedded in every message.
+     */
+    public static byte[] convertStoreFormatBatch(byte[] body) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(body);
+        ByteBuffer converted = ByteBuffer.allocate(body.length);
+        while (byteBuffer.hasRemaining()) {
+            int msgPos = byteBuffer.position();
+            int totalSize = byteBuffer.getInt();
+            if (totalSize < storeFormatLength(0, 0, 0) || totalSize > byteBuffer.remaining() + 4) {
+                throw new IllegalArgumentException("illegal message size " + totalSize + " at " + msgPos);
+            }
+            int flag = byteBuffer.getInt(msgPos + MESSAGE_FLAG_POSTION);
+            int bodyPos = msgPos + STORE_FORMAT_BODY_POSITION;
+            int bodyLen = byteBuffer.getInt(bodyPos);
+            int topicPos = bodyPos + 4 + bodyLen;
+            int propertiesPos = topicPos + 1 + byteBuffer.get(topicPos);
+            short propertiesLen = byteBuffer.getShort(propertiesPos);
+            if (bodyLen < 0 || propertiesLen < 0 || propertiesPos + 2 + propertiesLen != msgPos + totalSize) {
+                throw new IllegalArgumentException("illegal message layout at " + msgPos);
+            }
+
+            converted.putInt(4 + 4 + 4 + 4 + 4 + bodyLen + 2 + propertiesLen);
+            converted.putInt(0);
+            converted.putInt(0);
+            converted.putInt(flag);
+            converted.putInt(bodyLen);
+            converted.put(body, bodyPos + 4, bodyLen);
+            converted.putShort(propertiesLen);
+            converted.put(body, propertiesPos + 2, propertiesLen);
+            byteBuffer.position(msgPos + totalSize);
+        }
+        byte[] result = new byte[converted.position()];
+        System.arraycopy(converted.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    private static int storeFormatLength(int bodyLength, int topicLength, int propertiesLength) {
+        return STORE_FORMAT_BODY_POSITION + 4 + bodyLength + 1 + topicLength + 2 + propertiesLength;
+    }
+
     public static List<Message> decodeMessages(ByteBuffer byteBuffer) throws Exception {
         //TO DO add a callback for processing,  avoid creating lists
         List<Message> msgs = new ArrayList<Message>();
@@ -30,6 +30,11 @@ public class MessageExtBatch extends MessageExt {
 
     private ByteBuffer encodedBuff;
 
+    /**
+     * The body is already laid out in commit log format instead of the format of MessageDecoder#encodeMessages.
+     */
+    private boolean storeFormat = false;
+
     public ByteBuffer getEncodedBuff() {
         return encodedBuff;
     }
@@ -37,4 +42,12 @@ public class MessageExtBatch extends MessageExt {
     public void setEncodedBuff(ByteBuffer encodedBuff) {
         this.encodedBuff = encodedBuff;
     }
+
+    public boolean isStoreFormat() {
+        return storeFormat;
+    }
+
+    public void setStoreFormat(boolean storeFormat) {
+        this.storeFormat = storeFormat;
+    }
 }
@@ -194,4 +194,9 @@ public class RequestCode {
     public static final int SEND_REPLY_MESSAGE_V2 = 325;
 
     public static final int PUSH_REPLY_MESSAGE_TO_CLIENT = 326;
+
+    /**
+     * batch whose body is already laid out in commit log format, see MessageDecoder#encodeMessagesInStoreFormat
+     */
+    public static final int SEND_BATCH_MESSAGE_IN_STORE_FORMAT = 327;
 }
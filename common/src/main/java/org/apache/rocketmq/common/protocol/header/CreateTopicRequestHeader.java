@@ -21,6 +21,7 @@
 package org.apache.rocketmq.common.protocol.header;
 
 import org.apache.rocketmq.common.TopicFilterType;
+import org.apache.rocketmq.common.TopicFlushType;
 import org.apache.rocketmq.remoting.CommandCustomHeader;
 import org.apache.rocketmq.remoting.annotation.CFNotNull;
 import org.apache.rocketmq.remoting.exception.RemotingCommandException;
@@ -41,6 +42,11 @@ public class CreateTopicRequestHeader implements CommandCustomHeader {
     private Integer topicSysFlag;
     @CFNotNull
     private Boolean order = false;
+    private String flushType;
+    private Integer fileReservedTime;
+    private Integer produceQuotaTps;
+    private Long produceQuotaBytes;
+    private Boolean compactConsumeQueue;
 
     @Override
     public void checkFields() throws RemotingCommandException {
@@ -49,12 +55,23 @@ public class CreateTopicRequestHeader implements CommandCustomHeader {
         } catch (Exception e) {
             throw new RemotingCommandException("topicFilterType = [" + topicFilterType + "] value invalid", e);
         }
+        if (this.flushType != null) {
+            try {
+                TopicFlushType.valueOf(this.flushType);
+            } catch (Exception e) {
+                throw new RemotingCommandException("flushType = [" + flushType + "] value invalid", e);
+            }
+        }
     }
 
     public TopicFilterType getTopicFilterTypeEnum() {
         return TopicFilterType.valueOf(this.topicFilterType);
     }
 
+    public TopicFlushType getFlushTypeEnum() {
+        return this.flushType == null ? TopicFlushType.DEFAULT : TopicFlushType.valueOf(this.flushType);
+    }
+
     public String getTopic() {
         return topic;
     }
@@ -118,4 +135,44 @@ public class CreateTopicRequestHeader implements CommandCustomHeader {
     public void setOrder(Boolean order) {
         this.order = order;
     }
+
+    public String getFlushType() {
+        return flushType;
+    }
+
+    public void setFlushType(String flushType) {
+        this.flushType = flushType;
+    }
+
+    public Integer getFileReservedTime() {
+        return fileReservedTime;
+    }
+
+    public void setFileReservedTime(Integer fileReservedTime) {
+        this.fileReservedTime = fileReservedTime;
+    }
+
+    public Integer getProduceQuotaTps() {
+        return produceQuotaTps;
+    }
+
+    public void setProduceQuotaTps(Integer produceQuotaTps) {
+        this.produceQuotaTps = produceQuotaTps;
+    }
+
+    public Long getProduceQuotaBytes() {
+        return produceQuotaBytes;
+    }
+
+    public void setProduceQuotaBytes(Long produceQuotaBytes) {
+        this.produceQuotaBytes = produceQuotaBytes;
+    }
+
+    public Boolean getCompactConsumeQueue() {
+        return compactConsumeQueue;
+    }
+
+    public void setCompactConsumeQueue(Boolean compactConsumeQueue) {
+        this.compactConsumeQueue = compactConsumeQueue;
+    }
 }
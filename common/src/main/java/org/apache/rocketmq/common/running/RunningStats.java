@@ -22,4 +22,13 @@ public enum RunningStats {
     commitLogDiskRatio,
     consumeQueueDiskRatio,
     scheduleMessageOffset,
+    haReplicationLagBytes,
+    haInFlightBytes,
+    consumeQueueLoadedNums,
+    consumeQueueMappedFiles,
+    transientStorePoolSize,
+    transientStorePoolAvailable,
+    transientStorePoolBorrowMiss,
+    transientStorePoolBorrowWaitMs,
+    mappedFileRolloverStall,
 }
@@ -38,6 +38,12 @@ public class SubscriptionGroupConfig {
 
     private boolean notifyConsumerIdsChangedEnable = true;
 
+    /**
+     * Messages and bytes a second this group may pull, negative for no limit.
+     */
+    private int consumeQuotaTps = -1;
+    private long consumeQuotaBytes = -1;
+
     public String getGroupName() {
         return groupName;
     }
@@ -110,6 +116,22 @@ public class SubscriptionGroupConfig {
         this.notifyConsumerIdsChangedEnable = notifyConsumerIdsChangedEnable;
     }
 
+    public int getConsumeQuotaTps() {
+        return consumeQuotaTps;
+    }
+
+    public void setConsumeQuotaTps(int consumeQuotaTps) {
+        this.consumeQuotaTps = consumeQuotaTps;
+    }
+
+    public long getConsumeQuotaBytes() {
+        return consumeQuotaBytes;
+    }
+
+    public void setConsumeQuotaBytes(long consumeQuotaBytes) {
+        this.consumeQuotaBytes = consumeQuotaBytes;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -124,6 +146,8 @@ public class SubscriptionGroupConfig {
         result = prime * result + retryQueueNums;
         result =
             prime * result + (int) (whichBrokerWhenConsumeSlowly ^ (whichBrokerWhenConsumeSlowly >>> 32));
+        result = prime * result + consumeQuotaTps;
+        result = prime * result + (int) (consumeQuotaBytes ^ (consumeQuotaBytes >>> 32));
         return result;
     }
 
@@ -157,6 +181,10 @@ public class SubscriptionGroupConfig {
             return false;
         if (notifyConsumerIdsChangedEnable != other.notifyConsumerIdsChangedEnable)
             return false;
+        if (consumeQuotaTps != other.consumeQuotaTps)
+            return false;
+        if (consumeQuotaBytes != other.consumeQuotaBytes)
+            return false;
         return true;
     }
 
@@ -167,6 +195,7 @@ public class SubscriptionGroupConfig {
             + consumeBroadcastEnable + ", retryQueueNums=" + retryQueueNums + ", retryMaxTimes="
             + retryMaxTimes + ", brokerId=" + brokerId + ", whichBrokerWhenConsumeSlowly="
             + whichBrokerWhenConsumeSlowly + ", notifyConsumerIdsChangedEnable="
-            + notifyConsumerIdsChangedEnable + "]";
+            + notifyConsumerIdsChangedEnable + ", consumeQuotaTps=" + consumeQuotaTps + ", consumeQuotaBytes="
+            + consumeQuotaBytes + "]";
     }
 }
@@ -23,7 +23,10 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import org.apache.rocketmq.common.UtilAll;
 
 import static org.apache.rocketmq.common.message.MessageDecoder.createMessageId;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -265,4 +268,38 @@ public class MessageDecoderTest {
         }
     }
 
+    @Test
+    public void testEncodeMessagesInStoreFormat() throws Exception {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 3; i++) {
+            Message message = new Message("abc", "TAG", "key" + i, ("body" + i).getBytes());
+            message.setFlag(i);
+            messages.add(message);
+        }
+        String batchProperties = "extraKey" + MessageDecoder.NAME_VALUE_SEPARATOR + "extraValue" + MessageDecoder.PROPERTY_SEPARATOR;
+        byte[] body = MessageDecoder.encodeMessagesInStoreFormat(messages, "abc", batchProperties, 1000L);
+
+        List<MessageExt> decoded = MessageDecoder.decodes(ByteBuffer.wrap(body));
+        assertThat(decoded).hasSize(3);
+        for (int i = 0; i < 3; i++) {
+            MessageExt messageExt = decoded.get(i);
+            assertThat(messageExt.getTopic()).isEqualTo("abc");
+            assertThat(messageExt.getFlag()).isEqualTo(i);
+            assertThat(messageExt.getBornTimestamp()).isEqualTo(1000L);
+            assertThat(messageExt.getBody()).isEqualTo(("body" + i).getBytes());
+            assertThat(messageExt.getBodyCRC()).isEqualTo(UtilAll.crc32(messageExt.getBody()));
+            assertThat(messageExt.getKeys()).isEqualTo("key" + i);
+            assertThat(messageExt.getProperty("extraKey")).isEqualTo("extraValue");
+        }
+
+        List<Message> converted = MessageDecoder.decodeMessages(ByteBuffer.wrap(MessageDecoder.convertStoreFormatBatch(body)));
+        assertThat(converted).hasSize(3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(converted.get(i).getFlag()).isEqualTo(i);
+            assertThat(converted.get(i).getBody()).isEqualTo(("body" + i).getBytes());
+            assertThat(converted.get(i).getKeys()).isEqualTo("key" + i);
+            assertThat(converted.get(i).getProperty("extraKey")).isEqualTo("extraValue");
+        }
+    }
+
 }
\ No newline at end of file
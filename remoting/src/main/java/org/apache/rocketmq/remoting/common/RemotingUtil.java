@@ -165,14 +165,22 @@ public class RemotingUtil {
     }
 
     public static SocketChannel connect(SocketAddress remote, final int timeoutMillis) {
+        return connect(remote, timeoutMillis, 1024 * 64);
+    }
+
+    /**
+     * The buffers are sized before connecting, a receive buffer above 64KB only gets a matching TCP window if
+     * window scaling is negotiated in the handshake.
+     */
+    public static SocketChannel connect(SocketAddress remote, final int timeoutMillis, final int socketBufferSize) {
         SocketChannel sc = null;
         try {
             sc = SocketChannel.open();
             sc.configureBlocking(true);
             sc.socket().setSoLinger(false, -1);
             sc.socket().setTcpNoDelay(true);
-            sc.socket().setReceiveBufferSize(1024 * 64);
-            sc.socket().setSendBufferSize(1024 * 64);
+            sc.socket().setReceiveBufferSize(socketBufferSize);
+            sc.socket().setSendBufferSize(socketBufferSize);
             sc.socket().connect(remote, timeoutMillis);
             sc.configureBlocking(false);
             return sc;
@@ -18,15 +18,18 @@ package org.apache.rocketmq.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.ServiceLoader;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.running.RunningStats;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.store.config.BrokerRole;
@@ -43,13 +46,27 @@ public class AllocateMappedFileService extends ServiceThread {
         new PriorityBlockingQueue<AllocateRequest>();
     private volatile boolean hasException = false;
     private DefaultMessageStore messageStore;
+    private final ConcurrentMap<String/* store path */, FillRate> fillRateTable =
+        new ConcurrentHashMap<String, FillRate>();
+
+    /**
+     * Time writers spent waiting for the next file on rollover, in ms.
+     */
+    private static final long[] ROLLOVER_STALL_BOUNDS = new long[] {0, 1, 5, 10, 50, 100, 500, 1000};
+    private static final String[] ROLLOVER_STALL_DESC = new String[] {
+        "[<=0ms]", "[0~1ms]", "[1~5ms]", "[5~10ms]", "[10~50ms]", "[50~100ms]", "[100~500ms]", "[500ms~1s]", "[1s~]",
+    };
+    private final AtomicLong[] rolloverStallDistribution = new AtomicLong[ROLLOVER_STALL_DESC.length];
 
     public AllocateMappedFileService(DefaultMessageStore messageStore) {
         this.messageStore = messageStore;
+        for (int i = 0; i < this.rolloverStallDistribution.length; i++) {
+            this.rolloverStallDistribution[i] = new AtomicLong(0);
+        }
     }
 
     public MappedFile putRequestAndReturnMappedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
-        int canSubmitRequests = 2;
+        int canSubmitRequests = Integer.MAX_VALUE;
         if (this.messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
             if (this.messageStore.getMessageStoreConfig().isFastFailIfNoBufferInStorePool()
                 && BrokerRole.SLAVE != this.messageStore.getMessageStoreConfig().getBrokerRole()) { //if broker is slave, don't fast fail even no buffer in pool
@@ -74,19 +91,28 @@ public class AllocateMappedFileService extends ServiceThread {
             canSubmitRequests--;
         }
 
-        AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
-        boolean nextNextPutOK = this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null;
-        if (nextNextPutOK) {
+        // look as many files ahead as the predicted fill rate needs, nextNextFilePath is the first of them
+        File nextNextFile = new File(nextNextFilePath);
+        long nextNextOffset = Long.parseLong(nextNextFile.getName());
+        int lookAhead = this.predictLookAhead(nextFilePath, fileSize);
+        for (int i = 0; i < lookAhead; i++) {
+            String aheadFilePath = i == 0 ? nextNextFilePath
+                : nextNextFile.getParent() + File.separator + UtilAll.offset2FileName(nextNextOffset + (long) i * fileSize);
+            AllocateRequest aheadReq = new AllocateRequest(aheadFilePath, fileSize);
+            if (this.requestTable.putIfAbsent(aheadFilePath, aheadReq) != null) {
+                continue;
+            }
             if (canSubmitRequests <= 0) {
                 log.warn("[NOTIFYME]TransientStorePool is not enough, so skip preallocate mapped file, " +
                     "RequestQueueSize : {}, StorePoolSize: {}", this.requestQueue.size(), this.messageStore.getTransientStorePool().availableBufferNums());
-                this.requestTable.remove(nextNextFilePath);
-            } else {
-                boolean offerOK = this.requestQueue.offer(nextNextReq);
-                if (!offerOK) {
-                    log.warn("never expected here, add a request to preallocate queue failed");
-                }
+                this.requestTable.remove(aheadFilePath);
+                break;
+            }
+            boolean offerOK = this.requestQueue.offer(aheadReq);
+            if (!offerOK) {
+                log.warn("never expected here, add a request to preallocate queue failed");
             }
+            canSubmitRequests--;
         }
 
         if (hasException) {
@@ -97,7 +123,9 @@ public class AllocateMappedFileService extends ServiceThread {
         AllocateRequest result = this.requestTable.get(nextFilePath);
         try {
             if (result != null) {
+                long beginTime = System.currentTimeMillis();
                 boolean waitOK = result.getCountDownLatch().await(waitTimeOut, TimeUnit.MILLISECONDS);
+                this.recordRolloverStall(System.currentTimeMillis() - beginTime);
                 if (!waitOK) {
                     log.warn("create mmap timeout " + result.getFilePath() + " " + result.getFileSize());
                     return null;
@@ -115,6 +143,51 @@ public class AllocateMappedFileService extends ServiceThread {
         return null;
     }
 
+    /**
+     * Predicts the fill rate of the queue from the time between its last rollovers and keeps enough files allocated
+     * ahead to last preAllocateLookAheadTime, at least one and at most preAllocateMappedFileMaxNum.
+     */
+    private int predictLookAhead(final String nextFilePath, final int fileSize) {
+        int maxNum = this.messageStore.getMessageStoreConfig().getPreAllocateMappedFileMaxNum();
+        String storePath = new File(nextFilePath).getParent();
+        long now = System.currentTimeMillis();
+
+        FillRate fillRate = this.fillRateTable.get(storePath);
+        if (null == fillRate) {
+            this.fillRateTable.putIfAbsent(storePath, new FillRate(now));
+            return 1;
+        }
+
+        double bytesPerMs = fillRate.update(now, fileSize);
+        long lookAheadBytes = (long) (bytesPerMs * this.messageStore.getMessageStoreConfig().getPreAllocateLookAheadTime());
+        long lookAhead = (lookAheadBytes + fileSize - 1) / fileSize;
+        return (int) Math.max(1, Math.min(maxNum, lookAhead));
+    }
+
+    private void recordRolloverStall(final long stallMs) {
+        int index = 0;
+        while (index < ROLLOVER_STALL_BOUNDS.length && stallMs > ROLLOVER_STALL_BOUNDS[index]) {
+            index++;
+        }
+        this.rolloverStallDistribution[index].incrementAndGet();
+    }
+
+    public String getRolloverStallDistribution() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.rolloverStallDistribution.length; i++) {
+            sb.append(ROLLOVER_STALL_DESC[i]).append(':').append(this.rolloverStallDistribution[i].get()).append(' ');
+        }
+        return sb.toString();
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put(RunningStats.mappedFileRolloverStall.name(), this.getRolloverStallDistribution());
+    }
+
+    public long getRolloverStallTimes(final int index) {
+        return this.rolloverStallDistribution[index].get();
+    }
+
     @Override
     public String getServiceName() {
         return AllocateMappedFileService.class.getSimpleName();
@@ -189,7 +262,8 @@ public class AllocateMappedFileService extends ServiceThread {
                     &&
                     this.messageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
                     mappedFile.warmMappedFile(this.messageStore.getMessageStoreConfig().getFlushDiskType(),
-                        this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMapedFile());
+                        this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMapedFile(),
+                        this.messageStore.getMessageStoreConfig().getWarmMappedFileRateLimit());
                 }
 
                 req.setMappedFile(mappedFile);
@@ -217,6 +291,25 @@ public class AllocateMappedFileService extends ServiceThread {
         return true;
     }
 
+    /**
+     * Exponentially weighted fill rate of one queue, updated on every rollover.
+     */
+    static class FillRate {
+        private long lastRolloverTimestamp;
+        private double bytesPerMs = 0;
+
+        FillRate(final long now) {
+            this.lastRolloverTimestamp = now;
+        }
+
+        synchronized double update(final long now, final int fileSize) {
+            double current = (double) fileSize / Math.max(1, now - this.lastRolloverTimestamp);
+            this.bytesPerMs = this.bytesPerMs == 0 ? current : this.bytesPerMs * 0.5 + current * 0.5;
+            this.lastRolloverTimestamp = now;
+            return this.bytesPerMs;
+        }
+    }
+
     static class AllocateRequest implements Comparable<AllocateRequest> {
         // Full file path
         private String filePath;
@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.util.LibC;
+import sun.nio.ch.DirectBuffer;
+
+/**
+ * Serves messages far behind the commit log tail with positional reads into a pool of direct slabs, so consumers
+ * catching up do not fault the whole backlog into the mapped page cache and evict the hot tail. With O_DIRECT the
+ * page cache is bypassed entirely, otherwise only the read pages are cached and the mapping is never touched.
+ */
+public class BacklogReader {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private static final int DIRECT_IO_ALIGN = 4096;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final ConcurrentLinkedQueue<Slab> availableSlabs = new ConcurrentLinkedQueue<Slab>();
+    private final int slabNum;
+    private final int slabSize;
+    private final int directIoFlag;
+    private volatile boolean directIoAvailable;
+    private final AtomicLong readTimes = new AtomicLong(0);
+    private final AtomicLong directReadTimes = new AtomicLong(0);
+
+    public BacklogReader(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        MessageStoreConfig messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        this.slabNum = messageStoreConfig.getBacklogReadSlabNum();
+        this.slabSize = messageStoreConfig.getBacklogReadSlabSize();
+        this.directIoFlag = directIoFlag();
+        this.directIoAvailable = messageStoreConfig.isBacklogReadDirectIo() && this.directIoFlag != 0;
+    }
+
+    /**
+     * O_DIRECT is not part of POSIX and its value differs between architectures, only the known Linux ones are used.
+     */
+    private static int directIoFlag() {
+        if (!Platform.isLinux() || !Platform.is64Bit()) {
+            return 0;
+        }
+        if (Platform.isIntel()) {
+            return 0x4000;
+        }
+        if (Platform.isARM()) {
+            return 0x10000;
+        }
+        return 0;
+    }
+
+    public void init() {
+        for (int i = 0; i < this.slabNum; i++) {
+            // over allocate, so the slab itself starts at an address usable by O_DIRECT
+            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(this.slabSize + DIRECT_IO_ALIGN);
+            long address = ((DirectBuffer) byteBuffer).address();
+            int skip = (int) ((DIRECT_IO_ALIGN - address % DIRECT_IO_ALIGN) % DIRECT_IO_ALIGN);
+            byteBuffer.position(skip);
+            byteBuffer.limit(skip + this.slabSize);
+            this.availableSlabs.offer(new Slab(byteBuffer.slice()));
+        }
+    }
+
+    public void destroy() {
+        this.availableSlabs.clear();
+    }
+
+    /**
+     * Start reading the messages of one getMessage call.
+     *
+     * @return null when every slab is handed out and still referenced by messages in flight
+     */
+    public Batch newBatch() {
+        Slab slab = this.availableSlabs.poll();
+        if (null == slab) {
+            return null;
+        }
+        slab.reset();
+        return new Batch(slab);
+    }
+
+    public int getAvailableSlabNum() {
+        return this.availableSlabs.size();
+    }
+
+    public long getReadTimes() {
+        return readTimes.get();
+    }
+
+    public long getDirectReadTimes() {
+        return directReadTimes.get();
+    }
+
+    public boolean isDirectIoAvailable() {
+        return directIoAvailable;
+    }
+
+    private static int alignDown(final long value) {
+        return (int) (value & ~(DIRECT_IO_ALIGN - 1));
+    }
+
+    private static int alignUp(final long value) {
+        return alignDown(value + DIRECT_IO_ALIGN - 1);
+    }
+
+    public class Batch {
+        private final Slab slab;
+        private final Map<MappedFile, Integer> fileDescriptors = new HashMap<MappedFile, Integer>(4);
+
+        Batch(final Slab slab) {
+            this.slab = slab;
+        }
+
+        /**
+         * Read a message into the slab of this batch.
+         *
+         * @return null if the message can not be served here, the caller has to fall back to the mapped commit log
+         */
+        public SelectMappedBufferResult read(final long offset, final int size) {
+            MappedFileQueue mappedFileQueue = BacklogReader.this.defaultMessageStore.getCommitLog().mappedFileQueue;
+            // unflushed data may only live in the mapping or the transient store pool, cold offsets are not mapped
+            if (offset < mappedFileQueue.getMinOffset() || offset + size > mappedFileQueue.getFlushedWhere()) {
+                return null;
+            }
+
+            MappedFile mappedFile = mappedFileQueue.findMappedFileByOffset(offset, false);
+            if (null == mappedFile || !mappedFile.hold()) {
+                return null;
+            }
+
+            try {
+                int pos = (int) (offset - mappedFile.getFileFromOffset());
+                if (pos + size > mappedFile.getFileSize()) {
+                    return null;
+                }
+
+                SelectMappedBufferResult result = null;
+                if (BacklogReader.this.directIoAvailable) {
+                    result = this.readDirect(mappedFile, offset, pos, size);
+                }
+                if (null == result) {
+                    result = this.readChannel(mappedFile, offset, pos, size);
+                }
+                if (result != null) {
+                    BacklogReader.this.readTimes.incrementAndGet();
+                }
+                return result;
+            } finally {
+                mappedFile.release();
+            }
+        }
+
+        private SelectMappedBufferResult readChannel(final MappedFile mappedFile, final long offset, final int pos,
+            final int size) {
+            int slabPos = this.slab.writePos;
+            if (slabPos + size > BacklogReader.this.slabSize) {
+                return null;
+            }
+
+            ByteBuffer dst = this.slab.byteBuffer.duplicate();
+            dst.position(slabPos);
+            dst.limit(slabPos + size);
+            try {
+                while (dst.hasRemaining()) {
+                    if (mappedFile.getFileChannel().read(dst, pos + dst.position() - slabPos) < 0) {
+                        return null;
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("backlog read of " + mappedFile.getFileName() + " failed", e);
+                return null;
+            }
+
+            this.slab.writePos = slabPos + size;
+            return this.slab.slice(offset, slabPos, size);
+        }
+
+        private SelectMappedBufferResult readDirect(final MappedFile mappedFile, final long offset, final int pos,
+            final int size) {
+            int begin = alignDown(pos);
+            int end = alignUp(pos + size);
+            int slabPos = alignUp(this.slab.writePos);
+            if (slabPos + end - begin > BacklogReader.this.slabSize) {
+                return null;
+            }
+
+            int fd = this.openDirect(mappedFile);
+            if (fd < 0) {
+                return null;
+            }
+
+            try {
+                Pointer pointer = new Pointer(((DirectBuffer) this.slab.byteBuffer).address() + slabPos);
+                long read = LibC.INSTANCE.pread(fd, pointer, new NativeLong(end - begin), new NativeLong(begin)).longValue();
+                if (read < pos + size - begin) {
+                    return null;
+                }
+            } catch (Throwable e) {
+                BacklogReader.this.disableDirectIo(e);
+                return null;
+            }
+
+            BacklogReader.this.directReadTimes.incrementAndGet();
+            this.slab.writePos = slabPos + (end - begin);
+            return this.slab.slice(offset, slabPos + pos - begin, size);
+        }
+
+        private int openDirect(final MappedFile mappedFile) {
+            Integer fd = this.fileDescriptors.get(mappedFile);
+            if (null == fd) {
+                try {
+                    fd = LibC.INSTANCE.open(mappedFile.getFileName(), LibC.O_RDONLY | BacklogReader.this.directIoFlag);
+                } catch (Throwable e) {
+                    BacklogReader.this.disableDirectIo(e);
+                    return -1;
+                }
+                if (fd < 0) {
+                    // e.g. EINVAL on file systems like tmpfs that do not support O_DIRECT
+                    BacklogReader.this.disableDirectIo(null);
+                    return -1;
+                }
+                this.fileDescriptors.put(mappedFile, fd);
+            }
+            return fd;
+        }
+
+        /**
+         * Must be called once the getMessage call is done with this batch, the slab goes back to the pool as soon
+         * as all messages read into it are released as well.
+         */
+        public void finish() {
+            for (Integer fd : this.fileDescriptors.values()) {
+                LibC.INSTANCE.close(fd);
+            }
+            this.fileDescriptors.clear();
+            this.slab.release();
+        }
+    }
+
+    private void disableDirectIo(final Throwable e) {
+        if (this.directIoAvailable) {
+            this.directIoAvailable = false;
+            log.warn("O_DIRECT is not supported for the commit log, backlog reads fall back to positional reads", e);
+        }
+    }
+
+    class Slab {
+        private final ByteBuffer byteBuffer;
+        private final AtomicInteger refCount = new AtomicInteger(0);
+        private int writePos = 0;
+
+        Slab(final ByteBuffer byteBuffer) {
+            this.byteBuffer = byteBuffer;
+        }
+
+        void reset() {
+            this.writePos = 0;
+            this.refCount.set(1);
+        }
+
+        SelectMappedBufferResult slice(final long offset, final int slabPos, final int size) {
+            ByteBuffer byteBuffer = this.byteBuffer.duplicate();
+            byteBuffer.position(slabPos);
+            byteBuffer.limit(slabPos + size);
+            this.refCount.incrementAndGet();
+            return new SlabBufferResult(offset, byteBuffer.slice(), size, this);
+        }
+
+        void release() {
+            if (this.refCount.decrementAndGet() == 0) {
+                BacklogReader.this.availableSlabs.offer(this);
+            }
+        }
+    }
+
+    static class SlabBufferResult extends SelectMappedBufferResult {
+        private Slab slab;
+
+        SlabBufferResult(final long startOffset, final ByteBuffer byteBuffer, final int size, final Slab slab) {
+            super(startOffset, byteBuffer, size, null);
+            this.slab = slab;
+        }
+
+        @Override
+        public synchronized void release() {
+            if (this.slab != null) {
+                this.slab.release();
+                this.slab = null;
+            }
+        }
+    }
+}
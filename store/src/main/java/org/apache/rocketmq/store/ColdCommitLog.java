@@ -0,0 +1,538 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+
+/**
+ * Second storage tier of the commit log. Sealed and flushed files at the head of the hot queue are copied to
+ * storePathColdCommitLog and then dropped from the hot disk, so the cold tier always holds the range right
+ * below the first hot file. Reads are positional and go through an LRU cache of coldReadAheadSize chunks; a hit
+ * on a chunk prefetches the next one, which keeps sequential consumers off the slow device.
+ */
+public class ColdCommitLog {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int DELETE_FILES_BATCH_MAX = 10;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MappedFileQueue hotMappedFileQueue;
+    private final String storePath;
+    private final ConcurrentSkipListMap<Long, ColdFile> coldFiles = new ConcurrentSkipListMap<Long, ColdFile>();
+    private final ReadAheadCache readAheadCache;
+    private final Set<Long> prefetchingChunks = ConcurrentHashMap.newKeySet();
+    private final ExecutorService readAheadExecutor;
+    private final MigrateService migrateService = new MigrateService();
+
+    public ColdCommitLog(final DefaultMessageStore defaultMessageStore, final MappedFileQueue hotMappedFileQueue) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.hotMappedFileQueue = hotMappedFileQueue;
+        this.storePath = defaultMessageStore.getMessageStoreConfig().getStorePathColdCommitLog();
+        this.readAheadCache = new ReadAheadCache(defaultMessageStore.getMessageStoreConfig().getColdReadCacheChunkNum());
+        this.readAheadExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(64), new ThreadFactoryImpl("ColdReadAheadThread_"),
+            new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * A cold tier on the device of the hot store frees nothing, so it is refused unless explicitly allowed.
+     *
+     * @return false if the tier must stay off
+     */
+    public static boolean checkStorePath(final MessageStoreConfig config) {
+        String coldPath = config.getStorePathColdCommitLog();
+        if (coldPath == null || coldPath.trim().isEmpty()) {
+            log.error("cold tier is enabled but storePathColdCommitLog is not set, keep it off");
+            return false;
+        }
+        if (config.isColdTierAllowSameDevice()) {
+            return true;
+        }
+        try {
+            if (fileStoreOf(coldPath).equals(fileStoreOf(config.getStorePathCommitLog()))) {
+                log.error("storePathColdCommitLog {} is on the device of the commit log {}, keep the cold tier off",
+                    coldPath, config.getStorePathCommitLog());
+                return false;
+            }
+        } catch (IOException e) {
+            log.error("check device of storePathColdCommitLog {} error, keep the cold tier off", coldPath, e);
+            return false;
+        }
+        return true;
+    }
+
+    private static FileStore fileStoreOf(final String path) throws IOException {
+        // the store directories may not be created yet
+        File file = new File(path).getAbsoluteFile();
+        while (!file.exists() && file.getParentFile() != null) {
+            file = file.getParentFile();
+        }
+        return Files.getFileStore(file.toPath());
+    }
+
+    public boolean load() {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return true;
+        }
+
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                log.info("delete unfinished cold commit log file {}", file);
+                file.delete();
+                continue;
+            }
+            try {
+                ColdFile coldFile = new ColdFile(file);
+                this.coldFiles.put(coldFile.getFileFromOffset(), coldFile);
+                log.info("load cold commit log file OK, " + file.getPath());
+            } catch (IOException | NumberFormatException e) {
+                log.error("load cold commit log file {} error", file, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void start() {
+        MappedFile.ensureDirOK(this.storePath);
+        this.migrateService.start();
+    }
+
+    public void shutdown() {
+        this.migrateService.shutdown();
+        this.readAheadExecutor.shutdown();
+    }
+
+    public void destroy() {
+        for (ColdFile coldFile : this.coldFiles.values()) {
+            coldFile.destroy();
+        }
+        this.coldFiles.clear();
+        this.readAheadCache.clear();
+    }
+
+    /**
+     * @return offset of the first cold file, -1 if the tier is empty
+     */
+    public long getMinOffset() {
+        Map.Entry<Long, ColdFile> first = this.coldFiles.firstEntry();
+        return first == null ? -1 : first.getKey();
+    }
+
+    public boolean contains(final long offset) {
+        return this.findColdFile(offset) != null;
+    }
+
+    public int getFileNum() {
+        return this.coldFiles.size();
+    }
+
+    /**
+     * Read exactly size bytes at offset, the result holds no file reference.
+     */
+    public SelectMappedBufferResult getMessage(final long offset, final int size) {
+        ColdFile coldFile = this.findColdFile(offset);
+        if (coldFile == null || offset + size > coldFile.getFileFromOffset() + coldFile.getFileSize()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer chunk = this.getChunk(coldFile, offset);
+            long chunkOffset = this.chunkOffset(coldFile, offset);
+            int pos = (int) (offset - chunkOffset);
+            ByteBuffer byteBuffer;
+            if (pos + size <= chunk.limit()) {
+                byteBuffer = chunk.duplicate();
+                byteBuffer.position(pos);
+                byteBuffer.limit(pos + size);
+                byteBuffer = byteBuffer.slice();
+            } else {
+                byteBuffer = coldFile.read(offset, size);
+            }
+            return new SelectMappedBufferResult(offset, byteBuffer, size, null);
+        } catch (IOException e) {
+            log.warn("read cold commit log error, offset: {} size: {}", offset, size, e);
+            return null;
+        }
+    }
+
+    /**
+     * Read from offset up to the end of its read-ahead chunk, trimmed to whole messages so that reput and
+     * replication never see a truncated one.
+     */
+    public SelectMappedBufferResult getData(final long offset) {
+        ColdFile coldFile = this.findColdFile(offset);
+        if (coldFile == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer chunk = this.getChunk(coldFile, offset);
+            ByteBuffer byteBuffer = chunk.duplicate();
+            byteBuffer.position((int) (offset - this.chunkOffset(coldFile, offset)));
+            byteBuffer = byteBuffer.slice();
+
+            int size = 0;
+            while (size + 8 <= byteBuffer.limit()) {
+                int totalSize = byteBuffer.getInt(size);
+                if (byteBuffer.getInt(size + 4) == CommitLog.BLANK_MAGIC_CODE) {
+                    size += 8;
+                    break;
+                }
+                if (totalSize <= 0 || size + totalSize > byteBuffer.limit()) {
+                    break;
+                }
+                size += totalSize;
+            }
+
+            if (size == 0) {
+                // a single message larger than the rest of the chunk
+                long remain = coldFile.getFileFromOffset() + coldFile.getFileSize() - offset;
+                if (remain < 4) {
+                    return null;
+                }
+                int totalSize = coldFile.read(offset, 4).getInt(0);
+                if (totalSize <= 0 || totalSize > remain) {
+                    return null;
+                }
+                return new SelectMappedBufferResult(offset, coldFile.read(offset, totalSize), totalSize, null);
+            }
+
+            byteBuffer.limit(size);
+            return new SelectMappedBufferResult(offset, byteBuffer, size, null);
+        } catch (IOException e) {
+            log.warn("read cold commit log error, offset: {}", offset, e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete cold files older than expiredTime from the head. With cleanImmediately they go regardless of their
+     * age, the hot queue can only be trimmed once the tier in front of it is empty.
+     */
+    public int deleteExpiredFile(final long expiredTime, final int deleteFilesInterval, final boolean cleanImmediately) {
+        int deleteCount = 0;
+        for (Iterator<ColdFile> it = this.coldFiles.values().iterator(); it.hasNext(); ) {
+            ColdFile coldFile = it.next();
+            boolean expired = cleanImmediately
+                || System.currentTimeMillis() >= coldFile.getLastModifiedTimestamp() + expiredTime;
+            if (!expired || deleteCount >= DELETE_FILES_BATCH_MAX) {
+                break;
+            }
+            it.remove();
+            this.readAheadCache.invalidate(coldFile.getFileFromOffset(), coldFile.getFileFromOffset() + coldFile.getFileSize());
+            coldFile.destroy();
+            deleteCount++;
+            log.info("delete expired cold commit log file {}", coldFile.getFileName());
+
+            if (deleteFilesInterval > 0) {
+                try {
+                    Thread.sleep(deleteFilesInterval);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        return deleteCount;
+    }
+
+    /**
+     * Move sealed files from the head of the hot queue while they are due. The last hot file and anything not
+     * flushed yet always stay.
+     *
+     * @return number of files moved
+     */
+    public int migrate() {
+        MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+        int migrated = 0;
+        while (true) {
+            MappedFile first = this.hotMappedFileQueue.getFirstMappedFile();
+            MappedFile last = this.hotMappedFileQueue.getLastMappedFile();
+            if (first == null || first == last) {
+                break;
+            }
+            long fileEnd = first.getFileFromOffset() + first.getFileSize();
+            if (fileEnd > this.hotMappedFileQueue.getFlushedWhere()) {
+                break;
+            }
+
+            boolean aged = System.currentTimeMillis() - first.getLastModifiedTimestamp()
+                >= config.getColdTierMigrateAfterHours() * 60L * 60 * 1000;
+            double hotRatio = UtilAll.getDiskPartitionSpaceUsedPercent(config.getStorePathCommitLog());
+            boolean hotDiskFull = hotRatio >= config.getColdTierMigrateDiskRatio() / 100.0;
+            if (!aged && !hotDiskFull) {
+                break;
+            }
+            if (UtilAll.getDiskPartitionSpaceUsedPercent(this.storePath) >= config.getDiskMaxUsedSpaceRatio() / 100.0) {
+                log.warn("cold commit log disk is full, stop migrating, path: {}", this.storePath);
+                break;
+            }
+
+            if (!this.coldFiles.containsKey(first.getFileFromOffset())) {
+                try {
+                    this.copyToColdTier(first);
+                } catch (IOException e) {
+                    log.error("migrate commit log file {} error", first.getFileName(), e);
+                    break;
+                }
+            }
+
+            // readers still holding the hot file keep it alive until they release it
+            if (!first.destroy(config.getDestroyMapedFileIntervalForcibly())) {
+                break;
+            }
+            List<MappedFile> files = new ArrayList<MappedFile>(1);
+            files.add(first);
+            this.hotMappedFileQueue.deleteExpiredFile(files);
+            migrated++;
+            log.info("migrate commit log file {} to cold tier", first.getFileName());
+        }
+        return migrated;
+    }
+
+    private void copyToColdTier(final MappedFile mappedFile) throws IOException {
+        long beginTime = System.currentTimeMillis();
+        File target = new File(this.storePath, UtilAll.offset2FileName(mappedFile.getFileFromOffset()));
+        File tmpFile = new File(target.getPath() + TMP_SUFFIX);
+        RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+        boolean copied = false;
+        try {
+            FileChannel source = mappedFile.getFileChannel();
+            FileChannel sink = tmp.getChannel();
+            long position = 0;
+            while (position < mappedFile.getFileSize()) {
+                position += source.transferTo(position, mappedFile.getFileSize() - position, sink);
+            }
+            sink.force(true);
+            copied = true;
+        } finally {
+            tmp.close();
+            if (!copied) {
+                tmpFile.delete();
+            }
+        }
+
+        if (!tmpFile.renameTo(target)) {
+            tmpFile.delete();
+            throw new IOException("rename cold commit log file failed, " + target);
+        }
+        // retention is measured from the last write, not from the migration
+        target.setLastModified(mappedFile.getLastModifiedTimestamp());
+        this.coldFiles.put(mappedFile.getFileFromOffset(), new ColdFile(target));
+        log.info("copy commit log file {} to cold tier, elapsed time(ms) {}", mappedFile.getFileName(),
+            System.currentTimeMillis() - beginTime);
+    }
+
+    private ColdFile findColdFile(final long offset) {
+        Map.Entry<Long, ColdFile> entry = this.coldFiles.floorEntry(offset);
+        if (entry == null || offset >= entry.getKey() + entry.getValue().getFileSize()) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    private long chunkOffset(final ColdFile coldFile, final long offset) {
+        int chunkSize = this.defaultMessageStore.getMessageStoreConfig().getColdReadAheadSize();
+        long pos = offset - coldFile.getFileFromOffset();
+        return coldFile.getFileFromOffset() + pos - pos % chunkSize;
+    }
+
+    private ByteBuffer getChunk(final ColdFile coldFile, final long offset) throws IOException {
+        long chunkOffset = this.chunkOffset(coldFile, offset);
+        ByteBuffer chunk = this.readAheadCache.get(chunkOffset);
+        if (chunk == null) {
+            chunk = this.loadChunk(coldFile, chunkOffset).asReadOnlyBuffer();
+        }
+        this.prefetch(coldFile, chunkOffset + chunk.limit());
+        return chunk;
+    }
+
+    private ByteBuffer loadChunk(final ColdFile coldFile, final long chunkOffset) throws IOException {
+        int chunkSize = this.defaultMessageStore.getMessageStoreConfig().getColdReadAheadSize();
+        long fileEnd = coldFile.getFileFromOffset() + coldFile.getFileSize();
+        ByteBuffer chunk = coldFile.read(chunkOffset, (int) Math.min(chunkSize, fileEnd - chunkOffset));
+        this.readAheadCache.put(chunkOffset, chunk);
+        return chunk;
+    }
+
+    private void prefetch(final ColdFile current, final long nextChunkOffset) {
+        final ColdFile coldFile = nextChunkOffset < current.getFileFromOffset() + current.getFileSize()
+            ? current : this.coldFiles.get(nextChunkOffset);
+        if (coldFile == null || this.readAheadCache.contains(nextChunkOffset)
+            || !this.prefetchingChunks.add(nextChunkOffset)) {
+            return;
+        }
+
+        this.readAheadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ColdCommitLog.this.loadChunk(coldFile, nextChunkOffset);
+                } catch (IOException e) {
+                    log.warn("read ahead cold commit log error, offset: {}", nextChunkOffset, e);
+                } finally {
+                    ColdCommitLog.this.prefetchingChunks.remove(nextChunkOffset);
+                }
+            }
+        });
+    }
+
+    static class ColdFile {
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel fileChannel;
+        private final long fileFromOffset;
+        private final long fileSize;
+
+        ColdFile(final File file) throws IOException {
+            this.file = file;
+            this.fileFromOffset = Long.parseLong(file.getName());
+            this.randomAccessFile = new RandomAccessFile(file, "r");
+            this.fileChannel = this.randomAccessFile.getChannel();
+            this.fileSize = this.randomAccessFile.length();
+        }
+
+        ByteBuffer read(final long offset, final int size) throws IOException {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+            long position = offset - this.fileFromOffset;
+            while (byteBuffer.hasRemaining()) {
+                if (this.fileChannel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+                    throw new IOException("unexpected end of cold commit log file " + this.file);
+                }
+            }
+            byteBuffer.flip();
+            return byteBuffer;
+        }
+
+        void destroy() {
+            try {
+                this.fileChannel.close();
+                this.randomAccessFile.close();
+            } catch (IOException ignored) {
+            }
+            this.file.delete();
+        }
+
+        long getFileFromOffset() {
+            return fileFromOffset;
+        }
+
+        long getFileSize() {
+            return fileSize;
+        }
+
+        long getLastModifiedTimestamp() {
+            return this.file.lastModified();
+        }
+
+        String getFileName() {
+            return this.file.getName();
+        }
+    }
+
+    /**
+     * Chunks are never modified once loaded, readers share them through read only duplicates.
+     */
+    static class ReadAheadCache {
+        private final LinkedHashMap<Long, ByteBuffer> chunks;
+
+        ReadAheadCache(final int capacity) {
+            this.chunks = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized ByteBuffer get(final long chunkOffset) {
+            ByteBuffer chunk = this.chunks.get(chunkOffset);
+            return chunk == null ? null : chunk.asReadOnlyBuffer();
+        }
+
+        synchronized void put(final long chunkOffset, final ByteBuffer chunk) {
+            this.chunks.put(chunkOffset, chunk);
+        }
+
+        synchronized boolean contains(final long chunkOffset) {
+            return this.chunks.containsKey(chunkOffset);
+        }
+
+        synchronized void invalidate(final long beginOffset, final long endOffset) {
+            for (Iterator<Long> it = this.chunks.keySet().iterator(); it.hasNext(); ) {
+                long chunkOffset = it.next();
+                if (chunkOffset >= beginOffset && chunkOffset < endOffset) {
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            this.chunks.clear();
+        }
+    }
+
+    class MigrateService extends ServiceThread {
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(1000);
+                    ColdCommitLog.this.migrate();
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return MigrateService.class.getSimpleName();
+        }
+    }
+}
@@ -20,15 +20,20 @@ import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.TopicFlushType;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.message.MessageAccessor;
@@ -42,8 +47,12 @@ import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.store.config.BrokerRole;
 import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
 import org.apache.rocketmq.store.ha.HAService;
+import org.apache.rocketmq.store.index.IndexService;
 import org.apache.rocketmq.store.schedule.ScheduleMessageService;
+import org.apache.rocketmq.store.schedule.TimerWheel;
 
 /**
  * Store all metadata downtime for recovery, data protection reliability
@@ -61,13 +70,23 @@ public class CommitLog {
 
     private final FlushCommitLogService flushCommitLogService;
 
+    // waits for the fsync of topics asking for SYNC_FLUSH, the flush service itself on a SYNC_FLUSH broker
+    private final GroupCommitService syncFlushService;
+
     //If TransientStorePool enabled, we must flush message to FileChannel at fixed periods
     // 刷盘Service： 同步、异步的抽象类
     private final FlushCommitLogService commitLogService;
 
+    private final GroupAppendService groupAppendService;
+
+    // second storage tier for sealed files, null unless coldTierEnable
+    private final ColdCommitLog coldCommitLog;
+    private final SealedFileChecksums sealedFileChecksums;
+
     // 写入消息的回调函数
     private final AppendMessageCallback appendMessageCallback;
     private final ThreadLocal<MessageExtBatchEncoder> batchEncoderThreadLocal;
+    private final ThreadLocal<MessageExtEncoder> messageEncoderThreadLocal;
     protected HashMap<String/* topic-queueid */, Long/* offset */> topicQueueTable = new HashMap<String, Long>(1024);
     protected volatile long confirmOffset = -1L;
 
@@ -83,14 +102,33 @@ public class CommitLog {
         // 如果设置的同步刷盘
         if (FlushDiskType.SYNC_FLUSH == defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
             // 同步刷盘实现
-            this.flushCommitLogService = new GroupCommitService();
+            this.syncFlushService = new GroupCommitService(true);
+            this.flushCommitLogService = this.syncFlushService;
         } else {
             // 异步刷盘实现
             this.flushCommitLogService = new FlushRealTimeService();
+            // only flushes on request, idle flushing is left to the broker wide service
+            this.syncFlushService = new GroupCommitService(false);
         }
 
         // 开启暂存池时使用
         this.commitLogService = new CommitRealTimeService();
+        this.groupAppendService = new GroupAppendService();
+        if (defaultMessageStore.getMessageStoreConfig().isColdTierEnable()
+            && !defaultMessageStore.getMessageStoreConfig().isEnableDLegerCommitLog()
+            && ColdCommitLog.checkStorePath(defaultMessageStore.getMessageStoreConfig())) {
+            this.coldCommitLog = new ColdCommitLog(defaultMessageStore, this.mappedFileQueue);
+        } else {
+            this.coldCommitLog = null;
+        }
+        if (defaultMessageStore.getMessageStoreConfig().isSealedFileChecksumEnable()
+            && !defaultMessageStore.getMessageStoreConfig().isEnableDLegerCommitLog()) {
+            this.sealedFileChecksums = new SealedFileChecksums(
+                StorePathConfigHelper.getSealedFileChecksumPath(defaultMessageStore.getMessageStoreConfig().getStorePathRootDir()),
+                this.mappedFileQueue, defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog());
+        } else {
+            this.sealedFileChecksums = null;
+        }
         // 创建回调函数
         this.appendMessageCallback = new DefaultAppendMessageCallback(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
         // 添加消息的ThreadLocal对象,现在针对的是批量消息，以前不是的
@@ -101,31 +139,101 @@ public class CommitLog {
                 return new MessageExtBatchEncoder(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
             }
         };
+        messageEncoderThreadLocal = new ThreadLocal<MessageExtEncoder>() {
+            @Override
+            protected MessageExtEncoder initialValue() {
+                return new MessageExtEncoder(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+            }
+        };
         this.putMessageLock = defaultMessageStore.getMessageStoreConfig().isUseReentrantLockWhenPutMessage() ? new PutMessageReentrantLock() : new PutMessageSpinLock();
 
     }
 
     public boolean load() {
         boolean result = this.mappedFileQueue.load();
+        if (this.coldCommitLog != null) {
+            result = result && this.coldCommitLog.load();
+        }
+        if (this.sealedFileChecksums != null) {
+            this.sealedFileChecksums.load();
+        }
         log.info("load commit log " + (result ? "OK" : "Failed"));
         return result;
     }
 
     public void start() {
+        if (this.sealedFileChecksums != null) {
+            this.sealedFileChecksums.start(this.mappedFileQueue.getFlushedWhere());
+        }
         // 启动刷盘的线程
         this.flushCommitLogService.start();
+        if (this.syncFlushService != this.flushCommitLogService) {
+            this.syncFlushService.start();
+        }
 
         if (defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
             this.commitLogService.start();
         }
+
+        if (defaultMessageStore.getMessageStoreConfig().isEnableGroupAppend()) {
+            this.groupAppendService.start();
+        }
+
+        if (this.coldCommitLog != null) {
+            this.coldCommitLog.start();
+        }
     }
 
     public void shutdown() {
+        if (defaultMessageStore.getMessageStoreConfig().isEnableGroupAppend()) {
+            this.groupAppendService.shutdown();
+        }
+
+        if (this.coldCommitLog != null) {
+            this.coldCommitLog.shutdown();
+        }
+
         if (defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
             this.commitLogService.shutdown();
         }
 
+        if (this.syncFlushService != this.flushCommitLogService) {
+            this.syncFlushService.shutdown();
+        }
         this.flushCommitLogService.shutdown();
+
+        if (this.sealedFileChecksums != null) {
+            this.sealedFileChecksums.shutdown();
+        }
+    }
+
+    private void onFlushed() {
+        long flushedWhere = this.mappedFileQueue.getFlushedWhere();
+        this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgOffset(flushedWhere);
+        if (this.sealedFileChecksums != null) {
+            this.sealedFileChecksums.onFlushed(flushedWhere);
+        }
+    }
+
+    /**
+     * Whether a put waits for the fsync, the flush type of the topic overrides the one of the broker. With the
+     * transient store pool enabled, data only reaches the file through the commit service, so topics can not ask
+     * for sync flush there.
+     */
+    boolean isSyncFlush(final MessageExt messageExt) {
+        MessageStoreConfig messageStoreConfig = this.defaultMessageStore.getMessageStoreConfig();
+        // delayed and half messages are rewritten to a system topic, they follow the topic they are meant for
+        String topic = messageExt.getProperty(MessageConst.PROPERTY_REAL_TOPIC);
+        TopicConfig topicConfig = this.defaultMessageStore.getTopicConfig(topic != null ? topic : messageExt.getTopic());
+        if (topicConfig != null) {
+            if (TopicFlushType.SYNC_FLUSH == topicConfig.getFlushType()) {
+                return !messageStoreConfig.isTransientStorePoolEnable();
+            }
+            if (TopicFlushType.ASYNC_FLUSH == topicConfig.getFlushType()) {
+                return false;
+            }
+        }
+        return FlushDiskType.SYNC_FLUSH == messageStoreConfig.getFlushDiskType();
     }
 
     public long flush() {
@@ -152,7 +260,16 @@ public class CommitLog {
         final long intervalForcibly,
         final boolean cleanImmediately
     ) {
-        return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately);
+        int deleteCount = 0;
+        // the hot queue must stay contiguous with the cold tier, so it is only trimmed once the tier is empty
+        if (this.coldCommitLog != null && this.coldCommitLog.getMinOffset() >= 0) {
+            deleteCount = this.coldCommitLog.deleteExpiredFile(expiredTime, deleteFilesInterval, cleanImmediately);
+            if (this.coldCommitLog.getMinOffset() >= 0) {
+                return deleteCount;
+            }
+        }
+        return deleteCount + this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval,
+            intervalForcibly, cleanImmediately);
     }
 
     /**
@@ -163,6 +280,10 @@ public class CommitLog {
     }
 
     public SelectMappedBufferResult getData(final long offset, final boolean returnFirstOnNotFound) {
+        if (this.isColdOffset(offset)) {
+            return this.coldCommitLog.getData(offset);
+        }
+
         int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
         MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, returnFirstOnNotFound);
         if (mappedFile != null) {
@@ -197,6 +318,12 @@ public class CommitLog {
                 if (dispatchRequest.isSuccess() && size > 0) {
                     mappedFileOffset += size;
                 }
+                // The slot of a failed append, skip it
+                else if (dispatchRequest.isSuccess() && size == 0
+                    && this.isFailedAppendBlank(mappedFile.getFileFromOffset() + mappedFileOffset, dispatchRequest.getBlankSize())) {
+                    mappedFileOffset += dispatchRequest.getBlankSize();
+                    byteBuffer.position((int) mappedFileOffset);
+                }
                 // Come the end of the file, switch to the next file Since the
                 // return 0 representatives met last hole,
                 // this can not be included in truncate offset
@@ -267,7 +394,9 @@ public class CommitLog {
                 case MESSAGE_MAGIC_CODE:
                     break;
                 case BLANK_MAGIC_CODE:
-                    return new DispatchRequest(0, true /* success */);
+                    DispatchRequest blank = new DispatchRequest(0, true /* success */);
+                    blank.setBlankSize(totalSize);
+                    return blank;
                 default:
                     log.warn("found a illegal magic code 0x" + Integer.toHexString(magicCode));
                     return new DispatchRequest(-1, false /* success */);
@@ -365,6 +494,11 @@ public class CommitLog {
                                 storeTimestamp);
                         }
                     }
+
+                    // the timer wheel reads the delivery time of parked messages from the consume queue
+                    if (TopicValidator.RMQ_SYS_TIMER_TOPIC.equals(topic)) {
+                        tagsCode = TimerWheel.parseDeliverTimeMs(propertiesMap.get(MessageConst.PROPERTY_TIMER_DELIVER_MS), storeTimestamp);
+                    }
                 }
             }
 
@@ -435,31 +569,43 @@ public class CommitLog {
 
     @Deprecated
     public void recoverAbnormally(long maxPhyOffsetOfConsumeQueue) {
-        // recover by the minimum time stamp
+        // recover from the checkpointed offsets, or by the minimum time stamp if there are none
         boolean checkCRCOnRecover = this.defaultMessageStore.getMessageStoreConfig().isCheckCRCOnRecover();
         final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
         if (!mappedFiles.isEmpty()) {
+            long checkpointOffset = this.getCheckpointRecoverOffset();
             // Looking beginning to recover from which file
             int index = mappedFiles.size() - 1;
             MappedFile mappedFile = null;
             for (; index >= 0; index--) {
                 mappedFile = mappedFiles.get(index);
-                if (this.isMappedFileMatchedRecover(mappedFile)) {
-                    log.info("recover from this mapped file " + mappedFile.getFileName());
+                if (checkpointOffset >= 0 ? mappedFile.getFileFromOffset() <= checkpointOffset : this.isMappedFileMatchedRecover(mappedFile)) {
+                    log.info("recover from this mapped file " + mappedFile.getFileName() + ", checkpoint offset " + checkpointOffset);
                     break;
                 }
             }
 
+            long startPosition = 0;
             if (index < 0) {
                 index = 0;
                 mappedFile = mappedFiles.get(index);
+            } else if (checkpointOffset >= 0) {
+                startPosition = Math.min(checkpointOffset - mappedFile.getFileFromOffset(), mappedFile.getFileSize());
             }
 
+            // sealed files matching their checksum are not checked message by message
+            Set<Long> verifiedFiles = checkCRCOnRecover && this.sealedFileChecksums != null
+                ? this.sealedFileChecksums.verify(mappedFiles.subList(index, mappedFiles.size() - 1),
+                this.defaultMessageStore.getMessageStoreConfig().getRecoverThreadNum())
+                : Collections.<Long>emptySet();
+            boolean checkCRC = checkCRCOnRecover && !verifiedFiles.contains(mappedFile.getFileFromOffset());
+
             ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            byteBuffer.position((int) startPosition);
             long processOffset = mappedFile.getFileFromOffset();
-            long mappedFileOffset = 0;
+            long mappedFileOffset = startPosition;
             while (true) {
-                DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
+                DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRC);
                 int size = dispatchRequest.getMsgSize();
 
                 if (dispatchRequest.isSuccess()) {
@@ -469,12 +615,17 @@ public class CommitLog {
 
                         if (this.defaultMessageStore.getMessageStoreConfig().isDuplicationEnable()) {
                             if (dispatchRequest.getCommitLogOffset() < this.defaultMessageStore.getConfirmOffset()) {
-                                this.defaultMessageStore.doDispatch(dispatchRequest);
+                                this.defaultMessageStore.doRecoverDispatch(dispatchRequest);
                             }
                         } else {
-                            this.defaultMessageStore.doDispatch(dispatchRequest);
+                            this.defaultMessageStore.doRecoverDispatch(dispatchRequest);
                         }
                     }
+                    // The slot of a failed append, skip it
+                    else if (this.isFailedAppendBlank(mappedFile.getFileFromOffset() + mappedFileOffset, dispatchRequest.getBlankSize())) {
+                        mappedFileOffset += dispatchRequest.getBlankSize();
+                        byteBuffer.position((int) mappedFileOffset);
+                    }
                     // Come the end of the file, switch to the next file
                     // Since the return 0 representatives met last hole, this can
                     // not be included in truncate offset
@@ -490,7 +641,8 @@ public class CommitLog {
                             byteBuffer = mappedFile.sliceByteBuffer();
                             processOffset = mappedFile.getFileFromOffset();
                             mappedFileOffset = 0;
-                            log.info("recover next physics file, " + mappedFile.getFileName());
+                            checkCRC = checkCRCOnRecover && !verifiedFiles.contains(mappedFile.getFileFromOffset());
+                            log.info("recover next physics file, " + mappedFile.getFileName() + ", check crc " + checkCRC);
                         }
                     }
                 } else {
@@ -498,6 +650,8 @@ public class CommitLog {
                     break;
                 }
             }
+            // the consume queues must not be written to any more once they are truncated below
+            this.defaultMessageStore.finishRecoverDispatch();
 
             processOffset += mappedFileOffset;
             this.mappedFileQueue.setFlushedWhere(processOffset);
@@ -519,6 +673,27 @@ public class CommitLog {
         }
     }
 
+    /**
+     * @return the offset below which the checkpoint guarantees flushed data and consume queues, -1 if the
+     * timestamps have to be used. A safe index is only tracked by timestamp, so it keeps the old way.
+     */
+    private long getCheckpointRecoverOffset() {
+        if (this.isRecoverFromIndexCheckpoint()) {
+            return -1;
+        }
+        return this.defaultMessageStore.getStoreCheckpoint().getMinOffset();
+    }
+
+    /**
+     * The segment index engine holds the newest entries in memory until a segment is written, so like a safe
+     * index it has to be replayed from the index checkpoint, whatever messageIndexSafe says.
+     */
+    private boolean isRecoverFromIndexCheckpoint() {
+        MessageStoreConfig messageStoreConfig = this.defaultMessageStore.getMessageStoreConfig();
+        return messageStoreConfig.isMessageIndexEnable() && (messageStoreConfig.isMessageIndexSafe()
+            || IndexService.ENGINE_SEGMENT.equals(messageStoreConfig.getIndexEngineType()));
+    }
+
     private boolean isMappedFileMatchedRecover(final MappedFile mappedFile) {
         ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
 
@@ -535,8 +710,7 @@ public class CommitLog {
             return false;
         }
 
-        if (this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()
-            && this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe()) {
+        if (this.isRecoverFromIndexCheckpoint()) {
             if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestampIndex()) {
                 log.info("find check timestamp, {} {}",
                     storeTimestamp,
@@ -632,9 +806,33 @@ public class CommitLog {
                 msg.setTopic(topic);
                 msg.setQueueId(queueId);
                 // 延迟消息被投递到延迟队列中之后，会由定时任务(ScheduleMessageService)去处理队列中的消息，接下来就去看下定时任务的处理过程。
+            } else if (this.defaultMessageStore.getTimerWheel() != null && this.defaultMessageStore.getTimerWheel().redirect(msg)) {
+                topic = msg.getTopic();
             }
         }
 
+        if (this.defaultMessageStore.getMessageStoreConfig().isEnableGroupAppend()) {
+            return this.groupAppendService.putRequest(msg);
+        }
+
+        if (this.defaultMessageStore.getMessageStoreConfig().isEnableMultiWriterAppend()) {
+            PutMessageResult putMessageResult = this.appendMessageConcurrently(msg);
+            if (!putMessageResult.isOk()) {
+                return CompletableFuture.completedFuture(putMessageResult);
+            }
+            CompletableFuture<PutMessageStatus> flushResultFuture = submitFlushRequest(putMessageResult.getAppendMessageResult(), msg);
+            CompletableFuture<PutMessageStatus> replicaResultFuture = submitReplicaRequest(putMessageResult.getAppendMessageResult(), msg);
+            return flushResultFuture.thenCombine(replicaResultFuture, (flushStatus, replicaStatus) -> {
+                if (flushStatus != PutMessageStatus.PUT_OK) {
+                    putMessageResult.setPutMessageStatus(flushStatus);
+                }
+                if (replicaStatus != PutMessageStatus.PUT_OK) {
+                    putMessageResult.setPutMessageStatus(replicaStatus);
+                }
+                return putMessageResult;
+            });
+        }
+
         long elapsedTimeInLock = 0;
         MappedFile unlockMappedFile = null;
         // 获取上一次写入的文件
@@ -899,6 +1097,8 @@ public class CommitLog {
                 // 设置SCHEDULE_TOPIC
                 msg.setTopic(topic);
                 msg.setQueueId(queueId);
+            } else if (this.defaultMessageStore.getTimerWheel() != null && this.defaultMessageStore.getTimerWheel().redirect(msg)) {
+                topic = msg.getTopic();
             }
         }
         // 获取发送消息的主机地址
@@ -916,6 +1116,15 @@ public class CommitLog {
             msg.setStoreHostAddressV6Flag();
         }
 
+        if (this.defaultMessageStore.getMessageStoreConfig().isEnableMultiWriterAppend()) {
+            PutMessageResult putMessageResult = this.appendMessageConcurrently(msg);
+            if (putMessageResult.isOk()) {
+                handleDiskFlush(putMessageResult.getAppendMessageResult(), putMessageResult, msg);
+                handleHA(putMessageResult.getAppendMessageResult(), putMessageResult, msg);
+            }
+            return putMessageResult;
+        }
+
         long elapsedTimeInLock = 0;
 
         MappedFile unlockMappedFile = null;
@@ -1003,6 +1212,207 @@ public class CommitLog {
         return putMessageResult;
     }
 
+    /**
+     * Multi-writer append. The message is encoded by the calling thread, then only the slot reservation in the
+     * last mapped file and the queue offset assignment run under the put lock, both in constant time. Queue
+     * offsets must follow physical order for the reput dispatch, so these two steps stay together. The copy
+     * into the mapped file happens outside the lock and the slot is published in reservation order, which
+     * keeps the wrote position a contiguous watermark for flush, commit and reput.
+     */
+    private PutMessageResult appendMessageConcurrently(final MessageExtBrokerInner msg) {
+        MessageExtEncoder encoder = this.messageEncoderThreadLocal.get();
+        AppendMessageStatus encodeStatus = encoder.encode(msg);
+        switch (encodeStatus) {
+            case PUT_OK:
+                break;
+            case MESSAGE_SIZE_EXCEEDED:
+            case PROPERTIES_SIZE_EXCEEDED:
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(encodeStatus));
+            default:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, new AppendMessageResult(encodeStatus));
+        }
+
+        final int msgLen = encoder.getEncodedBuff().limit();
+
+        long elapsedTimeInLock;
+        long storeTimestamp;
+        long queueOffset;
+        int position;
+        MappedFile unlockMappedFile = null;
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+
+        putMessageLock.lock();
+        try {
+            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+            this.beginTimeInLock = beginLockTimestamp;
+            storeTimestamp = beginLockTimestamp;
+
+            if (null == mappedFile || mappedFile.isFull()) {
+                mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+            }
+            if (null == mappedFile) {
+                log.error("create mapped file1 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
+                beginTimeInLock = 0;
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+
+            position = mappedFile.reserve(msgLen, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+            if (position < 0) {
+                // Not enough room left, pad the tail with a blank record and roll over
+                if (!this.padMappedFile(mappedFile, storeTimestamp)) {
+                    beginTimeInLock = 0;
+                    return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
+                }
+                unlockMappedFile = mappedFile;
+                mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                if (null == mappedFile) {
+                    log.error("create mapped file2 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
+                    beginTimeInLock = 0;
+                    return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+                }
+                position = mappedFile.reserve(msgLen, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+                if (position < 0) {
+                    beginTimeInLock = 0;
+                    return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED));
+                }
+            }
+
+            queueOffset = this.nextQueueOffset(msg);
+
+            elapsedTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+            beginTimeInLock = 0;
+        } finally {
+            putMessageLock.unlock();
+        }
+
+        msg.setStoreTimestamp(storeTimestamp);
+        final long wroteOffset = mappedFile.getFileFromOffset() + position;
+        final long beginTimeMills = this.defaultMessageStore.now();
+        boolean written = false;
+        boolean published = false;
+        try {
+            encoder.patch(queueOffset, wroteOffset, storeTimestamp);
+            mappedFile.writeReserved(position, encoder.getEncodedBuff());
+            written = true;
+        } catch (Throwable e) {
+            log.error("write reserved slot error, offset: " + wroteOffset + " topic: " + msg.getTopic(), e);
+            // later writers wait for this slot, so it is published anyway, as a blank record readers skip
+            this.writeBlank(mappedFile, position, msgLen);
+        } finally {
+            published = mappedFile.publish(position, msgLen, storeTimestamp);
+        }
+        if (!written || !published) {
+            this.releaseQueueOffset(msg, queueOffset);
+            return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
+        }
+        AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen,
+            encoder.createMessageId(wroteOffset), storeTimestamp, queueOffset, this.defaultMessageStore.now() - beginTimeMills);
+
+        if (elapsedTimeInLock > 500) {
+            log.warn("[NOTIFYME]putMessage in lock cost time(ms)={}, bodyLength={} AppendMessageResult={}", elapsedTimeInLock, msg.getBody().length, result);
+        }
+
+        if (null != unlockMappedFile && this.defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+            this.defaultMessageStore.unlockMappedFile(unlockMappedFile);
+        }
+
+        StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+        storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+        storeStatsService.getSinglePutMessageTopicSizeTotal(msg.getTopic()).addAndGet(result.getWroteBytes());
+
+        return new PutMessageResult(PutMessageStatus.PUT_OK, result);
+    }
+
+    /**
+     * Assign the next logical offset of the message's queue, must be called under the put lock.
+     * Prepared and rollback messages do not enter the consume queue and always get 0.
+     */
+    private long nextQueueOffset(final MessageExtBrokerInner msg) {
+        String key = msg.getTopic() + '-' + msg.getQueueId();
+        Long queueOffset = this.topicQueueTable.get(key);
+        if (null == queueOffset) {
+            queueOffset = 0L;
+            this.topicQueueTable.put(key, queueOffset);
+        }
+        switch (MessageSysFlag.getTransactionValue(msg.getSysFlag())) {
+            case MessageSysFlag.TRANSACTION_PREPARED_TYPE:
+            case MessageSysFlag.TRANSACTION_ROLLBACK_TYPE:
+                return 0L;
+            case MessageSysFlag.TRANSACTION_NOT_TYPE:
+            case MessageSysFlag.TRANSACTION_COMMIT_TYPE:
+            default:
+                this.topicQueueTable.put(key, queueOffset + 1);
+                return queueOffset;
+        }
+    }
+
+    /**
+     * Fill the unreserved tail of a mapped file with a blank record and wait for it to be published,
+     * must be called under the put lock.
+     *
+     * @return false if an earlier slot of the file was never published, the file can not be rolled over then
+     */
+    private boolean padMappedFile(final MappedFile mappedFile, final long storeTimestamp) {
+        int blankPosition = mappedFile.reserveRemaining();
+        if (blankPosition < 0) {
+            return mappedFile.awaitPublished();
+        }
+        int maxBlank = mappedFile.getFileSize() - blankPosition;
+        this.writeBlank(mappedFile, blankPosition, maxBlank);
+        return mappedFile.publish(blankPosition, maxBlank, storeTimestamp);
+    }
+
+    /**
+     * Write a blank record into a reserved slot. Reaching to the end of the file it pads the file, otherwise it
+     * stands for an append that failed and readers skip it, see {@link #isFailedAppendBlank(long, int)}.
+     */
+    private void writeBlank(final MappedFile mappedFile, final int position, final int blankSize) {
+        try {
+            ByteBuffer blank = ByteBuffer.allocate(DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+            // 1 TOTALSIZE
+            blank.putInt(blankSize);
+            // 2 MAGICCODE
+            blank.putInt(CommitLog.BLANK_MAGIC_CODE);
+            blank.flip();
+            mappedFile.writeReserved(position, blank);
+        } catch (Throwable e) {
+            log.error("write blank record error, file: " + mappedFile.getFileName() + " position: " + position, e);
+        }
+    }
+
+    /**
+     * Give back the queue offset of a message whose append failed, as long as no later message of its queue took
+     * the next one. Otherwise the queue is left with a gap.
+     */
+    private void releaseQueueOffset(final MessageExtBrokerInner msg, final long queueOffset) {
+        putMessageLock.lock();
+        try {
+            this.releaseQueueOffsetInLock(msg, queueOffset);
+        } finally {
+            putMessageLock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #releaseQueueOffset(MessageExtBrokerInner, long)} for callers already holding the put lock.
+     */
+    private void releaseQueueOffsetInLock(final MessageExtBrokerInner msg, final long queueOffset) {
+        switch (MessageSysFlag.getTransactionValue(msg.getSysFlag())) {
+            case MessageSysFlag.TRANSACTION_PREPARED_TYPE:
+            case MessageSysFlag.TRANSACTION_ROLLBACK_TYPE:
+                return;
+            default:
+                break;
+        }
+        String key = msg.getTopic() + '-' + msg.getQueueId();
+        Long nextQueueOffset = this.topicQueueTable.get(key);
+        if (nextQueueOffset != null && nextQueueOffset == queueOffset + 1) {
+            this.topicQueueTable.put(key, queueOffset);
+        } else if (nextQueueOffset != null && nextQueueOffset > queueOffset + 1) {
+            log.error("[BUG]append of queue offset {} failed after later offsets were taken, key: {}", queueOffset, key);
+        }
+    }
+
     /**
      * TODO 刷盘策略
      * 刷盘有两种策略：
@@ -1039,9 +1449,9 @@ public class CommitLog {
     public CompletableFuture<PutMessageStatus> submitFlushRequest(AppendMessageResult result, MessageExt messageExt) {
         // Synchronization flush
         // 是否是同步刷盘
-        if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
+        if (this.isSyncFlush(messageExt)) {
             // 获取GroupCommitService
-            final GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+            final GroupCommitService service = this.syncFlushService;
             // 是否等待
             if (messageExt.isWaitStoreMsgOK()) {
                 // 构建组提交请求，传入本次刷盘后位置的偏移量：写入位置偏移量+写入数据字节数
@@ -1110,8 +1520,8 @@ public class CommitLog {
 
     public void handleDiskFlush(AppendMessageResult result, PutMessageResult putMessageResult, MessageExt messageExt) {
         // Synchronization flush
-        if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
-            final GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+        if (this.isSyncFlush(messageExt)) {
+            final GroupCommitService service = this.syncFlushService;
             if (messageExt.isWaitStoreMsgOK()) {
                 GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
                 service.putRequest(request);
@@ -1302,6 +1712,13 @@ public class CommitLog {
     }
 
     public long getMinOffset() {
+        if (this.coldCommitLog != null) {
+            long coldMinOffset = this.coldCommitLog.getMinOffset();
+            if (coldMinOffset >= 0) {
+                return coldMinOffset;
+            }
+        }
+
         MappedFile mappedFile = this.mappedFileQueue.getFirstMappedFile();
         if (mappedFile != null) {
             if (mappedFile.isAvailable()) {
@@ -1315,6 +1732,10 @@ public class CommitLog {
     }
 
     public SelectMappedBufferResult getMessage(final long offset, final int size) {
+        if (this.isColdOffset(offset)) {
+            return this.coldCommitLog.getMessage(offset, size);
+        }
+
         int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
         MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, offset == 0);
         if (mappedFile != null) {
@@ -1324,11 +1745,40 @@ public class CommitLog {
         return null;
     }
 
+    /**
+     * Offsets below the first hot file, or inside it once it is being retired, are served by the cold tier.
+     */
+    private boolean isColdOffset(final long offset) {
+        if (this.coldCommitLog == null || !this.coldCommitLog.contains(offset)) {
+            return false;
+        }
+        MappedFile first = this.mappedFileQueue.getFirstMappedFile();
+        return first == null || offset < first.getFileFromOffset()
+            || !first.isAvailable() && offset < first.getFileFromOffset() + first.getFileSize();
+    }
+
+    public ColdCommitLog getColdCommitLog() {
+        return coldCommitLog;
+    }
+
+    public SealedFileChecksums getSealedFileChecksums() {
+        return sealedFileChecksums;
+    }
+
     public long rollNextFile(final long offset) {
         int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
         return offset + mappedFileSize - offset % mappedFileSize;
     }
 
+    /**
+     * A blank record pads its file up to the end, unless it only fills the slot of a failed append. Reading goes on
+     * right behind such a blank instead of at the next file.
+     */
+    public boolean isFailedAppendBlank(final long offset, final int blankSize) {
+        int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        return blankSize > 0 && offset % mappedFileSize + blankSize < mappedFileSize;
+    }
+
     public HashMap<String, Long> getTopicQueueTable() {
         return topicQueueTable;
     }
@@ -1339,6 +1789,9 @@ public class CommitLog {
 
     public void destroy() {
         this.mappedFileQueue.destroy();
+        if (this.coldCommitLog != null) {
+            this.coldCommitLog.destroy();
+        }
     }
 
     public boolean appendData(long startOffset, byte[] data) {
@@ -1530,6 +1983,7 @@ public class CommitLog {
                     long begin = System.currentTimeMillis();
                     // 进行刷盘
                     CommitLog.this.mappedFileQueue.flush(flushPhysicQueueLeastPages);
+                    CommitLog.this.onFlushed();
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
                         // 再次更新提交时间戳
@@ -1553,6 +2007,7 @@ public class CommitLog {
                 result = CommitLog.this.mappedFileQueue.flush(0);
                 CommitLog.log.info(this.getServiceName() + " service shutdown, retry " + (i + 1) + " times " + (result ? "OK" : "Not OK"));
             }
+            CommitLog.this.onFlushed();
 
             this.printFlushProgress();
 
@@ -1608,6 +2063,14 @@ public class CommitLog {
             return nextOffset;
         }
 
+        public long getStartTimestamp() {
+            return startTimestamp;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
         public void wakeupCustomer(final PutMessageStatus putMessageStatus) {
             // 结束刷盘，设置刷盘状态
             this.flushOKFuture.complete(putMessageStatus);
@@ -1660,6 +2123,12 @@ public class CommitLog {
          */
         private volatile List<GroupCommitRequest> requestsRead = new ArrayList<GroupCommitRequest>();
 
+        // whether to flush on every wake up, even if nobody waits for it
+        private final boolean flushWhenIdle;
+
+        GroupCommitService(final boolean flushWhenIdle) {
+            this.flushWhenIdle = flushWhenIdle;
+        }
 
         // 添加提交请求
         public synchronized void putRequest(final GroupCommitRequest request) {
@@ -1704,13 +2173,14 @@ public class CommitLog {
                         req.wakeupCustomer(flushOK ? PutMessageStatus.PUT_OK : PutMessageStatus.FLUSH_DISK_TIMEOUT);
                     }
 
+                    CommitLog.this.onFlushed();
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
                         CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
                     }
                     // 请求处理完之后清空链表
                     this.requestsRead.clear();
-                } else {
+                } else if (this.flushWhenIdle) {
                     // Because of individual messages is set to not sync flush, it
                     // will come to this process
                     CommitLog.this.mappedFileQueue.flush(0);
@@ -1767,6 +2237,330 @@ public class CommitLog {
         }
     }
 
+    static class GroupAppendRequest {
+        private final MessageExtBrokerInner msg;
+        private final CompletableFuture<PutMessageResult> future = new CompletableFuture<>();
+        private int encodedPosition;
+        private int encodedLength;
+        private AppendMessageResult appendMessageResult;
+        private boolean syncFlush;
+
+        GroupAppendRequest(final MessageExtBrokerInner msg) {
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * Combining stage in front of the commit log for async puts. Requests arriving while the previous round is
+     * appended are drained together, encoded back to back into one buffer and written with one copy per mapped
+     * file. One flush request and one replica request are issued for the whole round, and all futures are
+     * completed when they finish.
+     */
+    class GroupAppendService extends ServiceThread {
+        private final MessageExtEncoder encoder = new MessageExtEncoder(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+        private final ByteBuffer groupBuffer = ByteBuffer.allocate(defaultMessageStore.getMessageStoreConfig().getGroupAppendMaxBytes()
+            + defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+        private volatile List<GroupAppendRequest> requestsWrite = new ArrayList<GroupAppendRequest>();
+        private volatile List<GroupAppendRequest> requestsRead = new ArrayList<GroupAppendRequest>();
+
+        public synchronized CompletableFuture<PutMessageResult> putRequest(final MessageExtBrokerInner msg) {
+            GroupAppendRequest request = new GroupAppendRequest(msg);
+            if (this.isStopped()) {
+                request.future.complete(new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null));
+                return request.future;
+            }
+            this.requestsWrite.add(request);
+            this.wakeup();
+            return request.future;
+        }
+
+        private synchronized boolean swapRequests() {
+            List<GroupAppendRequest> tmp = this.requestsWrite;
+            this.requestsWrite = this.requestsRead;
+            this.requestsRead = tmp;
+            return !this.requestsRead.isEmpty();
+        }
+
+        private synchronized boolean hasPendingRequests() {
+            return !this.requestsWrite.isEmpty();
+        }
+
+        public void run() {
+            CommitLog.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(10);
+                    int windowMicros = defaultMessageStore.getMessageStoreConfig().getGroupAppendWindowMicros();
+                    if (windowMicros > 0 && this.hasPendingRequests()) {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(windowMicros));
+                    }
+                    if (this.swapRequests()) {
+                        this.doGroupAppend(this.requestsRead);
+                        this.requestsRead.clear();
+                    }
+                } catch (Throwable e) {
+                    CommitLog.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            // Append whatever arrived before shutdown, putRequest rejects new ones from now on
+            synchronized (this) {
+                this.swapRequests();
+            }
+            this.doGroupAppend(this.requestsRead);
+            this.requestsRead.clear();
+
+            CommitLog.log.info(this.getServiceName() + " service end");
+        }
+
+        private void doGroupAppend(final List<GroupAppendRequest> requests) {
+            int from = 0;
+            try {
+                while (from < requests.size()) {
+                    from = this.appendRound(requests, from);
+                }
+            } catch (Throwable e) {
+                CommitLog.log.warn(this.getServiceName() + " group append has exception. ", e);
+                // Earlier rounds are waiting on their flush and replica requests, only the failed round onward
+                // is completed here
+                this.failRequests(requests, from);
+            }
+        }
+
+        private void failRequests(final List<GroupAppendRequest> requests, final int from) {
+            for (int i = from; i < requests.size(); i++) {
+                GroupAppendRequest request = requests.get(i);
+                if (request.future.isDone()) {
+                    continue;
+                }
+                if (request.appendMessageResult == null) {
+                    request.future.complete(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, null));
+                    continue;
+                }
+                // Already in the commit log, a retry would store it twice, so only report what is not confirmed
+                PutMessageStatus status = PutMessageStatus.PUT_OK;
+                if (request.msg.isWaitStoreMsgOK()) {
+                    if (isSyncFlush(request.msg)) {
+                        status = PutMessageStatus.FLUSH_DISK_TIMEOUT;
+                    } else if (BrokerRole.SYNC_MASTER == defaultMessageStore.getMessageStoreConfig().getBrokerRole()) {
+                        status = PutMessageStatus.FLUSH_SLAVE_TIMEOUT;
+                    }
+                }
+                request.future.complete(new PutMessageResult(status, request.appendMessageResult));
+            }
+        }
+
+        /**
+         * Encode as many requests as fit into the group buffer starting at index from, append them and
+         * complete their futures.
+         *
+         * @return index of the first request not handled by this round
+         */
+        private int appendRound(final List<GroupAppendRequest> requests, final int from) {
+            final int maxBytes = defaultMessageStore.getMessageStoreConfig().getGroupAppendMaxBytes();
+            List<GroupAppendRequest> encoded = new ArrayList<GroupAppendRequest>();
+            this.groupBuffer.clear();
+            int next = from;
+            while (next < requests.size() && this.groupBuffer.position() < maxBytes) {
+                GroupAppendRequest request = requests.get(next);
+                int msgPos = this.groupBuffer.position();
+                AppendMessageStatus status = this.encoder.encode(request.msg, this.groupBuffer);
+                if (status == AppendMessageStatus.END_OF_FILE) {
+                    break;
+                }
+                next++;
+                if (status != AppendMessageStatus.PUT_OK) {
+                    PutMessageStatus putStatus = status == AppendMessageStatus.UNKNOWN_ERROR
+                        ? PutMessageStatus.UNKNOWN_ERROR : PutMessageStatus.MESSAGE_ILLEGAL;
+                    request.future.complete(new PutMessageResult(putStatus, new AppendMessageResult(status)));
+                    continue;
+                }
+                request.encodedPosition = msgPos;
+                request.encodedLength = this.groupBuffer.position() - msgPos;
+                if (request.encodedLength + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH
+                    > defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog()) {
+                    this.groupBuffer.position(msgPos);
+                    request.future.complete(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL,
+                        new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED)));
+                    continue;
+                }
+                encoded.add(request);
+            }
+
+            if (encoded.isEmpty()) {
+                return next;
+            }
+
+            PutMessageStatus appendStatus = this.appendEncoded(encoded);
+            // Requests written before a failed roll over or write still complete through the flush path
+            final List<GroupAppendRequest> written = new ArrayList<GroupAppendRequest>(encoded.size());
+            for (GroupAppendRequest request : encoded) {
+                if (request.appendMessageResult != null) {
+                    written.add(request);
+                } else {
+                    request.future.complete(new PutMessageResult(appendStatus, null));
+                }
+            }
+            if (written.isEmpty()) {
+                return next;
+            }
+
+            StoreStatsService storeStatsService = defaultMessageStore.getStoreStatsService();
+            GroupAppendRequest last = written.get(written.size() - 1);
+            MessageExt waitingMsg = last.msg;
+            boolean waitingSyncFlush = false;
+            for (GroupAppendRequest request : written) {
+                storeStatsService.getSinglePutMessageTopicTimesTotal(request.msg.getTopic()).incrementAndGet();
+                storeStatsService.getSinglePutMessageTopicSizeTotal(request.msg.getTopic()).addAndGet(request.encodedLength);
+                request.syncFlush = isSyncFlush(request.msg);
+                // wait for the fsync once for the whole group if any waiting message of it asks for one
+                if (request.msg.isWaitStoreMsgOK() && (request.syncFlush || !waitingSyncFlush)) {
+                    waitingMsg = request.msg;
+                    waitingSyncFlush = request.syncFlush;
+                }
+            }
+
+            CompletableFuture<PutMessageStatus> flushResultFuture = submitFlushRequest(last.appendMessageResult, waitingMsg);
+            CompletableFuture<PutMessageStatus> replicaResultFuture = submitReplicaRequest(last.appendMessageResult, waitingMsg);
+            flushResultFuture.thenAcceptBoth(replicaResultFuture, (flushStatus, replicaStatus) -> {
+                for (GroupAppendRequest request : written) {
+                    PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, request.appendMessageResult);
+                    if (request.msg.isWaitStoreMsgOK()) {
+                        if (request.syncFlush && flushStatus != PutMessageStatus.PUT_OK) {
+                            putMessageResult.setPutMessageStatus(flushStatus);
+                        }
+                        if (replicaStatus != PutMessageStatus.PUT_OK) {
+                            putMessageResult.setPutMessageStatus(replicaStatus);
+                        }
+                    }
+                    request.future.complete(putMessageResult);
+                }
+            });
+            return next;
+        }
+
+        /**
+         * Write the encoded requests to the commit log, one contiguous copy per mapped file.
+         */
+        private PutMessageStatus appendEncoded(final List<GroupAppendRequest> encoded) {
+            MappedFile unlockMappedFile = null;
+            long elapsedTimeInLock;
+            MappedFile mappedFile = mappedFileQueue.getLastMappedFile();
+
+            putMessageLock.lock();
+            try {
+                long beginLockTimestamp = defaultMessageStore.getSystemClock().now();
+                beginTimeInLock = beginLockTimestamp;
+
+                if (null == mappedFile || mappedFile.isFull()) {
+                    mappedFile = mappedFileQueue.getLastMappedFile(0);
+                }
+                if (null == mappedFile) {
+                    log.error("create mapped file1 error, group append of {} messages", encoded.size());
+                    beginTimeInLock = 0;
+                    return PutMessageStatus.CREATE_MAPEDFILE_FAILED;
+                }
+
+                int segmentFrom = 0;
+                while (segmentFrom < encoded.size()) {
+                    // Take as many messages as fit into the current file, keeping room for the blank record
+                    int available = mappedFile.getFileSize() - mappedFile.getReservedPosition()
+                        - DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH;
+                    int segmentTo = segmentFrom;
+                    int segmentLength = 0;
+                    while (segmentTo < encoded.size() && segmentLength + encoded.get(segmentTo).encodedLength <= available) {
+                        segmentLength += encoded.get(segmentTo).encodedLength;
+                        segmentTo++;
+                    }
+
+                    if (segmentTo == segmentFrom) {
+                        if (!padMappedFile(mappedFile, beginLockTimestamp)) {
+                            beginTimeInLock = 0;
+                            return PutMessageStatus.UNKNOWN_ERROR;
+                        }
+                        unlockMappedFile = mappedFile;
+                        mappedFile = mappedFileQueue.getLastMappedFile(0);
+                        if (null == mappedFile) {
+                            log.error("create mapped file2 error, group append of {} messages", encoded.size());
+                            beginTimeInLock = 0;
+                            return PutMessageStatus.CREATE_MAPEDFILE_FAILED;
+                        }
+                        continue;
+                    }
+
+                    int position = mappedFile.reserve(segmentLength, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+                    long fileFromOffset = mappedFile.getFileFromOffset();
+                    int msgPosition = position;
+                    for (int i = segmentFrom; i < segmentTo; i++) {
+                        GroupAppendRequest request = encoded.get(i);
+                        long queueOffset = nextQueueOffset(request.msg);
+                        long wroteOffset = fileFromOffset + msgPosition;
+                        request.msg.setStoreTimestamp(beginLockTimestamp);
+                        MessageExtEncoder.patch(this.groupBuffer, request.encodedPosition, queueOffset, wroteOffset, beginLockTimestamp);
+                        ByteBuffer storeHostBytes = request.msg.getStoreHostBytes();
+                        String msgId = MessageDecoder.createMessageId(ByteBuffer.allocate(storeHostBytes.limit() + 8), storeHostBytes, wroteOffset);
+                        request.appendMessageResult = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset,
+                            request.encodedLength, msgId, beginLockTimestamp, queueOffset, 0);
+                        msgPosition += request.encodedLength;
+                    }
+
+                    ByteBuffer segment = this.groupBuffer.duplicate();
+                    segment.limit(encoded.get(segmentTo - 1).encodedPosition + encoded.get(segmentTo - 1).encodedLength);
+                    segment.position(encoded.get(segmentFrom).encodedPosition);
+                    boolean written = false;
+                    boolean published = false;
+                    try {
+                        mappedFile.writeReserved(position, segment);
+                        written = true;
+                    } catch (Throwable e) {
+                        log.error("write reserved segment error, offset: " + (fileFromOffset + position)
+                            + " messages: " + (segmentTo - segmentFrom), e);
+                        // published anyway as a blank record readers skip, like a failed concurrent append
+                        writeBlank(mappedFile, position, segmentLength);
+                    } finally {
+                        published = mappedFile.publish(position, segmentLength, beginLockTimestamp);
+                    }
+                    if (!written || !published) {
+                        // hand the queue offsets back newest first, so each one is the next of its queue again
+                        for (int i = segmentTo - 1; i >= segmentFrom; i--) {
+                            GroupAppendRequest request = encoded.get(i);
+                            releaseQueueOffsetInLock(request.msg, request.appendMessageResult.getLogicsOffset());
+                            request.appendMessageResult = null;
+                        }
+                        beginTimeInLock = 0;
+                        return PutMessageStatus.UNKNOWN_ERROR;
+                    }
+                    segmentFrom = segmentTo;
+                }
+
+                elapsedTimeInLock = defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+                beginTimeInLock = 0;
+            } finally {
+                putMessageLock.unlock();
+            }
+
+            if (elapsedTimeInLock > 500) {
+                log.warn("[NOTIFYME]group append in lock cost time(ms)={}, messages={}", elapsedTimeInLock, encoded.size());
+            }
+
+            if (null != unlockMappedFile && defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+                defaultMessageStore.unlockMappedFile(unlockMappedFile);
+            }
+            return PutMessageStatus.PUT_OK;
+        }
+
+        @Override
+        public String getServiceName() {
+            return GroupAppendService.class.getSimpleName();
+        }
+
+        @Override
+        public long getJointime() {
+            return 1000 * 60 * 5;
+        }
+    }
+
     class DefaultAppendMessageCallback implements AppendMessageCallback {
         // File at the end of the minimum fixed length empty
         // 预留空间大小，8个字节
@@ -2057,6 +2851,10 @@ public class CommitLog {
                 messagesByteBuff.putLong(queueOffset);
                 // 7 写入物理偏移量
                 messagesByteBuff.putLong(wroteOffset + totalMsgLen - msgLen);
+                if (messageExtBatch.isStoreFormat()) {
+                    // the store timestamp is only known under the lock
+                    messagesByteBuff.putLong(msgPos + StoreFormatBatch.STORE_TIMESTAMP_POSITION, messageExtBatch.getStoreTimestamp());
+                }
 
                 storeHostBytes.rewind();
                 String msgId;
@@ -2136,6 +2934,18 @@ public class CommitLog {
 
         // 对消息进行编码并写入buffer
         public ByteBuffer encode(final MessageExtBatch messageExtBatch) {
+            boolean batchPropertiesEmbedded = false;
+            if (messageExtBatch.isStoreFormat()) {
+                if (!(((InetSocketAddress) messageExtBatch.getBornHost()).getAddress() instanceof Inet6Address)
+                    && !(((InetSocketAddress) messageExtBatch.getStoreHost()).getAddress() instanceof Inet6Address)) {
+                    return StoreFormatBatch.patch(messageExtBatch, this.maxMessageSize);
+                }
+                // IPv6 hosts change the layout, so the messages have to be encoded again
+                messageExtBatch.setBody(MessageDecoder.convertStoreFormatBatch(messageExtBatch.getBody()));
+                messageExtBatch.setStoreFormat(false);
+                batchPropertiesEmbedded = true;
+            }
+
             msgBatchMemory.clear(); //not thread-safe
             int totalMsgLen = 0;
             ByteBuffer messagesByteBuff = messageExtBatch.wrap();
@@ -2147,7 +2957,7 @@ public class CommitLog {
             ByteBuffer storeHostHolder = ByteBuffer.allocate(storeHostLength);
 
             // properties from MessageExtBatch
-            String batchPropStr = MessageDecoder.messageProperties2String(messageExtBatch.getProperties());
+            String batchPropStr = batchPropertiesEmbedded ? "" : MessageDecoder.messageProperties2String(messageExtBatch.getProperties());
             // 消息属性数据
             final byte[] batchPropData = batchPropStr.getBytes(MessageDecoder.CHARSET_UTF8);
             // 属性数据长度
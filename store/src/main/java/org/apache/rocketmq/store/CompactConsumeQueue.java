@@ -0,0 +1,741 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+
+/**
+ * Consume queue storing its units block encoded instead of as fixed {@link #CQ_STORE_UNIT_SIZE} byte units.
+ * <p>
+ * Units are grouped in blocks of {@link #BLOCK_UNIT_NUM} logical offsets. Inside a block a unit is the zigzag varint
+ * distance between its physical offset and the end of the previous unit, the varint of its size shifted left by one
+ * with the low bit set when the tags code repeats the previous one, and otherwise the zigzag varint tags code. A
+ * block never spans data files, and a block index of {@link #INDEX_UNIT_SIZE} byte units keeps the data position of
+ * every block, so any logical offset is found with one index read and at most {@link #BLOCK_UNIT_NUM} decodes.
+ * <p>
+ * {@link #getIndexBuffer(long)} hands out decoded standard units, so readers are unaware of the format. Tags codes
+ * are always kept inline, the extend file is not used.
+ */
+public class CompactConsumeQueue extends ConsumeQueue {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final InternalLogger LOG_ERROR = InternalLoggerFactory.getLogger(LoggerName.STORE_ERROR_LOGGER_NAME);
+
+    public static final int BLOCK_UNIT_NUM = 64;
+    // data position(8) + first unit in block(4) + magic(4)
+    public static final int INDEX_UNIT_SIZE = 16;
+
+    private static final int INDEX_UNIT_MAGIC = 0xCC0DE5A1;
+    private static final int INDEX_BLANK_MAGIC = 0xCC0DE5B2;
+    // zigzag varint distance(10) + varint size(5) + zigzag varint tags code(10)
+    private static final int MAX_UNIT_ENCODED_SIZE = 25;
+    private static final int MAX_BLOCK_ENCODED_SIZE = BLOCK_UNIT_NUM * MAX_UNIT_ENCODED_SIZE;
+    private static final int MAX_UNITS_PER_READ = BLOCK_UNIT_NUM * 16;
+
+    private final MappedFileQueue indexFileQueue;
+    private final int dataFileSize;
+    private final int indexFileSize;
+    private final ByteBuffer unitBuffer = ByteBuffer.allocate(MAX_UNIT_ENCODED_SIZE);
+    private final ByteBuffer indexUnitBuffer = ByteBuffer.allocate(INDEX_UNIT_SIZE);
+
+    private volatile long maxLogicOffset = 0;
+
+    // State of the block being appended, only touched by the dispatch thread of this queue
+    private int blockUnitNum = 0;
+    private long blockPrevEnd = 0;
+    private long blockPrevTagsCode = 0;
+
+    public CompactConsumeQueue(
+        final String topic,
+        final int queueId,
+        final String storePath,
+        final int mappedFileSize,
+        final DefaultMessageStore defaultMessageStore) {
+        super(topic, queueId, storePath, Math.max(mappedFileSize, MAX_BLOCK_ENCODED_SIZE), defaultMessageStore);
+        this.dataFileSize = Math.max(mappedFileSize, MAX_BLOCK_ENCODED_SIZE);
+        this.indexFileSize = Math.max(1, mappedFileSize / CQ_STORE_UNIT_SIZE / BLOCK_UNIT_NUM) * INDEX_UNIT_SIZE;
+
+        String indexDir = StorePathConfigHelper.getStorePathCompactConsumeQueueIndex(
+            defaultMessageStore.getMessageStoreConfig().getStorePathRootDir())
+            + File.separator + topic
+            + File.separator + queueId;
+        this.indexFileQueue = new MappedFileQueue(indexDir, this.indexFileSize, null);
+    }
+
+    @Override
+    public boolean load() {
+        boolean result = this.getMappedFileQueue().load() && this.indexFileQueue.load();
+        log.info("load compact consume queue " + this.getTopic() + "-" + this.getQueueId() + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+    @Override
+    public void recover() {
+        final List<MappedFile> indexFiles = this.indexFileQueue.getMappedFiles();
+        if (indexFiles.isEmpty()) {
+            return;
+        }
+
+        int index = Math.max(0, indexFiles.size() - 3);
+        long indexEnd = indexFiles.get(index).getFileFromOffset();
+        for (; index < indexFiles.size(); index++) {
+            MappedFile mappedFile = indexFiles.get(index);
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            int pos = 0;
+            for (; pos < this.indexFileSize; pos += INDEX_UNIT_SIZE) {
+                int magic = byteBuffer.getInt(pos + INDEX_UNIT_SIZE - 4);
+                if (magic != INDEX_UNIT_MAGIC && magic != INDEX_BLANK_MAGIC) {
+                    break;
+                }
+            }
+            indexEnd = mappedFile.getFileFromOffset() + pos;
+            if (pos < this.indexFileSize) {
+                log.info("recover compact consume queue index over " + mappedFile.getFileName() + " " + indexEnd);
+                break;
+            }
+        }
+
+        // Walk back to the last block holding data, a block index unit may be written ahead of its first unit
+        long dataEnd = -1;
+        this.maxLogicOffset = indexEnd / INDEX_UNIT_SIZE * BLOCK_UNIT_NUM;
+        this.blockUnitNum = 0;
+        while (indexEnd > this.indexFileQueue.getMinOffset()) {
+            long block = indexEnd / INDEX_UNIT_SIZE - 1;
+            MappedFile indexFile = this.indexFileQueue.findMappedFileByOffset(block * INDEX_UNIT_SIZE);
+            if (indexFile == null) {
+                break;
+            }
+            ByteBuffer indexBuffer = indexFile.sliceByteBuffer();
+            indexBuffer.position((int) (block * INDEX_UNIT_SIZE % this.indexFileSize));
+            long dataPos = indexBuffer.getLong();
+            long firstLogic = block * BLOCK_UNIT_NUM + indexBuffer.getInt();
+            if (indexBuffer.getInt() != INDEX_UNIT_MAGIC) {
+                break;
+            }
+
+            BlockDecoder decoder = new BlockDecoder();
+            int unitNum = 0;
+            int dataSize = 0;
+            MappedFile dataFile = this.getMappedFileQueue().findMappedFileByOffset(dataPos);
+            if (dataFile != null) {
+                ByteBuffer dataBuffer = dataFile.sliceByteBuffer();
+                dataBuffer.position((int) (dataPos % this.dataFileSize));
+                while (unitNum < (block + 1) * BLOCK_UNIT_NUM - firstLogic && decoder.next(dataBuffer)) {
+                    unitNum++;
+                }
+                dataSize = (int) (dataBuffer.position() - dataPos % this.dataFileSize);
+            }
+
+            if (unitNum == 0) {
+                indexEnd -= INDEX_UNIT_SIZE;
+                dataEnd = dataPos;
+                this.maxLogicOffset = firstLogic;
+                continue;
+            }
+
+            dataEnd = dataPos + dataSize;
+            this.maxLogicOffset = firstLogic + unitNum;
+            this.resumeBlock(unitNum, decoder);
+            log.info("recover compact consume queue over, maxLogicOffset: {} topic: {} queueId: {}",
+                this.maxLogicOffset, this.getTopic(), this.getQueueId());
+            break;
+        }
+
+        if (dataEnd < 0) {
+            dataEnd = Math.max(0, this.getMappedFileQueue().getMinOffset());
+        }
+        this.indexFileQueue.setFlushedWhere(indexEnd);
+        this.indexFileQueue.setCommittedWhere(indexEnd);
+        this.indexFileQueue.truncateDirtyFiles(indexEnd);
+        this.getMappedFileQueue().setFlushedWhere(dataEnd);
+        this.getMappedFileQueue().setCommittedWhere(dataEnd);
+        this.getMappedFileQueue().truncateDirtyFiles(dataEnd);
+    }
+
+    @Override
+    public long getOffsetInQueueByTime(final long timestamp) {
+        long low = this.getMinOffsetInQueue();
+        long high = this.maxLogicOffset - 1;
+        long leftOffset = -1, rightOffset = -1;
+        long leftIndexValue = -1L, rightIndexValue = -1L;
+        long minPhysicOffset = this.getDefaultMessageStore().getMinPhyOffset();
+        ByteBuffer unit = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
+        while (high >= low) {
+            long midOffset = (low + high) >>> 1;
+            unit.clear();
+            if (this.readUnits(midOffset, midOffset + 1, unit) == 0) {
+                return 0;
+            }
+            unit.flip();
+            long phyOffset = unit.getLong();
+            int size = unit.getInt();
+            if (phyOffset < minPhysicOffset) {
+                low = midOffset + 1;
+                leftOffset = midOffset;
+                continue;
+            }
+
+            long storeTime = this.getDefaultMessageStore().getCommitLog().pickupStoreTimestamp(phyOffset, size);
+            if (storeTime < 0) {
+                return 0;
+            } else if (storeTime == timestamp) {
+                return midOffset;
+            } else if (storeTime > timestamp) {
+                high = midOffset - 1;
+                rightOffset = midOffset;
+                rightIndexValue = storeTime;
+            } else {
+                low = midOffset + 1;
+                leftOffset = midOffset;
+                leftIndexValue = storeTime;
+            }
+        }
+
+        if (leftIndexValue == -1) {
+            return rightOffset != -1 ? rightOffset : low;
+        } else if (rightIndexValue == -1) {
+            return leftOffset;
+        } else {
+            return Math.abs(timestamp - leftIndexValue) > Math.abs(timestamp - rightIndexValue) ? rightOffset : leftOffset;
+        }
+    }
+
+    @Override
+    public void truncateDirtyLogicFiles(long phyOffet) {
+        this.setMaxPhysicOffset(phyOffet);
+        while (!this.indexFileQueue.getMappedFiles().isEmpty()
+            && this.indexFileQueue.getMaxOffset() > this.indexFileQueue.getMinOffset()) {
+            long indexEnd = this.indexFileQueue.getMaxOffset();
+            long block = indexEnd / INDEX_UNIT_SIZE - 1;
+            BlockRef ref = this.readBlockRef(block);
+            if (ref == null) {
+                break;
+            }
+
+            BlockDecoder decoder = new BlockDecoder();
+            int unitNum = 0;
+            int dataSize = 0;
+            SelectMappedBufferResult data = this.selectData(ref.dataPos);
+            if (data != null) {
+                try {
+                    ByteBuffer dataBuffer = data.getByteBuffer();
+                    BlockDecoder probe = new BlockDecoder();
+                    while (unitNum < (block + 1) * BLOCK_UNIT_NUM - ref.firstLogic && probe.next(dataBuffer)
+                        && probe.phyOffset < phyOffet) {
+                        unitNum++;
+                        dataSize = dataBuffer.position();
+                        probe.copyTo(decoder);
+                    }
+                } finally {
+                    data.release();
+                }
+            }
+
+            if (unitNum == 0) {
+                truncateFiles(this.indexFileQueue, indexEnd - INDEX_UNIT_SIZE);
+                truncateFiles(this.getMappedFileQueue(), ref.dataPos);
+                this.maxLogicOffset = ref.firstLogic;
+                this.blockUnitNum = 0;
+                continue;
+            }
+
+            truncateFiles(this.getMappedFileQueue(), ref.dataPos + dataSize);
+            this.maxLogicOffset = ref.firstLogic + unitNum;
+            this.resumeBlock(unitNum, decoder);
+            break;
+        }
+    }
+
+    @Override
+    public long getLastOffset() {
+        return this.getMaxPhysicOffset();
+    }
+
+    @Override
+    public boolean flush(final int flushLeastPages) {
+        boolean result = this.getMappedFileQueue().flush(flushLeastPages);
+        result = result & this.indexFileQueue.flush(flushLeastPages);
+        return result;
+    }
+
+    @Override
+    public int deleteExpiredFile(long offset) {
+        int cnt = this.deleteExpiredDataFiles(offset);
+        this.deleteExpiredIndexFiles();
+        this.correctMinOffset(offset);
+        return cnt;
+    }
+
+    private int deleteExpiredDataFiles(long offset) {
+        List<MappedFile> mappedFiles = new ArrayList<MappedFile>(this.getMappedFileQueue().getMappedFiles());
+        List<MappedFile> files = new ArrayList<MappedFile>();
+        for (int i = 0; i < mappedFiles.size() - 1; i++) {
+            // Every data file starts with a block, whose first unit bounds all units of the previous file
+            SelectMappedBufferResult result = mappedFiles.get(i + 1).selectMappedBuffer(0);
+            if (result == null) {
+                break;
+            }
+            long nextMinPhyOffset;
+            try {
+                BlockDecoder decoder = new BlockDecoder();
+                if (!decoder.next(result.getByteBuffer())) {
+                    break;
+                }
+                nextMinPhyOffset = decoder.phyOffset;
+            } finally {
+                result.release();
+            }
+
+            MappedFile mappedFile = mappedFiles.get(i);
+            if (nextMinPhyOffset <= offset && mappedFile.destroy(1000 * 60)) {
+                log.info("physic min offset " + offset + ", compact logics in next mappedFile min offset "
+                    + nextMinPhyOffset + ", delete " + mappedFile.getFileName());
+                files.add(mappedFile);
+            } else {
+                break;
+            }
+        }
+        this.getMappedFileQueue().deleteExpiredFile(files);
+        return files.size();
+    }
+
+    private void deleteExpiredIndexFiles() {
+        long minDataOffset = this.getMappedFileQueue().getMinOffset();
+        List<MappedFile> mappedFiles = new ArrayList<MappedFile>(this.indexFileQueue.getMappedFiles());
+        List<MappedFile> files = new ArrayList<MappedFile>();
+        for (int i = 0; i < mappedFiles.size() - 1; i++) {
+            SelectMappedBufferResult result = mappedFiles.get(i + 1).selectMappedBuffer(0, INDEX_UNIT_SIZE);
+            if (result == null) {
+                break;
+            }
+            boolean destroy;
+            try {
+                long dataPos = result.getByteBuffer().getLong();
+                result.getByteBuffer().getInt();
+                int magic = result.getByteBuffer().getInt();
+                destroy = magic == INDEX_BLANK_MAGIC || magic == INDEX_UNIT_MAGIC && dataPos <= minDataOffset;
+            } finally {
+                result.release();
+            }
+
+            MappedFile mappedFile = mappedFiles.get(i);
+            if (destroy && mappedFile.destroy(1000 * 60)) {
+                files.add(mappedFile);
+            } else {
+                break;
+            }
+        }
+        this.indexFileQueue.deleteExpiredFile(files);
+    }
+
+    @Override
+    public void correctMinOffset(long phyMinOffset) {
+        MappedFile firstIndexFile = this.indexFileQueue.getFirstMappedFile();
+        long minDataOffset = this.getMappedFileQueue().getMinOffset();
+        if (firstIndexFile == null || minDataOffset < 0) {
+            return;
+        }
+
+        long maxLogic = this.maxLogicOffset;
+        for (long block = firstIndexFile.getFileFromOffset() / INDEX_UNIT_SIZE; block * BLOCK_UNIT_NUM < maxLogic; block++) {
+            BlockRef ref = this.readBlockRef(block);
+            if (ref == null || ref.dataPos < minDataOffset) {
+                continue;
+            }
+            // Like the standard queue, only look into the first data file
+            if (ref.dataPos >= minDataOffset + this.dataFileSize) {
+                break;
+            }
+            SelectMappedBufferResult data = this.selectData(ref.dataPos);
+            if (data == null) {
+                break;
+            }
+            try {
+                BlockDecoder decoder = new BlockDecoder();
+                long blockEnd = Math.min((block + 1) * BLOCK_UNIT_NUM, maxLogic);
+                for (long logic = ref.firstLogic; logic < blockEnd && decoder.next(data.getByteBuffer()); logic++) {
+                    if (decoder.phyOffset >= phyMinOffset) {
+                        this.setMinLogicOffset(logic * CQ_STORE_UNIT_SIZE);
+                        log.info("Compute logical min offset: {}, topic: {}, queueId: {}",
+                            this.getMinOffsetInQueue(), this.getTopic(), this.getQueueId());
+                        return;
+                    }
+                }
+            } finally {
+                data.release();
+            }
+        }
+    }
+
+    @Override
+    protected boolean putMessagePositionInfo(final long offset, final int size, final long tagsCode,
+        final long cqOffset) {
+
+        if (offset + size <= this.getMaxPhysicOffset()) {
+            log.warn("Maybe try to build consume queue repeatedly maxPhysicOffset={} phyOffset={}", this.getMaxPhysicOffset(), offset);
+            return true;
+        }
+
+        if (cqOffset != 0 && this.maxLogicOffset == 0 && this.indexFileQueue.getMappedFiles().isEmpty()) {
+            this.setMinLogicOffset(cqOffset * CQ_STORE_UNIT_SIZE);
+            this.maxLogicOffset = cqOffset;
+            this.fillPreBlank(cqOffset / BLOCK_UNIT_NUM * INDEX_UNIT_SIZE);
+            log.info("fill pre blank block index of compact consume queue {}-{} until {}", this.getTopic(),
+                this.getQueueId(), cqOffset);
+        }
+
+        final long logicOffset = this.maxLogicOffset;
+        if (cqOffset < logicOffset) {
+            log.warn("Build  consume queue repeatedly, expectLogicOffset: {} currentLogicOffset: {} Topic: {} QID: {} Diff: {}",
+                cqOffset, logicOffset, this.getTopic(), this.getQueueId(), cqOffset - logicOffset);
+            return true;
+        }
+        if (cqOffset != logicOffset) {
+            LOG_ERROR.warn(
+                "[BUG]logic queue order maybe wrong, expectLogicOffset: {} currentLogicOffset: {} Topic: {} QID: {} Diff: {}",
+                cqOffset,
+                logicOffset,
+                this.getTopic(),
+                this.getQueueId(),
+                cqOffset - logicOffset
+            );
+        }
+
+        if ((this.blockUnitNum == 0 || logicOffset % BLOCK_UNIT_NUM == 0) && !this.startBlock(logicOffset)) {
+            return false;
+        }
+
+        boolean sameTagsCode = this.blockUnitNum > 0 && tagsCode == this.blockPrevTagsCode;
+        this.unitBuffer.clear();
+        writeVarLong(this.unitBuffer, encodeZigZag(offset - this.blockPrevEnd));
+        writeVarLong(this.unitBuffer, ((long) size << 1) | (sameTagsCode ? 1 : 0));
+        if (!sameTagsCode) {
+            writeVarLong(this.unitBuffer, encodeZigZag(tagsCode));
+        }
+
+        MappedFile mappedFile = this.getMappedFileQueue().getLastMappedFile();
+        if (mappedFile == null || !mappedFile.appendMessage(this.unitBuffer.array(), 0, this.unitBuffer.position())) {
+            return false;
+        }
+        this.blockUnitNum++;
+        this.blockPrevEnd = offset + size;
+        this.blockPrevTagsCode = tagsCode;
+        this.setMaxPhysicOffset(offset + size);
+        this.maxLogicOffset = logicOffset + 1;
+        return true;
+    }
+
+    /**
+     * Open a block for {@code logicOffset}, rolling the data file when a whole block may not fit in it anymore.
+     */
+    private boolean startBlock(final long logicOffset) {
+        MappedFile dataFile = this.getMappedFileQueue().getLastMappedFile(0);
+        if (dataFile == null) {
+            return false;
+        }
+        int remaining = this.dataFileSize - dataFile.getWrotePosition();
+        if (remaining < MAX_BLOCK_ENCODED_SIZE) {
+            // The zero filled tail decodes as the end of the last block
+            dataFile.appendMessage(new byte[remaining]);
+            dataFile = this.getMappedFileQueue().getLastMappedFile(0);
+            if (dataFile == null) {
+                return false;
+            }
+        }
+
+        long block = logicOffset / BLOCK_UNIT_NUM;
+        long expectIndexOffset = block * INDEX_UNIT_SIZE;
+        MappedFile indexFile = this.indexFileQueue.getLastMappedFile(expectIndexOffset);
+        if (indexFile == null) {
+            return false;
+        }
+        long currentIndexOffset = indexFile.getFileFromOffset() + indexFile.getWrotePosition();
+        if (expectIndexOffset != currentIndexOffset) {
+            LOG_ERROR.warn("[BUG]compact consume queue block index order maybe wrong, expect: {} current: {} Topic: {} QID: {}",
+                expectIndexOffset, currentIndexOffset, this.getTopic(), this.getQueueId());
+        }
+
+        this.indexUnitBuffer.clear();
+        this.indexUnitBuffer.putLong(dataFile.getFileFromOffset() + dataFile.getWrotePosition());
+        this.indexUnitBuffer.putInt((int) (logicOffset - block * BLOCK_UNIT_NUM));
+        this.indexUnitBuffer.putInt(INDEX_UNIT_MAGIC);
+        if (!indexFile.appendMessage(this.indexUnitBuffer.array())) {
+            return false;
+        }
+        this.blockUnitNum = 0;
+        this.blockPrevEnd = 0;
+        this.blockPrevTagsCode = 0;
+        return true;
+    }
+
+    private void fillPreBlank(final long untilWhere) {
+        MappedFile mappedFile = this.indexFileQueue.getLastMappedFile(untilWhere);
+        if (mappedFile == null) {
+            return;
+        }
+        ByteBuffer byteBuffer = ByteBuffer.allocate(INDEX_UNIT_SIZE);
+        byteBuffer.putLong(-1L);
+        byteBuffer.putInt(0);
+        byteBuffer.putInt(INDEX_BLANK_MAGIC);
+
+        int until = (int) (untilWhere % this.indexFileSize);
+        for (int i = 0; i < until; i += INDEX_UNIT_SIZE) {
+            mappedFile.appendMessage(byteBuffer.array());
+        }
+        this.indexFileQueue.setFlushedWhere(untilWhere);
+        this.indexFileQueue.setCommittedWhere(untilWhere);
+    }
+
+    @Override
+    public SelectMappedBufferResult getIndexBuffer(final long startIndex) {
+        long maxLogic = this.maxLogicOffset;
+        if (startIndex < this.getMinOffsetInQueue() || startIndex >= maxLogic) {
+            return null;
+        }
+
+        int num = (int) Math.min(maxLogic - startIndex, MAX_UNITS_PER_READ);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(num * CQ_STORE_UNIT_SIZE);
+        int readNum = this.readUnits(startIndex, startIndex + num, byteBuffer);
+        if (readNum == 0) {
+            return null;
+        }
+        byteBuffer.flip();
+        return new SelectMappedBufferResult(startIndex * CQ_STORE_UNIT_SIZE, byteBuffer, readNum * CQ_STORE_UNIT_SIZE, null);
+    }
+
+    /**
+     * Decode units in [startIndex, endIndex) into {@code out} as standard units, stops early at a missing block.
+     *
+     * @return number of decoded units
+     */
+    private int readUnits(final long startIndex, final long endIndex, final ByteBuffer out) {
+        int num = 0;
+        long index = startIndex;
+        while (index < endIndex) {
+            long block = index / BLOCK_UNIT_NUM;
+            BlockRef ref = this.readBlockRef(block);
+            if (ref == null || ref.firstLogic > index) {
+                break;
+            }
+            SelectMappedBufferResult data = this.selectData(ref.dataPos);
+            if (data == null) {
+                break;
+            }
+            long blockEnd = Math.min((block + 1) * BLOCK_UNIT_NUM, endIndex);
+            try {
+                BlockDecoder decoder = new BlockDecoder();
+                for (long logic = ref.firstLogic; logic < blockEnd && decoder.next(data.getByteBuffer()); logic++) {
+                    if (logic >= index) {
+                        out.putLong(decoder.phyOffset);
+                        out.putInt(decoder.size);
+                        out.putLong(decoder.tagsCode);
+                        num++;
+                        index = logic + 1;
+                    }
+                }
+            } finally {
+                data.release();
+            }
+            if (index < blockEnd) {
+                break;
+            }
+        }
+        return num;
+    }
+
+    private BlockRef readBlockRef(final long block) {
+        long indexOffset = block * INDEX_UNIT_SIZE;
+        MappedFile mappedFile = this.indexFileQueue.findMappedFileByOffset(indexOffset);
+        if (mappedFile == null) {
+            return null;
+        }
+        SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (indexOffset % this.indexFileSize), INDEX_UNIT_SIZE);
+        if (result == null) {
+            return null;
+        }
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            long dataPos = byteBuffer.getLong();
+            int firstUnit = byteBuffer.getInt();
+            if (byteBuffer.getInt() != INDEX_UNIT_MAGIC) {
+                return null;
+            }
+            return new BlockRef(dataPos, block * BLOCK_UNIT_NUM + firstUnit);
+        } finally {
+            result.release();
+        }
+    }
+
+    private SelectMappedBufferResult selectData(final long dataPos) {
+        MappedFile mappedFile = this.getMappedFileQueue().findMappedFileByOffset(dataPos);
+        if (mappedFile == null) {
+            return null;
+        }
+        return mappedFile.selectMappedBuffer((int) (dataPos % this.dataFileSize));
+    }
+
+    private void resumeBlock(final int unitNum, final BlockDecoder decoder) {
+        this.blockUnitNum = unitNum;
+        this.blockPrevEnd = decoder.prevEnd;
+        this.blockPrevTagsCode = decoder.prevTagsCode;
+        this.setMaxPhysicOffset(decoder.prevEnd);
+    }
+
+    /**
+     * Truncate {@code mappedFileQueue} to {@code offset}, zeroing the dropped tail so recovery never decodes it again.
+     */
+    private static void truncateFiles(final MappedFileQueue mappedFileQueue, final long offset) {
+        for (MappedFile mappedFile : mappedFileQueue.getMappedFiles()) {
+            long pos = offset - mappedFile.getFileFromOffset();
+            if (pos >= 0 && pos < mappedFile.getFileSize() && mappedFile.getWrotePosition() > pos) {
+                ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+                byteBuffer.position((int) pos);
+                byteBuffer.put(new byte[mappedFile.getWrotePosition() - (int) pos]);
+            }
+        }
+        if (mappedFileQueue.getFlushedWhere() > offset) {
+            mappedFileQueue.setFlushedWhere(offset);
+        }
+        if (mappedFileQueue.getCommittedWhere() > offset) {
+            mappedFileQueue.setCommittedWhere(offset);
+        }
+        mappedFileQueue.truncateDirtyFiles(offset);
+    }
+
+    @Override
+    public long rollNextFile(final long index) {
+        return index + BLOCK_UNIT_NUM - index % BLOCK_UNIT_NUM;
+    }
+
+    @Override
+    public void destroy() {
+        this.maxLogicOffset = 0;
+        this.blockUnitNum = 0;
+        super.destroy();
+        this.indexFileQueue.destroy();
+    }
+
+    @Override
+    public long getMaxOffsetInQueue() {
+        return this.maxLogicOffset;
+    }
+
+    @Override
+    public void checkSelf() {
+        super.checkSelf();
+        this.indexFileQueue.checkSelf();
+    }
+
+    @Override
+    protected boolean isExtReadEnable() {
+        return false;
+    }
+
+    @Override
+    protected boolean isExtWriteEnable() {
+        return false;
+    }
+
+    static long encodeZigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long decodeZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarLong(final ByteBuffer byteBuffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            byteBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        byteBuffer.put((byte) value);
+    }
+
+    static long readVarLong(final ByteBuffer byteBuffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = byteBuffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    private static class BlockRef {
+        private final long dataPos;
+        private final long firstLogic;
+
+        BlockRef(long dataPos, long firstLogic) {
+            this.dataPos = dataPos;
+            this.firstLogic = firstLogic;
+        }
+    }
+
+    /**
+     * Sequential decoder of the units of one block, a zero size marks the end of the block.
+     */
+    private static class BlockDecoder {
+        private long phyOffset;
+        private int size;
+        private long tagsCode;
+        private long prevEnd = 0;
+        private long prevTagsCode = 0;
+
+        boolean next(final ByteBuffer byteBuffer) {
+            if (!byteBuffer.hasRemaining()) {
+                return false;
+            }
+            int start = byteBuffer.position();
+            try {
+                long distance = decodeZigZag(readVarLong(byteBuffer));
+                long sizeAndFlag = readVarLong(byteBuffer);
+                if (sizeAndFlag >>> 1 == 0 || prevEnd + distance < 0) {
+                    byteBuffer.position(start);
+                    return false;
+                }
+                long tags = (sizeAndFlag & 1) != 0 ? prevTagsCode : decodeZigZag(readVarLong(byteBuffer));
+                this.phyOffset = prevEnd + distance;
+                this.size = (int) (sizeAndFlag >>> 1);
+                this.tagsCode = tags;
+                this.prevEnd = this.phyOffset + this.size;
+                this.prevTagsCode = tags;
+                return true;
+            } catch (BufferUnderflowException | IllegalStateException e) {
+                byteBuffer.position(start);
+                return false;
+            }
+        }
+
+        void copyTo(final BlockDecoder other) {
+            other.phyOffset = this.phyOffset;
+            other.size = this.size;
+            other.tagsCode = this.tagsCode;
+            other.prevEnd = this.prevEnd;
+            other.prevTagsCode = this.prevTagsCode;
+        }
+    }
+}
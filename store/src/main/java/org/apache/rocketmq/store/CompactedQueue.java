@@ -0,0 +1,555 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Compacted view of one queue of a compacted topic: only the latest message of every key, the KEYS property taken
+ * as a whole, below the queue offset compaction got to. Messages without keys are always kept.
+ * <p>
+ * Every compaction writes a new generation into a directory named after the offset it covers up to. A generation
+ * holds the retained messages as stored in the commit log, so they go out to consumers unchanged, and its own
+ * consume queue of {@link #UNIT_SIZE} byte units that keep the original queue offsets, so consumer offsets stay valid
+ * across the commit log and the compacted view. A generation counts once its meta file is written, older ones are
+ * destroyed as soon as no reader holds their files any more. Only the keys of the messages since the previous
+ * generation are held in memory, that generation is copied over minus the keys seen again.
+ */
+public class CompactedQueue {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    /**
+     * queueOffset(8) + position in log(8) + size(4) + tagsCode(8)
+     */
+    public static final int UNIT_SIZE = 28;
+    private static final String META_FILE = "meta";
+    private static final long DESTROY_INTERVAL_FORCIBLY = 1000 * 120;
+
+    private final String topic;
+    private final int queueId;
+    private final String storePath;
+    private final DefaultMessageStore defaultMessageStore;
+    private volatile Generation current;
+    private final List<Generation> retired = new ArrayList<Generation>();
+
+    public CompactedQueue(final String topic, final int queueId, final String storePath,
+        final DefaultMessageStore defaultMessageStore) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.storePath = storePath;
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+    /**
+     * Picks the newest complete generation, whatever else is in the directory was left by an interrupted compaction
+     * or not destroyed yet and goes.
+     */
+    public boolean load() {
+        File[] dirs = new File(this.storePath).listFiles();
+        if (null == dirs) {
+            return true;
+        }
+
+        Generation newest = null;
+        for (File dir : dirs) {
+            Generation generation = Generation.open(dir);
+            if (null == generation) {
+                UtilAll.deleteFile(dir);
+                continue;
+            }
+            if (newest != null && newest.compactedUpTo >= generation.compactedUpTo) {
+                generation.destroy();
+                continue;
+            }
+            if (newest != null) {
+                newest.destroy();
+            }
+            newest = generation;
+        }
+
+        this.current = newest;
+        if (newest != null) {
+            log.info("load compacted queue {}-{}, {} messages up to offset {}", this.topic, this.queueId,
+                newest.unitNum, newest.compactedUpTo);
+        }
+        return true;
+    }
+
+    /**
+     * Folds the messages of the consume queue from where the last compaction stopped into the compacted view.
+     *
+     * @return false if there were fewer than minMessages new messages and nothing was done
+     */
+    public boolean compact(final ConsumeQueue consumeQueue, final long minMessages) {
+        this.destroyRetired();
+
+        final Generation previous = this.current;
+        long from = Math.max(null == previous ? 0 : previous.compactedUpTo, consumeQueue.getMinOffsetInQueue());
+        long to = consumeQueue.getMaxOffsetInQueue();
+        if (to - from < Math.max(1, minMessages)) {
+            return false;
+        }
+
+        long beginTime = System.currentTimeMillis();
+
+        // pass one, the latest offset of every key of the new messages only, the previous generation holds every
+        // key once already; the round ends early where the map would outgrow its cap
+        final int maxKeys = Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getCompactionMaxKeysPerRound());
+        final Map<String, Long/* queueOffset */> latest = new HashMap<String, Long>();
+        // an upper bound, it only sizes the log files
+        final long[] retainedBytes = new long[] {null == previous ? 0 : previous.getLogBytes()};
+        MessageVisitor collector = new MessageVisitor() {
+            @Override
+            public boolean visit(long queueOffset, ByteBuffer message, int size, String keys, long tagsCode) {
+                if (keys != null && latest.size() >= maxKeys && !latest.containsKey(keys)) {
+                    return false;
+                }
+                retainedBytes[0] += size;
+                if (keys != null) {
+                    latest.put(keys, queueOffset);
+                }
+                return true;
+            }
+        };
+        to = this.scan(consumeQueue, from, to, collector);
+        if (to <= from) {
+            return false;
+        }
+
+        // pass two, copy what is retained into the next generation
+        int logFileSize = (int) Math.min(this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog(),
+            Math.max(retainedBytes[0], MappedFile.OS_PAGE_SIZE));
+        int cqFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeConsumeQueue()
+            / ConsumeQueue.CQ_STORE_UNIT_SIZE * UNIT_SIZE;
+        final Generation next = new Generation(new File(this.storePath, UtilAll.offset2FileName(to)), to, logFileSize,
+            cqFileSize);
+        final boolean[] writeOK = new boolean[] {true};
+        if (previous != null) {
+            previous.scan(new MessageVisitor() {
+                @Override
+                public boolean visit(long queueOffset, ByteBuffer message, int size, String keys, long tagsCode) {
+                    if (keys == null || !latest.containsKey(keys)) {
+                        writeOK[0] = writeOK[0] && next.append(queueOffset, message, size, tagsCode);
+                    }
+                    return true;
+                }
+            });
+        }
+        this.scan(consumeQueue, from, to, new MessageVisitor() {
+            @Override
+            public boolean visit(long queueOffset, ByteBuffer message, int size, String keys, long tagsCode) {
+                if (keys == null || latest.get(keys) == queueOffset) {
+                    writeOK[0] = writeOK[0] && next.append(queueOffset, message, size, tagsCode);
+                }
+                return true;
+            }
+        });
+
+        if (!writeOK[0] || !next.complete()) {
+            log.error("compact {}-{} up to offset {} failed", this.topic, this.queueId, to);
+            next.destroy();
+            return false;
+        }
+
+        this.current = next;
+        if (previous != null) {
+            synchronized (this.retired) {
+                this.retired.add(previous);
+            }
+        }
+        this.destroyRetired();
+
+        log.info("compact {}-{} up to offset {}, retain {} of {} messages, {} keys, cost {} ms", this.topic,
+            this.queueId, to, next.unitNum, (null == previous ? 0 : previous.unitNum) + to - from, latest.size(),
+            System.currentTimeMillis() - beginTime);
+        return true;
+    }
+
+    /**
+     * @return the offset the scan got to, lower than to if the consume queue ends early or the visitor stops
+     */
+    private long scan(final ConsumeQueue consumeQueue, final long from, final long to, final MessageVisitor visitor) {
+        long offset = from;
+        while (offset < to) {
+            SelectMappedBufferResult units = consumeQueue.getIndexBuffer(offset);
+            if (null == units) {
+                break;
+            }
+            try {
+                ByteBuffer byteBuffer = units.getByteBuffer();
+                for (int i = 0; i < units.getSize() && offset < to; i += ConsumeQueue.CQ_STORE_UNIT_SIZE, offset++) {
+                    long offsetPy = byteBuffer.getLong();
+                    int sizePy = byteBuffer.getInt();
+                    byteBuffer.getLong();
+
+                    SelectMappedBufferResult message = this.defaultMessageStore.getCommitLog().getMessage(offsetPy, sizePy);
+                    if (null == message) {
+                        // already deleted from the commit log, nothing left to keep
+                        continue;
+                    }
+                    try {
+                        if (!visitMessage(offset, message.getByteBuffer(), sizePy, visitor)) {
+                            return offset;
+                        }
+                    } finally {
+                        message.release();
+                    }
+                }
+            } finally {
+                units.release();
+            }
+        }
+        return offset;
+    }
+
+    private static boolean visitMessage(final long queueOffset, final ByteBuffer message, final int size,
+        final MessageVisitor visitor) {
+        Map<String, String> properties = MessageDecoder.decodeProperties(message.slice());
+        String keys = null;
+        long tagsCode = 0;
+        if (properties != null) {
+            keys = properties.get(MessageConst.PROPERTY_KEYS);
+            if (keys != null && keys.isEmpty()) {
+                keys = null;
+            }
+            tagsCode = MessageExtBrokerInner.tagsString2tagsCode(properties.get(MessageConst.PROPERTY_TAGS));
+        }
+        return visitor.visit(queueOffset, message, size, keys, tagsCode);
+    }
+
+    /**
+     * @return null if the offset is not below the offset compaction got to, the commit log serves it then
+     */
+    public GetMessageResult getMessage(final long offset, final int maxMsgNums, final MessageFilter messageFilter) {
+        Generation generation = this.current;
+        if (null == generation || offset >= generation.compactedUpTo) {
+            return null;
+        }
+
+        GetMessageResult getResult = new GetMessageResult();
+        GetMessageStatus status = GetMessageStatus.NO_MATCHED_MESSAGE;
+        ByteBuffer unit = ByteBuffer.allocate(UNIT_SIZE);
+        long index = generation.lowerBound(offset, unit);
+        final long maxFilterIndex = index + Math.max(16000 / UNIT_SIZE, maxMsgNums);
+        long nextBeginOffset = generation.compactedUpTo;
+        for (; index < generation.unitNum; index++) {
+            if (!generation.readUnit(index, unit)) {
+                break;
+            }
+            long queueOffset = unit.getLong();
+            long pos = unit.getLong();
+            int size = unit.getInt();
+            long tagsCode = unit.getLong();
+
+            if (index >= maxFilterIndex
+                || this.defaultMessageStore.isTheBatchFull(size, maxMsgNums, getResult.getBufferTotalSize(),
+                getResult.getMessageCount(), true)) {
+                nextBeginOffset = queueOffset;
+                break;
+            }
+
+            if (messageFilter != null && !messageFilter.isMatchedByConsumeQueue(tagsCode, null)) {
+                continue;
+            }
+
+            SelectMappedBufferResult selectResult = generation.selectMessage(pos, size);
+            if (null == selectResult) {
+                // the generation was replaced and destroyed under us, the next pull reads the new one
+                nextBeginOffset = queueOffset;
+                break;
+            }
+
+            if (messageFilter != null && !messageFilter.isMatchedByCommitLog(selectResult.getByteBuffer().slice(), null)) {
+                selectResult.release();
+                continue;
+            }
+
+            getResult.addMessage(selectResult);
+            status = GetMessageStatus.FOUND;
+        }
+
+        getResult.setStatus(status);
+        getResult.setNextBeginOffset(nextBeginOffset);
+        getResult.setMinOffset(generation.minOffset);
+        getResult.setMaxOffset(Math.max(generation.compactedUpTo,
+            this.defaultMessageStore.getMaxOffsetInQueue(this.topic, this.queueId)));
+        return getResult;
+    }
+
+    /**
+     * @return the first offset left in the compacted view, -1 if there is none
+     */
+    public long getMinOffset() {
+        Generation generation = this.current;
+        return null == generation ? -1 : generation.minOffset;
+    }
+
+    public long getCompactedUpTo() {
+        Generation generation = this.current;
+        return null == generation ? 0 : generation.compactedUpTo;
+    }
+
+    public long getMessageNum() {
+        Generation generation = this.current;
+        return null == generation ? 0 : generation.unitNum;
+    }
+
+    private void destroyRetired() {
+        synchronized (this.retired) {
+            for (Iterator<Generation> it = this.retired.iterator(); it.hasNext(); ) {
+                if (it.next().destroy()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void destroy() {
+        Generation generation = this.current;
+        this.current = null;
+        if (generation != null) {
+            synchronized (this.retired) {
+                this.retired.add(generation);
+            }
+        }
+        this.destroyRetired();
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getQueueId() {
+        return queueId;
+    }
+
+    interface MessageVisitor {
+        /**
+         * @return false to stop before this message
+         */
+        boolean visit(long queueOffset, ByteBuffer message, int size, String keys, long tagsCode);
+    }
+
+    static class Generation {
+        private final File dir;
+        private final long compactedUpTo;
+        private final MappedFileQueue logQueue;
+        private final MappedFileQueue cqQueue;
+        private final ByteBuffer unitBuffer = ByteBuffer.allocate(UNIT_SIZE);
+        private long unitNum = 0;
+        private long minOffset;
+
+        Generation(final File dir, final long compactedUpTo, final int logFileSize, final int cqFileSize) {
+            this.dir = dir;
+            this.compactedUpTo = compactedUpTo;
+            this.minOffset = compactedUpTo;
+            this.logQueue = new MappedFileQueue(dir.getPath() + File.separator + "log", logFileSize, null);
+            this.cqQueue = new MappedFileQueue(dir.getPath() + File.separator + "cq", cqFileSize, null);
+        }
+
+        /**
+         * @return null if the generation was never completed or is damaged
+         */
+        static Generation open(final File dir) {
+            try {
+                String meta = MixAll.file2String(new File(dir, META_FILE));
+                if (null == meta) {
+                    return null;
+                }
+                String[] fields = meta.trim().split(" ");
+                Generation generation = new Generation(dir, Long.parseLong(fields[0]), Integer.parseInt(fields[2]),
+                    Integer.parseInt(fields[3]));
+                generation.unitNum = Long.parseLong(fields[1]);
+                if (!generation.logQueue.load() || !generation.cqQueue.load()) {
+                    generation.destroy();
+                    return null;
+                }
+                ByteBuffer unit = ByteBuffer.allocate(UNIT_SIZE);
+                if (generation.unitNum > 0 && generation.readUnit(0, unit)) {
+                    generation.minOffset = unit.getLong();
+                }
+                return generation;
+            } catch (IOException | RuntimeException e) {
+                log.warn("compacted queue generation damaged, drop it, " + dir, e);
+                return null;
+            }
+        }
+
+        boolean append(final long queueOffset, final ByteBuffer message, final int size, final long tagsCode) {
+            MappedFile logFile = this.logQueue.getLastMappedFile(0);
+            if (logFile != null && logFile.getFileSize() - logFile.getWrotePosition() < size) {
+                // messages never straddle two files
+                logFile.setWrotePosition(logFile.getFileSize());
+                logFile = this.logQueue.getLastMappedFile(0);
+            }
+            MappedFile cqFile = this.cqQueue.getLastMappedFile(0);
+            if (null == logFile || null == cqFile) {
+                return false;
+            }
+
+            long pos = logFile.getFileFromOffset() + logFile.getWrotePosition();
+            byte[] data = new byte[size];
+            message.duplicate().get(data);
+            if (!logFile.appendMessage(data)) {
+                return false;
+            }
+
+            this.unitBuffer.clear();
+            this.unitBuffer.putLong(queueOffset);
+            this.unitBuffer.putLong(pos);
+            this.unitBuffer.putInt(size);
+            this.unitBuffer.putLong(tagsCode);
+            if (!cqFile.appendMessage(this.unitBuffer.array())) {
+                return false;
+            }
+            if (0 == this.unitNum) {
+                this.minOffset = queueOffset;
+            }
+            this.unitNum++;
+            return true;
+        }
+
+        /**
+         * Flushes everything and writes the meta file, the generation counts from then on.
+         */
+        boolean complete() {
+            for (MappedFile mappedFile : this.logQueue.getMappedFiles()) {
+                mappedFile.flush(0);
+            }
+            for (MappedFile mappedFile : this.cqQueue.getMappedFiles()) {
+                mappedFile.flush(0);
+            }
+            try {
+                MixAll.string2File(this.compactedUpTo + " " + this.unitNum + " " + this.logQueue.getMappedFileSize()
+                    + " " + this.cqQueue.getMappedFileSize(), new File(this.dir, META_FILE).getPath());
+                return true;
+            } catch (IOException e) {
+                log.error("write compacted queue meta failed, " + this.dir, e);
+                return false;
+            }
+        }
+
+        void scan(final MessageVisitor visitor) {
+            ByteBuffer unit = ByteBuffer.allocate(UNIT_SIZE);
+            for (long index = 0; index < this.unitNum; index++) {
+                if (!this.readUnit(index, unit)) {
+                    return;
+                }
+                long queueOffset = unit.getLong();
+                long pos = unit.getLong();
+                int size = unit.getInt();
+                SelectMappedBufferResult message = this.selectMessage(pos, size);
+                if (null == message) {
+                    return;
+                }
+                try {
+                    if (!visitMessage(queueOffset, message.getByteBuffer(), size, visitor)) {
+                        return;
+                    }
+                } finally {
+                    message.release();
+                }
+            }
+        }
+
+        long getLogBytes() {
+            MappedFile lastFile = this.logQueue.getLastMappedFile();
+            return null == lastFile ? 0 : lastFile.getFileFromOffset() + lastFile.getWrotePosition();
+        }
+
+        /**
+         * @return index of the first unit at or after the offset, unitNum if there is none
+         */
+        long lowerBound(final long offset, final ByteBuffer unit) {
+            long low = 0;
+            long high = this.unitNum;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (!this.readUnit(mid, unit)) {
+                    return this.unitNum;
+                }
+                if (unit.getLong() < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        boolean readUnit(final long index, final ByteBuffer unit) {
+            long offset = index * UNIT_SIZE;
+            MappedFile mappedFile = this.cqQueue.findMappedFileByOffset(offset);
+            if (null == mappedFile) {
+                return false;
+            }
+            SelectMappedBufferResult result = mappedFile.selectMappedBuffer(
+                (int) (offset % this.cqQueue.getMappedFileSize()), UNIT_SIZE);
+            if (null == result) {
+                return false;
+            }
+            try {
+                unit.clear();
+                unit.put(result.getByteBuffer());
+                unit.flip();
+                return true;
+            } finally {
+                result.release();
+            }
+        }
+
+        SelectMappedBufferResult selectMessage(final long pos, final int size) {
+            MappedFile mappedFile = this.logQueue.findMappedFileByOffset(pos);
+            if (null == mappedFile) {
+                return null;
+            }
+            return mappedFile.selectMappedBuffer((int) (pos % this.logQueue.getMappedFileSize()), size);
+        }
+
+        /**
+         * @return false if some file is still held by a reader, try again later
+         */
+        boolean destroy() {
+            boolean destroyed = true;
+            for (MappedFile mappedFile : this.logQueue.getMappedFiles()) {
+                destroyed = mappedFile.destroy(DESTROY_INTERVAL_FORCIBLY) && destroyed;
+            }
+            for (MappedFile mappedFile : this.cqQueue.getMappedFiles()) {
+                destroyed = mappedFile.destroy(DESTROY_INTERVAL_FORCIBLY) && destroyed;
+            }
+            if (destroyed) {
+                UtilAll.deleteFile(this.dir);
+            }
+            return destroyed;
+        }
+    }
+}
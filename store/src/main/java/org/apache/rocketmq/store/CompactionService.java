@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+
+/**
+ * Compacts the queues of the topics listed in compactionTopics every compactionInterval, see {@link CompactedQueue}.
+ * Reads below the offset a queue was compacted up to are served from the compacted view, so consumers rebuilding
+ * state from such a topic replay the latest message per key only, and those messages outlive the commit log files
+ * they were written to.
+ */
+public class CompactionService extends ServiceThread {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final String storePath;
+    private final ConcurrentMap<String/* topic */, ConcurrentMap<Integer/* queueId */, CompactedQueue>> compactedQueueTable =
+        new ConcurrentHashMap<String, ConcurrentMap<Integer, CompactedQueue>>();
+    private long lastCompactTimestamp = System.currentTimeMillis();
+
+    public CompactionService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.storePath = StorePathConfigHelper.getStorePathCompaction(
+            defaultMessageStore.getMessageStoreConfig().getStorePathRootDir());
+    }
+
+    public boolean load() {
+        File[] topicDirs = new File(this.storePath).listFiles();
+        if (null == topicDirs) {
+            return true;
+        }
+
+        for (File topicDir : topicDirs) {
+            File[] queueDirs = topicDir.listFiles();
+            if (null == queueDirs) {
+                continue;
+            }
+            for (File queueDir : queueDirs) {
+                int queueId;
+                try {
+                    queueId = Integer.parseInt(queueDir.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                CompactedQueue compactedQueue = this.findOrCreateCompactedQueue(topicDir.getName(), queueId);
+                if (!compactedQueue.load()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getServiceName() {
+        return CompactionService.class.getSimpleName();
+    }
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(1000);
+                long interval = this.defaultMessageStore.getMessageStoreConfig().getCompactionInterval();
+                if (System.currentTimeMillis() - this.lastCompactTimestamp >= interval) {
+                    this.compactAll();
+                    this.lastCompactTimestamp = System.currentTimeMillis();
+                }
+            } catch (Throwable e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+    void compactAll() {
+        Set<String> topics = this.getCompactionTopics();
+        long minMessages = this.defaultMessageStore.getMessageStoreConfig().getCompactionMinMessages();
+
+        for (String topic : topics) {
+            ConcurrentMap<Integer, ConsumeQueue> maps = this.defaultMessageStore.getConsumeQueueTable().get(topic);
+            if (null == maps) {
+                continue;
+            }
+            for (ConsumeQueue logic : maps.values()) {
+                if (this.isStopped()) {
+                    return;
+                }
+                // a round capped by compactionMaxKeysPerRound leaves the rest of the backlog to the next ones
+                CompactedQueue compactedQueue = this.findOrCreateCompactedQueue(topic, logic.getQueueId());
+                long target = logic.getMaxOffsetInQueue();
+                while (compactedQueue.compact(logic, minMessages) && compactedQueue.getCompactedUpTo() < target
+                    && !this.isStopped()) {
+                }
+            }
+        }
+
+        // topics taken off the list are served from the commit log again
+        for (Iterator<Map.Entry<String, ConcurrentMap<Integer, CompactedQueue>>> it =
+            this.compactedQueueTable.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, ConcurrentMap<Integer, CompactedQueue>> entry = it.next();
+            if (!topics.contains(entry.getKey())) {
+                it.remove();
+                for (CompactedQueue compactedQueue : entry.getValue().values()) {
+                    compactedQueue.destroy();
+                }
+                log.info("topic {} is not compacted any more, compacted queues destroyed", entry.getKey());
+            }
+        }
+    }
+
+    private Set<String> getCompactionTopics() {
+        Set<String> topics = new HashSet<String>();
+        String compactionTopics = this.defaultMessageStore.getMessageStoreConfig().getCompactionTopics();
+        if (compactionTopics != null) {
+            for (String topic : compactionTopics.split(",")) {
+                if (!topic.trim().isEmpty()) {
+                    topics.add(topic.trim());
+                }
+            }
+        }
+        return topics;
+    }
+
+    CompactedQueue findOrCreateCompactedQueue(final String topic, final int queueId) {
+        ConcurrentMap<Integer, CompactedQueue> map = this.compactedQueueTable.get(topic);
+        if (null == map) {
+            ConcurrentMap<Integer, CompactedQueue> newMap = new ConcurrentHashMap<Integer, CompactedQueue>(8);
+            ConcurrentMap<Integer, CompactedQueue> oldMap = this.compactedQueueTable.putIfAbsent(topic, newMap);
+            map = oldMap != null ? oldMap : newMap;
+        }
+
+        CompactedQueue compactedQueue = map.get(queueId);
+        if (null == compactedQueue) {
+            CompactedQueue newQueue = new CompactedQueue(topic, queueId,
+                this.storePath + File.separator + topic + File.separator + queueId, this.defaultMessageStore);
+            CompactedQueue oldQueue = map.putIfAbsent(queueId, newQueue);
+            compactedQueue = oldQueue != null ? oldQueue : newQueue;
+        }
+        return compactedQueue;
+    }
+
+    public CompactedQueue findCompactedQueue(final String topic, final int queueId) {
+        ConcurrentMap<Integer, CompactedQueue> map = this.compactedQueueTable.get(topic);
+        return null == map ? null : map.get(queueId);
+    }
+
+    /**
+     * @return null if the queue has no compacted view or the offset lies beyond it
+     */
+    public GetMessageResult getMessage(final String topic, final int queueId, final long offset, final int maxMsgNums,
+        final MessageFilter messageFilter) {
+        CompactedQueue compactedQueue = this.findCompactedQueue(topic, queueId);
+        if (null == compactedQueue) {
+            return null;
+        }
+        return compactedQueue.getMessage(offset, maxMsgNums, messageFilter);
+    }
+
+    /**
+     * @return -1 if the queue has no compacted view
+     */
+    public long getMinOffsetInQueue(final String topic, final int queueId) {
+        CompactedQueue compactedQueue = this.findCompactedQueue(topic, queueId);
+        return null == compactedQueue ? -1 : compactedQueue.getMinOffset();
+    }
+
+    public void destroyTopic(final String topic) {
+        ConcurrentMap<Integer, CompactedQueue> map = this.compactedQueueTable.remove(topic);
+        if (map != null) {
+            for (CompactedQueue compactedQueue : map.values()) {
+                compactedQueue.destroy();
+            }
+        }
+    }
+
+    public void destroy() {
+        for (String topic : this.compactedQueueTable.keySet()) {
+            this.destroyTopic(topic);
+        }
+    }
+}
@@ -17,9 +17,17 @@
 package org.apache.rocketmq.store;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.store.config.BrokerRole;
@@ -39,11 +47,24 @@ public class ConsumeQueue {
     private final ByteBuffer byteBufferIndex;
 
     private final String storePath;
+    private final String queueDir;
     private final int mappedFileSize;
     private long maxPhysicOffset = -1;
     private volatile long minLogicOffset = 0;
     private ConsumeQueueExt consumeQueueExt = null;
 
+    /**
+     * False while the files of a lazily loaded queue are not mapped, {@link #unloadedMaxOffset} and
+     * {@link #maxPhysicOffset} stand in for them until {@link #ensureLoaded()}.
+     */
+    private volatile boolean loaded = true;
+    private volatile long unloadedMaxOffset = 0;
+    private volatile long lastAccessTimestamp = System.currentTimeMillis();
+    /**
+     * Readers and the dispatcher holding the files mapped, see {@link #pin()}.
+     */
+    private final AtomicInteger pinCount = new AtomicInteger(0);
+
     public ConsumeQueue(
         final String topic,
         final int queueId,
@@ -57,11 +78,11 @@ public class ConsumeQueue {
         this.topic = topic;
         this.queueId = queueId;
 
-        String queueDir = this.storePath
+        this.queueDir = this.storePath
             + File.separator + topic
             + File.separator + queueId;
 
-        this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null);
+        this.mappedFileQueue = new MappedFileQueue(this.queueDir, mappedFileSize, null);
 
         this.byteBufferIndex = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
 
@@ -85,7 +106,149 @@ public class ConsumeQueue {
         return result;
     }
 
+    /**
+     * Loads the queue after a clean shutdown without mapping anything: the units are appended in order, so the end
+     * of the queue is found by a binary search over the last file. The files are mapped on first access by
+     * {@link #ensureLoaded()}. Falls back to {@link #load()} whenever the end of the queue is not obvious.
+     */
+    public boolean loadLazily() {
+        if (isExtReadEnable()) {
+            return this.load();
+        }
+
+        File[] files = new File(this.queueDir).listFiles();
+        if (files == null || files.length == 0) {
+            return this.load();
+        }
+        Arrays.sort(files);
+        File lastFile = files[files.length - 1];
+        if (lastFile.length() != this.mappedFileSize) {
+            return this.load();
+        }
+
+        int unitCount = 0;
+        long lastPhysicOffset;
+        ByteBuffer unit = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
+        try (FileChannel fileChannel = new RandomAccessFile(lastFile, "r").getChannel()) {
+            int low = 0;
+            int high = this.mappedFileSize / CQ_STORE_UNIT_SIZE - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (readUnit(fileChannel, mid, unit)) {
+                    unitCount = mid + 1;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (unitCount == 0) {
+                return this.load();
+            }
+            readUnit(fileChannel, unitCount - 1, unit);
+            lastPhysicOffset = unit.getLong(0) + unit.getInt(8);
+        } catch (IOException e) {
+            log.warn("lazy load consume queue " + this.topic + "-" + this.queueId + " failed, load it now", e);
+            return this.load();
+        }
+
+        this.maxPhysicOffset = lastPhysicOffset;
+        this.unloadedMaxOffset = (Long.parseLong(lastFile.getName()) + unitCount * CQ_STORE_UNIT_SIZE) / CQ_STORE_UNIT_SIZE;
+        this.minLogicOffset = Long.parseLong(files[0].getName());
+        this.loaded = false;
+        log.info("lazy load consume queue {}-{} OK, max offset {}", this.topic, this.queueId, this.unloadedMaxOffset);
+        return true;
+    }
+
+    private static boolean readUnit(final FileChannel fileChannel, final int index, final ByteBuffer unit)
+        throws IOException {
+        unit.clear();
+        while (unit.hasRemaining()) {
+            if (fileChannel.read(unit, (long) index * CQ_STORE_UNIT_SIZE + unit.position()) < 0) {
+                return false;
+            }
+        }
+        return unit.getLong(0) >= 0 && unit.getInt(8) > 0;
+    }
+
+    /**
+     * Maps the files of a lazily loaded or unloaded queue, only a timestamp update once they are mapped.
+     */
+    public void ensureLoaded() {
+        this.lastAccessTimestamp = System.currentTimeMillis();
+        if (this.loaded) {
+            return;
+        }
+
+        synchronized (this) {
+            if (this.loaded) {
+                return;
+            }
+            if (!this.mappedFileQueue.load()) {
+                log.error("map consume queue {}-{} failed", this.topic, this.queueId);
+            }
+            this.doRecover();
+            this.correctMinOffset(this.defaultMessageStore.getCommitLog().getMinOffset());
+            this.loaded = true;
+        }
+    }
+
+    /**
+     * Maps the files and keeps {@link #unload()} off them until {@link #unpin()}, for reads spanning several
+     * index buffers.
+     */
+    public void pin() {
+        this.pinCount.incrementAndGet();
+        this.ensureLoaded();
+    }
+
+    public void unpin() {
+        this.pinCount.decrementAndGet();
+    }
+
+    /**
+     * Flushes and takes the files out of an idle queue, the next {@link #ensureLoaded()} maps them again.
+     *
+     * @return the files taken out, still to be unmapped, null if the queue is pinned
+     */
+    public synchronized List<MappedFile> unload() {
+        if (!this.loaded) {
+            return Collections.emptyList();
+        }
+        if (this.pinCount.get() > 0) {
+            return null;
+        }
+
+        long maxOffset = this.mappedFileQueue.getMaxOffset();
+        while (this.mappedFileQueue.getFlushedWhere() < maxOffset) {
+            if (this.mappedFileQueue.flush(0)) {
+                break;
+            }
+        }
+        this.unloadedMaxOffset = maxOffset / CQ_STORE_UNIT_SIZE;
+        this.loaded = false;
+        // a reader pinning after this sees loaded false and waits on the lock, one pinned before is seen here
+        if (this.pinCount.get() > 0) {
+            this.loaded = true;
+            return null;
+        }
+        return this.mappedFileQueue.unload();
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public long getLastAccessTimestamp() {
+        return lastAccessTimestamp;
+    }
+
     public void recover() {
+        if (this.loaded) {
+            this.doRecover();
+        }
+    }
+
+    private void doRecover() {
         final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
         if (!mappedFiles.isEmpty()) {
 
@@ -153,6 +316,19 @@ public class ConsumeQueue {
     }
 
     public long getOffsetInQueueByTime(final long timestamp) {
+        if (!this.defaultMessageStore.getMessageStoreConfig().isConsumeQueueLazyLoadEnable()) {
+            return this.searchOffsetInQueueByTime(timestamp);
+        }
+        // an unloaded queue has no files to search, it would answer 0
+        this.pin();
+        try {
+            return this.searchOffsetInQueueByTime(timestamp);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    private long searchOffsetInQueueByTime(final long timestamp) {
         MappedFile mappedFile = this.mappedFileQueue.getMappedFileByTime(timestamp);
         if (mappedFile != null) {
             long offset = 0;
@@ -222,6 +398,12 @@ public class ConsumeQueue {
     }
 
     public void truncateDirtyLogicFiles(long phyOffet) {
+        if (!this.loaded) {
+            if (this.maxPhysicOffset <= phyOffet) {
+                return;
+            }
+            this.ensureLoaded();
+        }
 
         int logicFileSize = this.mappedFileSize;
 
@@ -292,6 +474,10 @@ public class ConsumeQueue {
     }
 
     public long getLastOffset() {
+        if (!this.loaded) {
+            return this.maxPhysicOffset;
+        }
+
         long lastOffset = -1;
 
         int logicFileSize = this.mappedFileSize;
@@ -331,11 +517,37 @@ public class ConsumeQueue {
     }
 
     public int deleteExpiredFile(long offset) {
+        if (!this.loaded) {
+            if (!this.isFirstFileExpired(offset)) {
+                return 0;
+            }
+            this.ensureLoaded();
+        }
+
         int cnt = this.mappedFileQueue.deleteExpiredFileByOffset(offset, CQ_STORE_UNIT_SIZE);
         this.correctMinOffset(offset);
         return cnt;
     }
 
+    /**
+     * Tells for an unloaded queue whether its first file would be deleted, reading only the last unit of that file.
+     */
+    private boolean isFirstFileExpired(final long offset) {
+        long firstFileFromOffset = this.minLogicOffset - this.minLogicOffset % this.mappedFileSize;
+        if (this.unloadedMaxOffset * CQ_STORE_UNIT_SIZE <= firstFileFromOffset + this.mappedFileSize) {
+            return false;
+        }
+
+        File firstFile = new File(this.queueDir, UtilAll.offset2FileName(firstFileFromOffset));
+        ByteBuffer unit = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
+        try (FileChannel fileChannel = new RandomAccessFile(firstFile, "r").getChannel()) {
+            return readUnit(fileChannel, this.mappedFileSize / CQ_STORE_UNIT_SIZE - 1, unit) && unit.getLong(0) < offset;
+        } catch (IOException e) {
+            log.warn("read first file of consume queue " + this.topic + "-" + this.queueId + " failed", e);
+            return false;
+        }
+    }
+
     public void correctMinOffset(long phyMinOffset) {
         MappedFile mappedFile = this.mappedFileQueue.getFirstMappedFile();
         long minExtAddr = 1;
@@ -376,7 +588,16 @@ public class ConsumeQueue {
         return this.minLogicOffset / CQ_STORE_UNIT_SIZE;
     }
 
-    public void putMessagePositionInfoWrapper(DispatchRequest request) {
+    public synchronized void putMessagePositionInfoWrapper(DispatchRequest request) {
+        this.pin();
+        try {
+            this.doPutMessagePositionInfo(request);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    private void doPutMessagePositionInfo(DispatchRequest request) {
         final int maxRetries = 30;
         boolean canWrite = this.defaultMessageStore.getRunningFlags().isCQWriteable();
         for (int i = 0; i < maxRetries && canWrite; i++) {
@@ -386,6 +607,10 @@ public class ConsumeQueue {
                 cqExtUnit.setFilterBitMap(request.getBitMap());
                 cqExtUnit.setMsgStoreTime(request.getStoreTimestamp());
                 cqExtUnit.setTagsCode(request.getTagsCode());
+                if (this.defaultMessageStore.getMessageStoreConfig().isMessageTtlEnable() && request.getPropertiesMap() != null) {
+                    cqExtUnit.setExpireTimestamp(MessageExtBrokerInner.ttl2ExpireTimestamp(request.getStoreTimestamp(),
+                        request.getPropertiesMap().get(MessageConst.PROPERTY_MESSAGE_TTL)));
+                }
 
                 long extAddr = this.consumeQueueExt.put(cqExtUnit);
                 if (isExtAddr(extAddr)) {
@@ -398,11 +623,15 @@ public class ConsumeQueue {
             boolean result = this.putMessagePositionInfo(request.getCommitLogOffset(),
                 request.getMsgSize(), tagsCode, request.getConsumeQueueOffset());
             if (result) {
-                if (this.defaultMessageStore.getMessageStoreConfig().getBrokerRole() == BrokerRole.SLAVE ||
-                    this.defaultMessageStore.getMessageStoreConfig().isEnableDLegerCommitLog()) {
-                    this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(request.getStoreTimestamp());
+                // with the reput pipeline other queues may still be behind this one, the pipeline's watermark
+                // moves the checkpoint instead
+                if (!this.defaultMessageStore.getMessageStoreConfig().isEnableReputPipeline()) {
+                    if (this.defaultMessageStore.getMessageStoreConfig().getBrokerRole() == BrokerRole.SLAVE ||
+                        this.defaultMessageStore.getMessageStoreConfig().isEnableDLegerCommitLog()) {
+                        this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(request.getStoreTimestamp());
+                    }
+                    this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(request.getStoreTimestamp());
                 }
-                this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(request.getStoreTimestamp());
                 return;
             } else {
                 // XXX: warn and notify me
@@ -422,7 +651,7 @@ public class ConsumeQueue {
         this.defaultMessageStore.getRunningFlags().makeLogicsQueueError();
     }
 
-    private boolean putMessagePositionInfo(final long offset, final int size, final long tagsCode,
+    protected boolean putMessagePositionInfo(final long offset, final int size, final long tagsCode,
         final long cqOffset) {
 
         if (offset + size <= this.maxPhysicOffset) {
@@ -489,6 +718,19 @@ public class ConsumeQueue {
     }
 
     public SelectMappedBufferResult getIndexBuffer(final long startIndex) {
+        if (!this.defaultMessageStore.getMessageStoreConfig().isConsumeQueueLazyLoadEnable()) {
+            return this.selectIndexBuffer(startIndex);
+        }
+        // the selected buffer holds its file, the pin only has to cover the lookup
+        this.pin();
+        try {
+            return this.selectIndexBuffer(startIndex);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    private SelectMappedBufferResult selectIndexBuffer(final long startIndex) {
         int mappedFileSize = this.mappedFileSize;
         long offset = startIndex * CQ_STORE_UNIT_SIZE;
         if (offset >= this.getMinLogicOffset()) {
@@ -519,6 +761,14 @@ public class ConsumeQueue {
         return minLogicOffset;
     }
 
+    protected MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+
+    protected DefaultMessageStore getDefaultMessageStore() {
+        return defaultMessageStore;
+    }
+
     public void setMinLogicOffset(long minLogicOffset) {
         this.minLogicOffset = minLogicOffset;
     }
@@ -546,6 +796,7 @@ public class ConsumeQueue {
     }
 
     public void destroy() {
+        this.ensureLoaded();
         this.maxPhysicOffset = -1;
         this.minLogicOffset = 0;
         this.mappedFileQueue.destroy();
@@ -559,6 +810,9 @@ public class ConsumeQueue {
     }
 
     public long getMaxOffsetInQueue() {
+        if (!this.loaded) {
+            return this.unloadedMaxOffset;
+        }
         return this.mappedFileQueue.getMaxOffset() / CQ_STORE_UNIT_SIZE;
     }
 
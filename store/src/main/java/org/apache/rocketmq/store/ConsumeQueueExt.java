@@ -446,6 +446,11 @@ public class ConsumeQueueExt {
          * filter bit map
          */
         private byte[] filterBitMap;
+        /**
+         * store time plus the TTL of the message, 0 if it never expires. Only written after the bit map when set,
+         * so units without it keep the old layout.
+         */
+        private long expireTimestamp;
 
         /**
          * build unit from buffer from current position.
@@ -465,15 +470,15 @@ public class ConsumeQueueExt {
             this.msgStoreTime = buffer.getLong();
             this.bitMapSize = buffer.getShort();
 
-            if (this.bitMapSize < 1) {
-                return true;
-            }
+            if (this.bitMapSize > 0) {
+                if (this.filterBitMap == null || this.filterBitMap.length != this.bitMapSize) {
+                    this.filterBitMap = new byte[bitMapSize];
+                }
 
-            if (this.filterBitMap == null || this.filterBitMap.length != this.bitMapSize) {
-                this.filterBitMap = new byte[bitMapSize];
+                buffer.get(this.filterBitMap);
             }
 
-            buffer.get(this.filterBitMap);
+            this.expireTimestamp = this.size >= MIN_EXT_UNIT_SIZE + this.bitMapSize + 8 ? buffer.getLong() : 0;
             return true;
         }
 
@@ -506,7 +511,7 @@ public class ConsumeQueueExt {
          */
         private byte[] write(final ByteBuffer container) {
             this.bitMapSize = (short) (filterBitMap == null ? 0 : filterBitMap.length);
-            this.size = (short) (MIN_EXT_UNIT_SIZE + this.bitMapSize);
+            this.size = (short) this.calcUnitSize();
 
             ByteBuffer temp = container;
 
@@ -524,6 +529,9 @@ public class ConsumeQueueExt {
             if (this.bitMapSize > 0) {
                 temp.put(this.filterBitMap);
             }
+            if (this.expireTimestamp > 0) {
+                temp.putLong(this.expireTimestamp);
+            }
 
             return temp.array();
         }
@@ -532,7 +540,8 @@ public class ConsumeQueueExt {
          * Calculate unit size by current data.
          */
         private int calcUnitSize() {
-            int sizeTemp = MIN_EXT_UNIT_SIZE + (filterBitMap == null ? 0 : filterBitMap.length);
+            int sizeTemp = MIN_EXT_UNIT_SIZE + (filterBitMap == null ? 0 : filterBitMap.length)
+                + (expireTimestamp > 0 ? 8 : 0);
             return sizeTemp;
         }
 
@@ -565,6 +574,18 @@ public class ConsumeQueueExt {
             this.bitMapSize = (short) (filterBitMap == null ? 0 : filterBitMap.length);
         }
 
+        public long getExpireTimestamp() {
+            return expireTimestamp;
+        }
+
+        public void setExpireTimestamp(final long expireTimestamp) {
+            this.expireTimestamp = expireTimestamp;
+        }
+
+        public boolean isExpired(final long now) {
+            return this.expireTimestamp > 0 && this.expireTimestamp <= now;
+        }
+
         public short getSize() {
             return size;
         }
@@ -586,6 +607,8 @@ public class ConsumeQueueExt {
                 return false;
             if (tagsCode != cqExtUnit.tagsCode)
                 return false;
+            if (expireTimestamp != cqExtUnit.expireTimestamp)
+                return false;
             if (!Arrays.equals(filterBitMap, cqExtUnit.filterBitMap))
                 return false;
 
@@ -599,6 +622,7 @@ public class ConsumeQueueExt {
             result = 31 * result + (int) (msgStoreTime ^ (msgStoreTime >>> 32));
             result = 31 * result + (int) bitMapSize;
             result = 31 * result + (filterBitMap != null ? Arrays.hashCode(filterBitMap) : 0);
+            result = 31 * result + (int) (expireTimestamp ^ (expireTimestamp >>> 32));
             return result;
         }
 
@@ -610,6 +634,7 @@ public class ConsumeQueueExt {
                 ", msgStoreTime=" + msgStoreTime +
                 ", bitMapSize=" + bitMapSize +
                 ", filterBitMap=" + Arrays.toString(filterBitMap) +
+                ", expireTimestamp=" + expireTimestamp +
                 '}';
         }
     }
@@ -24,13 +24,26 @@ import java.util.Map;
 public class DefaultMessageFilter implements MessageFilter {
 
     private SubscriptionData subscriptionData;
+    private final boolean messageTtlEnable;
 
     public DefaultMessageFilter(final SubscriptionData subscriptionData) {
+        this(subscriptionData, false);
+    }
+
+    /**
+     * @param messageTtlEnable also reject messages past the expire time kept in their ext unit
+     */
+    public DefaultMessageFilter(final SubscriptionData subscriptionData, final boolean messageTtlEnable) {
         this.subscriptionData = subscriptionData;
+        this.messageTtlEnable = messageTtlEnable;
     }
 
     @Override
     public boolean isMatchedByConsumeQueue(Long tagsCode, ConsumeQueueExt.CqExtUnit cqExtUnit) {
+        if (messageTtlEnable && cqExtUnit != null && cqExtUnit.isExpired(System.currentTimeMillis())) {
+            return false;
+        }
+
         if (null == tagsCode || null == subscriptionData) {
             return true;
         }
@@ -24,25 +24,34 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import org.apache.rocketmq.common.BrokerConfig;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.SystemClock;
 import org.apache.rocketmq.common.ThreadFactoryImpl;
+import org.apache.rocketmq.common.TopicConfig;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.message.MessageDecoder;
@@ -61,6 +70,7 @@ import org.apache.rocketmq.store.ha.HAService;
 import org.apache.rocketmq.store.index.IndexService;
 import org.apache.rocketmq.store.index.QueryOffsetResult;
 import org.apache.rocketmq.store.schedule.ScheduleMessageService;
+import org.apache.rocketmq.store.schedule.TimerWheel;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
 
 public class DefaultMessageStore implements MessageStore {
@@ -88,8 +98,20 @@ public class DefaultMessageStore implements MessageStore {
 
     private final ScheduleMessageService scheduleMessageService;
 
+    private final TimerWheel timerWheel;
+
     private final StoreStatsService storeStatsService;
 
+    private final ReadAheadAdvisor readAheadAdvisor;
+
+    private final BacklogReader backlogReader;
+
+    private final LazyConsumeQueueService lazyConsumeQueueService;
+
+    private final CompactionService compactionService;
+
+    private volatile ConcurrentMap<String, TopicConfig> topicConfigTable;
+
     private final TransientStorePool transientStorePool;
 
     private final RunningFlags runningFlags = new RunningFlags();
@@ -105,6 +127,8 @@ public class DefaultMessageStore implements MessageStore {
 
     private StoreCheckpoint storeCheckpoint;
 
+    private DispatchPipeline recoverDispatchPipeline;
+
     private AtomicLong printTimes = new AtomicLong(0);
 
     private final LinkedList<CommitLogDispatcher> dispatcherList;
@@ -145,11 +169,29 @@ public class DefaultMessageStore implements MessageStore {
             this.commitLog = new CommitLog(this);
         }
         this.consumeQueueTable = new ConcurrentHashMap<>(32);
+        if (messageStoreConfig.isConsumeQueueLazyLoadEnable()) {
+            this.lazyConsumeQueueService = new LazyConsumeQueueService(this);
+        } else {
+            this.lazyConsumeQueueService = null;
+        }
+        String compactionTopics = messageStoreConfig.getCompactionTopics();
+        if (compactionTopics != null && !compactionTopics.trim().isEmpty()) {
+            this.compactionService = new CompactionService(this);
+        } else {
+            this.compactionService = null;
+        }
 
         this.flushConsumeQueueService = new FlushConsumeQueueService();
         this.cleanCommitLogService = new CleanCommitLogService();
         this.cleanConsumeQueueService = new CleanConsumeQueueService();
         this.storeStatsService = new StoreStatsService();
+        this.readAheadAdvisor = new ReadAheadAdvisor(this);
+        if (messageStoreConfig.isBacklogReadEnable() && !messageStoreConfig.isEnableDLegerCommitLog()) {
+            this.backlogReader = new BacklogReader(this);
+            this.backlogReader.init();
+        } else {
+            this.backlogReader = null;
+        }
         this.indexService = new IndexService(this);
         if (!messageStoreConfig.isEnableDLegerCommitLog()) {
             this.haService = new HAService(this);
@@ -160,6 +202,12 @@ public class DefaultMessageStore implements MessageStore {
 
         this.scheduleMessageService = new ScheduleMessageService(this);
 
+        if (messageStoreConfig.isTimerWheelEnable() && !messageStoreConfig.isEnableDLegerCommitLog()) {
+            this.timerWheel = new TimerWheel(this);
+        } else {
+            this.timerWheel = null;
+        }
+
         this.transientStorePool = new TransientStorePool(messageStoreConfig);
 
         if (messageStoreConfig.isTransientStorePoolEnable()) {
@@ -173,19 +221,60 @@ public class DefaultMessageStore implements MessageStore {
         this.dispatcherList = new LinkedList<>();
         this.dispatcherList.addLast(new CommitLogDispatcherBuildConsumeQueue());
         this.dispatcherList.addLast(new CommitLogDispatcherBuildIndex());
+        if (this.timerWheel != null) {
+            this.dispatcherList.addLast(new CommitLogDispatcherTimerWheel());
+        }
 
         File file = new File(StorePathConfigHelper.getLockFile(messageStoreConfig.getStorePathRootDir()));
         MappedFile.ensureDirOK(file.getParent());
         lockFile = new RandomAccessFile(file, "rw");
     }
 
-    public void truncateDirtyLogicFiles(long phyOffset) {
-        ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
+    public void truncateDirtyLogicFiles(final long phyOffset) {
+        this.forEachTopicInParallel(new Consumer<ConcurrentMap<Integer, ConsumeQueue>>() {
+            @Override
+            public void accept(ConcurrentMap<Integer, ConsumeQueue> maps) {
+                for (ConsumeQueue logic : maps.values()) {
+                    logic.truncateDirtyLogicFiles(phyOffset);
+                }
+            }
+        });
+    }
 
-        for (ConcurrentMap<Integer, ConsumeQueue> maps : tables.values()) {
-            for (ConsumeQueue logic : maps.values()) {
-                logic.truncateDirtyLogicFiles(phyOffset);
+    /**
+     * Runs the task for the queues of every topic, on recoverThreadNum threads. Queues of different topics share
+     * nothing, so recovery work on them is independent.
+     */
+    private void forEachTopicInParallel(final Consumer<ConcurrentMap<Integer, ConsumeQueue>> task) {
+        int threadNum = Math.min(this.messageStoreConfig.getRecoverThreadNum(), this.consumeQueueTable.size());
+        if (threadNum <= 1) {
+            for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+                task.accept(maps);
             }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum, new ThreadFactoryImpl("RecoverConsumeQueueThread_"));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(this.consumeQueueTable.size());
+            for (final ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.accept(maps);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while recovering consume queues", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("recover consume queues failed", e.getCause());
+        } finally {
+            executor.shutdown();
         }
     }
 
@@ -203,11 +292,19 @@ public class DefaultMessageStore implements MessageStore {
                 result = result && this.scheduleMessageService.load();
             }
 
+            if (null != timerWheel) {
+                result = result && this.timerWheel.load();
+            }
+
             // load Commit Log
             result = result && this.commitLog.load();
 
             // load Consume Queue
-            result = result && this.loadConsumeQueue();
+            result = result && this.loadConsumeQueue(lastExitOK);
+
+            if (null != compactionService) {
+                result = result && this.compactionService.load();
+            }
 
             if (result) {
                 this.storeCheckpoint =
@@ -300,6 +397,12 @@ public class DefaultMessageStore implements MessageStore {
         }
 
         this.flushConsumeQueueService.start();
+        if (this.lazyConsumeQueueService != null) {
+            this.lazyConsumeQueueService.start();
+        }
+        if (this.compactionService != null) {
+            this.compactionService.start();
+        }
         // 调用CommitLog的启动方法,里面会启动刷盘线程
         this.commitLog.start();
         this.storeStatsService.start();
@@ -325,14 +428,24 @@ public class DefaultMessageStore implements MessageStore {
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.shutdown();
             }
+            if (this.timerWheel != null) {
+                this.timerWheel.shutdown();
+            }
             if (this.haService != null) {
                 this.haService.shutdown();
             }
+            if (this.lazyConsumeQueueService != null) {
+                this.lazyConsumeQueueService.shutdown();
+            }
+            if (this.compactionService != null) {
+                this.compactionService.shutdown();
+            }
 
             this.storeStatsService.shutdown();
-            this.indexService.shutdown();
             this.commitLog.shutdown();
             this.reputMessageService.shutdown();
+            // after reput, so an index engine that buffers entries sees everything that was dispatched
+            this.indexService.shutdown();
             this.flushConsumeQueueService.shutdown();
             this.allocateMappedFileService.shutdown();
             this.storeCheckpoint.flush();
@@ -348,6 +461,10 @@ public class DefaultMessageStore implements MessageStore {
 
         this.transientStorePool.destroy();
 
+        if (this.backlogReader != null) {
+            this.backlogReader.destroy();
+        }
+
         if (lockFile != null && lock != null) {
             try {
                 lock.release();
@@ -361,6 +478,12 @@ public class DefaultMessageStore implements MessageStore {
         this.destroyLogics();
         this.commitLog.destroy();
         this.indexService.destroy();
+        if (this.timerWheel != null) {
+            this.timerWheel.destroy();
+        }
+        if (this.compactionService != null) {
+            this.compactionService.destroy();
+        }
         this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
     }
@@ -389,6 +512,9 @@ public class DefaultMessageStore implements MessageStore {
             log.warn("putMessage message properties length too long " + msg.getPropertiesString().length());
             return PutMessageStatus.MESSAGE_ILLEGAL;
         }
+        if (this.timerWheel != null && !this.timerWheel.checkDeliverTime(msg)) {
+            return PutMessageStatus.MESSAGE_ILLEGAL;
+        }
         return PutMessageStatus.PUT_OK;
     }
 
@@ -627,6 +753,23 @@ public class DefaultMessageStore implements MessageStore {
      * @return
      */
     public GetMessageResult getMessage(final String group, final String topic, final int queueId, final long offset,
+        final int maxMsgNums,
+        final MessageFilter messageFilter) {
+        if (this.lazyConsumeQueueService == null || this.shutdown) {
+            return this.doGetMessage(group, topic, queueId, offset, maxMsgNums, messageFilter);
+        }
+
+        // keep the queue mapped from the lookup to the last index buffer, an unload in between would skip a file
+        ConsumeQueue consumeQueue = this.findConsumeQueue(topic, queueId);
+        consumeQueue.pin();
+        try {
+            return this.doGetMessage(group, topic, queueId, offset, maxMsgNums, messageFilter);
+        } finally {
+            consumeQueue.unpin();
+        }
+    }
+
+    private GetMessageResult doGetMessage(final String group, final String topic, final int queueId, final long offset,
         final int maxMsgNums,
         final MessageFilter messageFilter) {
         if (this.shutdown) {
@@ -646,6 +789,20 @@ public class DefaultMessageStore implements MessageStore {
         long minOffset = 0;
         long maxOffset = 0;
 
+        if (this.compactionService != null) {
+            GetMessageResult compactedResult = this.compactionService.getMessage(topic, queueId, offset, maxMsgNums, messageFilter);
+            if (compactedResult != null) {
+                if (GetMessageStatus.FOUND == compactedResult.getStatus()) {
+                    this.storeStatsService.getGetMessageTimesTotalFound().incrementAndGet();
+                    this.storeStatsService.getGetMessageTransferedMsgCount().addAndGet(compactedResult.getMessageCount());
+                } else {
+                    this.storeStatsService.getGetMessageTimesTotalMiss().incrementAndGet();
+                }
+                this.storeStatsService.setGetMessageEntireTimeMax(this.getSystemClock().now() - beginTime);
+                return compactedResult;
+            }
+        }
+
         GetMessageResult getResult = new GetMessageResult();
 
         // 获取CommitLog文件的最大偏移量
@@ -689,15 +846,23 @@ public class DefaultMessageStore implements MessageStore {
                 SelectMappedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
                 // 如果不为空
                 if (bufferConsumeQueue != null) {
+                    BacklogReader.Batch backlogBatch = null;
                     try {
                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
 
                         long nextPhyFileStartOffset = Long.MIN_VALUE;
                         long maxPhyOffsetPulling = 0;
+                        long phyBeginFound = -1;
+                        long phyEndFound = -1;
+                        final boolean readAheadEnable = this.readAheadAdvisor.isEnable();
+                        boolean backlogReadable = this.backlogReader != null;
 
                         int i = 0;
                         final int maxFilterMessageCount = Math.max(16000, maxMsgNums * ConsumeQueue.CQ_STORE_UNIT_SIZE);
                         final boolean diskFallRecorded = this.messageStoreConfig.isDiskFallRecorded();
+                        final boolean ttlEnable = this.messageStoreConfig.isMessageTtlEnable();
+                        final long now = System.currentTimeMillis();
+                        int expiredCount = 0;
                         ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
                         for (; i < bufferConsumeQueue.getSize() && i < maxFilterMessageCount; i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
                             // 获取偏移量
@@ -733,6 +898,14 @@ public class DefaultMessageStore implements MessageStore {
                                 }
                             }
 
+                            if (ttlEnable && extRet && cqExtUnit.isExpired(now)) {
+                                if (getResult.getBufferTotalSize() == 0) {
+                                    status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                                }
+                                expiredCount++;
+                                continue;
+                            }
+
                             if (messageFilter != null
                                 && !messageFilter.isMatchedByConsumeQueue(isTagsCodeLegal ? tagsCode : null, extRet ? cqExtUnit : null)) {
                                 if (getResult.getBufferTotalSize() == 0) {
@@ -743,7 +916,19 @@ public class DefaultMessageStore implements MessageStore {
                             }
 
                             // 根据拉取偏移量和大小从CommitLog中获取消息数据
-                            SelectMappedBufferResult selectResult = this.commitLog.getMessage(offsetPy, sizePy);
+                            SelectMappedBufferResult selectResult = null;
+                            if (isInDisk && backlogReadable) {
+                                if (null == backlogBatch) {
+                                    backlogBatch = this.backlogReader.newBatch();
+                                    backlogReadable = backlogBatch != null;
+                                }
+                                if (backlogBatch != null) {
+                                    selectResult = backlogBatch.read(offsetPy, sizePy);
+                                }
+                            }
+                            if (null == selectResult) {
+                                selectResult = this.commitLog.getMessage(offsetPy, sizePy);
+                            }
                             if (null == selectResult) {
                                 if (getResult.getBufferTotalSize() == 0) {
                                     status = GetMessageStatus.MESSAGE_WAS_REMOVING;
@@ -753,6 +938,10 @@ public class DefaultMessageStore implements MessageStore {
                                 continue;
                             }
 
+                            if (readAheadEnable) {
+                                this.readAheadAdvisor.recordResidency(selectResult);
+                            }
+
                             if (messageFilter != null
                                 && !messageFilter.isMatchedByCommitLog(selectResult.getByteBuffer().slice(), null)) {
                                 if (getResult.getBufferTotalSize() == 0) {
@@ -766,11 +955,19 @@ public class DefaultMessageStore implements MessageStore {
                             this.storeStatsService.getGetMessageTransferedMsgCount().incrementAndGet();
                             // 设置消息内容
                             getResult.addMessage(selectResult);
+                            if (phyBeginFound < 0) {
+                                phyBeginFound = offsetPy;
+                            }
+                            phyEndFound = offsetPy + sizePy;
                             // 设置查找状态为FOUND
                             status = GetMessageStatus.FOUND;
                             nextPhyFileStartOffset = Long.MIN_VALUE;
                         }
 
+                        if (expiredCount > 0) {
+                            brokerStatsManager.incGroupGetExpiredNums(group, topic, expiredCount);
+                        }
+
                         if (diskFallRecorded) {
                             long fallBehind = maxOffsetPy - maxPhyOffsetPulling;
                             brokerStatsManager.recordDiskFallBehindSize(group, topic, queueId, fallBehind);
@@ -779,6 +976,11 @@ public class DefaultMessageStore implements MessageStore {
                         // 计算下次拉取偏移量
                         nextBeginOffset = offset + (i / ConsumeQueue.CQ_STORE_UNIT_SIZE);
 
+                        if (readAheadEnable && phyBeginFound >= 0) {
+                            this.readAheadAdvisor.advise(group, topic, queueId, offset, nextBeginOffset, phyBeginFound, phyEndFound,
+                                checkInDiskByCommitOffset(phyBeginFound, maxOffsetPy));
+                        }
+
                         // CommitLog最大偏移量减去本次拉取消息的最大物理偏移量, 表示剩余未拉取的消息；
                         long diff = maxOffsetPy - maxPhyOffsetPulling;
                         // 计算消息在PageCache中的总大小（总物理内存 * 消息存储在内存中的阀值/100）
@@ -789,6 +991,9 @@ public class DefaultMessageStore implements MessageStore {
                     } finally {
 
                         bufferConsumeQueue.release();
+                        if (backlogBatch != null) {
+                            backlogBatch.finish();
+                        }
                     }
                 } else {
                     // 未查找到
@@ -836,7 +1041,14 @@ public class DefaultMessageStore implements MessageStore {
     public long getMinOffsetInQueue(String topic, int queueId) {
         ConsumeQueue logic = this.findConsumeQueue(topic, queueId);
         if (logic != null) {
-            return logic.getMinOffsetInQueue();
+            long minOffset = logic.getMinOffsetInQueue();
+            if (this.compactionService != null) {
+                long compactedMinOffset = this.compactionService.getMinOffsetInQueue(topic, queueId);
+                if (compactedMinOffset >= 0 && compactedMinOffset < minOffset) {
+                    minOffset = compactedMinOffset;
+                }
+            }
+            return minOffset;
         }
 
         return -1;
@@ -942,6 +1154,20 @@ public class DefaultMessageStore implements MessageStore {
             }
         }
 
+        if (this.haService != null) {
+            this.haService.buildRunningStats(result);
+        }
+
+        if (this.lazyConsumeQueueService != null) {
+            this.lazyConsumeQueueService.buildRunningStats(result);
+        }
+
+        if (this.messageStoreConfig.isTransientStorePoolEnable()) {
+            this.transientStorePool.buildRunningStats(result);
+        }
+
+        this.allocateMappedFileService.buildRunningStats(result);
+
         result.put(RunningStats.commitLogMinOffset.name(), String.valueOf(DefaultMessageStore.this.getMinPhyOffset()));
         result.put(RunningStats.commitLogMaxOffset.name(), String.valueOf(DefaultMessageStore.this.getMaxPhyOffset()));
 
@@ -1147,6 +1373,10 @@ public class DefaultMessageStore implements MessageStore {
                 }
                 it.remove();
 
+                if (this.compactionService != null) {
+                    this.compactionService.destroyTopic(topic);
+                }
+
                 if (this.brokerConfig.isAutoDeleteUnusedStats()) {
                     this.brokerStatsManager.onTopicDeleted(topic);
                 }
@@ -1326,12 +1556,7 @@ public class DefaultMessageStore implements MessageStore {
 
         ConsumeQueue logic = map.get(queueId);
         if (null == logic) {
-            ConsumeQueue newLogic = new ConsumeQueue(
-                topic,
-                queueId,
-                StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
-                this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),
-                this);
+            ConsumeQueue newLogic = this.newConsumeQueue(topic, queueId, this.isCompactConsumeQueueTopic(topic));
             ConsumeQueue oldLogic = map.putIfAbsent(queueId, newLogic);
             if (oldLogic != null) {
                 logic = oldLogic;
@@ -1340,9 +1565,34 @@ public class DefaultMessageStore implements MessageStore {
             }
         }
 
+        if (this.lazyConsumeQueueService != null) {
+            logic.ensureLoaded();
+        }
         return logic;
     }
 
+    private ConsumeQueue newConsumeQueue(final String topic, final int queueId, final boolean compact) {
+        if (compact) {
+            return new CompactConsumeQueue(
+                topic,
+                queueId,
+                StorePathConfigHelper.getStorePathCompactConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
+                this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),
+                this);
+        }
+        return new ConsumeQueue(
+            topic,
+            queueId,
+            StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
+            this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),
+            this);
+    }
+
+    private boolean isCompactConsumeQueueTopic(final String topic) {
+        TopicConfig topicConfig = this.getTopicConfig(topic);
+        return topicConfig != null && topicConfig.isCompactConsumeQueue();
+    }
+
     /**
      * 纠正下一次拉取消息的偏移量
      * nextOffsetCorrection方法可知，如果当前Broker是主节点或者开启了OffsetCheckInSlave校验，才会纠正下次的拉取进度设置，否则依旧使用原来的拉取偏移量。
@@ -1368,7 +1618,7 @@ public class DefaultMessageStore implements MessageStore {
         return (maxOffsetPy - offsetPy) > memory;
     }
 
-    private boolean isTheBatchFull(int sizePy, int maxMsgNums, int bufferTotal, int messageTotal, boolean isInDisk) {
+    boolean isTheBatchFull(int sizePy, int maxMsgNums, int bufferTotal, int messageTotal, boolean isInDisk) {
 
         if (0 == bufferTotal || 0 == messageTotal) {
             return false;
@@ -1453,6 +1703,19 @@ public class DefaultMessageStore implements MessageStore {
             }
         }, 1, 1, TimeUnit.SECONDS);
 
+        if (this.messageStoreConfig.isTransientStorePoolEnable()) {
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DefaultMessageStore.this.transientStorePool.adjust(DefaultMessageStore.this.commitLog.remainHowManyDataToCommit());
+                    } catch (Throwable e) {
+                        log.error("adjust TransientStorePool exception", e);
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+
         // this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
         // @Override
         // public void run() {
@@ -1491,8 +1754,24 @@ public class DefaultMessageStore implements MessageStore {
         return file.exists();
     }
 
-    private boolean loadConsumeQueue() {
-        File dirLogic = new File(StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()));
+    /**
+     * With consumeQueueLazyLoadEnable and a clean last shutdown the consume queue files are left unmapped, see
+     * {@link ConsumeQueue#loadLazily()}. After a crash every queue is loaded, recovery has to check them all anyway.
+     */
+    private boolean loadConsumeQueue(final boolean lastExitOK) {
+        boolean lazily = this.lazyConsumeQueueService != null && lastExitOK;
+        if (!this.loadConsumeQueue(StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()), false, lazily)
+            || !this.loadConsumeQueue(StorePathConfigHelper.getStorePathCompactConsumeQueue(this.messageStoreConfig.getStorePathRootDir()), true, false)) {
+            return false;
+        }
+
+        log.info("load logics queue all over, OK");
+
+        return true;
+    }
+
+    private boolean loadConsumeQueue(final String storePath, final boolean compact, final boolean lazily) {
+        File dirLogic = new File(storePath);
         File[] fileTopicList = dirLogic.listFiles();
         if (fileTopicList != null) {
 
@@ -1508,14 +1787,9 @@ public class DefaultMessageStore implements MessageStore {
                         } catch (NumberFormatException e) {
                             continue;
                         }
-                        ConsumeQueue logic = new ConsumeQueue(
-                            topic,
-                            queueId,
-                            StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
-                            this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),
-                            this);
+                        ConsumeQueue logic = this.newConsumeQueue(topic, queueId, compact);
                         this.putConsumeQueue(topic, queueId, logic);
-                        if (!logic.load()) {
+                        if (!(lazily ? logic.loadLazily() : logic.load())) {
                             return false;
                         }
                     }
@@ -1523,8 +1797,6 @@ public class DefaultMessageStore implements MessageStore {
             }
         }
 
-        log.info("load logics queue all over, OK");
-
         return true;
     }
 
@@ -1537,9 +1809,43 @@ public class DefaultMessageStore implements MessageStore {
             this.commitLog.recoverAbnormally(maxPhyOffsetOfConsumeQueue);
         }
 
+        // what was recovered is on disk now, the consume queue entries rebuilt for it are not yet
+        long maxPhyOffset = this.commitLog.getMaxOffset();
+        this.storeCheckpoint.setPhysicMsgOffset(maxPhyOffset);
+        this.storeCheckpoint.setLogicsMsgOffset(Math.min(this.storeCheckpoint.getLogicsMsgOffset(), maxPhyOffset));
+
         this.recoverTopicQueueTable();
     }
 
+    /**
+     * Dispatches a message replayed by recovery. With recoverThreadNum above one the consume queues are rebuilt on
+     * stages sharded by topic and queue, the same way the reput pipeline does it.
+     */
+    public void doRecoverDispatch(DispatchRequest req) {
+        if (this.messageStoreConfig.getRecoverThreadNum() <= 1) {
+            this.doDispatch(req);
+            return;
+        }
+
+        if (this.recoverDispatchPipeline == null) {
+            this.recoverDispatchPipeline = new DispatchPipeline(this.dispatcherList, this.messageStoreConfig.getRecoverThreadNum(), false);
+            this.recoverDispatchPipeline.start();
+        }
+        while (!this.recoverDispatchPipeline.submit(req)) {
+            log.warn("retry submitting recovered message, commitLogOffset: {}", req.getCommitLogOffset());
+        }
+    }
+
+    /**
+     * Waits until every message handed to {@link #doRecoverDispatch(DispatchRequest)} is dispatched.
+     */
+    public void finishRecoverDispatch() {
+        if (this.recoverDispatchPipeline != null) {
+            this.recoverDispatchPipeline.shutdown();
+            this.recoverDispatchPipeline = null;
+        }
+    }
+
     public MessageStoreConfig getMessageStoreConfig() {
         return messageStoreConfig;
     }
@@ -1560,17 +1866,23 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     private long recoverConsumeQueue() {
-        long maxPhysicOffset = -1;
-        for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
-            for (ConsumeQueue logic : maps.values()) {
-                logic.recover();
-                if (logic.getMaxPhysicOffset() > maxPhysicOffset) {
-                    maxPhysicOffset = logic.getMaxPhysicOffset();
+        final AtomicLong maxPhysicOffset = new AtomicLong(-1);
+        this.forEachTopicInParallel(new Consumer<ConcurrentMap<Integer, ConsumeQueue>>() {
+            @Override
+            public void accept(ConcurrentMap<Integer, ConsumeQueue> maps) {
+                for (ConsumeQueue logic : maps.values()) {
+                    logic.recover();
+                    long offset = logic.getMaxPhysicOffset();
+                    for (long value = maxPhysicOffset.get(); offset > value; value = maxPhysicOffset.get()) {
+                        if (maxPhysicOffset.compareAndSet(value, offset)) {
+                            break;
+                        }
+                    }
                 }
             }
-        }
+        });
 
-        return maxPhysicOffset;
+        return maxPhysicOffset.get();
     }
 
     public void recoverTopicQueueTable() {
@@ -1595,6 +1907,22 @@ public class DefaultMessageStore implements MessageStore {
         return storeStatsService;
     }
 
+    public LazyConsumeQueueService getLazyConsumeQueueService() {
+        return lazyConsumeQueueService;
+    }
+
+    public CompactionService getCompactionService() {
+        return compactionService;
+    }
+
+    public ReadAheadAdvisor getReadAheadAdvisor() {
+        return readAheadAdvisor;
+    }
+
+    public BacklogReader getBacklogReader() {
+        return backlogReader;
+    }
+
     public RunningFlags getAccessRights() {
         return runningFlags;
     }
@@ -1615,6 +1943,10 @@ public class DefaultMessageStore implements MessageStore {
         return scheduleMessageService;
     }
 
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
     public RunningFlags getRunningFlags() {
         return runningFlags;
     }
@@ -1625,6 +1957,16 @@ public class DefaultMessageStore implements MessageStore {
         }
     }
 
+    private void notifyMessageArriving(DispatchRequest dispatchRequest) {
+        if (BrokerRole.SLAVE != this.getMessageStoreConfig().getBrokerRole()
+            && this.brokerConfig.isLongPollingEnable()) {
+            this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
+                dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
+                dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
+                dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
+        }
+    }
+
     public void putMessagePositionInfo(DispatchRequest dispatchRequest) {
         ConsumeQueue cq = this.findConsumeQueue(dispatchRequest.getTopic(), dispatchRequest.getQueueId());
         cq.putMessagePositionInfoWrapper(dispatchRequest);
@@ -1645,6 +1987,40 @@ public class DefaultMessageStore implements MessageStore {
             }
         }
 
+        // the wheel only delivers on the master, a slave taking over catches up from the checkpoint
+        if (this.timerWheel != null) {
+            if (brokerRole == BrokerRole.SLAVE) {
+                this.timerWheel.shutdown();
+            } else {
+                this.timerWheel.start();
+            }
+        }
+
+    }
+
+    @Override
+    public void setTopicConfigTable(final ConcurrentMap<String, TopicConfig> topicConfigTable) {
+        this.topicConfigTable = topicConfigTable;
+    }
+
+    public TopicConfig getTopicConfig(final String topic) {
+        ConcurrentMap<String, TopicConfig> topicConfigs = this.topicConfigTable;
+        return topicConfigs == null ? null : topicConfigs.get(topic);
+    }
+
+    /**
+     * Commit log files are shared by all topics, so they are kept as long as the longest retention any topic asks
+     * for. Topics retained shorter only lose their consume queue head, see CleanConsumeQueueService.
+     */
+    public long getCommitLogReservedTime() {
+        long fileReservedTime = this.messageStoreConfig.getFileReservedTime();
+        ConcurrentMap<String, TopicConfig> topicConfigs = this.topicConfigTable;
+        if (topicConfigs != null) {
+            for (TopicConfig topicConfig : topicConfigs.values()) {
+                fileReservedTime = Math.max(fileReservedTime, topicConfig.getFileReservedTime());
+            }
+        }
+        return fileReservedTime;
     }
 
     public int remainTransientStoreBufferNumbs() {
@@ -1667,7 +2043,11 @@ public class DefaultMessageStore implements MessageStore {
         if (map == null) {
             return null;
         }
-        return map.get(queueId);
+        ConsumeQueue logic = map.get(queueId);
+        if (logic != null && this.lazyConsumeQueueService != null) {
+            logic.ensureLoaded();
+        }
+        return logic;
     }
 
     public void unlockMappedFile(final MappedFile mappedFile) {
@@ -1706,6 +2086,16 @@ public class DefaultMessageStore implements MessageStore {
         }
     }
 
+    class CommitLogDispatcherTimerWheel implements CommitLogDispatcher {
+
+        @Override
+        public void dispatch(DispatchRequest request) {
+            if (TopicValidator.RMQ_SYS_TIMER_TOPIC.equals(request.getTopic())) {
+                DefaultMessageStore.this.timerWheel.wakeup();
+            }
+        }
+    }
+
     class CleanCommitLogService {
 
         private final static int MAX_MANUAL_DELETE_FILE_TIMES = 20;
@@ -1737,7 +2127,7 @@ public class DefaultMessageStore implements MessageStore {
 
         private void deleteExpiredFiles() {
             int deleteCount = 0;
-            long fileReservedTime = DefaultMessageStore.this.getMessageStoreConfig().getFileReservedTime();
+            long fileReservedTime = DefaultMessageStore.this.getCommitLogReservedTime();
             int deletePhysicFilesInterval = DefaultMessageStore.this.getMessageStoreConfig().getDeleteCommitLogFilesInterval();
             int destroyMapedFileIntervalForcibly = DefaultMessageStore.this.getMessageStoreConfig().getDestroyMapedFileIntervalForcibly();
 
@@ -1922,6 +2312,77 @@ public class DefaultMessageStore implements MessageStore {
 
                 DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
             }
+
+            this.deleteExpiredTopicFiles();
+        }
+
+        /**
+         * Topics retained shorter than the commit log have the head of their consume queues moved past messages older
+         * than their own fileReservedTime, files of the queue that only hold such messages are deleted.
+         */
+        private void deleteExpiredTopicFiles() {
+            ConcurrentMap<String, TopicConfig> topicConfigs = DefaultMessageStore.this.topicConfigTable;
+            if (null == topicConfigs) {
+                return;
+            }
+
+            long commitLogReservedTime = DefaultMessageStore.this.getCommitLogReservedTime();
+            long now = System.currentTimeMillis();
+            for (TopicConfig topicConfig : topicConfigs.values()) {
+                int fileReservedTime = topicConfig.getFileReservedTime();
+                if (fileReservedTime < 0 || fileReservedTime >= commitLogReservedTime) {
+                    continue;
+                }
+
+                ConcurrentMap<Integer, ConsumeQueue> maps = DefaultMessageStore.this.consumeQueueTable.get(topicConfig.getTopicName());
+                if (null == maps) {
+                    continue;
+                }
+
+                long expiredTimestamp = now - fileReservedTime * 60L * 60 * 1000;
+                for (ConsumeQueue logic : maps.values()) {
+                    long phyOffset = this.findUnexpiredPhyOffset(logic, expiredTimestamp);
+                    if (phyOffset > 0) {
+                        int deleteCount = logic.deleteExpiredFile(phyOffset);
+                        log.info("topic {} queue {} expired before {}, min offset {}, delete {} files", logic.getTopic(),
+                            logic.getQueueId(), UtilAll.timeMillisToHumanString2(expiredTimestamp), logic.getMinOffsetInQueue(),
+                            deleteCount);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return physical offset of the first message in the queue stored after expiredTimestamp, -1 if the head of
+         * the queue has not expired yet
+         */
+        private long findUnexpiredPhyOffset(final ConsumeQueue logic, final long expiredTimestamp) {
+            long minOffset = logic.getMinOffsetInQueue();
+            if (minOffset >= logic.getMaxOffsetInQueue() - 1) {
+                return -1;
+            }
+
+            long headStoreTime = DefaultMessageStore.this.getMessageStoreTimeStamp(logic.getTopic(), logic.getQueueId(), minOffset);
+            if (headStoreTime < 0 || headStoreTime >= expiredTimestamp) {
+                return -1;
+            }
+
+            long offset = Math.max(logic.getOffsetInQueueByTime(expiredTimestamp), minOffset);
+            SelectMappedBufferResult result = logic.getIndexBuffer(offset);
+            if (null == result) {
+                return -1;
+            }
+            try {
+                long phyOffset = result.getByteBuffer().getLong();
+                int size = result.getByteBuffer().getInt();
+                long storeTime = DefaultMessageStore.this.commitLog.pickupStoreTimestamp(phyOffset, size);
+                // the search returns the closest message, which may still be an expired one. Like the commit log,
+                // a queue keeps its last message even if everything expired.
+                boolean expired = storeTime >= 0 && storeTime < expiredTimestamp;
+                return expired && offset < logic.getMaxOffsetInQueue() - 1 ? phyOffset + size : phyOffset;
+            } finally {
+                result.release();
+            }
         }
 
         public String getServiceName() {
@@ -1941,13 +2402,16 @@ public class DefaultMessageStore implements MessageStore {
             }
 
             long logicsMsgTimestamp = 0;
+            long logicsMsgOffset = -1;
 
             int flushConsumeQueueThoroughInterval = DefaultMessageStore.this.getMessageStoreConfig().getFlushConsumeQueueThoroughInterval();
             long currentTimeMillis = System.currentTimeMillis();
             if (currentTimeMillis >= (this.lastFlushTimestamp + flushConsumeQueueThoroughInterval)) {
                 this.lastFlushTimestamp = currentTimeMillis;
                 flushConsumeQueueLeastPages = 0;
-                logicsMsgTimestamp = DefaultMessageStore.this.getStoreCheckpoint().getLogicsMsgTimestamp();
+                logicsMsgTimestamp = DefaultMessageStore.this.reputMessageService.getDispatchedTimestamp();
+                // every consume queue entry below it is written, and is about to be flushed
+                logicsMsgOffset = DefaultMessageStore.this.reputMessageService.getDispatchedOffset();
             }
 
             ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
@@ -1964,6 +2428,14 @@ public class DefaultMessageStore implements MessageStore {
             if (0 == flushConsumeQueueLeastPages) {
                 if (logicsMsgTimestamp > 0) {
                     DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(logicsMsgTimestamp);
+                    if (DefaultMessageStore.this.messageStoreConfig.isEnableReputPipeline()
+                        && (DefaultMessageStore.this.messageStoreConfig.getBrokerRole() == BrokerRole.SLAVE
+                        || DefaultMessageStore.this.messageStoreConfig.isEnableDLegerCommitLog())) {
+                        DefaultMessageStore.this.getStoreCheckpoint().setPhysicMsgTimestamp(logicsMsgTimestamp);
+                    }
+                }
+                if (logicsMsgOffset >= 0) {
+                    DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgOffset(logicsMsgOffset);
                 }
                 DefaultMessageStore.this.getStoreCheckpoint().flush();
             }
@@ -1998,10 +2470,180 @@ public class DefaultMessageStore implements MessageStore {
         }
     }
 
+    /**
+     * Stages of the pipelined reput. Consume queues are built on several stages sharded by topic and queue,
+     * so each queue keeps a single writer and its order, and the index is built on a stage of its own so it
+     * can never delay consume queue visibility or long polling wakeups. Dispatchers other than the index
+     * builder (e.g. the filter bit map calculator, which has to run before the consume queue builder) stay
+     * in front of the consume queue builder on the queue stages, so they must be thread safe.
+     */
+    class DispatchPipeline {
+        private final DispatchStage[] queueStages;
+        private final DispatchStage indexStage;
+        private volatile long lastSubmittedTimestamp = 0;
+
+        DispatchPipeline(List<CommitLogDispatcher> dispatchers, int threadNum, boolean notifyArriving) {
+            List<CommitLogDispatcher> queueDispatchers = new ArrayList<>();
+            List<CommitLogDispatcher> indexDispatchers = new ArrayList<>();
+            for (CommitLogDispatcher dispatcher : dispatchers) {
+                if (dispatcher instanceof CommitLogDispatcherBuildIndex) {
+                    indexDispatchers.add(dispatcher);
+                } else {
+                    queueDispatchers.add(dispatcher);
+                }
+            }
+
+            int capacity = Math.max(1, DefaultMessageStore.this.messageStoreConfig.getReputDispatchQueueCapacity());
+            this.queueStages = new DispatchStage[Math.max(1, threadNum)];
+            for (int i = 0; i < this.queueStages.length; i++) {
+                this.queueStages[i] = new DispatchStage("ReputQueueDispatchStage-" + i, queueDispatchers, notifyArriving, capacity);
+            }
+            this.indexStage = indexDispatchers.isEmpty() ? null
+                : new DispatchStage("ReputIndexDispatchStage", indexDispatchers, false, capacity);
+        }
+
+        public void start() {
+            for (DispatchStage stage : this.queueStages) {
+                stage.start();
+            }
+            if (this.indexStage != null) {
+                this.indexStage.start();
+            }
+        }
+
+        public void shutdown() {
+            for (DispatchStage stage : this.queueStages) {
+                stage.shutdown();
+            }
+            if (this.indexStage != null) {
+                this.indexStage.shutdown();
+            }
+        }
+
+        /**
+         * @return false if the reput thread was interrupted before the request reached every stage, the caller
+         * retries it later, which the consume queue tolerates as it skips offsets it already has
+         */
+        public boolean submit(DispatchRequest request) {
+            int hash = (request.getTopic().hashCode() * 31 + request.getQueueId()) & Integer.MAX_VALUE;
+            try {
+                this.queueStages[hash % this.queueStages.length].submit(request);
+                if (this.indexStage != null) {
+                    this.indexStage.submit(request);
+                }
+                this.lastSubmittedTimestamp = request.getStoreTimestamp();
+                return true;
+            } catch (InterruptedException e) {
+                log.warn("interrupted while submitting dispatch request, commitLogOffset: {}", request.getCommitLogOffset());
+                return false;
+            }
+        }
+
+        public long getOldestPendingOffset() {
+            long offset = Long.MAX_VALUE;
+            for (DispatchStage stage : this.queueStages) {
+                offset = Math.min(offset, stage.getOldestPendingOffset());
+            }
+            if (this.indexStage != null) {
+                offset = Math.min(offset, this.indexStage.getOldestPendingOffset());
+            }
+            return offset;
+        }
+
+        /**
+         * Store timestamp up to which every message is in its consume queue. A shard ahead of the others must
+         * not move the logics checkpoint past messages still queued in a slower one, so it stays below the
+         * oldest pending request of all queue stages.
+         */
+        public long getDispatchedTimestamp() {
+            // read it before the stages: a request is queued before it becomes the last submitted one
+            long timestamp = this.lastSubmittedTimestamp;
+            for (DispatchStage stage : this.queueStages) {
+                DispatchRequest request = stage.getOldestPending();
+                if (request != null) {
+                    timestamp = Math.min(timestamp, request.getStoreTimestamp() - 1);
+                }
+            }
+            return timestamp;
+        }
+    }
+
+    class DispatchStage extends ServiceThread {
+        private final String name;
+        private final List<CommitLogDispatcher> dispatchers;
+        private final boolean notifyArriving;
+        // a request stays at the head until it is dispatched, so the head is always the oldest pending one
+        private final BlockingQueue<DispatchRequest> requestQueue;
+
+        DispatchStage(String name, List<CommitLogDispatcher> dispatchers, boolean notifyArriving, int capacity) {
+            this.name = name;
+            this.dispatchers = dispatchers;
+            this.notifyArriving = notifyArriving;
+            this.requestQueue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        public void submit(DispatchRequest request) throws InterruptedException {
+            this.requestQueue.put(request);
+            this.wakeup();
+        }
+
+        public long getOldestPendingOffset() {
+            DispatchRequest request = this.requestQueue.peek();
+            return request == null ? Long.MAX_VALUE : request.getCommitLogOffset();
+        }
+
+        public DispatchRequest getOldestPending() {
+            return this.requestQueue.peek();
+        }
+
+        private boolean dispatchOne() {
+            DispatchRequest request = this.requestQueue.peek();
+            if (request == null) {
+                return false;
+            }
+            try {
+                for (CommitLogDispatcher dispatcher : this.dispatchers) {
+                    dispatcher.dispatch(request);
+                }
+                if (this.notifyArriving) {
+                    DefaultMessageStore.this.notifyMessageArriving(request);
+                }
+            } catch (Throwable e) {
+                log.warn(this.name + " dispatch error, commitLogOffset: " + request.getCommitLogOffset(), e);
+            } finally {
+                this.requestQueue.poll();
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                if (!this.dispatchOne()) {
+                    this.waitForRunning(1);
+                }
+            }
+
+            while (this.dispatchOne()) {
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return this.name;
+        }
+    }
+
     class ReputMessageService extends ServiceThread {
 
         private volatile long reputFromOffset = 0;
 
+        private volatile DispatchPipeline dispatchPipeline;
+
         public long getReputFromOffset() {
             return reputFromOffset;
         }
@@ -2010,25 +2652,63 @@ public class DefaultMessageStore implements MessageStore {
             this.reputFromOffset = reputFromOffset;
         }
 
+        @Override
+        public void start() {
+            if (DefaultMessageStore.this.messageStoreConfig.isEnableReputPipeline()) {
+                this.dispatchPipeline = new DispatchPipeline(DefaultMessageStore.this.dispatcherList,
+                    DefaultMessageStore.this.messageStoreConfig.getReputQueueDispatchThreadNum(), true);
+                this.dispatchPipeline.start();
+            }
+            super.start();
+        }
+
         @Override
         public void shutdown() {
-            for (int i = 0; i < 50 && this.isCommitLogAvailable(); i++) {
+            for (int i = 0; i < 50 && this.behind() > 0; i++) {
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException ignored) {
                 }
             }
 
-            if (this.isCommitLogAvailable()) {
-                log.warn("shutdown ReputMessageService, but commitlog have not finish to be dispatched, CL: {} reputFromOffset: {}",
-                    DefaultMessageStore.this.commitLog.getMaxOffset(), this.reputFromOffset);
+            if (this.behind() > 0) {
+                log.warn("shutdown ReputMessageService, but commitlog have not finish to be dispatched, CL: {} reputFromOffset: {} dispatchedOffset: {}",
+                    DefaultMessageStore.this.commitLog.getMaxOffset(), this.reputFromOffset, this.getDispatchedOffset());
             }
 
             super.shutdown();
+
+            if (this.dispatchPipeline != null) {
+                this.dispatchPipeline.shutdown();
+            }
         }
 
         public long behind() {
-            return DefaultMessageStore.this.commitLog.getMaxOffset() - this.reputFromOffset;
+            return DefaultMessageStore.this.commitLog.getMaxOffset() - this.getDispatchedOffset();
+        }
+
+        /**
+         * Offset below which every message has been handed to all dispatchers. Without the pipeline this is
+         * simply reputFromOffset, with it the oldest request still queued in any stage holds it back.
+         */
+        public long getDispatchedOffset() {
+            // read reputFromOffset first: a request is always queued before reputFromOffset moves past it
+            long offset = this.reputFromOffset;
+            DispatchPipeline pipeline = this.dispatchPipeline;
+            if (pipeline != null) {
+                offset = Math.min(offset, pipeline.getOldestPendingOffset());
+            }
+            return offset;
+        }
+
+        /**
+         * Store timestamp up to which every message is in its consume queue, see
+         * {@link DispatchPipeline#getDispatchedTimestamp()}.
+         */
+        public long getDispatchedTimestamp() {
+            DispatchPipeline pipeline = this.dispatchPipeline;
+            return pipeline != null ? pipeline.getDispatchedTimestamp()
+                : DefaultMessageStore.this.getStoreCheckpoint().getLogicsMsgTimestamp();
         }
 
         private boolean isCommitLogAvailable() {
@@ -2063,14 +2743,15 @@ public class DefaultMessageStore implements MessageStore {
 
                             if (dispatchRequest.isSuccess()) {
                                 if (size > 0) {
-                                    DefaultMessageStore.this.doDispatch(dispatchRequest);
-
-                                    if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
-                                        && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()) {
-                                        DefaultMessageStore.this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
-                                            dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
-                                            dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
-                                            dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
+                                    DispatchPipeline pipeline = this.dispatchPipeline;
+                                    if (pipeline != null) {
+                                        if (!pipeline.submit(dispatchRequest)) {
+                                            doNext = false;
+                                            break;
+                                        }
+                                    } else {
+                                        DefaultMessageStore.this.doDispatch(dispatchRequest);
+                                        DefaultMessageStore.this.notifyMessageArriving(dispatchRequest);
                                     }
 
                                     this.reputFromOffset += size;
@@ -2083,8 +2764,17 @@ public class DefaultMessageStore implements MessageStore {
                                             .addAndGet(dispatchRequest.getMsgSize());
                                     }
                                 } else if (size == 0) {
-                                    this.reputFromOffset = DefaultMessageStore.this.commitLog.rollNextFile(this.reputFromOffset);
-                                    readSize = result.getSize();
+                                    if (DefaultMessageStore.this.commitLog.isFailedAppendBlank(this.reputFromOffset,
+                                        dispatchRequest.getBlankSize())) {
+                                        this.reputFromOffset += dispatchRequest.getBlankSize();
+                                        readSize += dispatchRequest.getBlankSize();
+                                        if (readSize < result.getSize()) {
+                                            result.getByteBuffer().position(readSize);
+                                        }
+                                    } else {
+                                        this.reputFromOffset = DefaultMessageStore.this.commitLog.rollNextFile(this.reputFromOffset);
+                                        readSize = result.getSize();
+                                    }
                                 }
                             } else if (!dispatchRequest.isSuccess()) {
 
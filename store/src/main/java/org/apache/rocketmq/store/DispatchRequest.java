@@ -37,6 +37,8 @@ public class DispatchRequest {
 
     private int bufferSize = -1;//the buffer size maybe larger than the msg size if the message is wrapped by something
 
+    private int blankSize;//the total size of a blank record, which only fills the slot of a failed append if shorter than the rest of its file
+
     public DispatchRequest(
         final String topic,
         final int queueId,
@@ -170,4 +172,12 @@ public class DispatchRequest {
     public void setBufferSize(int bufferSize) {
         this.bufferSize = bufferSize;
     }
+
+    public int getBlankSize() {
+        return blankSize;
+    }
+
+    public void setBlankSize(int blankSize) {
+        this.blankSize = blankSize;
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.running.RunningStats;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Bounds the mapped consume queue files when consume queues are loaded lazily. Queues nobody touched for
+ * consumeQueueIdleUnmapInterval are unmapped, and while more than maxMappedConsumeQueueFiles are mapped the least
+ * recently used queues go as well. Compact consume queues are never unmapped.
+ */
+public class LazyConsumeQueueService extends ServiceThread {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    /**
+     * A queue touched this recently is never unmapped, whatever the cap says.
+     */
+    private static final long MIN_IDLE_MILLIS = 1000;
+    private static final long UNMAP_INTERVAL_FORCIBLY = 1000 * 120;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final List<MappedFile> unmappingFiles = new ArrayList<MappedFile>();
+    private final AtomicLong unloadTimes = new AtomicLong(0);
+    private volatile int loadedQueueNums = 0;
+    private volatile int mappedFileNums = 0;
+
+    public LazyConsumeQueueService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+    @Override
+    public String getServiceName() {
+        return LazyConsumeQueueService.class.getSimpleName();
+    }
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(1000);
+                this.unloadIdleQueues();
+            } catch (Throwable e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+    void unloadIdleQueues() {
+        long now = System.currentTimeMillis();
+        long idleInterval = this.defaultMessageStore.getMessageStoreConfig().getConsumeQueueIdleUnmapInterval();
+        int maxMappedFiles = this.defaultMessageStore.getMessageStoreConfig().getMaxMappedConsumeQueueFiles();
+
+        List<ConsumeQueue> loadedQueues = new ArrayList<ConsumeQueue>();
+        int mappedFiles = 0;
+        for (ConcurrentMap<Integer, ConsumeQueue> maps : this.defaultMessageStore.getConsumeQueueTable().values()) {
+            for (ConsumeQueue logic : maps.values()) {
+                if (!logic.isLoaded() || logic instanceof CompactConsumeQueue) {
+                    continue;
+                }
+                if (now - logic.getLastAccessTimestamp() >= idleInterval) {
+                    this.unload(logic);
+                } else {
+                    loadedQueues.add(logic);
+                    mappedFiles += logic.getMappedFileQueue().getMappedFiles().size();
+                }
+            }
+        }
+
+        if (mappedFiles > maxMappedFiles) {
+            // snapshot the timestamps, they keep moving while sorting
+            final HashMap<ConsumeQueue, Long> accessTimestamps = new HashMap<ConsumeQueue, Long>(loadedQueues.size());
+            for (ConsumeQueue logic : loadedQueues) {
+                accessTimestamps.put(logic, logic.getLastAccessTimestamp());
+            }
+            Collections.sort(loadedQueues, new Comparator<ConsumeQueue>() {
+                @Override
+                public int compare(ConsumeQueue o1, ConsumeQueue o2) {
+                    return Long.compare(accessTimestamps.get(o1), accessTimestamps.get(o2));
+                }
+            });
+
+            for (Iterator<ConsumeQueue> it = loadedQueues.iterator(); it.hasNext() && mappedFiles > maxMappedFiles; ) {
+                ConsumeQueue logic = it.next();
+                if (now - accessTimestamps.get(logic) < MIN_IDLE_MILLIS) {
+                    break;
+                }
+                mappedFiles -= logic.getMappedFileQueue().getMappedFiles().size();
+                this.unload(logic);
+                it.remove();
+            }
+        }
+
+        this.loadedQueueNums = loadedQueues.size();
+        this.mappedFileNums = mappedFiles;
+
+        for (Iterator<MappedFile> it = this.unmappingFiles.iterator(); it.hasNext(); ) {
+            if (it.next().unmap(UNMAP_INTERVAL_FORCIBLY)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void unload(final ConsumeQueue logic) {
+        List<MappedFile> files = logic.unload();
+        if (files == null) {
+            log.info("skip unmapping pinned consume queue {}-{}", logic.getTopic(), logic.getQueueId());
+            return;
+        }
+        for (MappedFile mappedFile : files) {
+            if (!mappedFile.unmap(UNMAP_INTERVAL_FORCIBLY)) {
+                this.unmappingFiles.add(mappedFile);
+            }
+        }
+        this.unloadTimes.incrementAndGet();
+        log.info("unmap idle consume queue {}-{}, {} files", logic.getTopic(), logic.getQueueId(), files.size());
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put(RunningStats.consumeQueueLoadedNums.name(), String.valueOf(this.loadedQueueNums));
+        stats.put(RunningStats.consumeQueueMappedFiles.name(), String.valueOf(this.mappedFileNums));
+    }
+
+    public int getLoadedQueueNums() {
+        return loadedQueueNums;
+    }
+
+    public int getMappedFileNums() {
+        return mappedFileNums;
+    }
+
+    public long getUnloadTimes() {
+        return unloadTimes.get();
+    }
+}
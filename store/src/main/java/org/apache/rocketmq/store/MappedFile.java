@@ -67,10 +67,21 @@ public class MappedFile extends ReferenceResource {
 
     private static final AtomicInteger TOTAL_MAPPED_FILES = new AtomicInteger(0);
 
+    /**
+     * How long a concurrent writer waits for the slots reserved before its own to be published, a writer that
+     * died between reserve and publish must not hang the put path forever.
+     */
+    public static final long PUBLISH_WAIT_TIMEOUT_MILLIS = 3000;
+
     /**
      *记录文件的写入位置
      */
     protected final AtomicInteger wrotePosition = new AtomicInteger(0);
+    /**
+     * End of the space handed out to concurrent writers by {@link #reserve(int, int)}; always >= wrotePosition
+     * while reservations are in flight, wrotePosition catches up as writers publish in order.
+     */
+    protected final AtomicInteger reservedPosition = new AtomicInteger(0);
     /**
      * 数据提交位置
      */
@@ -255,6 +266,10 @@ public class MappedFile extends ReferenceResource {
     public AppendMessageResult appendMessagesInner(final MessageExt messageExt, final AppendMessageCallback cb) {
         assert messageExt != null;
         assert cb != null;
+        // Let concurrent writers that reserved space before us publish first
+        if (!this.awaitPublished()) {
+            return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+        }
         // 获取写入位置
         int currentPos = this.wrotePosition.get();
         // 如果写指针小于文件大小
@@ -284,6 +299,114 @@ public class MappedFile extends ReferenceResource {
         return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
     }
 
+    /**
+     * Reserve a slot for a concurrent writer by CAS on the reserved position.
+     *
+     * @param size bytes to reserve
+     * @param minRemaining bytes that must still be free behind the slot
+     * @return start position of the slot, or -1 if the file does not have enough room
+     */
+    public int reserve(final int size, final int minRemaining) {
+        for (;;) {
+            int reserved = this.reservedPosition.get();
+            int current = Math.max(reserved, this.wrotePosition.get());
+            if (current + size + minRemaining > this.fileSize) {
+                return -1;
+            }
+            if (this.reservedPosition.compareAndSet(reserved, current + size)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Reserve everything left in the file, used to pad the tail with a blank record before rolling over.
+     *
+     * @return start position of the padding, or -1 if the file has already been handed out completely
+     */
+    public int reserveRemaining() {
+        for (;;) {
+            int reserved = this.reservedPosition.get();
+            int current = Math.max(reserved, this.wrotePosition.get());
+            if (current >= this.fileSize) {
+                return -1;
+            }
+            if (this.reservedPosition.compareAndSet(reserved, this.fileSize)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Copy data into a slot obtained from {@link #reserve(int, int)}, may run in parallel with other writers.
+     */
+    public void writeReserved(final int position, final ByteBuffer data) {
+        ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer.slice();
+        byteBuffer.position(position);
+        byteBuffer.put(data);
+    }
+
+    /**
+     * Make a reserved slot visible to readers, flush and commit. Slots are published strictly in reservation
+     * order, so wrotePosition is always a contiguous watermark of fully written data.
+     *
+     * @return false if an earlier slot was not published within {@link #PUBLISH_WAIT_TIMEOUT_MILLIS}, the slot
+     * then stays invisible
+     */
+    public boolean publish(final int position, final int size, final long storeTimestamp) {
+        long deadline = 0;
+        int spins = 0;
+        while (this.wrotePosition.get() != position) {
+            if (++spins % 64 == 0) {
+                long now = System.currentTimeMillis();
+                if (deadline == 0) {
+                    deadline = now + PUBLISH_WAIT_TIMEOUT_MILLIS;
+                } else if (now > deadline) {
+                    log.error("publish timeout, file: {} position: {} wrotePosition: {}", this.fileName, position,
+                        this.wrotePosition.get());
+                    return false;
+                }
+                Thread.yield();
+            }
+        }
+        if (storeTimestamp > 0) {
+            this.storeTimestamp = storeTimestamp;
+        }
+        this.wrotePosition.set(position + size);
+        return true;
+    }
+
+    /**
+     * Position the next reservation would start at.
+     */
+    public int getReservedPosition() {
+        return Math.max(this.reservedPosition.get(), this.wrotePosition.get());
+    }
+
+    /**
+     * Wait until every reserved slot has been published.
+     *
+     * @return false if they were not published within {@link #PUBLISH_WAIT_TIMEOUT_MILLIS}
+     */
+    public boolean awaitPublished() {
+        long deadline = 0;
+        int spins = 0;
+        while (this.reservedPosition.get() > this.wrotePosition.get()) {
+            if (++spins % 64 == 0) {
+                long now = System.currentTimeMillis();
+                if (deadline == 0) {
+                    deadline = now + PUBLISH_WAIT_TIMEOUT_MILLIS;
+                } else if (now > deadline) {
+                    log.error("await published timeout, file: {} reservedPosition: {} wrotePosition: {}", this.fileName,
+                        this.reservedPosition.get(), this.wrotePosition.get());
+                    return false;
+                }
+                Thread.yield();
+            }
+        }
+        return true;
+    }
+
     public long getFileFromOffset() {
         return this.fileFromOffset;
     }
@@ -582,12 +705,33 @@ public class MappedFile extends ReferenceResource {
         return false;
     }
 
+    /**
+     * Unmaps the file and closes its channel but leaves it on disk. Readers still holding the file keep it mapped
+     * until they release it or intervalForcibly passes, so this is retried until it returns true.
+     */
+    public boolean unmap(final long intervalForcibly) {
+        this.shutdown(intervalForcibly);
+
+        if (this.isCleanupOver()) {
+            try {
+                this.fileChannel.close();
+                log.info("close file channel " + this.fileName + " OK");
+            } catch (IOException e) {
+                log.warn("close file channel " + this.fileName + " Failed. ", e);
+            }
+            return true;
+        }
+
+        return false;
+    }
+
     public int getWrotePosition() {
         return wrotePosition.get();
     }
 
     public void setWrotePosition(int pos) {
         this.wrotePosition.set(pos);
+        this.reservedPosition.set(pos);
     }
 
     /**
@@ -605,6 +749,14 @@ public class MappedFile extends ReferenceResource {
     }
 
     public void warmMappedFile(FlushDiskType type, int pages) {
+        this.warmMappedFile(type, pages, 0);
+    }
+
+    /**
+     * @param bytesPerSecond touches pages no faster than this, so warming files ahead does not compete with the
+     * writers for disk bandwidth, 0 for no limit
+     */
+    public void warmMappedFile(FlushDiskType type, int pages, long bytesPerSecond) {
         long beginTime = System.currentTimeMillis();
         ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
         int flush = 0;
@@ -623,8 +775,9 @@ public class MappedFile extends ReferenceResource {
             if (j % 1000 == 0) {
                 log.info("j={}, costTime={}", j, System.currentTimeMillis() - time);
                 time = System.currentTimeMillis();
+                long ahead = bytesPerSecond > 0 ? (long) i * 1000 / bytesPerSecond - (time - beginTime) : 0;
                 try {
-                    Thread.sleep(0);
+                    Thread.sleep(Math.max(0, ahead));
                 } catch (InterruptedException e) {
                     log.error("Interrupted", e);
                 }
@@ -682,6 +835,42 @@ public class MappedFile extends ReferenceResource {
         }
     }
 
+    /**
+     * Give {@code advice} for the pages covering [pos, pos + size) of this file.
+     *
+     * @return result of madvise, -1 when the file is no longer available
+     */
+    public int madvise(final int pos, final int size, final int advice) {
+        int begin = Math.max(0, pos) / OS_PAGE_SIZE * OS_PAGE_SIZE;
+        int end = Math.min(this.fileSize, pos + size);
+        if (end <= begin || !this.hold()) {
+            return -1;
+        }
+        try {
+            final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+            return LibC.INSTANCE.madvise(new Pointer(address + begin), new NativeLong(end - begin), advice);
+        } finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Whether the page holding {@code pos} is in the page cache, so reading it will not fault to disk.
+     */
+    public boolean isResident(final int pos) {
+        if (pos < 0 || pos >= this.fileSize || !this.hold()) {
+            return false;
+        }
+        try {
+            final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+            byte[] vec = new byte[1];
+            int ret = LibC.INSTANCE.mincore(new Pointer(address + pos / OS_PAGE_SIZE * OS_PAGE_SIZE), new NativeLong(OS_PAGE_SIZE), vec);
+            return ret == 0 && (vec[0] & 1) != 0;
+        } finally {
+            this.release();
+        }
+    }
+
     public void munlock() {
         final long beginTime = System.currentTimeMillis();
         final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
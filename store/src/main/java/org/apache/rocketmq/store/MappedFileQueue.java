@@ -313,6 +313,23 @@ public class MappedFileQueue {
         return 0;
     }
 
+    /**
+     * Give {@code advice} for the written range [from, to) of this queue, file by file.
+     */
+    public void madvise(final long from, final long to, final int advice) {
+        long begin = Math.max(from, this.getMinOffset());
+        long end = Math.min(to, this.getMaxOffset());
+        while (begin < end) {
+            MappedFile mappedFile = this.findMappedFileByOffset(begin);
+            if (mappedFile == null) {
+                break;
+            }
+            long fileEnd = mappedFile.getFileFromOffset() + this.mappedFileSize;
+            mappedFile.madvise((int) (begin - mappedFile.getFileFromOffset()), (int) (Math.min(end, fileEnd) - begin), advice);
+            begin = fileEnd;
+        }
+    }
+
     public long getMaxWrotePosition() {
         MappedFile mappedFile = getLastMappedFile();
         if (mappedFile != null) {
@@ -435,10 +452,11 @@ public class MappedFileQueue {
      *      2. 调用mappedFile的flush方法进行刷盘，并返回刷盘后的位置偏移量
      *      3. 计算最新的flush偏移量
      *      4. 更新flushedWhere的值为最新的flush偏移量
+     * Synchronized, because a commit log on an async flush broker is also flushed for topics asking for sync flush.
      * @param flushLeastPages
      * @return
      */
-    public boolean flush(final int flushLeastPages) {
+    public synchronized boolean flush(final int flushLeastPages) {
         boolean result = true;
 
         // 获取flush的位置偏移量映射文件
@@ -616,6 +634,16 @@ public class MappedFileQueue {
         }
     }
 
+    /**
+     * Takes every file out of the queue without touching them on disk, the caller unmaps them with
+     * {@link MappedFile#unmap(long)} and a later {@link #load()} maps them again.
+     */
+    public List<MappedFile> unload() {
+        List<MappedFile> files = new ArrayList<MappedFile>(this.mappedFiles);
+        this.mappedFiles.clear();
+        return files;
+    }
+
     public long getFlushedWhere() {
         return flushedWhere;
     }
@@ -34,6 +34,23 @@ public class MessageExtBrokerInner extends MessageExt {
         return tagsString2tagsCode(null, tags);
     }
 
+    /**
+     * @param ttl the TTL property of the message, milliseconds after it was stored
+     * @return when the message expires, 0 if it never does
+     */
+    public static long ttl2ExpireTimestamp(final long storeTimestamp, final String ttl) {
+        if (null == ttl || ttl.length() == 0) {
+            return 0;
+        }
+
+        try {
+            long ttlMillis = Long.parseLong(ttl);
+            return ttlMillis > 0 ? storeTimestamp + ttlMillis : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public String getPropertiesString() {
         return propertiesString;
     }
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Encodes a single message outside of the put lock for the multi-writer append path. Queue offset,
+ * physical offset and store timestamp are left as placeholders and patched once a slot is reserved.
+ */
+public class MessageExtEncoder {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private static final int QUEUE_OFFSET_POSITION = 4 + 4 + 4 + 4 + 4;
+    private static final int PHYSICAL_OFFSET_POSITION = QUEUE_OFFSET_POSITION + 8;
+    private static final int SYS_FLAG_POSITION = PHYSICAL_OFFSET_POSITION + 8;
+    private static final int BORN_HOST_POSITION = SYS_FLAG_POSITION + 4 + 8;
+    // Store the message content
+    private final ByteBuffer msgStoreItemMemory;
+    private final ByteBuffer msgIdMemory;
+    private final ByteBuffer msgIdV6Memory;
+    private ByteBuffer storeHostHolder;
+    // The maximum length of the message
+    private final int maxMessageSize;
+
+    MessageExtEncoder(final int size) {
+        this.msgStoreItemMemory = ByteBuffer.allocate(size);
+        this.msgIdMemory = ByteBuffer.allocate(4 + 4 + 8);
+        this.msgIdV6Memory = ByteBuffer.allocate(16 + 4 + 8);
+        this.maxMessageSize = size;
+    }
+
+    public AppendMessageStatus encode(final MessageExtBrokerInner msgInner) {
+        this.msgStoreItemMemory.clear();
+        AppendMessageStatus status = this.encode(msgInner, this.msgStoreItemMemory);
+        this.msgStoreItemMemory.flip();
+        return status;
+    }
+
+    /**
+     * Encode the message at the current position of the target buffer.
+     *
+     * @return END_OF_FILE if the target does not have enough room left
+     */
+    public AppendMessageStatus encode(final MessageExtBrokerInner msgInner, final ByteBuffer target) {
+        final byte[] propertiesData =
+            msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
+
+        final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+
+        if (propertiesLength > Short.MAX_VALUE) {
+            log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+            return AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED;
+        }
+
+        final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+        final int topicLength = topicData.length;
+
+        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+
+        final int msgLen = CommitLog.calMsgLength(msgInner.getSysFlag(), bodyLength, topicLength, propertiesLength);
+
+        // Exceeds the maximum message
+        if (msgLen > this.maxMessageSize) {
+            log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: " + bodyLength
+                + ", maxMessageSize: " + this.maxMessageSize);
+            return AppendMessageStatus.MESSAGE_SIZE_EXCEEDED;
+        }
+
+        if (msgLen > target.remaining()) {
+            return AppendMessageStatus.END_OF_FILE;
+        }
+
+        int sysflag = msgInner.getSysFlag();
+        int bornHostLength = (sysflag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
+        int storeHostLength = (sysflag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
+        ByteBuffer bornHostHolder = ByteBuffer.allocate(bornHostLength);
+        this.storeHostHolder = ByteBuffer.allocate(storeHostLength);
+
+        // 1 TOTALSIZE
+        target.putInt(msgLen);
+        // 2 MAGICCODE
+        target.putInt(CommitLog.MESSAGE_MAGIC_CODE);
+        // 3 BODYCRC
+        target.putInt(msgInner.getBodyCRC());
+        // 4 QUEUEID
+        target.putInt(msgInner.getQueueId());
+        // 5 FLAG
+        target.putInt(msgInner.getFlag());
+        // 6 QUEUEOFFSET, patched after reservation
+        target.putLong(0);
+        // 7 PHYSICALOFFSET, patched after reservation
+        target.putLong(0);
+        // 8 SYSFLAG
+        target.putInt(msgInner.getSysFlag());
+        // 9 BORNTIMESTAMP
+        target.putLong(msgInner.getBornTimestamp());
+        // 10 BORNHOST
+        this.resetByteBuffer(bornHostHolder, bornHostLength);
+        target.put(msgInner.getBornHostBytes(bornHostHolder));
+        // 11 STORETIMESTAMP, patched after reservation
+        target.putLong(0);
+        // 12 STOREHOSTADDRESS
+        this.resetByteBuffer(storeHostHolder, storeHostLength);
+        target.put(msgInner.getStoreHostBytes(storeHostHolder));
+        // 13 RECONSUMETIMES
+        target.putInt(msgInner.getReconsumeTimes());
+        // 14 Prepared Transaction Offset
+        target.putLong(msgInner.getPreparedTransactionOffset());
+        // 15 BODY
+        target.putInt(bodyLength);
+        if (bodyLength > 0)
+            target.put(msgInner.getBody());
+        // 16 TOPIC
+        target.put((byte) topicLength);
+        target.put(topicData);
+        // 17 PROPERTIES
+        target.putShort((short) propertiesLength);
+        if (propertiesLength > 0)
+            target.put(propertiesData);
+
+        return AppendMessageStatus.PUT_OK;
+    }
+
+    public ByteBuffer getEncodedBuff() {
+        return msgStoreItemMemory;
+    }
+
+    public void patch(final long queueOffset, final long physicalOffset, final long storeTimestamp) {
+        patch(this.msgStoreItemMemory, 0, queueOffset, physicalOffset, storeTimestamp);
+    }
+
+    /**
+     * Fill in queue offset, physical offset and store timestamp of a message encoded at msgPos.
+     */
+    public static void patch(final ByteBuffer byteBuffer, final int msgPos, final long queueOffset,
+        final long physicalOffset, final long storeTimestamp) {
+        int sysFlag = byteBuffer.getInt(msgPos + SYS_FLAG_POSITION);
+        int bornHostLength = (sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
+        byteBuffer.putLong(msgPos + QUEUE_OFFSET_POSITION, queueOffset);
+        byteBuffer.putLong(msgPos + PHYSICAL_OFFSET_POSITION, physicalOffset);
+        byteBuffer.putLong(msgPos + BORN_HOST_POSITION + bornHostLength, storeTimestamp);
+    }
+
+    public String createMessageId(final long physicalOffset) {
+        this.storeHostHolder.rewind();
+        if (this.storeHostHolder.limit() == 4 + 4) {
+            return MessageDecoder.createMessageId(this.msgIdMemory, this.storeHostHolder, physicalOffset);
+        }
+        return MessageDecoder.createMessageId(this.msgIdV6Memory, this.storeHostHolder, physicalOffset);
+    }
+
+    private void resetByteBuffer(final ByteBuffer byteBuffer, final int limit) {
+        byteBuffer.flip();
+        byteBuffer.limit(limit);
+    }
+}
@@ -20,6 +20,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.TopicConfig;
 
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
@@ -396,4 +398,13 @@ public interface MessageStore {
      * @param brokerRole
      */
     void handleScheduleMessageService(BrokerRole brokerRole);
+
+    /**
+     * Share the live topic configs of the broker, so per-topic flush and retention attributes are honored. Stores
+     * without per-topic attributes ignore them.
+     *
+     * @param topicConfigTable topic configs keyed by topic name.
+     */
+    default void setTopicConfigTable(ConcurrentMap<String, TopicConfig> topicConfigTable) {
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import com.sun.jna.Platform;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.util.LibC;
+
+/**
+ * Adapts page cache advice of the commit log to the read pattern of every consumer queue, so consumers catching up
+ * far behind the tail stream through the page cache instead of evicting the hot tail with random faults.
+ */
+public class ReadAheadAdvisor {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private static final int MIN_SEQUENTIAL_READS = 2;
+    private static final long STATE_EXPIRE_MILLIS = 1000 * 120;
+    private static final int STATE_CLEAN_INTERVAL = 1024;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final ConcurrentMap<String/* topic@queueId@group */, ReadState> readStateTable =
+        new ConcurrentHashMap<String, ReadState>(256);
+    private final AtomicLong adviseTimes = new AtomicLong(0);
+    private final AtomicLong readTimes = new AtomicLong(0);
+    private volatile boolean available = !Platform.isWindows();
+
+    public ReadAheadAdvisor(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+    public boolean isEnable() {
+        return this.available && this.defaultMessageStore.getMessageStoreConfig().isAdaptiveReadAheadEnable();
+    }
+
+    /**
+     * Count whether the message about to be handed out is served from memory or has to come from disk, must be
+     * called before anything touches its content.
+     */
+    public void recordResidency(final SelectMappedBufferResult result) {
+        MappedFile mappedFile = result.getMappedFile();
+        boolean resident = false;
+        if (mappedFile != null) {
+            try {
+                resident = mappedFile.isResident((int) (result.getStartOffset() - mappedFile.getFileFromOffset()));
+            } catch (Throwable e) {
+                this.disable(e);
+            }
+        }
+
+        StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+        if (resident) {
+            storeStatsService.getGetMessageHitMemoryCount().incrementAndGet();
+        } else {
+            storeStatsService.getGetMessageHitDiskCount().incrementAndGet();
+        }
+    }
+
+    /**
+     * Called after a read of [offset, nextBeginOffset) of a consumer queue found messages in [phyBegin, phyEnd).
+     *
+     * @param catchUp whether the read is far enough behind the tail to miss the page cache
+     */
+    public void advise(final String group, final String topic, final int queueId, final long offset,
+        final long nextBeginOffset, final long phyBegin, final long phyEnd, final boolean catchUp) {
+        final long now = System.currentTimeMillis();
+        String key = topic + "@" + queueId + "@" + group;
+        ReadState state = this.readStateTable.get(key);
+        if (null == state) {
+            state = new ReadState();
+            ReadState old = this.readStateTable.putIfAbsent(key, state);
+            if (old != null) {
+                state = old;
+            }
+        }
+
+        synchronized (state) {
+            state.sequentialReads = state.nextOffset == offset ? state.sequentialReads + 1 : 0;
+            if (catchUp && state.sequentialReads >= MIN_SEQUENTIAL_READS) {
+                try {
+                    MappedFileQueue mappedFileQueue = this.defaultMessageStore.getCommitLog().mappedFileQueue;
+                    if (state.phyEnd > state.phyBegin && state.phyEnd <= phyBegin) {
+                        mappedFileQueue.madvise(state.phyBegin, state.phyEnd, LibC.MADV_DONTNEED);
+                    }
+                    mappedFileQueue.madvise(phyBegin, phyEnd, LibC.MADV_SEQUENTIAL);
+                    mappedFileQueue.madvise(phyEnd, phyEnd + this.defaultMessageStore.getMessageStoreConfig().getAdaptiveReadAheadSize(),
+                        LibC.MADV_WILLNEED);
+                    this.adviseTimes.incrementAndGet();
+                } catch (Throwable e) {
+                    this.disable(e);
+                }
+            }
+            state.nextOffset = nextBeginOffset;
+            state.phyBegin = phyBegin;
+            state.phyEnd = phyEnd;
+            state.lastReadTimestamp = now;
+        }
+
+        if (this.readTimes.incrementAndGet() % STATE_CLEAN_INTERVAL == 0) {
+            this.cleanExpiredState(now);
+        }
+    }
+
+    private void cleanExpiredState(final long now) {
+        Iterator<ReadState> it = this.readStateTable.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastReadTimestamp > STATE_EXPIRE_MILLIS) {
+                it.remove();
+            }
+        }
+    }
+
+    private void disable(final Throwable e) {
+        if (this.available) {
+            this.available = false;
+            log.warn("page cache advice is not supported on this platform, adaptive read ahead disabled", e);
+        }
+    }
+
+    public long getAdviseTimes() {
+        return adviseTimes.get();
+    }
+
+    static class ReadState {
+        private long nextOffset = -1;
+        private long phyBegin = -1;
+        private long phyEnd = -1;
+        private int sequentialReads = 0;
+        private volatile long lastReadTimestamp = 0;
+    }
+}
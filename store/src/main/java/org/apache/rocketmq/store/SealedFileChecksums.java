@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * CRC32 of the commit log files that were sealed, that is filled up and flushed, while the broker was running.
+ * Abnormal recovery checks the sealed files it has to replay against these in parallel and walks them without
+ * verifying every single message, only files without a matching checksum are still checked message by message.
+ */
+public class SealedFileChecksums {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private final String storePath;
+    private final MappedFileQueue mappedFileQueue;
+    private final int mappedFileSize;
+    private final ConcurrentSkipListMap<Long/* fileFromOffset */, Long/* crc32 */> checksums =
+        new ConcurrentSkipListMap<Long, Long>();
+    private final ExecutorService sealExecutor =
+        Executors.newSingleThreadExecutor(new ThreadFactoryImpl("SealedFileChecksumThread_"));
+    private long nextSealOffset = Long.MAX_VALUE;
+
+    public SealedFileChecksums(final String storePath, final MappedFileQueue mappedFileQueue, final int mappedFileSize) {
+        this.storePath = storePath;
+        this.mappedFileQueue = mappedFileQueue;
+        this.mappedFileSize = mappedFileSize;
+    }
+
+    /**
+     * The checksums only speed recovery up, a damaged file is logged and ignored.
+     */
+    public void load() {
+        try {
+            String content = MixAll.file2String(this.storePath);
+            if (content == null) {
+                return;
+            }
+            for (String line : content.split("\n")) {
+                String[] pair = line.trim().split(" ");
+                if (pair.length == 2) {
+                    this.checksums.put(Long.parseLong(pair[0]), Long.parseLong(pair[1]));
+                }
+            }
+            log.info("load {} sealed file checksums", this.checksums.size());
+        } catch (IOException | NumberFormatException e) {
+            log.warn("sealed file checksums damaged, ignore them, " + this.storePath, e);
+            this.checksums.clear();
+        }
+    }
+
+    /**
+     * Only files filled up from now on are sealed, older ones are never read back just to checksum them.
+     */
+    public synchronized void start(final long flushedWhere) {
+        this.nextSealOffset = flushedWhere - flushedWhere % this.mappedFileSize;
+    }
+
+    public void shutdown() {
+        this.sealExecutor.shutdown();
+        try {
+            this.sealExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            log.warn("interrupted while waiting for sealed file checksums", e);
+        }
+    }
+
+    /**
+     * Called by the flush services, checksums every file that lies entirely below the flushed offset now.
+     */
+    public synchronized void onFlushed(final long flushedWhere) {
+        while (this.nextSealOffset + this.mappedFileSize <= flushedWhere) {
+            final MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(this.nextSealOffset);
+            this.nextSealOffset += this.mappedFileSize;
+            if (mappedFile != null && !this.sealExecutor.isShutdown()) {
+                this.sealExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        SealedFileChecksums.this.seal(mappedFile);
+                    }
+                });
+            }
+        }
+    }
+
+    private void seal(final MappedFile mappedFile) {
+        if (!mappedFile.hold()) {
+            return;
+        }
+
+        try {
+            this.checksums.put(mappedFile.getFileFromOffset(), crc32(mappedFile));
+        } finally {
+            mappedFile.release();
+        }
+        this.persist();
+    }
+
+    private synchronized void persist() {
+        MappedFile firstMappedFile = this.mappedFileQueue.getFirstMappedFile();
+        if (firstMappedFile != null) {
+            this.checksums.headMap(firstMappedFile.getFileFromOffset()).clear();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, Long> entry : this.checksums.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        try {
+            MixAll.string2File(sb.toString(), this.storePath);
+        } catch (IOException e) {
+            log.error("persist sealed file checksums failed, " + this.storePath, e);
+        }
+    }
+
+    /**
+     * Checks the given files in parallel.
+     *
+     * @return the start offsets of the files whose content matches the checksum taken when they were sealed
+     */
+    public Set<Long> verify(final List<MappedFile> mappedFiles, final int threadNum) {
+        final Set<Long> verified = new HashSet<Long>();
+        final List<MappedFile> candidates = new ArrayList<MappedFile>();
+        for (MappedFile mappedFile : mappedFiles) {
+            if (this.checksums.containsKey(mappedFile.getFileFromOffset())
+                && mappedFile.getFileSize() == this.mappedFileSize) {
+                candidates.add(mappedFile);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return verified;
+        }
+
+        long beginTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadNum, candidates.size())),
+            new ThreadFactoryImpl("RecoverVerifyThread_"));
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>(candidates.size());
+            for (final MappedFile mappedFile : candidates) {
+                futures.add(executor.submit(() -> crc32(mappedFile)));
+            }
+            for (int i = 0; i < candidates.size(); i++) {
+                long fileFromOffset = candidates.get(i).getFileFromOffset();
+                try {
+                    if (futures.get(i).get() == this.checksums.get(fileFromOffset).longValue()) {
+                        verified.add(fileFromOffset);
+                    } else {
+                        log.warn("sealed commit log file {} does not match its checksum", candidates.get(i).getFileName());
+                    }
+                } catch (Exception e) {
+                    log.warn("verify sealed commit log file failed, " + candidates.get(i).getFileName(), e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        log.info("verified {} of {} sealed commit log files, cost {} ms", verified.size(), candidates.size(),
+            System.currentTimeMillis() - beginTime);
+        return verified;
+    }
+
+    public Long getChecksum(final long fileFromOffset) {
+        return this.checksums.get(fileFromOffset);
+    }
+
+    private static long crc32(final MappedFile mappedFile) {
+        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        CRC32 crc32 = new CRC32();
+        crc32.update(byteBuffer);
+        return crc32.getValue();
+    }
+}
@@ -65,4 +65,8 @@ public class SelectMappedBufferResult {
     public long getStartOffset() {
         return startOffset;
     }
+
+    public MappedFile getMappedFile() {
+        return mappedFile;
+    }
 }
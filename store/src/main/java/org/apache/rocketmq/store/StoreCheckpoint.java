@@ -29,12 +29,20 @@ import org.apache.rocketmq.logging.InternalLoggerFactory;
 
 public class StoreCheckpoint {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final int OFFSET_MAGIC = 0x4F464653;
     private final RandomAccessFile randomAccessFile;
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
     private volatile long physicMsgTimestamp = 0;
     private volatile long logicsMsgTimestamp = 0;
     private volatile long indexMsgTimestamp = 0;
+    /**
+     * Commit log offsets behind the timestamps above: everything below physicMsgOffset is flushed, and the consume
+     * queue entries of everything below logicsMsgOffset are flushed. Files written before these existed have no
+     * offset magic and recovery falls back to the timestamps.
+     */
+    private volatile long physicMsgOffset = -1;
+    private volatile long logicsMsgOffset = -1;
 
     public StoreCheckpoint(final String scpPath) throws IOException {
         File file = new File(scpPath);
@@ -50,6 +58,10 @@ public class StoreCheckpoint {
             this.physicMsgTimestamp = this.mappedByteBuffer.getLong(0);
             this.logicsMsgTimestamp = this.mappedByteBuffer.getLong(8);
             this.indexMsgTimestamp = this.mappedByteBuffer.getLong(16);
+            if (this.mappedByteBuffer.getInt(40) == OFFSET_MAGIC) {
+                this.physicMsgOffset = this.mappedByteBuffer.getLong(24);
+                this.logicsMsgOffset = this.mappedByteBuffer.getLong(32);
+            }
 
             log.info("store checkpoint file physicMsgTimestamp " + this.physicMsgTimestamp + ", "
                 + UtilAll.timeMillisToHumanString(this.physicMsgTimestamp));
@@ -57,6 +69,7 @@ public class StoreCheckpoint {
                 + UtilAll.timeMillisToHumanString(this.logicsMsgTimestamp));
             log.info("store checkpoint file indexMsgTimestamp " + this.indexMsgTimestamp + ", "
                 + UtilAll.timeMillisToHumanString(this.indexMsgTimestamp));
+            log.info("store checkpoint file physicMsgOffset {}, logicsMsgOffset {}", this.physicMsgOffset, this.logicsMsgOffset);
         } else {
             log.info("store checkpoint file not exists, " + scpPath);
         }
@@ -79,6 +92,9 @@ public class StoreCheckpoint {
         this.mappedByteBuffer.putLong(0, this.physicMsgTimestamp);
         this.mappedByteBuffer.putLong(8, this.logicsMsgTimestamp);
         this.mappedByteBuffer.putLong(16, this.indexMsgTimestamp);
+        this.mappedByteBuffer.putLong(24, this.physicMsgOffset);
+        this.mappedByteBuffer.putLong(32, this.logicsMsgOffset);
+        this.mappedByteBuffer.putInt(40, OFFSET_MAGIC);
         this.mappedByteBuffer.force();
     }
 
@@ -112,6 +128,32 @@ public class StoreCheckpoint {
         return min;
     }
 
+    /**
+     * @return the commit log offset abnormal recovery has to replay from, -1 if it is not known
+     */
+    public long getMinOffset() {
+        if (this.physicMsgOffset < 0 || this.logicsMsgOffset < 0) {
+            return -1;
+        }
+        return Math.min(this.physicMsgOffset, this.logicsMsgOffset);
+    }
+
+    public long getPhysicMsgOffset() {
+        return physicMsgOffset;
+    }
+
+    public void setPhysicMsgOffset(long physicMsgOffset) {
+        this.physicMsgOffset = physicMsgOffset;
+    }
+
+    public long getLogicsMsgOffset() {
+        return logicsMsgOffset;
+    }
+
+    public void setLogicsMsgOffset(long logicsMsgOffset) {
+        this.logicsMsgOffset = logicsMsgOffset;
+    }
+
     public long getIndexMsgTimestamp() {
         return indexMsgTimestamp;
     }
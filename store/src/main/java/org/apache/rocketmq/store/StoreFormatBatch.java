@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Batches sent with RequestCode#SEND_BATCH_MESSAGE_IN_STORE_FORMAT, laid out by the producer exactly as the commit
+ * log stores them with IPv4 hosts.
+ */
+public final class StoreFormatBatch {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    static final int QUEUE_ID_POSITION = 4 + 4 + 4;
+    static final int BORN_HOST_POSITION = MessageDecoder.SYSFLAG_POSITION + 4 + 8;
+    static final int STORE_TIMESTAMP_POSITION = BORN_HOST_POSITION + 8;
+    static final int STORE_HOST_POSITION = STORE_TIMESTAMP_POSITION + 8;
+    static final int RECONSUME_TIMES_POSITION = STORE_HOST_POSITION + 8;
+    static final int PREPARED_OFFSET_POSITION = RECONSUME_TIMES_POSITION + 4;
+    static final int BODY_POSITION = MessageDecoder.STORE_FORMAT_BODY_POSITION;
+
+    private StoreFormatBatch() {
+    }
+
+    /**
+     * The producer already laid out the batch as it is stored, only the fields known to the broker are patched
+     * into the request body itself and it is appended with a single copy. Queue offset, physical offset and
+     * store timestamp are patched under the put lock.
+     */
+    static ByteBuffer patch(final MessageExtBatch messageExtBatch, final int maxMessageSize) {
+        ByteBuffer messagesByteBuff = messageExtBatch.wrap();
+        final byte[] topicData = messageExtBatch.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+        ByteBuffer bornHostHolder = ByteBuffer.allocate(4 + 4);
+        ByteBuffer storeHostHolder = ByteBuffer.allocate(4 + 4);
+        resetByteBuffer(bornHostHolder, 4 + 4);
+        messageExtBatch.getBornHostBytes(bornHostHolder);
+        resetByteBuffer(storeHostHolder, 4 + 4);
+        messageExtBatch.getStoreHostBytes(storeHostHolder);
+
+        int totalMsgLen = 0;
+        while (messagesByteBuff.hasRemaining()) {
+            final int msgPos = messagesByteBuff.position();
+            final int msgLen = check(messagesByteBuff, msgPos, topicData);
+            if (msgLen > maxMessageSize) {
+                log.warn("message size exceeded, msg total size: " + msgLen + ", maxMessageSize: " + maxMessageSize);
+                throw new RuntimeException("message size exceeded");
+            }
+            totalMsgLen += msgLen;
+            if (totalMsgLen > maxMessageSize) {
+                throw new RuntimeException("message size exceeded");
+            }
+
+            messagesByteBuff.putInt(msgPos + QUEUE_ID_POSITION, messageExtBatch.getQueueId());
+            messagesByteBuff.putInt(msgPos + MessageDecoder.SYSFLAG_POSITION, messageExtBatch.getSysFlag());
+            messagesByteBuff.position(msgPos + BORN_HOST_POSITION);
+            messagesByteBuff.put(bornHostHolder.array(), 0, 4 + 4);
+            messagesByteBuff.position(msgPos + STORE_HOST_POSITION);
+            messagesByteBuff.put(storeHostHolder.array(), 0, 4 + 4);
+            messagesByteBuff.putInt(msgPos + RECONSUME_TIMES_POSITION, messageExtBatch.getReconsumeTimes());
+            // batch does not support transaction
+            messagesByteBuff.putLong(msgPos + PREPARED_OFFSET_POSITION, 0);
+            messagesByteBuff.position(msgPos + msgLen);
+        }
+        messagesByteBuff.position(0);
+        return messagesByteBuff;
+    }
+
+    /**
+     * The body comes straight from the client, so the layout is verified before anything lands in the commit log.
+     *
+     * @return the total size of the message at msgPos
+     */
+    private static int check(final ByteBuffer messagesByteBuff, final int msgPos, final byte[] topicData) {
+        final int remaining = messagesByteBuff.limit() - msgPos;
+        final int msgLen = messagesByteBuff.getInt(msgPos);
+        if (remaining < BODY_POSITION + 4 || msgLen < BODY_POSITION + 4 || msgLen > remaining) {
+            throw new RuntimeException("illegal message size " + msgLen + " at " + msgPos);
+        }
+        if (messagesByteBuff.getInt(msgPos + 4) != CommitLog.MESSAGE_MAGIC_CODE) {
+            throw new RuntimeException("illegal magic code at " + msgPos);
+        }
+
+        final int bodyLen = messagesByteBuff.getInt(msgPos + BODY_POSITION);
+        final int topicPos = msgPos + BODY_POSITION + 4 + bodyLen;
+        if (bodyLen < 0 || topicPos + 1 + topicData.length + 2 > msgPos + msgLen
+            || messagesByteBuff.get(topicPos) != topicData.length) {
+            throw new RuntimeException("illegal message layout at " + msgPos);
+        }
+        for (int i = 0; i < topicData.length; i++) {
+            if (messagesByteBuff.get(topicPos + 1 + i) != topicData[i]) {
+                throw new RuntimeException("topic of message at " + msgPos + " differs from the batch");
+            }
+        }
+        final short propertiesLen = messagesByteBuff.getShort(topicPos + 1 + topicData.length);
+        if (propertiesLen < 0 || CommitLog.calMsgLength(0, bodyLen, topicData.length, propertiesLen) != msgLen) {
+            throw new RuntimeException("illegal message layout at " + msgPos);
+        }
+
+        final int bodyCrc = UtilAll.crc32(messagesByteBuff.array(), msgPos + BODY_POSITION + 4, bodyLen);
+        if (messagesByteBuff.getInt(msgPos + 4 + 4) != bodyCrc) {
+            throw new RuntimeException("body crc check failed at " + msgPos);
+        }
+        return msgLen;
+    }
+
+    private static void resetByteBuffer(final ByteBuffer byteBuffer, final int limit) {
+        byteBuffer.flip();
+        byteBuffer.limit(limit);
+    }
+}
@@ -51,6 +51,8 @@ public class StoreStatsService extends ServiceThread {
     private final AtomicLong getMessageTimesTotalFound = new AtomicLong(0);
     private final AtomicLong getMessageTransferedMsgCount = new AtomicLong(0);
     private final AtomicLong getMessageTimesTotalMiss = new AtomicLong(0);
+    private final AtomicLong getMessageHitMemoryCount = new AtomicLong(0);
+    private final AtomicLong getMessageHitDiskCount = new AtomicLong(0);
     private final LinkedList<CallSnapshot> putTimesList = new LinkedList<CallSnapshot>();
 
     private final LinkedList<CallSnapshot> getTimesFoundList = new LinkedList<CallSnapshot>();
@@ -440,6 +442,8 @@ public class StoreStatsService extends ServiceThread {
         result.put("getMissTps", String.valueOf(this.getGetMissTps()));
         result.put("getTotalTps", String.valueOf(this.getGetTotalTps()));
         result.put("getTransferedTps", String.valueOf(this.getGetTransferedTps()));
+        result.put("getMessageHitMemoryCount", String.valueOf(this.getMessageHitMemoryCount.get()));
+        result.put("getMessageHitDiskCount", String.valueOf(this.getMessageHitDiskCount.get()));
 
         return result;
     }
@@ -538,6 +542,14 @@ public class StoreStatsService extends ServiceThread {
         return getMessageTransferedMsgCount;
     }
 
+    public AtomicLong getGetMessageHitMemoryCount() {
+        return getMessageHitMemoryCount;
+    }
+
+    public AtomicLong getGetMessageHitDiskCount() {
+        return getMessageHitDiskCount;
+    }
+
     public AtomicLong getPutMessageFailedTimes() {
         return putMessageFailedTimes;
     }
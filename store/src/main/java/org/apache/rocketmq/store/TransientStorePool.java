@@ -16,20 +16,33 @@
  */
 package org.apache.rocketmq.store;
 
+import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.running.RunningStats;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.apache.rocketmq.store.util.LibC;
+import org.apache.rocketmq.store.util.LibNuma;
 import sun.nio.ch.DirectBuffer;
 
 /**
  * 暂存池
+ *
+ * Starts with transientStorePoolSize buffers and grows up to transientStorePoolMaxSize while the commit lags or
+ * borrowers find it empty, buffers idle for transientStorePoolShrinkIdleTime are freed again down to the initial size.
  */
 public class TransientStorePool {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
@@ -38,6 +51,7 @@ public class TransientStorePool {
      * 暂存池大小
      */
     private final int poolSize;
+    private final int maxPoolSize;
     /**
      * 申请的每一块内存大小
      */
@@ -51,11 +65,47 @@ public class TransientStorePool {
      */
     private final MessageStoreConfig storeConfig;
 
+    /**
+     * Buffers allocated so far, borrowed ones included.
+     */
+    private final AtomicInteger allocatedBuffers = new AtomicInteger(0);
+    /**
+     * Buffers allocated by libnuma and the node each one is on, freed by libnuma as well.
+     */
+    private final ConcurrentMap<Long/* address */, Integer/* node */> numaBuffers = new ConcurrentHashMap<Long, Integer>();
+    private final int[] numaNodes;
+    private final AtomicInteger nextNumaNode = new AtomicInteger(0);
+    private LibNuma libNuma;
+
+    private final AtomicLong borrowTimes = new AtomicLong(0);
+    private final AtomicLong borrowMissTimes = new AtomicLong(0);
+    private final AtomicLong borrowWaitTimeMs = new AtomicLong(0);
+    private volatile long lastBusyTimestamp = System.currentTimeMillis();
+    private long lastBorrowMissTimes = 0;
+
     public TransientStorePool(final MessageStoreConfig storeConfig) {
         this.storeConfig = storeConfig;
         this.poolSize = storeConfig.getTransientStorePoolSize();
+        this.maxPoolSize = Math.max(this.poolSize, storeConfig.getTransientStorePoolMaxSize());
         this.fileSize = storeConfig.getMappedFileSizeCommitLog();
         this.availableBuffers = new ConcurrentLinkedDeque<>();
+        this.numaNodes = parseNumaNodes(storeConfig.getTransientStorePoolNumaNodes());
+    }
+
+    private static int[] parseNumaNodes(final String numaNodes) {
+        List<Integer> nodes = new ArrayList<Integer>();
+        if (numaNodes != null) {
+            for (String node : numaNodes.split(",")) {
+                if (!node.trim().isEmpty()) {
+                    nodes.add(Integer.parseInt(node.trim()));
+                }
+            }
+        }
+        int[] result = new int[nodes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = nodes.get(i);
+        }
+        return result;
     }
 
     /**
@@ -63,24 +113,118 @@ public class TransientStorePool {
      * 初始化
      */
     public void init() {
+        if (this.numaNodes.length > 0) {
+            this.libNuma = loadLibNuma();
+        }
+
         //根据暂存池大小申请内存
         for (int i = 0; i < poolSize; i++) {
+            // 放入到暂存池中
+            availableBuffers.offer(this.allocateBuffer());
+            this.allocatedBuffers.incrementAndGet();
+        }
+    }
+
+    private static LibNuma loadLibNuma() {
+        try {
+            LibNuma libNuma = (LibNuma) Native.loadLibrary("numa", LibNuma.class);
+            if (libNuma.numa_available() >= 0) {
+                return libNuma;
+            }
+            log.warn("NUMA is not available, transient store buffers are allocated without pinning");
+        } catch (Throwable e) {
+            log.warn("libnuma not found, transient store buffers are allocated without pinning", e);
+        }
+        return null;
+    }
+
+    private ByteBuffer allocateBuffer() {
+        ByteBuffer byteBuffer = null;
+        if (this.libNuma != null) {
+            int node = this.numaNodes[(this.nextNumaNode.getAndIncrement() & Integer.MAX_VALUE) % this.numaNodes.length];
+            Pointer pointer = this.libNuma.numa_alloc_onnode(new NativeLong(fileSize), node);
+            if (pointer != null) {
+                byteBuffer = pointer.getByteBuffer(0, fileSize);
+                this.numaBuffers.put(Pointer.nativeValue(pointer), node);
+            } else {
+                log.warn("allocate transient store buffer on NUMA node {} failed, allocate it anywhere", node);
+            }
+        }
+        if (byteBuffer == null) {
             // 申请直接内存
-            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(fileSize);
+            byteBuffer = ByteBuffer.allocateDirect(fileSize);
+        }
 
-            final long address = ((DirectBuffer) byteBuffer).address();
-            Pointer pointer = new Pointer(address);
-            LibC.INSTANCE.mlock(pointer, new NativeLong(fileSize));
-            // 放入到暂存池中
-            availableBuffers.offer(byteBuffer);
+        final long address = ((DirectBuffer) byteBuffer).address();
+        Pointer pointer = new Pointer(address);
+        LibC.INSTANCE.mlock(pointer, new NativeLong(fileSize));
+        return byteBuffer;
+    }
+
+    private void freeBuffer(final ByteBuffer byteBuffer) {
+        final long address = ((DirectBuffer) byteBuffer).address();
+        Pointer pointer = new Pointer(address);
+        LibC.INSTANCE.munlock(pointer, new NativeLong(fileSize));
+        if (this.numaBuffers.remove(address) != null) {
+            this.libNuma.numa_free(pointer, new NativeLong(fileSize));
+        } else {
+            MappedFile.clean(byteBuffer);
+        }
+    }
+
+    private boolean tryGrow() {
+        for (int size = this.allocatedBuffers.get(); size < this.maxPoolSize; size = this.allocatedBuffers.get()) {
+            if (this.allocatedBuffers.compareAndSet(size, size + 1)) {
+                try {
+                    this.availableBuffers.offerLast(this.allocateBuffer());
+                } catch (Throwable e) {
+                    this.allocatedBuffers.decrementAndGet();
+                    log.error("grow TransientStorePool failed", e);
+                    return false;
+                }
+                log.info("TransientStorePool grows to {} sheets", size + 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called periodically, grows the pool by one buffer while the commit lags behind or borrowers found it empty,
+     * and frees one idle buffer once it was not busy for transientStorePoolShrinkIdleTime.
+     */
+    public void adjust(final long commitLagBytes) {
+        long now = System.currentTimeMillis();
+        long missTimes = this.borrowMissTimes.get();
+        boolean missed = missTimes != this.lastBorrowMissTimes;
+        this.lastBorrowMissTimes = missTimes;
+
+        boolean busy = missed || commitLagBytes >= fileSize / 2 || this.availableBuffers.size() < 2;
+        if (busy) {
+            this.lastBusyTimestamp = now;
+            this.tryGrow();
+            return;
+        }
+
+        if (now - this.lastBusyTimestamp >= this.storeConfig.getTransientStorePoolShrinkIdleTime()
+            && this.allocatedBuffers.get() > this.poolSize) {
+            // the buffer returned least recently
+            ByteBuffer byteBuffer = this.availableBuffers.pollLast();
+            if (byteBuffer != null) {
+                this.allocatedBuffers.decrementAndGet();
+                this.freeBuffer(byteBuffer);
+                log.info("TransientStorePool shrinks to {} sheets", this.allocatedBuffers.get());
+                // one buffer per idle period
+                this.lastBusyTimestamp = now;
+            }
         }
     }
 
     public void destroy() {
-        for (ByteBuffer byteBuffer : availableBuffers) {
-            final long address = ((DirectBuffer) byteBuffer).address();
-            Pointer pointer = new Pointer(address);
-            LibC.INSTANCE.munlock(pointer, new NativeLong(fileSize));
+        ByteBuffer byteBuffer;
+        while ((byteBuffer = availableBuffers.pollFirst()) != null) {
+            this.allocatedBuffers.decrementAndGet();
+            this.freeBuffer(byteBuffer);
         }
     }
 
@@ -88,20 +232,73 @@ public class TransientStorePool {
         byteBuffer.position(0);
         byteBuffer.limit(fileSize);
         this.availableBuffers.offerFirst(byteBuffer);
+        synchronized (this) {
+            this.notifyAll();
+        }
     }
 
+    /**
+     * Grows the pool right away when it is empty, then waits up to transientStorePoolBorrowTimeout for a buffer to
+     * come back.
+     *
+     * @return null if there is still no buffer
+     */
     public ByteBuffer borrowBuffer() {
+        this.borrowTimes.incrementAndGet();
         ByteBuffer buffer = availableBuffers.pollFirst();
+        if (buffer == null) {
+            this.borrowMissTimes.incrementAndGet();
+            long beginTime = System.currentTimeMillis();
+            buffer = this.tryGrow() ? availableBuffers.pollFirst() : null;
+            long deadline = beginTime + this.storeConfig.getTransientStorePoolBorrowTimeout();
+            synchronized (this) {
+                for (long now = System.currentTimeMillis(); buffer == null && now < deadline; now = System.currentTimeMillis()) {
+                    try {
+                        this.wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    buffer = availableBuffers.pollFirst();
+                }
+            }
+            this.borrowWaitTimeMs.addAndGet(System.currentTimeMillis() - beginTime);
+        }
         if (availableBuffers.size() < poolSize * 0.4) {
             log.warn("TransientStorePool only remain {} sheets.", availableBuffers.size());
         }
         return buffer;
     }
 
+    /**
+     * Counts the buffers the pool can still grow by as available.
+     */
     public int availableBufferNums() {
         if (storeConfig.isTransientStorePoolEnable()) {
-            return availableBuffers.size();
+            return availableBuffers.size() + Math.max(0, this.maxPoolSize - this.allocatedBuffers.get());
         }
         return Integer.MAX_VALUE;
     }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put(RunningStats.transientStorePoolSize.name(), String.valueOf(this.allocatedBuffers.get()));
+        stats.put(RunningStats.transientStorePoolAvailable.name(), String.valueOf(this.availableBuffers.size()));
+        stats.put(RunningStats.transientStorePoolBorrowMiss.name(), String.valueOf(this.borrowMissTimes.get()));
+        stats.put(RunningStats.transientStorePoolBorrowWaitMs.name(), String.valueOf(this.borrowWaitTimeMs.get()));
+    }
+
+    public int getAllocatedBufferNums() {
+        return allocatedBuffers.get();
+    }
+
+    public long getBorrowTimes() {
+        return borrowTimes.get();
+    }
+
+    public long getBorrowMissTimes() {
+        return borrowMissTimes.get();
+    }
+
+    public long getBorrowWaitTimeMs() {
+        return borrowWaitTimeMs.get();
+    }
 }
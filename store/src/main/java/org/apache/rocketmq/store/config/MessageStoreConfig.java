@@ -41,6 +41,12 @@ public class MessageStoreConfig {
     // Bit count of filter bit map.
     // this will be set by pipe of calculate filter bit map.
     private int bitMapLengthConsumeQueueExt = 64;
+    /**
+     * Skip messages whose TTL property, milliseconds after they were stored, has passed when they are pulled. The
+     * expiry is kept in the consume queue ext unit and checked without reading the commit log, so it needs
+     * enableConsumeQueueExt; messages without an expire time in their ext unit are never skipped.
+     */
+    private boolean messageTtlEnable = false;
 
     // CommitLog flush interval
     // flush data to disk
@@ -58,6 +64,134 @@ public class MessageStoreConfig {
      */
     private boolean useReentrantLockWhenPutMessage = false;
 
+    /**
+     * Encode messages on the sending threads and copy them into the commit log in parallel, only the slot
+     * reservation and the queue offset assignment stay serialized.
+     */
+    private boolean enableMultiWriterAppend = false;
+
+    /**
+     * Combine concurrently arriving async puts into one contiguous append and one flush/replica request.
+     * The combining thread waits groupAppendWindowMicros after the first request of a round, 0 means it only
+     * batches what arrived while the previous round was being appended.
+     */
+    private boolean enableGroupAppend = false;
+    private int groupAppendWindowMicros = 0;
+    private int groupAppendMaxBytes = 1024 * 512;
+
+    /**
+     * Split reput into stages: the reput thread only decodes the commit log, consume queues are built on
+     * reputQueueDispatchThreadNum threads sharded by topic and queue, and the index is built on its own thread.
+     * Each stage is fed through a bounded queue of reputDispatchQueueCapacity requests.
+     */
+    private boolean enableReputPipeline = false;
+    private int reputQueueDispatchThreadNum = 4;
+    private int reputDispatchQueueCapacity = 1024 * 16;
+
+    /**
+     * Index engine behind IndexService, "hash" for the classic IndexFile or "segment" for sorted immutable
+     * segments with bloom filters. The segment engine buffers up to indexSegmentMemtableSize entries in memory,
+     * seals the buffer at least every indexSegmentFlushInterval ms and merges indexSegmentCompactFanIn adjacent
+     * segments as long as the result stays below maxIndexNum entries.
+     */
+    private String indexEngineType = "hash";
+    private int indexSegmentMemtableSize = 200000;
+    private int indexSegmentFlushInterval = 10 * 1000;
+    private int indexSegmentCompactFanIn = 4;
+
+    /**
+     * Move sealed commit log files to storePathColdCommitLog once they are coldTierMigrateAfterHours old, or
+     * earlier while the hot disk is above coldTierMigrateDiskRatio percent. Cold reads go through an LRU cache of
+     * coldReadCacheChunkNum chunks of coldReadAheadSize bytes. The cold path has no default and has to be on
+     * another device than the commit log, the tier stays off otherwise unless coldTierAllowSameDevice is set.
+     */
+    private boolean coldTierEnable = false;
+    private String storePathColdCommitLog = "";
+    private boolean coldTierAllowSameDevice = false;
+    private int coldTierMigrateAfterHours = 24;
+    private int coldTierMigrateDiskRatio = 60;
+    private int coldReadAheadSize = 1024 * 1024;
+    private int coldReadCacheChunkNum = 64;
+
+    /**
+     * Comma separated topics compacted by key: only the latest message of every KEYS value is kept below the
+     * offset compaction got to, and reads below it are served from the compacted view. Compaction runs every
+     * compactionInterval for queues with at least compactionMinMessages messages not compacted yet. A round keys
+     * at most compactionMaxKeysPerRound distinct keys, a longer backlog is folded in over several rounds.
+     */
+    private String compactionTopics = "";
+    private long compactionInterval = 1000 * 60 * 5;
+    private long compactionMinMessages = 10000;
+    private int compactionMaxKeysPerRound = 1000000;
+
+    /**
+     * Watch the access pattern of getMessage per consumer queue. Sequential reads far behind the tail are advised
+     * MADV_SEQUENTIAL, the next adaptiveReadAheadSize bytes are prefetched and the range handed out by the previous
+     * read is dropped with MADV_DONTNEED. Also counts whether read messages were resident in the page cache.
+     */
+    private boolean adaptiveReadAheadEnable = false;
+    private int adaptiveReadAheadSize = 1024 * 1024;
+
+    /**
+     * Read messages beyond accessMessageInMemoryMaxRatio with positional reads into backlogReadSlabNum direct slabs
+     * of backlogReadSlabSize bytes instead of through the mapped commit log, falling back to the mapping whenever no
+     * slab is free. backlogReadDirectIo additionally opens the files with O_DIRECT on Linux to bypass the page cache.
+     */
+    private boolean backlogReadEnable = false;
+    private boolean backlogReadDirectIo = false;
+    private int backlogReadSlabNum = 64;
+    private int backlogReadSlabSize = 1024 * 256;
+
+    /**
+     * Deliver messages carrying a TIMER_DELIVER_MS property at that time through a persistent hierarchical timing
+     * wheel, up to timerMaxDelaySec ahead. The wheel checkpoints its slots every timerFlushIntervalMs, the timer log
+     * file size must be a multiple of the 32 byte timer unit.
+     */
+    private boolean timerWheelEnable = false;
+    private long timerMaxDelaySec = 30 * 24 * 3600L;
+    private int timerLogFileSize = 32 * 1024 * 1024 * 3;
+    private int timerFlushIntervalMs = 1000;
+
+    /**
+     * Delay levels are redelivered on a pool of scheduleDeliverThreadNum threads, every level puts up to
+     * scheduleDeliverBatchSize due messages asynchronously before it waits for them and moves its offset on.
+     */
+    private int scheduleDeliverThreadNum = 4;
+    private int scheduleDeliverBatchSize = 32;
+
+    /**
+     * Master side of HA replication. With haZeroCopyTransfer the commit log goes out through FileChannel.transferTo
+     * in batches of up to haZeroCopyBatchSize, and a connection keeps sending until haMaxInFlightBytes are waiting
+     * for the slave's ack, 0 means no limit. haSocketBufferSize sizes the socket buffers on both ends, raise it on
+     * links with a large bandwidth delay product. A batch has to fit into the 4M read buffer of the slave.
+     */
+    private boolean haZeroCopyTransfer = true;
+    private int haZeroCopyBatchSize = 1024 * 1024;
+    private long haMaxInFlightBytes = 1024 * 1024 * 64L;
+    private int haSocketBufferSize = 1024 * 64;
+    /**
+     * A SYNC_MASTER write succeeds once this many slaves have acked it, it is refused as long as fewer slaves are
+     * connected.
+     */
+    private int haAckQuorum = 1;
+
+    /**
+     * Recovery after a crash replays the commit log from the offsets in the checkpoint, on recoverThreadNum threads
+     * sharded by topic and queue. With sealedFileChecksumEnable every commit log file filled up gets a checksum, the
+     * replay verifies such files in parallel instead of checking the CRC of each message.
+     */
+    private int recoverThreadNum = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+    private boolean sealedFileChecksumEnable = true;
+
+    /**
+     * After a clean shutdown consume queues are only registered on startup and their files mapped on first access.
+     * Queues idle for consumeQueueIdleUnmapInterval milliseconds are unmapped again, and so are the least recently
+     * used ones while more than maxMappedConsumeQueueFiles files are mapped.
+     */
+    private boolean consumeQueueLazyLoadEnable = false;
+    private long consumeQueueIdleUnmapInterval = 1000 * 60 * 5;
+    private int maxMappedConsumeQueueFiles = 20000;
+
     // Whether schedule flush,default is real-time
     @ImportantField
     private boolean flushCommitLogTimed = false;
@@ -131,6 +265,14 @@ public class MessageStoreConfig {
     @ImportantField
     private boolean cleanFileForciblyEnable = true;
     private boolean warmMapedFileEnable = false;
+    /**
+     * Commit log files are allocated, and warmed if enabled, far enough ahead to last preAllocateLookAheadTime
+     * milliseconds at the fill rate seen on the last rollovers, between one and preAllocateMappedFileMaxNum files.
+     * warmMappedFileRateLimit caps warming in bytes per second, 0 for no limit.
+     */
+    private int preAllocateMappedFileMaxNum = 1;
+    private long preAllocateLookAheadTime = 1000 * 10;
+    private long warmMappedFileRateLimit = 0;
     private boolean offsetCheckInSlave = false;
     private boolean debugLockEnable = false;
     private boolean duplicationEnable = false;
@@ -141,6 +283,17 @@ public class MessageStoreConfig {
     @ImportantField
     private boolean transientStorePoolEnable = false;
     private int transientStorePoolSize = 5;
+    /**
+     * The pool grows up to transientStorePoolMaxSize buffers while the commit lags or a borrower finds it empty, and
+     * frees buffers again down to transientStorePoolSize once it was idle for transientStorePoolShrinkIdleTime
+     * milliseconds. A borrower finding the pool empty and unable to grow waits up to transientStorePoolBorrowTimeout
+     * milliseconds for a buffer to come back. transientStorePoolNumaNodes, a comma separated list of NUMA nodes,
+     * allocates the buffers round robin on these nodes through libnuma.
+     */
+    private int transientStorePoolMaxSize = 5;
+    private long transientStorePoolShrinkIdleTime = 1000 * 60;
+    private long transientStorePoolBorrowTimeout = 0;
+    private String transientStorePoolNumaNodes = "";
     private boolean fastFailIfNoBufferInStorePool = false;
 
     private boolean enableDLegerCommitLog = false;
@@ -722,4 +875,420 @@ public class MessageStoreConfig {
     public void setEnableBatchPush(boolean enableBatchPush) {
         isEnableBatchPush = enableBatchPush;
     }
+
+    public boolean isEnableMultiWriterAppend() {
+        return enableMultiWriterAppend;
+    }
+
+    public void setEnableMultiWriterAppend(boolean enableMultiWriterAppend) {
+        this.enableMultiWriterAppend = enableMultiWriterAppend;
+    }
+
+    public boolean isEnableGroupAppend() {
+        return enableGroupAppend;
+    }
+
+    public void setEnableGroupAppend(boolean enableGroupAppend) {
+        this.enableGroupAppend = enableGroupAppend;
+    }
+
+    public int getGroupAppendWindowMicros() {
+        return groupAppendWindowMicros;
+    }
+
+    public void setGroupAppendWindowMicros(int groupAppendWindowMicros) {
+        this.groupAppendWindowMicros = groupAppendWindowMicros;
+    }
+
+    public int getGroupAppendMaxBytes() {
+        return groupAppendMaxBytes;
+    }
+
+    public void setGroupAppendMaxBytes(int groupAppendMaxBytes) {
+        this.groupAppendMaxBytes = groupAppendMaxBytes;
+    }
+
+    public boolean isEnableReputPipeline() {
+        return enableReputPipeline;
+    }
+
+    public void setEnableReputPipeline(boolean enableReputPipeline) {
+        this.enableReputPipeline = enableReputPipeline;
+    }
+
+    public int getReputQueueDispatchThreadNum() {
+        return reputQueueDispatchThreadNum;
+    }
+
+    public void setReputQueueDispatchThreadNum(int reputQueueDispatchThreadNum) {
+        this.reputQueueDispatchThreadNum = reputQueueDispatchThreadNum;
+    }
+
+    public int getReputDispatchQueueCapacity() {
+        return reputDispatchQueueCapacity;
+    }
+
+    public void setReputDispatchQueueCapacity(int reputDispatchQueueCapacity) {
+        this.reputDispatchQueueCapacity = reputDispatchQueueCapacity;
+    }
+
+    public String getIndexEngineType() {
+        return indexEngineType;
+    }
+
+    public void setIndexEngineType(String indexEngineType) {
+        this.indexEngineType = indexEngineType;
+    }
+
+    public int getIndexSegmentMemtableSize() {
+        return indexSegmentMemtableSize;
+    }
+
+    public void setIndexSegmentMemtableSize(int indexSegmentMemtableSize) {
+        this.indexSegmentMemtableSize = indexSegmentMemtableSize;
+    }
+
+    public int getIndexSegmentFlushInterval() {
+        return indexSegmentFlushInterval;
+    }
+
+    public void setIndexSegmentFlushInterval(int indexSegmentFlushInterval) {
+        this.indexSegmentFlushInterval = indexSegmentFlushInterval;
+    }
+
+    public int getIndexSegmentCompactFanIn() {
+        return indexSegmentCompactFanIn;
+    }
+
+    public void setIndexSegmentCompactFanIn(int indexSegmentCompactFanIn) {
+        this.indexSegmentCompactFanIn = indexSegmentCompactFanIn;
+    }
+
+    public boolean isColdTierEnable() {
+        return coldTierEnable;
+    }
+
+    public void setColdTierEnable(boolean coldTierEnable) {
+        this.coldTierEnable = coldTierEnable;
+    }
+
+    public String getStorePathColdCommitLog() {
+        return storePathColdCommitLog;
+    }
+
+    public void setStorePathColdCommitLog(String storePathColdCommitLog) {
+        this.storePathColdCommitLog = storePathColdCommitLog;
+    }
+
+    public boolean isColdTierAllowSameDevice() {
+        return coldTierAllowSameDevice;
+    }
+
+    public void setColdTierAllowSameDevice(boolean coldTierAllowSameDevice) {
+        this.coldTierAllowSameDevice = coldTierAllowSameDevice;
+    }
+
+    public int getColdTierMigrateAfterHours() {
+        return coldTierMigrateAfterHours;
+    }
+
+    public void setColdTierMigrateAfterHours(int coldTierMigrateAfterHours) {
+        this.coldTierMigrateAfterHours = coldTierMigrateAfterHours;
+    }
+
+    public int getColdTierMigrateDiskRatio() {
+        return coldTierMigrateDiskRatio;
+    }
+
+    public void setColdTierMigrateDiskRatio(int coldTierMigrateDiskRatio) {
+        this.coldTierMigrateDiskRatio = coldTierMigrateDiskRatio;
+    }
+
+    public int getColdReadAheadSize() {
+        return coldReadAheadSize;
+    }
+
+    public void setColdReadAheadSize(int coldReadAheadSize) {
+        this.coldReadAheadSize = coldReadAheadSize;
+    }
+
+    public int getColdReadCacheChunkNum() {
+        return coldReadCacheChunkNum;
+    }
+
+    public void setColdReadCacheChunkNum(int coldReadCacheChunkNum) {
+        this.coldReadCacheChunkNum = coldReadCacheChunkNum;
+    }
+
+    public boolean isAdaptiveReadAheadEnable() {
+        return adaptiveReadAheadEnable;
+    }
+
+    public void setAdaptiveReadAheadEnable(boolean adaptiveReadAheadEnable) {
+        this.adaptiveReadAheadEnable = adaptiveReadAheadEnable;
+    }
+
+    public int getAdaptiveReadAheadSize() {
+        return adaptiveReadAheadSize;
+    }
+
+    public void setAdaptiveReadAheadSize(int adaptiveReadAheadSize) {
+        this.adaptiveReadAheadSize = adaptiveReadAheadSize;
+    }
+
+    public boolean isBacklogReadEnable() {
+        return backlogReadEnable;
+    }
+
+    public void setBacklogReadEnable(boolean backlogReadEnable) {
+        this.backlogReadEnable = backlogReadEnable;
+    }
+
+    public boolean isBacklogReadDirectIo() {
+        return backlogReadDirectIo;
+    }
+
+    public void setBacklogReadDirectIo(boolean backlogReadDirectIo) {
+        this.backlogReadDirectIo = backlogReadDirectIo;
+    }
+
+    public int getBacklogReadSlabNum() {
+        return backlogReadSlabNum;
+    }
+
+    public void setBacklogReadSlabNum(int backlogReadSlabNum) {
+        this.backlogReadSlabNum = backlogReadSlabNum;
+    }
+
+    public int getBacklogReadSlabSize() {
+        return backlogReadSlabSize;
+    }
+
+    public void setBacklogReadSlabSize(int backlogReadSlabSize) {
+        this.backlogReadSlabSize = backlogReadSlabSize;
+    }
+
+    public boolean isTimerWheelEnable() {
+        return timerWheelEnable;
+    }
+
+    public void setTimerWheelEnable(boolean timerWheelEnable) {
+        this.timerWheelEnable = timerWheelEnable;
+    }
+
+    public long getTimerMaxDelaySec() {
+        return timerMaxDelaySec;
+    }
+
+    public void setTimerMaxDelaySec(long timerMaxDelaySec) {
+        this.timerMaxDelaySec = timerMaxDelaySec;
+    }
+
+    public int getTimerLogFileSize() {
+        return timerLogFileSize;
+    }
+
+    public void setTimerLogFileSize(int timerLogFileSize) {
+        this.timerLogFileSize = timerLogFileSize;
+    }
+
+    public int getTimerFlushIntervalMs() {
+        return timerFlushIntervalMs;
+    }
+
+    public void setTimerFlushIntervalMs(int timerFlushIntervalMs) {
+        this.timerFlushIntervalMs = timerFlushIntervalMs;
+    }
+
+    public int getScheduleDeliverThreadNum() {
+        return scheduleDeliverThreadNum;
+    }
+
+    public void setScheduleDeliverThreadNum(int scheduleDeliverThreadNum) {
+        this.scheduleDeliverThreadNum = scheduleDeliverThreadNum;
+    }
+
+    public int getScheduleDeliverBatchSize() {
+        return scheduleDeliverBatchSize;
+    }
+
+    public void setScheduleDeliverBatchSize(int scheduleDeliverBatchSize) {
+        this.scheduleDeliverBatchSize = scheduleDeliverBatchSize;
+    }
+
+    public boolean isHaZeroCopyTransfer() {
+        return haZeroCopyTransfer;
+    }
+
+    public void setHaZeroCopyTransfer(boolean haZeroCopyTransfer) {
+        this.haZeroCopyTransfer = haZeroCopyTransfer;
+    }
+
+    public int getHaZeroCopyBatchSize() {
+        return haZeroCopyBatchSize;
+    }
+
+    public void setHaZeroCopyBatchSize(int haZeroCopyBatchSize) {
+        this.haZeroCopyBatchSize = haZeroCopyBatchSize;
+    }
+
+    public long getHaMaxInFlightBytes() {
+        return haMaxInFlightBytes;
+    }
+
+    public void setHaMaxInFlightBytes(long haMaxInFlightBytes) {
+        this.haMaxInFlightBytes = haMaxInFlightBytes;
+    }
+
+    public int getHaSocketBufferSize() {
+        return haSocketBufferSize;
+    }
+
+    public void setHaSocketBufferSize(int haSocketBufferSize) {
+        this.haSocketBufferSize = haSocketBufferSize;
+    }
+
+    public int getHaAckQuorum() {
+        return haAckQuorum;
+    }
+
+    public void setHaAckQuorum(int haAckQuorum) {
+        this.haAckQuorum = haAckQuorum;
+    }
+
+    public int getRecoverThreadNum() {
+        return recoverThreadNum;
+    }
+
+    public void setRecoverThreadNum(int recoverThreadNum) {
+        this.recoverThreadNum = recoverThreadNum;
+    }
+
+    public boolean isSealedFileChecksumEnable() {
+        return sealedFileChecksumEnable;
+    }
+
+    public void setSealedFileChecksumEnable(boolean sealedFileChecksumEnable) {
+        this.sealedFileChecksumEnable = sealedFileChecksumEnable;
+    }
+
+    public boolean isConsumeQueueLazyLoadEnable() {
+        return consumeQueueLazyLoadEnable;
+    }
+
+    public void setConsumeQueueLazyLoadEnable(boolean consumeQueueLazyLoadEnable) {
+        this.consumeQueueLazyLoadEnable = consumeQueueLazyLoadEnable;
+    }
+
+    public long getConsumeQueueIdleUnmapInterval() {
+        return consumeQueueIdleUnmapInterval;
+    }
+
+    public void setConsumeQueueIdleUnmapInterval(long consumeQueueIdleUnmapInterval) {
+        this.consumeQueueIdleUnmapInterval = consumeQueueIdleUnmapInterval;
+    }
+
+    public int getMaxMappedConsumeQueueFiles() {
+        return maxMappedConsumeQueueFiles;
+    }
+
+    public void setMaxMappedConsumeQueueFiles(int maxMappedConsumeQueueFiles) {
+        this.maxMappedConsumeQueueFiles = maxMappedConsumeQueueFiles;
+    }
+
+    public int getTransientStorePoolMaxSize() {
+        return transientStorePoolMaxSize;
+    }
+
+    public void setTransientStorePoolMaxSize(int transientStorePoolMaxSize) {
+        this.transientStorePoolMaxSize = transientStorePoolMaxSize;
+    }
+
+    public long getTransientStorePoolShrinkIdleTime() {
+        return transientStorePoolShrinkIdleTime;
+    }
+
+    public void setTransientStorePoolShrinkIdleTime(long transientStorePoolShrinkIdleTime) {
+        this.transientStorePoolShrinkIdleTime = transientStorePoolShrinkIdleTime;
+    }
+
+    public long getTransientStorePoolBorrowTimeout() {
+        return transientStorePoolBorrowTimeout;
+    }
+
+    public void setTransientStorePoolBorrowTimeout(long transientStorePoolBorrowTimeout) {
+        this.transientStorePoolBorrowTimeout = transientStorePoolBorrowTimeout;
+    }
+
+    public String getTransientStorePoolNumaNodes() {
+        return transientStorePoolNumaNodes;
+    }
+
+    public void setTransientStorePoolNumaNodes(String transientStorePoolNumaNodes) {
+        this.transientStorePoolNumaNodes = transientStorePoolNumaNodes;
+    }
+
+    public int getPreAllocateMappedFileMaxNum() {
+        return preAllocateMappedFileMaxNum;
+    }
+
+    public void setPreAllocateMappedFileMaxNum(int preAllocateMappedFileMaxNum) {
+        this.preAllocateMappedFileMaxNum = preAllocateMappedFileMaxNum;
+    }
+
+    public long getPreAllocateLookAheadTime() {
+        return preAllocateLookAheadTime;
+    }
+
+    public void setPreAllocateLookAheadTime(long preAllocateLookAheadTime) {
+        this.preAllocateLookAheadTime = preAllocateLookAheadTime;
+    }
+
+    public long getWarmMappedFileRateLimit() {
+        return warmMappedFileRateLimit;
+    }
+
+    public void setWarmMappedFileRateLimit(long warmMappedFileRateLimit) {
+        this.warmMappedFileRateLimit = warmMappedFileRateLimit;
+    }
+
+    public String getCompactionTopics() {
+        return compactionTopics;
+    }
+
+    public void setCompactionTopics(String compactionTopics) {
+        this.compactionTopics = compactionTopics;
+    }
+
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    public long getCompactionMinMessages() {
+        return compactionMinMessages;
+    }
+
+    public void setCompactionMinMessages(long compactionMinMessages) {
+        this.compactionMinMessages = compactionMinMessages;
+    }
+
+    public int getCompactionMaxKeysPerRound() {
+        return compactionMaxKeysPerRound;
+    }
+
+    public void setCompactionMaxKeysPerRound(int compactionMaxKeysPerRound) {
+        this.compactionMaxKeysPerRound = compactionMaxKeysPerRound;
+    }
+
+    public boolean isMessageTtlEnable() {
+        return messageTtlEnable;
+    }
+
+    public void setMessageTtlEnable(boolean messageTtlEnable) {
+        this.messageTtlEnable = messageTtlEnable;
+    }
 }
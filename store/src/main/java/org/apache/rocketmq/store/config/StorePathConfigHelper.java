@@ -28,14 +28,42 @@ public class StorePathConfigHelper {
         return rootDir + File.separator + "consumequeue_ext";
     }
 
+    public static String getStorePathCompactConsumeQueue(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_compact";
+    }
+
+    public static String getStorePathCompactConsumeQueueIndex(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_compact_index";
+    }
+
+    public static String getStorePathCompaction(final String rootDir) {
+        return rootDir + File.separator + "compaction";
+    }
+
     public static String getStorePathIndex(final String rootDir) {
         return rootDir + File.separator + "index";
     }
 
+    public static String getStorePathSegmentIndex(final String rootDir) {
+        return rootDir + File.separator + "segmentindex";
+    }
+
+    public static String getStorePathTimerLog(final String rootDir) {
+        return rootDir + File.separator + "timerwheel" + File.separator + "timerlog";
+    }
+
+    public static String getTimerWheelCheckpoint(final String rootDir) {
+        return rootDir + File.separator + "timerwheel" + File.separator + "slots";
+    }
+
     public static String getStoreCheckpoint(final String rootDir) {
         return rootDir + File.separator + "checkpoint";
     }
 
+    public static String getSealedFileChecksumPath(final String rootDir) {
+        return rootDir + File.separator + "sealedChecksum";
+    }
+
     public static String getAbortFile(final String rootDir) {
         return rootDir + File.separator + "abort";
     }
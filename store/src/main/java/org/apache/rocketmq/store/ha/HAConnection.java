@@ -18,6 +18,7 @@ package org.apache.rocketmq.store.ha;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -26,7 +27,9 @@ import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.remoting.common.RemotingUtil;
+import org.apache.rocketmq.store.MappedFile;
 import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
 
 /**
  * HAConnection中封装了Master节点与从节点的网络通信处理，分别在ReadSocketService和WriteSocketService中
@@ -49,8 +52,9 @@ public class HAConnection {
         this.socketChannel.configureBlocking(false);
         this.socketChannel.socket().setSoLinger(false, -1);
         this.socketChannel.socket().setTcpNoDelay(true);
-        this.socketChannel.socket().setReceiveBufferSize(1024 * 64);
-        this.socketChannel.socket().setSendBufferSize(1024 * 64);
+        // the receive buffer is inherited from the listening socket
+        this.socketChannel.socket().setSendBufferSize(
+            haService.getDefaultMessageStore().getMessageStoreConfig().getHaSocketBufferSize());
         this.writeSocketService = new WriteSocketService(this.socketChannel);
         this.readSocketService = new ReadSocketService(this.socketChannel);
         this.haService.getConnectionCount().incrementAndGet();
@@ -81,6 +85,25 @@ public class HAConnection {
         return socketChannel;
     }
 
+    public String getClientAddr() {
+        return clientAddr;
+    }
+
+    public long getSlaveAckOffset() {
+        return slaveAckOffset;
+    }
+
+    /**
+     * @return bytes sent to the slave that it has not acknowledged yet
+     */
+    public long getInFlightBytes() {
+        long nextTransferFromWhere = this.writeSocketService.nextTransferFromWhere;
+        if (this.slaveAckOffset < 0 || nextTransferFromWhere < 0) {
+            return 0;
+        }
+        return Math.max(0, nextTransferFromWhere - this.slaveAckOffset);
+    }
+
     /**
      * ReadSocketService启动后处理监听到的可读事件，前面知道HAClient中从节点会定时向Master节点汇报从节点的消息同步偏移量，Master节点对汇报请求的处理就在这里
      * ，如果从网络中监听到了可读事件，会调用processReadEvent处理读事件。
@@ -218,6 +241,8 @@ public class HAConnection {
 
                             // 更新Master节点记录的向从节点同步消息的偏移量
                             HAConnection.this.haService.notifyTransferSome(HAConnection.this.slaveAckOffset);
+                            // the write service may be holding back on the in-flight limit
+                            HAConnection.this.writeSocketService.wakeup();
                         }
                     } else if (readSize == 0) {
                         // 判断连续读取到空数据的次数是否超过三次
@@ -268,7 +293,7 @@ public class HAConnection {
          */
         private final int headerSize = 8 + 4;
         private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(headerSize);
-        private long nextTransferFromWhere = -1;
+        private volatile long nextTransferFromWhere = -1;
         private SelectMappedBufferResult selectMappedBufferResult;
         private boolean lastWriteOver = true;
         private long lastWriteTimestamp = System.currentTimeMillis();
@@ -353,6 +378,14 @@ public class HAConnection {
                             continue;
                     }
 
+                    MessageStoreConfig messageStoreConfig = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+                    // keep several batches on the wire, but not more than the slave is allowed to owe an ack for
+                    long maxInFlightBytes = messageStoreConfig.getHaMaxInFlightBytes();
+                    if (maxInFlightBytes > 0 && HAConnection.this.getInFlightBytes() >= maxInFlightBytes) {
+                        this.waitForRunning(100);
+                        continue;
+                    }
+
                     // 根据偏移量获取消息数据
                     SelectMappedBufferResult selectResult =
                         HAConnection.this.haService.getDefaultMessageStore().getCommitLogData(this.nextTransferFromWhere);
@@ -360,10 +393,12 @@ public class HAConnection {
                     if (selectResult != null) {
                         // 获取消息内容大小
                         int size = selectResult.getSize();
+                        int batchSize = messageStoreConfig.isHaZeroCopyTransfer() && selectResult.getMappedFile() != null
+                            ? messageStoreConfig.getHaZeroCopyBatchSize() : messageStoreConfig.getHaTransferBatchSize();
                         // 如果消息的字节数大于最大传输的大小
-                        if (size > HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize()) {
+                        if (size > batchSize) {
                             // 设置为最大传输大小
-                            size = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize();
+                            size = batchSize;
                         }
 
                         long thisOffset = this.nextTransferFromWhere;
@@ -467,7 +502,7 @@ public class HAConnection {
             if (!this.byteBufferHeader.hasRemaining()) {
                 while (this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
                     // 发送消息内容
-                    int writeSize = this.socketChannel.write(this.selectMappedBufferResult.getByteBuffer());
+                    int writeSize = this.writeBody(this.selectMappedBufferResult);
                     if (writeSize > 0) {
                         writeSizeZeroTimes = 0;
                         this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
@@ -491,6 +526,26 @@ public class HAConnection {
             return result;
         }
 
+        /**
+         * Sends the rest of the body. Cold data has no mapped file behind it and is always written from the buffer,
+         * otherwise the bytes go from the page cache to the socket without passing the heap. That reads the same
+         * bytes as the mapping, the selected range never goes past what was written or committed to the file.
+         */
+        private int writeBody(final SelectMappedBufferResult result) throws IOException {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            MappedFile mappedFile = result.getMappedFile();
+            if (mappedFile == null
+                || !HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().isHaZeroCopyTransfer()) {
+                return this.socketChannel.write(byteBuffer);
+            }
+
+            FileChannel fileChannel = mappedFile.getFileChannel();
+            long filePosition = result.getStartOffset() - mappedFile.getFileFromOffset() + byteBuffer.position();
+            int writeSize = (int) fileChannel.transferTo(filePosition, byteBuffer.remaining(), this.socketChannel);
+            byteBuffer.position(byteBuffer.position() + writeSize);
+            return writeSize;
+        }
+
         @Override
         public String getServiceName() {
             return WriteSocketService.class.getSimpleName();
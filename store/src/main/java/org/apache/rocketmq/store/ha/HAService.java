@@ -20,20 +20,23 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.running.RunningStats;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.remoting.common.RemotingUtil;
@@ -49,7 +52,7 @@ public class HAService {
 
     private final AtomicInteger connectionCount = new AtomicInteger(0);
 
-    private final List<HAConnection> connectionList = new LinkedList<>();
+    private final List<HAConnection> connectionList = new CopyOnWriteArrayList<>();
 
     private final AcceptSocketService acceptSocketService;
 
@@ -57,6 +60,10 @@ public class HAService {
 
     private final WaitNotifyObject waitNotifyObject = new WaitNotifyObject();
     private final AtomicLong push2SlaveMaxOffset = new AtomicLong(0);
+    /**
+     * Offset acked by at least haAckQuorum slaves, SYNC_MASTER writes below it are replicated
+     */
+    private final AtomicLong quorumAckOffset = new AtomicLong(0);
 
     /**
      * 向从节点推送的消息最大偏移量
@@ -97,14 +104,18 @@ public class HAService {
     }
 
     public boolean isSlaveOK(final long masterPutWhere) {
-        boolean result = this.connectionCount.get() > 0;
+        boolean result = this.connectionCount.get() >= this.getAckQuorum();
         result =
             result
-                && ((masterPutWhere - this.push2SlaveMaxOffset.get()) < this.defaultMessageStore
+                && ((masterPutWhere - this.quorumAckOffset.get()) < this.defaultMessageStore
                 .getMessageStoreConfig().getHaSlaveFallbehindMax());
         return result;
     }
 
+    private int getAckQuorum() {
+        return Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getHaAckQuorum());
+    }
+
     /**
      * 面在GroupTransferService中可以看到是通过push2SlaveMaxOffset的值判断本次同步是否完成的，在notifyTransferSome方法中可以看到当Master
      * 节点收到从节点反馈的消息拉取偏移量时，对push2SlaveMaxOffset的值进行了更新：
@@ -117,18 +128,84 @@ public class HAService {
             // 更新向从节点推送的消息最大偏移量
             boolean ok = this.push2SlaveMaxOffset.compareAndSet(value, offset);
             if (ok) {
-                this.groupTransferService.notifyTransferSome();
                 break;
             } else {
                 value = this.push2SlaveMaxOffset.get();
             }
         }
+
+        long quorumOffset = this.computeQuorumAckOffset();
+        for (long value = this.quorumAckOffset.get(); quorumOffset > value; ) {
+            if (this.quorumAckOffset.compareAndSet(value, quorumOffset)) {
+                this.groupTransferService.notifyTransferSome();
+                break;
+            }
+            value = this.quorumAckOffset.get();
+        }
+    }
+
+    /**
+     * @return the offset the k-th fastest slave has acked, -1 if fewer than k slaves are connected
+     */
+    private long computeQuorumAckOffset() {
+        int quorum = this.getAckQuorum();
+        long[] ackOffsets = new long[this.connectionList.size()];
+        int count = 0;
+        for (HAConnection c : this.connectionList) {
+            if (count < ackOffsets.length) {
+                ackOffsets[count++] = c.getSlaveAckOffset();
+            }
+        }
+        if (count < quorum) {
+            return -1;
+        }
+        Arrays.sort(ackOffsets, 0, count);
+        return ackOffsets[count - quorum];
+    }
+
+    public long getQuorumAckOffset() {
+        return quorumAckOffset.get();
     }
 
     public AtomicInteger getConnectionCount() {
         return connectionCount;
     }
 
+    /**
+     * @return how far the slowest slave is behind the commit log in bytes, -1 if no slave has acked yet
+     */
+    public long getReplicationLagBytes() {
+        long maxOffset = this.defaultMessageStore.getMaxPhyOffset();
+        long lag = -1;
+        synchronized (this.connectionList) {
+            for (HAConnection c : this.connectionList) {
+                long ackOffset = c.getSlaveAckOffset();
+                if (ackOffset >= 0) {
+                    lag = Math.max(lag, Math.max(0, maxOffset - ackOffset));
+                }
+            }
+        }
+        return lag;
+    }
+
+    /**
+     * @return bytes sent to all slaves and not acked yet
+     */
+    public long getInFlightBytes() {
+        long inFlight = 0;
+        synchronized (this.connectionList) {
+            for (HAConnection c : this.connectionList) {
+                inFlight += c.getInFlightBytes();
+            }
+        }
+        return inFlight;
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put(RunningStats.haReplicationLagBytes.name(), String.valueOf(this.getReplicationLagBytes()));
+        stats.put(RunningStats.haInFlightBytes.name(), String.valueOf(this.getInFlightBytes()));
+    }
+
     // public void notifyTransferSome() {
     // this.groupTransferService.notifyTransferSome();
     // }
@@ -217,6 +294,9 @@ public class HAService {
             // 获取selector
             this.selector = RemotingUtil.openSelector();
             this.serverSocketChannel.socket().setReuseAddress(true);
+            // accepted sockets inherit it, it has to be in place before the handshake to get a scaled TCP window
+            this.serverSocketChannel.socket().setReceiveBufferSize(
+                HAService.this.defaultMessageStore.getMessageStoreConfig().getHaSocketBufferSize());
             // 绑定端口
             this.serverSocketChannel.socket().bind(this.socketAddressListen);
             // 设置非阻塞
@@ -318,72 +398,37 @@ public class HAService {
      */
     class GroupTransferService extends ServiceThread {
 
-        private final WaitNotifyObject notifyTransferObject = new WaitNotifyObject();
-        private volatile List<CommitLog.GroupCommitRequest> requestsWrite = new ArrayList<>();
-
         /**
-         * CommitLog提交请求集合
+         * Requests of writes waiting for the quorum, completed or expired without blocking on any single one
          */
-        private volatile List<CommitLog.GroupCommitRequest> requestsRead = new ArrayList<>();
+        private final ConcurrentLinkedQueue<CommitLog.GroupCommitRequest> pendingRequests = new ConcurrentLinkedQueue<>();
 
-        public synchronized void putRequest(final CommitLog.GroupCommitRequest request) {
-            synchronized (this.requestsWrite) {
-                this.requestsWrite.add(request);
-            }
+        public void putRequest(final CommitLog.GroupCommitRequest request) {
+            this.pendingRequests.add(request);
             this.wakeup();
         }
 
         public void notifyTransferSome() {
-            this.notifyTransferObject.wakeup();
-        }
-
-        private void swapRequests() {
-            List<CommitLog.GroupCommitRequest> tmp = this.requestsWrite;
-            this.requestsWrite = this.requestsRead;
-            this.requestsRead = tmp;
+            this.wakeup();
         }
 
-        /**
-         * 1. 在看doWaitTransfer方法之前，首先看下是如何判断有数据需要同步的?
-         *  a. Master节点中，当消息被写入到CommitLog以后，会调用 submitReplicaRequest 方法处主从同步，首先判断当前Broker的角色是否是SYNC_MASTER
-         *     ，如果是则会构建消息提交请求GroupCommitRequest，然后调用HAService的putRequest添加到请求集合中，并唤醒GroupTransferService中在等待的线程.
-         *
-         * 2. 在doWaitTransfer方法中，会判断CommitLog提交请求集合requestsRead是否为空，如果不为空，表示有消息写入了CommitLog，Master节点需要等待将数据传输给从节点：
-         *  a. push2SlaveMaxOffset记录了从节点已经同步的消息偏移量，判断push2SlaveMaxOffset是否大于本次CommitLog提交的偏移量，也就是请求中设置的偏移量；
-         *  b. 获取请求中设置的等待截止时间；
-         *  c. 开启循环，判断数据是否还未传输完毕，并且未超过截止时间，如果是则等待1s，然后继续判断传输是否完毕，不断进行，直到超过截止时间或者数据已经传输完毕；
-         *      （向从节点发送的消息最大偏移量push2SlaveMaxOffset超过了请求中设置的偏移量表示本次同步数据传输完毕）；
-         *  d. 唤醒在等待数据同步完毕的线程；
-         *
-         *
-         */
         private void doWaitTransfer() {
-            synchronized (this.requestsRead) {
-                // 如果CommitLog提交请求集合不为空
-                if (!this.requestsRead.isEmpty()) {
-                    // 处理消息提交请求
-                    for (CommitLog.GroupCommitRequest req : this.requestsRead) {
-                        // 判断传输到从节点最大偏移量是否超过了请求中设置的偏移量
-                        boolean transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
-                        long waitUntilWhen = HAService.this.defaultMessageStore.getSystemClock().now()
-                            + HAService.this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout();
-                        // 如果从节点还未同步完毕并且未超过截止时间
-                        while (!transferOK && HAService.this.defaultMessageStore.getSystemClock().now() < waitUntilWhen) {
-                            // 等待
-                            this.notifyTransferObject.waitForRunning(1000);
-                            // 判断从节点同步的最大偏移量是否超过了请求中设置的偏移量
-                            transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
-                        }
-
-                        if (!transferOK) {
-                            log.warn("transfer messsage to slave timeout, " + req.getNextOffset());
-                        }
-
-                        // 唤醒
-                        req.wakeupCustomer(transferOK ? PutMessageStatus.PUT_OK : PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
-                    }
+            if (this.pendingRequests.isEmpty()) {
+                return;
+            }
 
-                    this.requestsRead.clear();
+            long ackOffset = HAService.this.quorumAckOffset.get();
+            long now = System.currentTimeMillis();
+            long syncFlushTimeout = HAService.this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout();
+            for (Iterator<CommitLog.GroupCommitRequest> it = this.pendingRequests.iterator(); it.hasNext(); ) {
+                CommitLog.GroupCommitRequest req = it.next();
+                if (ackOffset >= req.getNextOffset()) {
+                    it.remove();
+                    req.wakeupCustomer(PutMessageStatus.PUT_OK);
+                } else if (now - req.getStartTimestamp() >= Math.min(req.getTimeoutMillis(), syncFlushTimeout)) {
+                    log.warn("transfer messsage to slave timeout, " + req.getNextOffset());
+                    it.remove();
+                    req.wakeupCustomer(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
                 }
             }
         }
@@ -406,11 +451,6 @@ public class HAService {
             log.info(this.getServiceName() + " service end");
         }
 
-        @Override
-        protected void onWaitEnd() {
-            this.swapRequests();
-        }
-
         @Override
         public String getServiceName() {
             return GroupTransferService.class.getSimpleName();
@@ -673,9 +713,9 @@ public class HAService {
          *
          *
          * @return
-         * @throws ClosedChannelException
+         * @throws IOException
          */
-        private boolean connectMaster() throws ClosedChannelException {
+        private boolean connectMaster() throws IOException {
             if (null == socketChannel) {
                 String addr = this.masterAddress.get();
                 if (addr != null) {
@@ -684,7 +724,8 @@ public class HAService {
                     SocketAddress socketAddress = RemotingUtil.string2SocketAddress(addr);
                     if (socketAddress != null) {
                         // 连接master
-                        this.socketChannel = RemotingUtil.connect(socketAddress);
+                        this.socketChannel = RemotingUtil.connect(socketAddress, 1000 * 5,
+                            HAService.this.defaultMessageStore.getMessageStoreConfig().getHaSocketBufferSize());
                         if (this.socketChannel != null) {
                             // 注册OP_READ可读事件监听
                             this.socketChannel.register(this.selector, SelectionKey.OP_READ);
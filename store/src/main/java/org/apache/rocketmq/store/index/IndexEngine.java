@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.index;
+
+import org.apache.rocketmq.store.DispatchRequest;
+
+/**
+ * Storage engine for the message key index, {@link IndexService} delegates to it when one is configured.
+ */
+public interface IndexEngine {
+
+    boolean load(final boolean lastExitOK);
+
+    void start();
+
+    void shutdown();
+
+    void destroy();
+
+    void buildIndex(final DispatchRequest req);
+
+    /**
+     * Same contract as {@link IndexService#queryOffset}: at most maxNum offsets of messages stored within
+     * [begin, end], newest first.
+     */
+    QueryOffsetResult queryOffset(final String topic, final String key, final int maxNum, final long begin,
+        final long end);
+
+    /**
+     * Drop index data that only refers to commit log positions below offset.
+     */
+    void deleteExpiredFile(final long offset);
+}
@@ -0,0 +1,412 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable, sorted run of index entries written by {@link SegmentIndexEngine}.
+ *
+ * <pre>
+ * data:   [keyLen(4) key phyOffset(8) storeTimestamp(8)]*  sorted by key, then by phyOffset descending
+ * blocks: [keyLen(4) firstKey position(8)]*                one per BLOCK_ENTRY_NUM entries
+ * bloom:  [long]*
+ * footer: see FOOTER_SIZE
+ * </pre>
+ *
+ * The block index and the bloom filter are kept on heap, so a lookup either stops at the bloom filter or reads
+ * the blocks holding the key, and no more blocks than needed for maxNum entries.
+ */
+public class IndexSegment {
+    public static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x1DE5E6A1;
+    // dataEnd, blockNum, bloomPosition, bloomLongs, keyCount, entryCount, begin/end phyOffset, begin/end timestamp, magic
+    private static final int FOOTER_SIZE = 8 + 4 + 8 + 4 + 8 + 8 + 8 + 8 + 8 + 8 + 4;
+    private static final int BLOCK_ENTRY_NUM = 64;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASH_NUM = 7;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final String[] blockKeys;
+    private final long[] blockPositions;
+    private final long dataEnd;
+    private final long[] bloomBits;
+    private final long keyCount;
+    private final long entryCount;
+    private final long beginPhyOffset;
+    private final long endPhyOffset;
+    private final long beginTimestamp;
+    private final long endTimestamp;
+
+    public interface EntryCursor {
+        boolean next() throws IOException;
+
+        String getKey();
+
+        long getPhyOffset();
+
+        long getStoreTimestamp();
+    }
+
+    private IndexSegment(File file, RandomAccessFile randomAccessFile, ByteBuffer footer, ByteBuffer meta) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.fileChannel = randomAccessFile.getChannel();
+
+        this.dataEnd = footer.getLong();
+        int blockNum = footer.getInt();
+        long bloomPosition = footer.getLong();
+        int bloomLongs = footer.getInt();
+        this.keyCount = footer.getLong();
+        this.entryCount = footer.getLong();
+        this.beginPhyOffset = footer.getLong();
+        this.endPhyOffset = footer.getLong();
+        this.beginTimestamp = footer.getLong();
+        this.endTimestamp = footer.getLong();
+
+        this.blockKeys = new String[blockNum];
+        this.blockPositions = new long[blockNum];
+        for (int i = 0; i < blockNum; i++) {
+            this.blockKeys[i] = readKey(meta);
+            this.blockPositions[i] = meta.getLong();
+        }
+        meta.position((int) (bloomPosition - this.dataEnd));
+        this.bloomBits = new long[bloomLongs];
+        for (int i = 0; i < bloomLongs; i++) {
+            this.bloomBits[i] = meta.getLong();
+        }
+    }
+
+    public static IndexSegment open(final File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = randomAccessFile.length();
+            if (length < FOOTER_SIZE) {
+                throw new IOException("index segment too short, " + file);
+            }
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer footer = read(channel, length - FOOTER_SIZE, FOOTER_SIZE);
+            if (footer.getInt(FOOTER_SIZE - 4) != MAGIC) {
+                throw new IOException("index segment magic code mismatch, " + file);
+            }
+            long dataEnd = footer.getLong(0);
+            ByteBuffer meta = read(channel, dataEnd, (int) (length - FOOTER_SIZE - dataEnd));
+            return new IndexSegment(file, randomAccessFile, footer, meta);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the entries of cursor, which must come sorted by key and then by phyOffset descending, into file.
+     * The segment becomes visible under its final name only once it has been synced.
+     *
+     * @return the opened segment, or null if cursor was empty
+     */
+    public static IndexSegment write(final File file, final EntryCursor cursor, final long expectedKeys)
+        throws IOException {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        long[] bloomBits = new long[(int) Math.max(1, (expectedKeys * BLOOM_BITS_PER_KEY + 63) / 64)];
+        List<String> blockKeys = new ArrayList<String>();
+        List<Long> blockPositions = new ArrayList<Long>();
+        long keyCount = 0;
+        long entryCount = 0;
+        long beginPhyOffset = Long.MAX_VALUE;
+        long endPhyOffset = -1;
+        long beginTimestamp = Long.MAX_VALUE;
+        long endTimestamp = 0;
+
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+            long position = 0;
+            String lastKey = null;
+            while (cursor.next()) {
+                String key = cursor.getKey();
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                if (entryCount % BLOCK_ENTRY_NUM == 0) {
+                    blockKeys.add(key);
+                    blockPositions.add(position);
+                }
+                if (!key.equals(lastKey)) {
+                    bloomAdd(bloomBits, keyBytes);
+                    lastKey = key;
+                    keyCount++;
+                }
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(cursor.getPhyOffset());
+                out.writeLong(cursor.getStoreTimestamp());
+                position += 4 + keyBytes.length + 8 + 8;
+                entryCount++;
+
+                beginPhyOffset = Math.min(beginPhyOffset, cursor.getPhyOffset());
+                endPhyOffset = Math.max(endPhyOffset, cursor.getPhyOffset());
+                beginTimestamp = Math.min(beginTimestamp, cursor.getStoreTimestamp());
+                endTimestamp = Math.max(endTimestamp, cursor.getStoreTimestamp());
+            }
+
+            if (entryCount == 0) {
+                return null;
+            }
+
+            long dataEnd = position;
+            for (int i = 0; i < blockKeys.size(); i++) {
+                byte[] keyBytes = blockKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(blockPositions.get(i));
+                position += 4 + keyBytes.length + 8;
+            }
+            long bloomPosition = position;
+            for (long bits : bloomBits) {
+                out.writeLong(bits);
+            }
+
+            out.writeLong(dataEnd);
+            out.writeInt(blockKeys.size());
+            out.writeLong(bloomPosition);
+            out.writeInt(bloomBits.length);
+            out.writeLong(keyCount);
+            out.writeLong(entryCount);
+            out.writeLong(beginPhyOffset);
+            out.writeLong(endPhyOffset);
+            out.writeLong(beginTimestamp);
+            out.writeLong(endTimestamp);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOutputStream.getFD().sync();
+            written = true;
+        } finally {
+            fileOutputStream.close();
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("rename index segment failed, " + file);
+        }
+        return open(file);
+    }
+
+    public boolean mightContain(final String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash64(keyBytes);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long bitNum = this.bloomBits.length * 64L;
+        for (int i = 0; i < BLOOM_HASH_NUM; i++) {
+            long bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitNum;
+            if ((this.bloomBits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isTimeMatched(final long begin, final long end) {
+        return begin <= this.endTimestamp && end >= this.beginTimestamp;
+    }
+
+    /**
+     * Append the offsets of key stored within [begin, end] to phyOffsets, newest first, until it holds maxNum.
+     */
+    public void selectPhyOffset(final List<Long> phyOffsets, final String key, final int maxNum, final long begin,
+        final long end) throws IOException {
+        if (phyOffsets.size() >= maxNum || !this.mightContain(key)) {
+            return;
+        }
+
+        // the key may start in the block before the first one whose first key is not smaller
+        int low = 0;
+        int high = this.blockKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.blockKeys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        for (int block = Math.max(0, low - 1); block < this.blockKeys.length; block++) {
+            ByteBuffer buffer = this.readBlock(block);
+            while (buffer.hasRemaining()) {
+                int cmp = readKey(buffer).compareTo(key);
+                long phyOffset = buffer.getLong();
+                long storeTimestamp = buffer.getLong();
+                if (cmp > 0) {
+                    return;
+                }
+                if (cmp == 0 && storeTimestamp >= begin && storeTimestamp <= end) {
+                    phyOffsets.add(phyOffset);
+                    if (phyOffsets.size() >= maxNum) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public EntryCursor cursor() {
+        return new EntryCursor() {
+            private int block = -1;
+            private ByteBuffer buffer;
+            private String key;
+            private long phyOffset;
+            private long storeTimestamp;
+
+            @Override
+            public boolean next() throws IOException {
+                while (this.buffer == null || !this.buffer.hasRemaining()) {
+                    if (++this.block >= IndexSegment.this.blockKeys.length) {
+                        return false;
+                    }
+                    this.buffer = IndexSegment.this.readBlock(this.block);
+                }
+                this.key = readKey(this.buffer);
+                this.phyOffset = this.buffer.getLong();
+                this.storeTimestamp = this.buffer.getLong();
+                return true;
+            }
+
+            @Override
+            public String getKey() {
+                return this.key;
+            }
+
+            @Override
+            public long getPhyOffset() {
+                return this.phyOffset;
+            }
+
+            @Override
+            public long getStoreTimestamp() {
+                return this.storeTimestamp;
+            }
+        };
+    }
+
+    private ByteBuffer readBlock(final int block) throws IOException {
+        long position = this.blockPositions[block];
+        long limit = block + 1 < this.blockPositions.length ? this.blockPositions[block + 1] : this.dataEnd;
+        return read(this.fileChannel, position, (int) (limit - position));
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position, final int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of index segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String readKey(final ByteBuffer buffer) {
+        byte[] keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    private static void bloomAdd(final long[] bloomBits, final byte[] keyBytes) {
+        long hash = hash64(keyBytes);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long bitNum = bloomBits.length * 64L;
+        for (int i = 0; i < BLOOM_HASH_NUM; i++) {
+            long bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitNum;
+            bloomBits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * FNV-1a followed by the murmur3 finalizer, so both halves are usable as independent hashes.
+     */
+    private static long hash64(final byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public void close() {
+        try {
+            this.fileChannel.close();
+            this.randomAccessFile.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public boolean destroy() {
+        this.close();
+        return this.file.delete();
+    }
+
+    public String getFileName() {
+        return this.file.getName();
+    }
+
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public long getBeginPhyOffset() {
+        return beginPhyOffset;
+    }
+
+    public long getEndPhyOffset() {
+        return endPhyOffset;
+    }
+
+    public long getBeginTimestamp() {
+        return beginTimestamp;
+    }
+
+    public long getEndTimestamp() {
+        return endTimestamp;
+    }
+}
@@ -35,6 +35,8 @@ import org.apache.rocketmq.store.config.StorePathConfigHelper;
 
 public class IndexService {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    public static final String ENGINE_HASH = "hash";
+    public static final String ENGINE_SEGMENT = "segment";
     /**
      * Maximum times to attempt index file creation.
      */
@@ -45,6 +47,10 @@ public class IndexService {
     private final String storePath;
     private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    /**
+     * Replaces the hash index files below when configured, null for the classic {@link IndexFile}.
+     */
+    private final IndexEngine indexEngine;
 
     public IndexService(final DefaultMessageStore store) {
         this.defaultMessageStore = store;
@@ -52,9 +58,22 @@ public class IndexService {
         this.indexNum = store.getMessageStoreConfig().getMaxIndexNum();
         this.storePath =
             StorePathConfigHelper.getStorePathIndex(store.getMessageStoreConfig().getStorePathRootDir());
+        if (ENGINE_SEGMENT.equals(store.getMessageStoreConfig().getIndexEngineType())) {
+            this.indexEngine = new SegmentIndexEngine(store);
+        } else {
+            this.indexEngine = null;
+        }
+    }
+
+    public IndexEngine getIndexEngine() {
+        return indexEngine;
     }
 
     public boolean load(final boolean lastExitOK) {
+        if (this.indexEngine != null) {
+            return this.indexEngine.load(lastExitOK);
+        }
+
         File dir = new File(this.storePath);
         File[] files = dir.listFiles();
         if (files != null) {
@@ -88,6 +107,11 @@ public class IndexService {
     }
 
     public void deleteExpiredFile(long offset) {
+        if (this.indexEngine != null) {
+            this.indexEngine.deleteExpiredFile(offset);
+            return;
+        }
+
         Object[] files = null;
         try {
             this.readWriteLock.readLock().lock();
@@ -141,6 +165,11 @@ public class IndexService {
     }
 
     public void destroy() {
+        if (this.indexEngine != null) {
+            this.indexEngine.destroy();
+            return;
+        }
+
         try {
             this.readWriteLock.writeLock().lock();
             for (IndexFile f : this.indexFileList) {
@@ -155,6 +184,10 @@ public class IndexService {
     }
 
     public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
+        if (this.indexEngine != null) {
+            return this.indexEngine.queryOffset(topic, key, maxNum, begin, end);
+        }
+
         List<Long> phyOffsets = new ArrayList<Long>(maxNum);
 
         long indexLastUpdateTimestamp = 0;
@@ -199,6 +232,11 @@ public class IndexService {
     }
 
     public void buildIndex(DispatchRequest req) {
+        if (this.indexEngine != null) {
+            this.indexEngine.buildIndex(req);
+            return;
+        }
+
         IndexFile indexFile = retryGetAndCreateIndexFile();
         if (indexFile != null) {
             long endPhyOffset = indexFile.getEndPhyOffset();
@@ -363,10 +401,14 @@ public class IndexService {
     }
 
     public void start() {
-
+        if (this.indexEngine != null) {
+            this.indexEngine.start();
+        }
     }
 
     public void shutdown() {
-
+        if (this.indexEngine != null) {
+            this.indexEngine.shutdown();
+        }
     }
 }
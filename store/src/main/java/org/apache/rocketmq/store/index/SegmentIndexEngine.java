@@ -0,0 +1,612 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.DispatchRequest;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+
+/**
+ * Log structured index engine. New keys go to an in-memory table which is sealed into an immutable
+ * {@link IndexSegment} once it is full or old enough, and adjacent segments are merged in the background.
+ * Segments cover disjoint, ascending commit log ranges, so queries walk them from the newest one and can stop
+ * as soon as maxNum offsets are found or the segments get older than the queried time range.
+ */
+public class SegmentIndexEngine implements IndexEngine {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private static final Comparator<IndexSegment.EntryCursor> CURSOR_COMPARATOR = new Comparator<IndexSegment.EntryCursor>() {
+        @Override
+        public int compare(IndexSegment.EntryCursor o1, IndexSegment.EntryCursor o2) {
+            int cmp = o1.getKey().compareTo(o2.getKey());
+            return cmp != 0 ? cmp : Long.compare(o2.getPhyOffset(), o1.getPhyOffset());
+        }
+    };
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final String storePath;
+    private final ArrayList<IndexSegment> segmentList = new ArrayList<IndexSegment>();
+    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private final Object flushLock = new Object();
+    private final FlushCompactService flushCompactService = new FlushCompactService();
+    private volatile MemTable activeMemTable = new MemTable();
+    private volatile MemTable immutableMemTable;
+    private volatile long lastUpdatePhyOffset = -1;
+    private volatile long lastUpdateTimestamp = 0;
+    private volatile boolean flushServiceRunning = false;
+
+    public SegmentIndexEngine(final DefaultMessageStore store) {
+        this.defaultMessageStore = store;
+        this.storePath = StorePathConfigHelper.getStorePathSegmentIndex(store.getMessageStoreConfig().getStorePathRootDir());
+    }
+
+    @Override
+    public boolean load(final boolean lastExitOK) {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        List<IndexSegment> segments = new ArrayList<IndexSegment>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(IndexSegment.TMP_SUFFIX)) {
+                    log.info("delete unfinished index segment {}", file);
+                    file.delete();
+                    continue;
+                }
+
+                try {
+                    IndexSegment segment = IndexSegment.open(file);
+                    if (!lastExitOK && segment.getEndTimestamp() > this.defaultMessageStore.getStoreCheckpoint()
+                        .getIndexMsgTimestamp()) {
+                        segment.destroy();
+                        continue;
+                    }
+                    segments.add(segment);
+                } catch (IOException e) {
+                    log.error("load index segment {} error", file, e);
+                    return false;
+                }
+            }
+        }
+
+        // a crash between sealing a merged segment and deleting its sources leaves both, keep the merged one
+        Collections.sort(segments, new Comparator<IndexSegment>() {
+            @Override
+            public int compare(IndexSegment o1, IndexSegment o2) {
+                int cmp = Long.compare(o1.getBeginPhyOffset(), o2.getBeginPhyOffset());
+                return cmp != 0 ? cmp : Long.compare(o2.getEndPhyOffset(), o1.getEndPhyOffset());
+            }
+        });
+        for (Iterator<IndexSegment> it = segments.iterator(); it.hasNext(); ) {
+            IndexSegment segment = it.next();
+            if (this.lastUpdatePhyOffset >= segment.getEndPhyOffset()) {
+                log.info("delete index segment {} covered by a compacted one", segment.getFileName());
+                segment.destroy();
+                it.remove();
+                continue;
+            }
+            this.lastUpdatePhyOffset = segment.getEndPhyOffset();
+            this.lastUpdateTimestamp = segment.getEndTimestamp();
+            log.info("load index segment OK, " + segment.getFileName());
+        }
+
+        try {
+            this.readWriteLock.writeLock().lock();
+            this.segmentList.addAll(segments);
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void start() {
+        MappedFile.ensureDirOK(this.storePath);
+        this.flushCompactService.start();
+        this.flushServiceRunning = true;
+    }
+
+    @Override
+    public void shutdown() {
+        this.flushServiceRunning = false;
+        synchronized (this.flushLock) {
+            this.flushLock.notifyAll();
+        }
+        this.flushCompactService.shutdown();
+        this.rollMemTable(false);
+        this.flushImmutableMemTable();
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            this.readWriteLock.writeLock().lock();
+            for (IndexSegment segment : this.segmentList) {
+                segment.destroy();
+            }
+            this.segmentList.clear();
+            this.activeMemTable = new MemTable();
+            this.immutableMemTable = null;
+            this.lastUpdatePhyOffset = -1;
+            this.lastUpdateTimestamp = 0;
+        } catch (Exception e) {
+            log.error("destroy exception", e);
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void buildIndex(final DispatchRequest req) {
+        if (req.getCommitLogOffset() <= this.lastUpdatePhyOffset) {
+            return;
+        }
+
+        final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
+        if (tranType == MessageSysFlag.TRANSACTION_ROLLBACK_TYPE) {
+            return;
+        }
+
+        List<String> idxKeys = new ArrayList<String>(2);
+        if (req.getUniqKey() != null) {
+            idxKeys.add(buildKey(req.getTopic(), req.getUniqKey()));
+        }
+        String keys = req.getKeys();
+        if (keys != null && keys.length() > 0) {
+            for (String key : keys.split(MessageConst.KEY_SEPARATOR)) {
+                if (key.length() > 0) {
+                    idxKeys.add(buildKey(req.getTopic(), key));
+                }
+            }
+        }
+
+        MemTable memTable;
+        try {
+            this.readWriteLock.writeLock().lock();
+            memTable = this.activeMemTable;
+            for (String idxKey : idxKeys) {
+                memTable.put(idxKey, req.getCommitLogOffset(), req.getStoreTimestamp());
+            }
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+        this.lastUpdatePhyOffset = req.getCommitLogOffset();
+        this.lastUpdateTimestamp = req.getStoreTimestamp();
+
+        if (memTable.getEntryCount() >= this.defaultMessageStore.getMessageStoreConfig().getIndexSegmentMemtableSize()) {
+            this.rollMemTable(true);
+        }
+    }
+
+    @Override
+    public QueryOffsetResult queryOffset(final String topic, final String key, int maxNum, final long begin,
+        final long end) {
+        maxNum = Math.min(maxNum, this.defaultMessageStore.getMessageStoreConfig().getMaxMsgsNumBatch());
+        List<Long> phyOffsets = new ArrayList<Long>(maxNum);
+        String idxKey = buildKey(topic, key);
+        try {
+            this.readWriteLock.readLock().lock();
+            this.activeMemTable.selectPhyOffset(phyOffsets, idxKey, maxNum, begin, end);
+            if (this.immutableMemTable != null) {
+                this.immutableMemTable.selectPhyOffset(phyOffsets, idxKey, maxNum, begin, end);
+            }
+            for (int i = this.segmentList.size(); i > 0 && phyOffsets.size() < maxNum; i--) {
+                IndexSegment segment = this.segmentList.get(i - 1);
+                if (segment.isTimeMatched(begin, end)) {
+                    segment.selectPhyOffset(phyOffsets, idxKey, maxNum, begin, end);
+                }
+
+                if (segment.getBeginTimestamp() < begin) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            log.error("queryMsg exception", e);
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        return new QueryOffsetResult(phyOffsets, this.lastUpdateTimestamp, Math.max(0, this.lastUpdatePhyOffset));
+    }
+
+    @Override
+    public void deleteExpiredFile(final long offset) {
+        List<IndexSegment> expired = new ArrayList<IndexSegment>();
+        try {
+            this.readWriteLock.writeLock().lock();
+            while (!this.segmentList.isEmpty() && this.segmentList.get(0).getEndPhyOffset() < offset) {
+                expired.add(this.segmentList.remove(0));
+            }
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+
+        for (IndexSegment segment : expired) {
+            if (!segment.destroy()) {
+                log.error("deleteExpiredFile remove failed, {}", segment.getFileName());
+            }
+        }
+    }
+
+    public int getSegmentNum() {
+        try {
+            this.readWriteLock.readLock().lock();
+            return this.segmentList.size();
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+    }
+
+    private String buildKey(final String topic, final String key) {
+        return topic + "#" + key;
+    }
+
+    private File segmentFile(final long beginPhyOffset, final long endPhyOffset) {
+        return new File(this.storePath, UtilAll.offset2FileName(beginPhyOffset) + "_" + UtilAll.offset2FileName(endPhyOffset));
+    }
+
+    /**
+     * Seal the active memory table, so at most two tables are held in memory. A previous one still waiting for
+     * its segment is written first: when dispatching, the flush service writes it and the caller waits, which
+     * holds the index dispatch back while segments are written slower than they fill up. Before the flush
+     * service runs, e.g. on recovery, and once it stopped, the caller writes it itself.
+     */
+    private void rollMemTable(final boolean waitForFlushService) {
+        synchronized (this.flushLock) {
+            while (waitForFlushService && this.immutableMemTable != null && this.flushServiceRunning
+                && !this.defaultMessageStore.getAccessRights().isIndexFileError()) {
+                this.flushCompactService.wakeup();
+                try {
+                    this.flushLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            this.flushImmutableMemTable();
+            if (this.immutableMemTable != null || this.activeMemTable.getEntryCount() == 0) {
+                return;
+            }
+
+            try {
+                this.readWriteLock.writeLock().lock();
+                this.immutableMemTable = this.activeMemTable;
+                this.activeMemTable = new MemTable();
+            } finally {
+                this.readWriteLock.writeLock().unlock();
+            }
+        }
+        this.flushCompactService.wakeup();
+    }
+
+    private void flushImmutableMemTable() {
+        synchronized (this.flushLock) {
+            MemTable memTable = this.immutableMemTable;
+            if (memTable == null) {
+                return;
+            }
+
+            IndexSegment segment;
+            try {
+                segment = IndexSegment.write(this.segmentFile(memTable.getBeginPhyOffset(), memTable.getEndPhyOffset()),
+                    memTable.cursor(), memTable.getKeyCount());
+            } catch (IOException e) {
+                // keep the table readable and retry on the next round
+                log.error("write index segment error", e);
+                this.defaultMessageStore.getAccessRights().makeIndexFileError();
+                return;
+            }
+
+            try {
+                this.readWriteLock.writeLock().lock();
+                if (segment != null) {
+                    this.segmentList.add(segment);
+                }
+                this.immutableMemTable = null;
+            } finally {
+                this.readWriteLock.writeLock().unlock();
+            }
+            this.flushLock.notifyAll();
+
+            if (segment != null) {
+                log.info("seal index segment {}, {} entries", segment.getFileName(), segment.getEntryCount());
+                this.defaultMessageStore.getStoreCheckpoint().setIndexMsgTimestamp(segment.getEndTimestamp());
+                this.defaultMessageStore.getStoreCheckpoint().flush();
+            }
+        }
+    }
+
+    /**
+     * Merge the oldest run of indexSegmentCompactFanIn adjacent segments whose result stays within maxIndexNum
+     * entries.
+     *
+     * @return true if segments were merged
+     */
+    private boolean compact() {
+        int fanIn = this.defaultMessageStore.getMessageStoreConfig().getIndexSegmentCompactFanIn();
+        long maxEntries = this.defaultMessageStore.getMessageStoreConfig().getMaxIndexNum();
+        if (fanIn < 2) {
+            return false;
+        }
+
+        List<IndexSegment> window = null;
+        try {
+            this.readWriteLock.readLock().lock();
+            for (int i = 0; i + fanIn <= this.segmentList.size() && window == null; i++) {
+                long entries = 0;
+                for (int j = i; j < i + fanIn; j++) {
+                    entries += this.segmentList.get(j).getEntryCount();
+                }
+                if (entries <= maxEntries) {
+                    window = new ArrayList<IndexSegment>(this.segmentList.subList(i, i + fanIn));
+                }
+            }
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+        if (window == null) {
+            return false;
+        }
+
+        long beginTime = System.currentTimeMillis();
+        long keyCount = 0;
+        for (IndexSegment segment : window) {
+            keyCount += segment.getKeyCount();
+        }
+        IndexSegment merged;
+        try {
+            merged = IndexSegment.write(this.segmentFile(window.get(0).getBeginPhyOffset(),
+                window.get(window.size() - 1).getEndPhyOffset()), new MergeCursor(window), keyCount);
+        } catch (IOException e) {
+            log.warn("compact index segments error", e);
+            return false;
+        }
+
+        boolean replaced = false;
+        try {
+            this.readWriteLock.writeLock().lock();
+            int index = this.segmentList.indexOf(window.get(0));
+            if (index >= 0 && index + window.size() <= this.segmentList.size()
+                && this.segmentList.subList(index, index + window.size()).equals(window)) {
+                this.segmentList.subList(index, index + window.size()).clear();
+                this.segmentList.add(index, merged);
+                replaced = true;
+            }
+        } finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+
+        if (replaced) {
+            for (IndexSegment segment : window) {
+                segment.destroy();
+            }
+            log.info("compact {} index segments into {}, {} entries, elapsed time(ms) {}", window.size(),
+                merged.getFileName(), merged.getEntryCount(), System.currentTimeMillis() - beginTime);
+        } else {
+            // the sources expired meanwhile
+            merged.destroy();
+        }
+        return replaced;
+    }
+
+    private static class MergeCursor implements IndexSegment.EntryCursor {
+        private final PriorityQueue<IndexSegment.EntryCursor> queue;
+        private IndexSegment.EntryCursor current;
+
+        MergeCursor(List<IndexSegment> segments) throws IOException {
+            this.queue = new PriorityQueue<IndexSegment.EntryCursor>(segments.size(), CURSOR_COMPARATOR);
+            for (IndexSegment segment : segments) {
+                IndexSegment.EntryCursor cursor = segment.cursor();
+                if (cursor.next()) {
+                    this.queue.add(cursor);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (this.current != null && this.current.next()) {
+                this.queue.add(this.current);
+            }
+            this.current = this.queue.poll();
+            return this.current != null;
+        }
+
+        @Override
+        public String getKey() {
+            return this.current.getKey();
+        }
+
+        @Override
+        public long getPhyOffset() {
+            return this.current.getPhyOffset();
+        }
+
+        @Override
+        public long getStoreTimestamp() {
+            return this.current.getStoreTimestamp();
+        }
+    }
+
+    /**
+     * Keys in sorted order, each with its (phyOffset, storeTimestamp) pairs in append order. Guarded by the
+     * engine lock while it is active, read only once sealed.
+     */
+    private static class MemTable {
+        private final TreeMap<String, long[]> table = new TreeMap<String, long[]>();
+        // written under the write lock by the dispatch thread, read without it by the flush service to decide on
+        // sealing the table
+        private volatile int entryCount;
+        private volatile long firstPutTimestamp;
+        private long beginPhyOffset = -1;
+        private long endPhyOffset = -1;
+
+        public void put(final String key, final long phyOffset, final long storeTimestamp) {
+            // slot 0 holds the number of pairs
+            long[] postings = this.table.get(key);
+            if (postings == null) {
+                postings = new long[5];
+                this.table.put(key, postings);
+            } else if (postings[0] * 2 + 2 >= postings.length) {
+                long[] grown = new long[postings.length * 2 - 1];
+                System.arraycopy(postings, 0, grown, 0, postings.length);
+                postings = grown;
+                this.table.put(key, postings);
+            }
+            int size = (int) postings[0];
+            postings[size * 2 + 1] = phyOffset;
+            postings[size * 2 + 2] = storeTimestamp;
+            postings[0] = size + 1;
+
+            if (this.entryCount == 0) {
+                this.firstPutTimestamp = System.currentTimeMillis();
+                this.beginPhyOffset = phyOffset;
+            }
+            this.endPhyOffset = phyOffset;
+            // published last, a reader seeing the entry also sees the timestamp of the first one
+            this.entryCount++;
+        }
+
+        public void selectPhyOffset(final List<Long> phyOffsets, final String key, final int maxNum,
+            final long begin, final long end) {
+            long[] postings = this.table.get(key);
+            if (postings == null) {
+                return;
+            }
+            for (int i = (int) postings[0] - 1; i >= 0 && phyOffsets.size() < maxNum; i--) {
+                long storeTimestamp = postings[i * 2 + 2];
+                if (storeTimestamp >= begin && storeTimestamp <= end) {
+                    phyOffsets.add(postings[i * 2 + 1]);
+                }
+            }
+        }
+
+        public IndexSegment.EntryCursor cursor() {
+            final Iterator<Map.Entry<String, long[]>> iterator = this.table.entrySet().iterator();
+            return new IndexSegment.EntryCursor() {
+                private String key;
+                private long[] postings;
+                // pairs of the current key not returned yet, walked backwards for newest first
+                private int remaining;
+
+                @Override
+                public boolean next() {
+                    while (this.remaining == 0) {
+                        if (!iterator.hasNext()) {
+                            return false;
+                        }
+                        Map.Entry<String, long[]> entry = iterator.next();
+                        this.key = entry.getKey();
+                        this.postings = entry.getValue();
+                        this.remaining = (int) this.postings[0];
+                    }
+                    this.remaining--;
+                    return true;
+                }
+
+                @Override
+                public String getKey() {
+                    return this.key;
+                }
+
+                @Override
+                public long getPhyOffset() {
+                    return this.postings[this.remaining * 2 + 1];
+                }
+
+                @Override
+                public long getStoreTimestamp() {
+                    return this.postings[this.remaining * 2 + 2];
+                }
+            };
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        public int getKeyCount() {
+            return this.table.size();
+        }
+
+        public long getFirstPutTimestamp() {
+            return firstPutTimestamp;
+        }
+
+        public long getBeginPhyOffset() {
+            return beginPhyOffset;
+        }
+
+        public long getEndPhyOffset() {
+            return endPhyOffset;
+        }
+    }
+
+    class FlushCompactService extends ServiceThread {
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(1000);
+                    SegmentIndexEngine.this.flushImmutableMemTable();
+
+                    MemTable memTable = SegmentIndexEngine.this.activeMemTable;
+                    if (memTable.getEntryCount() > 0 && System.currentTimeMillis() - memTable.getFirstPutTimestamp()
+                        >= SegmentIndexEngine.this.defaultMessageStore.getMessageStoreConfig().getIndexSegmentFlushInterval()) {
+                        SegmentIndexEngine.this.rollMemTable(false);
+                        SegmentIndexEngine.this.flushImmutableMemTable();
+                    }
+
+                    while (!this.isStopped() && SegmentIndexEngine.this.compact()) {
+                        log.debug("index segments compacted, {} left", SegmentIndexEngine.this.getSegmentNum());
+                    }
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return FlushCompactService.class.getSimpleName();
+        }
+    }
+}
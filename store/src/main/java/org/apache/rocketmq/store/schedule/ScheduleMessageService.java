@@ -16,15 +16,21 @@
  */
 package org.apache.rocketmq.store.schedule;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.TopicFilterType;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.topic.TopicValidator;
@@ -62,7 +68,7 @@ public class ScheduleMessageService extends ConfigManager {
         new ConcurrentHashMap<Integer, Long>(32);
     private final DefaultMessageStore defaultMessageStore;
     private final AtomicBoolean started = new AtomicBoolean(false);
-    private Timer timer;
+    private ScheduledExecutorService deliverExecutorService;
     private MessageStore writeMessageStore;
     private int maxDelayLevel;
 
@@ -121,7 +127,12 @@ public class ScheduleMessageService extends ConfigManager {
      */
     public void start() {
         if (started.compareAndSet(false, true)) {
-            this.timer = new Timer("ScheduleMessageTimerThread", true);
+            // levels are independent, each one is a chain of tasks that reschedules itself on the shared pool
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getScheduleDeliverThreadNum()),
+                new ThreadFactoryImpl("ScheduleMessageExecutorThread_", true));
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.deliverExecutorService = executor;
             // 遍历所有的延迟级别
             for (Map.Entry<Integer, Long> entry : this.delayLevelTable.entrySet()) {
                 Integer level = entry.getKey();
@@ -136,11 +147,11 @@ public class ScheduleMessageService extends ConfigManager {
                 if (timeDelay != null) {
                     // 为每个延迟级别创建对应的TimerTask定时任务
                     // 为每个延迟级别创建对应的定时任务
-                    this.timer.schedule(new DeliverDelayedMessageTimerTask(level, offset), FIRST_DELAY_TIME);
+                    this.scheduleDeliverTask(level, offset, FIRST_DELAY_TIME);
                 }
             }
 
-            this.timer.scheduleAtFixedRate(new TimerTask() {
+            this.deliverExecutorService.scheduleAtFixedRate(new Runnable() {
 
                 @Override
                 public void run() {
@@ -150,18 +161,40 @@ public class ScheduleMessageService extends ConfigManager {
                         log.error("scheduleAtFixedRate flush exception", e);
                     }
                 }
-            }, 10000, this.defaultMessageStore.getMessageStoreConfig().getFlushDelayOffsetInterval());
+            }, 10000, this.defaultMessageStore.getMessageStoreConfig().getFlushDelayOffsetInterval(), TimeUnit.MILLISECONDS);
         }
     }
 
     public void shutdown() {
         if (this.started.compareAndSet(true, false)) {
-            if (null != this.timer)
-                this.timer.cancel();
+            if (null != this.deliverExecutorService) {
+                this.deliverExecutorService.shutdown();
+                try {
+                    // let the rounds in flight record how far they got, then persist exactly that
+                    if (!this.deliverExecutorService.awaitTermination(5000, TimeUnit.MILLISECONDS)) {
+                        log.warn("schedule message deliver tasks did not finish in time");
+                    }
+                } catch (InterruptedException e) {
+                    log.warn("interrupted while waiting for schedule message deliver tasks", e);
+                }
+                this.persist();
+            }
         }
 
     }
 
+    private void scheduleDeliverTask(final int delayLevel, final long offset, final long delay) {
+        if (!this.started.get()) {
+            return;
+        }
+        try {
+            this.deliverExecutorService.schedule(new DeliverDelayedMessageTimerTask(delayLevel, offset), delay,
+                TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("schedule message service is shutting down, level {} stops at offset {}", delayLevel, offset);
+        }
+    }
+
     public boolean isStarted() {
         return started.get();
     }
@@ -235,7 +268,7 @@ public class ScheduleMessageService extends ConfigManager {
         return true;
     }
 
-    class DeliverDelayedMessageTimerTask extends TimerTask {
+    class DeliverDelayedMessageTimerTask implements Runnable {
         private final int delayLevel;
         private final long offset;
 
@@ -260,8 +293,7 @@ public class ScheduleMessageService extends ConfigManager {
             } catch (Exception e) {
                 // XXX: warn and notify me
                 log.error("ScheduleMessageService, executeOnTimeup exception", e);
-                ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
-                    this.delayLevel, this.offset), DELAY_FOR_A_PERIOD);
+                ScheduleMessageService.this.scheduleDeliverTask(this.delayLevel, this.offset, DELAY_FOR_A_PERIOD);
             }
         }
 
@@ -307,6 +339,7 @@ public class ScheduleMessageService extends ConfigManager {
                 // 根据偏移量从ConsumeQueue获取数据
                 SelectMappedBufferResult bufferCQ = cq.getIndexBuffer(this.offset);
                 if (bufferCQ != null) {
+                    DeliverBatch deliverBatch = new DeliverBatch();
                     try {
                         long nextOffset = offset;
                         int i = 0;
@@ -343,69 +376,61 @@ public class ScheduleMessageService extends ConfigManager {
                             // 计算消息的到期时间
                             long countdown = deliverTimestamp - now;
 
-                            if (countdown <= 0) {
-                                // 走到这里，表示已经到了消息的延迟时间，从CommitLog取出消息
-                                MessageExt msgExt =
-                                    ScheduleMessageService.this.defaultMessageStore.lookMessageByOffset(
-                                        offsetPy, sizePy);
-
-                                if (msgExt != null) {
-                                    try {
-                                        // 处理消息，这里会恢复消息原本的Topic
-                                        MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
-                                        if (TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC.equals(msgInner.getTopic())) {
-                                            log.error("[BUG] the real topic of schedule msg is {}, discard the msg. msg={}",
-                                                    msgInner.getTopic(), msgInner);
-                                            continue;
-                                        }
-                                        // 投递消息到原本的主题中
-                                        PutMessageResult putMessageResult =
-                                            ScheduleMessageService.this.writeMessageStore
-                                                .putMessage(msgInner);
-
-                                        if (putMessageResult != null
-                                            && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
-                                            continue;
-                                        } else {
-                                            // XXX: warn and notify me
-                                            log.error(
-                                                "ScheduleMessageService, a message time up, but reput it failed, topic: {} msgId {}",
-                                                msgExt.getTopic(), msgExt.getMsgId());
-                                            ScheduleMessageService.this.timer.schedule(
-                                                new DeliverDelayedMessageTimerTask(this.delayLevel,
-                                                    nextOffset), DELAY_FOR_A_PERIOD);
-                                            ScheduleMessageService.this.updateOffset(this.delayLevel,
-                                                nextOffset);
-                                            return;
-                                        }
-                                    } catch (Exception e) {
-                                        /*
-                                         * XXX: warn and notify me
-
-
-
-                                         */
-                                        log.error(
-                                            "ScheduleMessageService, messageTimeup execute error, drop it. msgExt="
-                                                + msgExt + ", nextOffset=" + nextOffset + ",offsetPy="
-                                                + offsetPy + ",sizePy=" + sizePy, e);
-                                    }
-                                }
-                            } else {
+                            if (countdown > 0) {
                                 // 如果大于0，表示还未到达指定的延迟时间，需要继续等待
+                                // the offset may only move past the messages put so far once they are stored
+                                if (!this.completeBatch(deliverBatch)) {
+                                    return;
+                                }
                                 // 新建定时任务等待下次执行
-                                ScheduleMessageService.this.timer.schedule(
-                                    new DeliverDelayedMessageTimerTask(this.delayLevel, nextOffset),
-                                    countdown);
+                                ScheduleMessageService.this.scheduleDeliverTask(this.delayLevel, nextOffset, countdown);
                                 ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
                                 return;
                             }
+
+                            // 走到这里，表示已经到了消息的延迟时间，从CommitLog取出消息
+                            MessageExt msgExt =
+                                ScheduleMessageService.this.defaultMessageStore.lookMessageByOffset(
+                                    offsetPy, sizePy);
+
+                            if (msgExt != null) {
+                                try {
+                                    // 处理消息，这里会恢复消息原本的Topic
+                                    MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
+                                    if (TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC.equals(msgInner.getTopic())) {
+                                        log.error("[BUG] the real topic of schedule msg is {}, discard the msg. msg={}",
+                                                msgInner.getTopic(), msgInner);
+                                        continue;
+                                    }
+                                    // 投递消息到原本的主题中
+                                    deliverBatch.add(nextOffset, msgExt,
+                                        ScheduleMessageService.this.writeMessageStore.asyncPutMessage(msgInner));
+                                } catch (Exception e) {
+                                    /*
+                                     * XXX: warn and notify me
+
+
+
+                                     */
+                                    log.error(
+                                        "ScheduleMessageService, messageTimeup execute error, drop it. msgExt="
+                                            + msgExt + ", nextOffset=" + nextOffset + ",offsetPy="
+                                            + offsetPy + ",sizePy=" + sizePy, e);
+                                }
+                            }
+
+                            if (deliverBatch.size() >= ScheduleMessageService.this.defaultMessageStore.getMessageStoreConfig().getScheduleDeliverBatchSize()
+                                && !this.completeBatch(deliverBatch)) {
+                                return;
+                            }
                         } // end of for
 
+                        if (!this.completeBatch(deliverBatch)) {
+                            return;
+                        }
                         // 计算下一条消息的偏移量
                         nextOffset = offset + (i / ConsumeQueue.CQ_STORE_UNIT_SIZE);
-                        ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
-                            this.delayLevel, nextOffset), DELAY_FOR_A_WHILE);
+                        ScheduleMessageService.this.scheduleDeliverTask(this.delayLevel, nextOffset, DELAY_FOR_A_WHILE);
                         ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
                         return;
                     } finally {
@@ -425,8 +450,23 @@ public class ScheduleMessageService extends ConfigManager {
             } // end of if (cq != null)
 
             // 如果ConsumeQueue为空，新建定时任务等待下次执行
-            ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(this.delayLevel,
-                failScheduleOffset), DELAY_FOR_A_WHILE);
+            ScheduleMessageService.this.scheduleDeliverTask(this.delayLevel, failScheduleOffset, DELAY_FOR_A_WHILE);
+        }
+
+        /**
+         * Wait for the messages put so far, if one of them failed the level starts over from it a while later and
+         * everything put after it is delivered again.
+         *
+         * @return false if the round has to stop here
+         */
+        private boolean completeBatch(final DeliverBatch deliverBatch) {
+            long failedOffset = deliverBatch.await();
+            if (failedOffset < 0) {
+                return true;
+            }
+            ScheduleMessageService.this.scheduleDeliverTask(this.delayLevel, failedOffset, DELAY_FOR_A_PERIOD);
+            ScheduleMessageService.this.updateOffset(this.delayLevel, failedOffset);
+            return false;
         }
 
         private MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
@@ -462,4 +502,51 @@ public class ScheduleMessageService extends ConfigManager {
             return msgInner;
         }
     }
+
+    /**
+     * Due messages of one level put asynchronously, so their appends and flushes overlap instead of running one
+     * after another.
+     */
+    static class DeliverBatch {
+        private final List<Long> offsets = new ArrayList<Long>();
+        private final List<MessageExt> msgs = new ArrayList<MessageExt>();
+        private final List<CompletableFuture<PutMessageResult>> futures = new ArrayList<CompletableFuture<PutMessageResult>>();
+
+        void add(final long offset, final MessageExt msgExt, final CompletableFuture<PutMessageResult> future) {
+            this.offsets.add(offset);
+            this.msgs.add(msgExt);
+            this.futures.add(future);
+        }
+
+        int size() {
+            return this.futures.size();
+        }
+
+        /**
+         * @return the consume queue offset of the first message that was not stored, -1 if all were
+         */
+        long await() {
+            long failedOffset = -1;
+            for (int i = 0; i < this.futures.size(); i++) {
+                PutMessageResult putMessageResult = null;
+                try {
+                    putMessageResult = this.futures.get(i).get();
+                } catch (Exception e) {
+                    log.error("ScheduleMessageService, wait for reput result failed", e);
+                }
+
+                if (failedOffset < 0 && (putMessageResult == null
+                    || putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK)) {
+                    // XXX: warn and notify me
+                    log.error("ScheduleMessageService, a message time up, but reput it failed, topic: {} msgId {}",
+                        this.msgs.get(i).getTopic(), this.msgs.get(i).getMsgId());
+                    failedOffset = this.offsets.get(i);
+                }
+            }
+            this.offsets.clear();
+            this.msgs.clear();
+            this.futures.clear();
+            return failedOffset;
+        }
+    }
 }
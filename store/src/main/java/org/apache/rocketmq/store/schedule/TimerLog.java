@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.schedule;
+
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MappedFileQueue;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+
+/**
+ * Append only log of fixed size timer units. The units of one wheel slot are chained backwards through the position
+ * of the previous unit, so a slot only has to remember where its newest unit is and the wheel itself stays tiny no
+ * matter how many timers are pending. Not thread safe, only the timer wheel thread touches it.
+ */
+public class TimerLog {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    /**
+     * magic(4) prevPos(8) deliverMs(8) commitLogOffset(8) size(4)
+     */
+    public static final int UNIT_SIZE = 32;
+    private static final int UNIT_MAGIC = 0x54494D52;
+
+    private final MappedFileQueue mappedFileQueue;
+    private final int fileSize;
+    private final ByteBuffer unitBuffer = ByteBuffer.allocate(UNIT_SIZE);
+
+    public TimerLog(final String storePath, final int fileSize) {
+        // units never straddle two files
+        this.fileSize = Math.max(UNIT_SIZE, fileSize - fileSize % UNIT_SIZE);
+        this.mappedFileQueue = new MappedFileQueue(storePath, this.fileSize, null);
+    }
+
+    public boolean load() {
+        return this.mappedFileQueue.load();
+    }
+
+    /**
+     * Drop everything written after the last wheel checkpoint, the wheel re-enqueues those timers itself.
+     */
+    public void recover(final long writePos) {
+        this.mappedFileQueue.setFlushedWhere(writePos);
+        this.mappedFileQueue.setCommittedWhere(writePos);
+        this.mappedFileQueue.truncateDirtyFiles(writePos);
+    }
+
+    /**
+     * @return the position of the new unit, or -1 if no file could be created
+     */
+    public long append(final long prevPos, final long deliverMs, final long commitLogOffset, final int size) {
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+        if (null == mappedFile) {
+            log.error("create timer log file failed, write position {}", this.getWritePos());
+            return -1;
+        }
+
+        long pos = mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+        this.unitBuffer.clear();
+        this.unitBuffer.putInt(UNIT_MAGIC);
+        this.unitBuffer.putLong(prevPos);
+        this.unitBuffer.putLong(deliverMs);
+        this.unitBuffer.putLong(commitLogOffset);
+        this.unitBuffer.putInt(size);
+        if (!mappedFile.appendMessage(this.unitBuffer.array())) {
+            return -1;
+        }
+        return pos;
+    }
+
+    /**
+     * @return null if the unit is gone or was never written completely
+     */
+    public Unit read(final long pos) {
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(pos);
+        if (null == mappedFile) {
+            return null;
+        }
+
+        SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (pos % this.fileSize), UNIT_SIZE);
+        if (null == result) {
+            return null;
+        }
+
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            if (byteBuffer.getInt() != UNIT_MAGIC) {
+                return null;
+            }
+            Unit unit = new Unit();
+            unit.prevPos = byteBuffer.getLong();
+            unit.deliverMs = byteBuffer.getLong();
+            unit.commitLogOffset = byteBuffer.getLong();
+            unit.size = byteBuffer.getInt();
+            return unit;
+        } finally {
+            result.release();
+        }
+    }
+
+    public void flush() {
+        long writePos = this.getWritePos();
+        while (this.mappedFileQueue.getFlushedWhere() < writePos) {
+            if (this.mappedFileQueue.flush(0)) {
+                break;
+            }
+        }
+    }
+
+    public long getWritePos() {
+        return this.mappedFileQueue.getMaxOffset();
+    }
+
+    /**
+     * Every unit fires or is rewritten less than a day after it was appended, files modified longer ago than that
+     * relative to the wheel clock hold nothing but dead units.
+     */
+    public int deleteExpiredFile(final long expiredTime) {
+        return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, 0, 1000 * 120, false);
+    }
+
+    public void destroy() {
+        this.mappedFileQueue.destroy();
+    }
+
+    public static class Unit {
+        private long prevPos;
+        private long deliverMs;
+        private long commitLogOffset;
+        private int size;
+
+        public long getPrevPos() {
+            return prevPos;
+        }
+
+        public long getDeliverMs() {
+            return deliverMs;
+        }
+
+        public long getCommitLogOffset() {
+            return commitLogOffset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+}
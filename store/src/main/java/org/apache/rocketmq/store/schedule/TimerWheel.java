@@ -0,0 +1,602 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.schedule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.TopicFilterType;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.topic.TopicValidator;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.ConsumeQueue;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+
+/**
+ * Delivers messages at the second given by their TIMER_DELIVER_MS property. The commit log parks such messages in
+ * RMQ_SYS_TIMER_TOPIC, the wheel thread picks them up from its consume queue and hangs them into a hierarchical
+ * timing wheel of 60 second, 60 minute and 24 hour slots whose chains live in the {@link TimerLog}. Slots of the
+ * upper levels cascade down when their minute or hour begins, timers more than a day ahead wait in the slot firing
+ * 23 hours later and are then written to the commit log once more, so the message they point at never ages out.
+ * <p>
+ * Slots, the read clock and the consume queue offset are checkpointed together with the timer log write position,
+ * after a crash everything since the last checkpoint is replayed, so a message may be delivered twice but never lost.
+ */
+public class TimerWheel {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private static final int SECOND_SLOTS = 60;
+    private static final int MINUTE_SLOTS = 60;
+    private static final int HOUR_SLOTS = 24;
+    private static final int MINUTE_LEVEL = SECOND_SLOTS;
+    private static final int HOUR_LEVEL = SECOND_SLOTS + MINUTE_SLOTS;
+    private static final int SLOT_NUM = SECOND_SLOTS + MINUTE_SLOTS + HOUR_SLOTS;
+    private static final long EMPTY_SLOT = -1;
+
+    /**
+     * magic(4) version(8) currReadSec(8) enqueueOffset(8) timerLogWritePos(8) slots(8 * SLOT_NUM) crc(4), written
+     * alternately into two pages so a torn write always leaves the previous checkpoint intact
+     */
+    private static final int CHECKPOINT_MAGIC = 0x54574350;
+    private static final int CHECKPOINT_SIZE = 4 + 8 * 4 + 8 * SLOT_NUM + 4;
+    private static final int CHECKPOINT_PAGE_SIZE = MappedFile.OS_PAGE_SIZE;
+
+    private static final long TIMER_LOG_RESERVED_MS = 25 * 3600 * 1000L;
+    private static final int MAX_SECONDS_PER_ROUND = 3600;
+    private static final int MAX_ENQUEUE_PER_ROUND = 4096;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final TimerLog timerLog;
+    private final String checkpointPath;
+    private RandomAccessFile checkpointFile;
+    private MappedByteBuffer checkpointBuffer;
+    private long checkpointVersion = 0;
+    private long lastFlushTime = 0;
+
+    private final long[] slots = new long[SLOT_NUM];
+    /**
+     * The next second to be processed, everything due before it has been delivered.
+     */
+    private volatile long currReadSec;
+    /**
+     * The next consume queue offset of RMQ_SYS_TIMER_TOPIC to hang into the wheel.
+     */
+    private volatile long enqueueOffset;
+
+    private final AtomicLong deliverTimes = new AtomicLong(0);
+    private final AtomicLong rollTimes = new AtomicLong(0);
+    private final TimerWheelService timerWheelService = new TimerWheelService();
+
+    public TimerWheel(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        this.timerLog = new TimerLog(StorePathConfigHelper.getStorePathTimerLog(this.messageStoreConfig.getStorePathRootDir()),
+            this.messageStoreConfig.getTimerLogFileSize());
+        this.checkpointPath = StorePathConfigHelper.getTimerWheelCheckpoint(this.messageStoreConfig.getStorePathRootDir());
+    }
+
+    /**
+     * @return the delivery time, or defaultValue if the property is missing or malformed
+     */
+    public static long parseDeliverTimeMs(final String deliverTimeMs, final long defaultValue) {
+        if (deliverTimeMs != null) {
+            try {
+                return Long.parseLong(deliverTimeMs);
+            } catch (NumberFormatException e) {
+                log.warn("illegal timer delivery time {}", deliverTimeMs);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static long deliverSec(final long deliverMs) {
+        // never deliver early
+        return (deliverMs + 999) / 1000;
+    }
+
+    public boolean load() {
+        try {
+            File file = new File(this.checkpointPath);
+            MappedFile.ensureDirOK(file.getParent());
+            this.checkpointFile = new RandomAccessFile(file, "rw");
+            this.checkpointBuffer = this.checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_PAGE_SIZE * 2);
+        } catch (IOException e) {
+            log.error("load timer wheel checkpoint {} failed", this.checkpointPath, e);
+            return false;
+        }
+
+        Arrays.fill(this.slots, EMPTY_SLOT);
+        this.currReadSec = System.currentTimeMillis() / 1000;
+        this.enqueueOffset = 0;
+        long timerLogWritePos = this.loadCheckpoint(0);
+        long newerWritePos = this.loadCheckpoint(1);
+        if (newerWritePos >= 0) {
+            timerLogWritePos = newerWritePos;
+        }
+        if (timerLogWritePos < 0) {
+            log.info("no timer wheel checkpoint found, start with an empty wheel");
+            timerLogWritePos = 0;
+        }
+
+        if (!this.timerLog.load()) {
+            return false;
+        }
+        this.timerLog.recover(timerLogWritePos);
+        log.info("load timer wheel, currReadSec {}, enqueueOffset {}, timerLogWritePos {}", this.currReadSec,
+            this.enqueueOffset, timerLogWritePos);
+        return true;
+    }
+
+    /**
+     * @return the timer log write position, -1 if the page is invalid or older than the checkpoint loaded before
+     */
+    private long loadCheckpoint(final int page) {
+        ByteBuffer byteBuffer = this.checkpointBuffer.duplicate();
+        byteBuffer.position(page * CHECKPOINT_PAGE_SIZE);
+        byte[] data = new byte[CHECKPOINT_SIZE];
+        byteBuffer.get(data);
+        ByteBuffer checkpoint = ByteBuffer.wrap(data);
+        if (checkpoint.getInt() != CHECKPOINT_MAGIC
+            || checkpoint.getInt(CHECKPOINT_SIZE - 4) != UtilAll.crc32(data, 0, CHECKPOINT_SIZE - 4)) {
+            return -1;
+        }
+
+        long version = checkpoint.getLong();
+        if (version <= this.checkpointVersion) {
+            return -1;
+        }
+        this.checkpointVersion = version;
+        this.currReadSec = checkpoint.getLong();
+        this.enqueueOffset = checkpoint.getLong();
+        long timerLogWritePos = checkpoint.getLong();
+        for (int i = 0; i < SLOT_NUM; i++) {
+            this.slots[i] = checkpoint.getLong();
+        }
+        return timerLogWritePos;
+    }
+
+    /**
+     * Flush the timer log first, then checkpoint the wheel, only ever called by the wheel thread.
+     */
+    private void flush() {
+        this.timerLog.flush();
+
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        long version = this.checkpointVersion + 1;
+        checkpoint.putInt(CHECKPOINT_MAGIC);
+        checkpoint.putLong(version);
+        checkpoint.putLong(this.currReadSec);
+        checkpoint.putLong(this.enqueueOffset);
+        checkpoint.putLong(this.timerLog.getWritePos());
+        for (long slot : this.slots) {
+            checkpoint.putLong(slot);
+        }
+        checkpoint.putInt(UtilAll.crc32(checkpoint.array(), 0, CHECKPOINT_SIZE - 4));
+
+        ByteBuffer byteBuffer = this.checkpointBuffer.duplicate();
+        byteBuffer.position((int) (version % 2) * CHECKPOINT_PAGE_SIZE);
+        byteBuffer.put(checkpoint.array());
+        this.checkpointBuffer.force();
+        this.checkpointVersion = version;
+        this.lastFlushTime = System.currentTimeMillis();
+
+        long expiredTime = TIMER_LOG_RESERVED_MS + Math.max(0, this.lastFlushTime - this.currReadSec * 1000);
+        int deleteCount = this.timerLog.deleteExpiredFile(expiredTime);
+        if (deleteCount > 0) {
+            log.info("deleted {} expired timer log files, currReadSec {}", deleteCount, this.currReadSec);
+        }
+    }
+
+    /**
+     * Park a timer message in RMQ_SYS_TIMER_TOPIC instead of its own topic, called by the commit log before append.
+     *
+     * @return true if the message was redirected
+     */
+    public boolean redirect(final MessageExtBrokerInner msg) {
+        String deliverTimeMs = msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        if (null == deliverTimeMs || TopicValidator.RMQ_SYS_TIMER_TOPIC.equals(msg.getTopic())) {
+            return false;
+        }
+        // due within the next second, the wheel would not deliver it any earlier
+        if (deliverSec(parseDeliverTimeMs(deliverTimeMs, 0)) <= System.currentTimeMillis() / 1000 + 1) {
+            return false;
+        }
+
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, String.valueOf(msg.getQueueId()));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        msg.setTopic(TopicValidator.RMQ_SYS_TIMER_TOPIC);
+        msg.setQueueId(0);
+        return true;
+    }
+
+    /**
+     * @return false if the delivery time is malformed or further ahead than timerMaxDelaySec
+     */
+    public boolean checkDeliverTime(final MessageExtBrokerInner msg) {
+        String deliverTimeMs = msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        if (null == deliverTimeMs) {
+            return true;
+        }
+        long deliverMs = parseDeliverTimeMs(deliverTimeMs, -1);
+        if (deliverMs < 0) {
+            return false;
+        }
+        if (deliverMs - System.currentTimeMillis() > this.messageStoreConfig.getTimerMaxDelaySec() * 1000) {
+            log.warn("timer message delivery time {} is more than {}s ahead", deliverMs, this.messageStoreConfig.getTimerMaxDelaySec());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hang the messages parked since the last round into the wheel.
+     *
+     * @return true if there may be more to enqueue
+     */
+    private boolean enqueue() {
+        ConsumeQueue cq = this.defaultMessageStore.getConsumeQueue(TopicValidator.RMQ_SYS_TIMER_TOPIC, 0);
+        if (null == cq) {
+            return false;
+        }
+
+        long maxOffset = cq.getMaxOffsetInQueue();
+        if (this.enqueueOffset > maxOffset) {
+            // the consume queue lost its tail in recovery, new messages reuse the offsets
+            log.warn("timer enqueue offset {} is beyond the consume queue max offset {}", this.enqueueOffset, maxOffset);
+            this.enqueueOffset = maxOffset;
+        }
+        if (this.enqueueOffset < cq.getMinOffsetInQueue()) {
+            log.warn("timer enqueue offset {} is behind the consume queue min offset {}", this.enqueueOffset, cq.getMinOffsetInQueue());
+            this.enqueueOffset = cq.getMinOffsetInQueue();
+        }
+        if (this.enqueueOffset >= maxOffset) {
+            return false;
+        }
+
+        SelectMappedBufferResult result = cq.getIndexBuffer(this.enqueueOffset);
+        if (null == result) {
+            return false;
+        }
+
+        int count = 0;
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            for (int i = 0; i < result.getSize() && count < MAX_ENQUEUE_PER_ROUND; i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
+                long commitLogOffset = byteBuffer.getLong();
+                int size = byteBuffer.getInt();
+                long deliverMs = byteBuffer.getLong();
+                if (!this.schedule(deliverMs, commitLogOffset, size, this.currReadSec)) {
+                    break;
+                }
+                this.enqueueOffset++;
+                count++;
+            }
+        } finally {
+            result.release();
+        }
+        return count >= MAX_ENQUEUE_PER_ROUND;
+    }
+
+    /**
+     * Process every second that is due.
+     *
+     * @return true if the wheel is still behind the clock
+     */
+    private boolean tick() {
+        long nowSec = System.currentTimeMillis() / 1000;
+        int seconds = 0;
+        while (this.currReadSec <= nowSec && seconds < MAX_SECONDS_PER_ROUND && !this.timerWheelService.isStopped()) {
+            long t = this.currReadSec;
+            if (t % 3600 == 0) {
+                this.fire(HOUR_LEVEL + (int) (t / 3600 % HOUR_SLOTS), t);
+            }
+            if (t % 60 == 0) {
+                this.fire(MINUTE_LEVEL + (int) (t / 60 % MINUTE_SLOTS), t);
+            }
+            this.fire((int) (t % SECOND_SLOTS), t);
+            this.currReadSec = t + 1;
+            seconds++;
+        }
+        return this.currReadSec <= nowSec;
+    }
+
+    private void fire(final int slot, final long t) {
+        long pos = this.slots[slot];
+        this.slots[slot] = EMPTY_SLOT;
+        while (pos != EMPTY_SLOT) {
+            TimerLog.Unit unit = this.timerLog.read(pos);
+            if (null == unit) {
+                log.error("timer unit at {} of slot {} is gone, the rest of the slot is lost", pos, slot);
+                return;
+            }
+
+            boolean handled;
+            if (slot < MINUTE_LEVEL) {
+                handled = this.deliver(unit.getCommitLogOffset(), unit.getSize()) || this.retry(unit);
+            } else if (slot >= HOUR_LEVEL && deliverSec(unit.getDeliverMs()) / 3600 - t / 3600 >= HOUR_SLOTS) {
+                handled = this.roll(unit.getCommitLogOffset(), unit.getSize())
+                    || this.hang(HOUR_LEVEL + (int) ((t / 3600 + HOUR_SLOTS - 1) % HOUR_SLOTS), unit)
+                    || this.retry(unit);
+            } else {
+                handled = this.schedule(unit.getDeliverMs(), unit.getCommitLogOffset(), unit.getSize(), t)
+                    || this.retry(unit);
+            }
+            if (!handled) {
+                this.keepUnfired(slot, pos);
+                return;
+            }
+            pos = unit.getPrevPos();
+        }
+    }
+
+    /**
+     * The timer log is not writable, so chain the units not handled yet back into the slot they came from. They
+     * are fired again the next time the slot comes round instead of being lost.
+     */
+    private void keepUnfired(final int slot, final long pos) {
+        if (this.slots[slot] == EMPTY_SLOT) {
+            this.slots[slot] = pos;
+            log.error("timer log is not writable, keep the timer units from {} in slot {} until it fires again", pos, slot);
+        } else {
+            log.error("[BUG]timer log is not writable and slot {} is taken, the timer units from {} are lost", slot, pos);
+        }
+    }
+
+    /**
+     * Deliver a timer right away if it is overdue relative to second t, otherwise hang it into the lowest level
+     * covering its delivery time.
+     *
+     * @return false if the timer log is not writable
+     */
+    private boolean schedule(final long deliverMs, final long commitLogOffset, final int size, final long t) {
+        long deliverSec = deliverSec(deliverMs);
+        if (deliverSec < t) {
+            if (this.deliver(commitLogOffset, size)) {
+                return true;
+            }
+            return this.hang((int) ((this.currReadSec + 1) % SECOND_SLOTS), deliverMs, commitLogOffset, size);
+        }
+
+        int slot;
+        if (deliverSec - t < SECOND_SLOTS) {
+            slot = (int) (deliverSec % SECOND_SLOTS);
+        } else if (deliverSec / 60 - t / 60 < MINUTE_SLOTS) {
+            slot = MINUTE_LEVEL + (int) (deliverSec / 60 % MINUTE_SLOTS);
+        } else if (deliverSec / 3600 - t / 3600 < HOUR_SLOTS) {
+            slot = HOUR_LEVEL + (int) (deliverSec / 3600 % HOUR_SLOTS);
+        } else {
+            // beyond the wheel, wait in the slot firing last
+            slot = HOUR_LEVEL + (int) ((t / 3600 + HOUR_SLOTS - 1) % HOUR_SLOTS);
+        }
+        return this.hang(slot, deliverMs, commitLogOffset, size);
+    }
+
+    private boolean retry(final TimerLog.Unit unit) {
+        return this.hang((int) ((this.currReadSec + 1) % SECOND_SLOTS), unit);
+    }
+
+    private boolean hang(final int slot, final TimerLog.Unit unit) {
+        return this.hang(slot, unit.getDeliverMs(), unit.getCommitLogOffset(), unit.getSize());
+    }
+
+    private boolean hang(final int slot, final long deliverMs, final long commitLogOffset, final int size) {
+        long pos = this.timerLog.append(this.slots[slot], deliverMs, commitLogOffset, size);
+        if (pos < 0) {
+            log.error("append timer unit failed, commitLogOffset {}", commitLogOffset);
+            return false;
+        }
+        this.slots[slot] = pos;
+        return true;
+    }
+
+    /**
+     * @return false if the message should be delivered again later
+     */
+    private boolean deliver(final long commitLogOffset, final int size) {
+        MessageExt msgExt = this.lookMessage(commitLogOffset, size);
+        if (null == msgExt) {
+            return true;
+        }
+        if (TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC.equals(msgExt.getProperty(MessageConst.PROPERTY_REAL_TOPIC))) {
+            log.error("[BUG] the real topic of timer message is {}, discard the msg. msg={}",
+                msgExt.getProperty(MessageConst.PROPERTY_REAL_TOPIC), msgExt);
+            return true;
+        }
+
+        MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
+        msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+        msgInner.setQueueId(Integer.parseInt(msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID)));
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+        if (this.putMessage(msgInner, commitLogOffset)) {
+            this.deliverTimes.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write a timer that is still more than a day ahead to the commit log once more.
+     *
+     * @return false if it should be tried again later
+     */
+    private boolean roll(final long commitLogOffset, final int size) {
+        MessageExt msgExt = this.lookMessage(commitLogOffset, size);
+        if (null == msgExt) {
+            return true;
+        }
+
+        MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
+        msgInner.setTopic(msgExt.getTopic());
+        msgInner.setQueueId(msgExt.getQueueId());
+        if (this.putMessage(msgInner, commitLogOffset)) {
+            this.rollTimes.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private MessageExt lookMessage(final long commitLogOffset, final int size) {
+        try {
+            MessageExt msgExt = this.defaultMessageStore.lookMessageByOffset(commitLogOffset, size);
+            if (null == msgExt) {
+                log.warn("timer message at commitLogOffset {} is gone from the commit log, discard it", commitLogOffset);
+            }
+            return msgExt;
+        } catch (Exception e) {
+            log.error("timer message at commitLogOffset {} is corrupted, discard it", commitLogOffset, e);
+            return null;
+        }
+    }
+
+    private boolean putMessage(final MessageExtBrokerInner msgInner, final long commitLogOffset) {
+        PutMessageResult putMessageResult = this.defaultMessageStore.putMessage(msgInner);
+        if (putMessageResult != null && putMessageResult.isOk()) {
+            return true;
+        }
+
+        PutMessageStatus status = putMessageResult == null ? null : putMessageResult.getPutMessageStatus();
+        if (PutMessageStatus.MESSAGE_ILLEGAL == status || PutMessageStatus.PROPERTIES_SIZE_EXCEEDED == status) {
+            log.error("timer message at commitLogOffset {} can not be put, discard it, status {}", commitLogOffset, status);
+            return true;
+        }
+        log.warn("put timer message at commitLogOffset {} failed, try again later, status {}", commitLogOffset, status);
+        return false;
+    }
+
+    private MessageExtBrokerInner messageTimeup(final MessageExt msgExt) {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setBody(msgExt.getBody());
+        msgInner.setFlag(msgExt.getFlag());
+        MessageAccessor.setProperties(msgInner, msgExt.getProperties());
+
+        TopicFilterType topicFilterType = MessageExt.parseTopicFilterType(msgInner.getSysFlag());
+        long tagsCodeValue = MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags());
+        msgInner.setTagsCode(tagsCodeValue);
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgExt.getProperties()));
+
+        msgInner.setSysFlag(msgExt.getSysFlag());
+        msgInner.setBornTimestamp(msgExt.getBornTimestamp());
+        msgInner.setBornHost(msgExt.getBornHost());
+        msgInner.setStoreHost(msgExt.getStoreHost());
+        msgInner.setReconsumeTimes(msgExt.getReconsumeTimes());
+        msgInner.setWaitStoreMsgOK(false);
+        return msgInner;
+    }
+
+    public void start() {
+        this.timerWheelService.start();
+    }
+
+    public void shutdown() {
+        this.timerWheelService.shutdown();
+    }
+
+    public void wakeup() {
+        this.timerWheelService.wakeup();
+    }
+
+    public void destroy() {
+        if (this.checkpointBuffer != null) {
+            MappedFile.clean(this.checkpointBuffer);
+            this.checkpointBuffer = null;
+        }
+        if (this.checkpointFile != null) {
+            try {
+                this.checkpointFile.close();
+            } catch (IOException e) {
+                log.error("close timer wheel checkpoint failed", e);
+            }
+        }
+        this.timerLog.destroy();
+        UtilAll.deleteFile(new File(this.checkpointPath));
+    }
+
+    public long getCurrReadSec() {
+        return currReadSec;
+    }
+
+    public long getEnqueueOffset() {
+        return enqueueOffset;
+    }
+
+    public long getDeliverTimes() {
+        return deliverTimes.get();
+    }
+
+    public long getRollTimes() {
+        return rollTimes.get();
+    }
+
+    class TimerWheelService extends ServiceThread {
+
+        @Override
+        public String getServiceName() {
+            return TimerWheelService.class.getSimpleName();
+        }
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    boolean busy = TimerWheel.this.enqueue();
+                    busy = TimerWheel.this.tick() || busy;
+                    if (System.currentTimeMillis() - TimerWheel.this.lastFlushTime >= TimerWheel.this.messageStoreConfig.getTimerFlushIntervalMs()) {
+                        TimerWheel.this.flush();
+                    }
+                    if (!busy) {
+                        long waitMs = TimerWheel.this.currReadSec * 1000 - System.currentTimeMillis();
+                        this.waitForRunning(Math.max(1, Math.min(100, waitMs)));
+                    }
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(100);
+                }
+            }
+
+            try {
+                TimerWheel.this.flush();
+            } catch (Throwable e) {
+                log.error(this.getServiceName() + " flush on shutdown failed", e);
+            }
+            log.info(this.getServiceName() + " service end");
+        }
+    }
+}
@@ -25,6 +25,9 @@ import com.sun.jna.Pointer;
 public interface LibC extends Library {
     LibC INSTANCE = (LibC) Native.loadLibrary(Platform.isWindows() ? "msvcrt" : "c", LibC.class);
 
+    int MADV_NORMAL = 0;
+    int MADV_RANDOM = 1;
+    int MADV_SEQUENTIAL = 2;
     int MADV_WILLNEED = 3;
     int MADV_DONTNEED = 4;
 
@@ -39,15 +42,25 @@ public interface LibC extends Library {
     /* synchronous memory sync */
     int MS_SYNC = 0x0004;
 
+    int O_RDONLY = 0;
+
     int mlock(Pointer var1, NativeLong var2);
 
     int munlock(Pointer var1, NativeLong var2);
 
     int madvise(Pointer var1, NativeLong var2, int var3);
 
+    int mincore(Pointer addr, NativeLong length, byte[] vec);
+
     Pointer memset(Pointer p, int v, long len);
 
     int mlockall(int flags);
 
     int msync(Pointer p, NativeLong length, int flags);
+
+    int open(String path, int flags);
+
+    int close(int fd);
+
+    NativeLong pread(int fd, Pointer buf, NativeLong count, NativeLong offset);
 }
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.running.RunningStats;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AllocateMappedFileServiceTest extends StoreTestBase {
+    private static final int FILE_SIZE = 64 * 1024;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore(int preAllocateMaxNum) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(FILE_SIZE);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setPreAllocateMappedFileMaxNum(preAllocateMaxNum);
+        messageStoreConfig.setPreAllocateLookAheadTime(60 * 1000);
+        messageStoreConfig.setWarmMapedFileEnable(true);
+        messageStoreConfig.setWarmMappedFileRateLimit(16 * 1024 * 1024);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private int filesInUse() {
+        return (int) (messageStore.getMaxPhyOffset() / FILE_SIZE) + 1;
+    }
+
+    private int putUntilRollover(int rollovers) {
+        int before = filesInUse();
+        while (filesInUse() < before + rollovers) {
+            assertThat(messageStore.putMessage(buildMessage()).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        return filesInUse();
+    }
+
+    private int waitForFilesOnDisk(int expected) throws Exception {
+        File commitLogDir = new File(baseDir + File.separator + "commitlog");
+        long deadline = System.currentTimeMillis() + 5 * 1000;
+        while (commitLogDir.list().length < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return commitLogDir.list().length;
+    }
+
+    @Test
+    public void testLookAheadFollowsFillRate() throws Exception {
+        messageStore = createMessageStore(4);
+
+        // commit log files fill up within milliseconds, a minute of look ahead asks for every file allowed
+        int inUse = putUntilRollover(3);
+        assertThat(waitForFilesOnDisk(inUse + 4)).isEqualTo(inUse + 4);
+
+        // the next rollover finds its file allocated already
+        AllocateMappedFileService allocateMappedFileService = messageStore.getAllocateMappedFileService();
+        long noStallTimes = allocateMappedFileService.getRolloverStallTimes(0);
+        inUse = putUntilRollover(1);
+        assertThat(allocateMappedFileService.getRolloverStallTimes(0)).isEqualTo(noStallTimes + 1);
+        assertThat(waitForFilesOnDisk(inUse + 4)).isEqualTo(inUse + 4);
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        allocateMappedFileService.buildRunningStats(stats);
+        assertThat(stats.get(RunningStats.mappedFileRolloverStall.name())).startsWith("[<=0ms]:");
+    }
+
+    @Test
+    public void testLookAheadAtLeastOneFile() throws Exception {
+        messageStore = createMessageStore(1);
+
+        int inUse = putUntilRollover(3);
+        assertThat(waitForFilesOnDisk(inUse + 1)).isEqualTo(inUse + 1);
+        Thread.sleep(200);
+        assertThat(new File(baseDir + File.separator + "commitlog").list().length).isEqualTo(inUse + 1);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BacklogReaderTest extends StoreTestBase {
+    private static final int SLAB_NUM = 2;
+    private static final int MSG_NUM = 64;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore(boolean directIo) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        // every message counts as far behind the tail
+        messageStoreConfig.setAccessMessageInMemoryMaxRatio(0);
+        messageStoreConfig.setBacklogReadEnable(true);
+        messageStoreConfig.setBacklogReadDirectIo(directIo);
+        messageStoreConfig.setBacklogReadSlabNum(SLAB_NUM);
+        messageStoreConfig.setBacklogReadSlabSize(1024 * 64);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private void putMessages() throws Exception {
+        for (int i = 0; i < MSG_NUM; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setQueueId(0);
+            msg.setKeys("BacklogKey" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void checkMessages() {
+        BacklogReader backlogReader = messageStore.getBacklogReader();
+        long offset = 0;
+        while (offset < MSG_NUM) {
+            GetMessageResult result = messageStore.getMessage("group", "StoreTest", 0, offset, 32, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            assertThat(result.getMessageCount()).isGreaterThan(0);
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt messageExt = MessageDecoder.decode(byteBuffer, true, false);
+                assertThat(messageExt.getQueueOffset()).isEqualTo(offset);
+                assertThat(messageExt.getKeys()).isEqualTo("BacklogKey" + offset);
+                offset++;
+            }
+            // the slab stays in use until the messages read into it are released
+            assertThat(backlogReader.getAvailableSlabNum()).isEqualTo(SLAB_NUM - 1);
+            result.release();
+            assertThat(backlogReader.getAvailableSlabNum()).isEqualTo(SLAB_NUM);
+        }
+        assertThat(offset).isEqualTo(MSG_NUM);
+    }
+
+    @Test
+    public void testPositionalRead() throws Exception {
+        messageStore = createMessageStore(false);
+        putMessages();
+
+        checkMessages();
+        assertThat(messageStore.getBacklogReader().getReadTimes()).isEqualTo(MSG_NUM);
+        assertThat(messageStore.getBacklogReader().getDirectReadTimes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDirectIoRead() throws Exception {
+        messageStore = createMessageStore(true);
+        putMessages();
+
+        // file systems without O_DIRECT support fall back to positional reads and must still serve everything
+        checkMessages();
+        BacklogReader backlogReader = messageStore.getBacklogReader();
+        assertThat(backlogReader.getReadTimes()).isEqualTo(MSG_NUM);
+        if (backlogReader.isDirectIoAvailable()) {
+            assertThat(backlogReader.getDirectReadTimes()).isEqualTo(MSG_NUM);
+        }
+    }
+
+    @Test
+    public void testFallbackWhenPoolExhausted() throws Exception {
+        messageStore = createMessageStore(false);
+        putMessages();
+
+        GetMessageResult first = messageStore.getMessage("group", "StoreTest", 0, 0, 4, null);
+        GetMessageResult second = messageStore.getMessage("group", "StoreTest", 0, 4, 4, null);
+        assertThat(messageStore.getBacklogReader().getAvailableSlabNum()).isEqualTo(0);
+
+        GetMessageResult third = messageStore.getMessage("group", "StoreTest", 0, 8, 4, null);
+        assertThat(third.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(MessageDecoder.decode(third.getMessageBufferList().get(0), true, false).getKeys()).isEqualTo("BacklogKey8");
+        assertThat(messageStore.getBacklogReader().getReadTimes()).isEqualTo(8);
+
+        first.release();
+        second.release();
+        third.release();
+        assertThat(messageStore.getBacklogReader().getAvailableSlabNum()).isEqualTo(SLAB_NUM);
+    }
+}
@@ -41,6 +41,7 @@ import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BatchPutMessageTest {
 
@@ -186,6 +187,116 @@ public class BatchPutMessageTest {
 
     }
 
+    @Test
+    public void testPutMessagesInStoreFormat() throws Exception {
+        String topic = "batch-write-topic";
+        int queue = 0;
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Message msg = new Message(topic, "TAG1", "key" + i, ("body" + i).getBytes());
+            messages.add(msg);
+        }
+        long bornTimestamp = System.currentTimeMillis();
+        MessageExtBatch messageExtBatch = buildStoreFormatBatch(messages, topic, queue, bornTimestamp);
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 125));
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 126));
+
+        PutMessageResult putMessageResult = messageStore.putMessages(messageExtBatch);
+        assertThat(putMessageResult.isOk()).isTrue();
+        assertThat(putMessageResult.getAppendMessageResult().getMsgNum()).isEqualTo(10);
+        // the request body itself is appended
+        assertThat(putMessageResult.getAppendMessageResult().getWroteBytes()).isEqualTo(messageExtBatch.getBody().length);
+
+        checkStoredMessages(topic, queue, bornTimestamp, 0);
+
+        messageExtBatch = buildStoreFormatBatch(messages, topic, queue, bornTimestamp);
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 125));
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 126));
+        putMessageResult = messageStore.asyncPutMessages(messageExtBatch).get();
+        assertThat(putMessageResult.isOk()).isTrue();
+        assertThat(putMessageResult.getAppendMessageResult().getLogicsOffset()).isEqualTo(10);
+
+        checkStoredMessages(topic, queue, bornTimestamp, 10);
+    }
+
+    @Test
+    public void testPutIPv6HostMessagesInStoreFormat() throws Exception {
+        String topic = "batch-write-topic";
+        int queue = 0;
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Message msg = new Message(topic, "TAG1", "key" + i, ("body" + i).getBytes());
+            messages.add(msg);
+        }
+        long bornTimestamp = System.currentTimeMillis();
+        MessageExtBatch messageExtBatch = buildStoreFormatBatch(messages, topic, queue, bornTimestamp);
+        messageExtBatch.setStoreHost(new InetSocketAddress("1050:0000:0000:0000:0005:0600:300c:326b", 125));
+        messageExtBatch.setBornHost(new InetSocketAddress("::1", 126));
+
+        // the layout differs from what the producer sent, the messages are encoded again
+        PutMessageResult putMessageResult = messageStore.putMessages(messageExtBatch);
+        assertThat(putMessageResult.isOk()).isTrue();
+        assertThat(messageExtBatch.isStoreFormat()).isFalse();
+
+        checkStoredMessages(topic, queue, bornTimestamp, 0);
+    }
+
+    @Test
+    public void testPutCorruptedMessagesInStoreFormat() throws Exception {
+        String topic = "batch-write-topic";
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message(topic, "TAG1", "key0", "body0".getBytes()));
+        MessageExtBatch messageExtBatch = buildStoreFormatBatch(messages, topic, 0, System.currentTimeMillis());
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 125));
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 126));
+        // flip a byte of the body
+        messageExtBatch.getBody()[MessageDecoder.STORE_FORMAT_BODY_POSITION + 4] ^= 1;
+
+        try {
+            messageStore.putMessages(messageExtBatch);
+            fail("corrupted batch must be rejected");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage()).contains("crc");
+        }
+        assertThat(messageStore.getMaxOffsetInQueue(topic, 0)).isEqualTo(0);
+    }
+
+    private MessageExtBatch buildStoreFormatBatch(List<Message> messages, String topic, int queue, long bornTimestamp) {
+        Map<String, String> batchProp = new HashMap<>(1);
+        batchProp.put("extraKey", "extraValue");
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic(topic);
+        messageExtBatch.setQueueId(queue);
+        messageExtBatch.setBody(MessageDecoder.encodeMessagesInStoreFormat(messages, topic,
+            messageProperties2String(batchProp), bornTimestamp));
+        messageExtBatch.setStoreFormat(true);
+        messageExtBatch.putUserProperty("extraKey", "extraValue");
+        messageExtBatch.setBornTimestamp(bornTimestamp);
+        return messageExtBatch;
+    }
+
+    private void checkStoredMessages(String topic, int queue, long bornTimestamp, long beginOffset) throws Exception {
+        while (((DefaultMessageStore) messageStore).dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        for (long i = 0; i < 10; i++) {
+            GetMessageResult result = messageStore.getMessage("batch_write_group", topic, queue, beginOffset + i, 1, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            MessageExt messageExt = MessageDecoder.decode(result.getMessageBufferList().get(0), true, true);
+            result.release();
+            assertThat(messageExt).isNotNull();
+            assertThat(messageExt.getQueueId()).isEqualTo(queue);
+            assertThat(messageExt.getQueueOffset()).isEqualTo(beginOffset + i);
+            assertThat(messageExt.getBornTimestamp()).isEqualTo(bornTimestamp);
+            assertThat(messageExt.getStoreTimestamp()).isGreaterThanOrEqualTo(bornTimestamp);
+            assertThat(((InetSocketAddress) messageExt.getBornHost()).getPort()).isEqualTo(126);
+            assertThat(new String(messageExt.getBody())).isEqualTo("body" + i);
+            assertThat(messageExt.getKeys()).isEqualTo("key" + i);
+            assertThat(messageExt.getProperty("extraKey")).isEqualTo("extraValue");
+            assertThat(messageStore.lookMessageByOffset(messageExt.getCommitLogOffset()).getQueueOffset()).isEqualTo(beginOffset + i);
+        }
+    }
+
     private int calMsgLength(int bodyLength, int topicLength, int propertiesLength) {
         final int msgLen = 4 //TOTALSIZE
                 + 4 //MAGICCODE
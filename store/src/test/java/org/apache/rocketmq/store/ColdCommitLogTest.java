@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ColdCommitLogTest extends StoreTestBase {
+    private static final int QUEUE_NUM = 4;
+    private static final int MSG_NUM = 300;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        messageStore = createMessageStore();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        return createMessageStore(true);
+    }
+
+    private DefaultMessageStore createMessageStore(boolean allowSameDevice) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        messageStoreConfig.setColdTierEnable(true);
+        messageStoreConfig.setColdTierMigrateAfterHours(0);
+        messageStoreConfig.setColdReadAheadSize(1024 * 16);
+        messageStoreConfig.setColdReadCacheChunkNum(4);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        messageStoreConfig.setStorePathColdCommitLog(baseDir + File.separator + "commitlog_cold");
+        messageStoreConfig.setColdTierAllowSameDevice(allowSameDevice);
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private void checkAllMessages() {
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            assertThat(messageStore.getMaxOffsetInQueue("StoreTest", queueId)).isEqualTo(MSG_NUM / QUEUE_NUM);
+            for (long offset = 0; offset < MSG_NUM / QUEUE_NUM; offset++) {
+                GetMessageResult result = messageStore.getMessage("group", "StoreTest", queueId, offset, 1, null);
+                assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+                ByteBuffer byteBuffer = result.getMessageBufferList().get(0);
+                MessageExt messageExt = MessageDecoder.decode(byteBuffer, true, false);
+                assertThat(messageExt.getQueueOffset()).isEqualTo(offset);
+                assertThat(messageExt.getKeys()).isEqualTo("ColdKey" + (offset * QUEUE_NUM + queueId));
+                result.release();
+            }
+        }
+    }
+
+    private void putMessages() throws Exception {
+        for (int i = 0; i < MSG_NUM; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setQueueId(i % QUEUE_NUM);
+            msg.setKeys("ColdKey" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testReadThroughColdTier() throws Exception {
+        putMessages();
+
+        CommitLog commitLog = messageStore.getCommitLog();
+        for (int i = 0; i < 100 && commitLog.mappedFileQueue.getMappedFiles().size() > 1; i++) {
+            Thread.sleep(100);
+        }
+        // every sealed file moved, only the one being written stays hot
+        assertThat(commitLog.mappedFileQueue.getMappedFiles()).hasSize(1);
+        assertThat(commitLog.getColdCommitLog().getFileNum()).isGreaterThan(2);
+        assertThat(commitLog.getMinOffset()).isEqualTo(0);
+        assertThat(messageStore.getMinPhyOffset()).isEqualTo(0);
+
+        checkAllMessages();
+
+        SelectMappedBufferResult data = commitLog.getData(0);
+        assertThat(data).isNotNull();
+        assertThat(data.getSize()).isGreaterThan(0);
+        assertThat(data.getSize()).isLessThanOrEqualTo(1024 * 16);
+        assertThat(MessageDecoder.decode(data.getByteBuffer(), true, false).getKeys()).isEqualTo("ColdKey0");
+        data.release();
+
+        messageStore.shutdown();
+        messageStore = createMessageStore();
+
+        assertThat(messageStore.getMinPhyOffset()).isEqualTo(0);
+        checkAllMessages();
+    }
+
+    @Test
+    public void testCleanImmediately() throws Exception {
+        putMessages();
+
+        CommitLog commitLog = messageStore.getCommitLog();
+        for (int i = 0; i < 100 && commitLog.mappedFileQueue.getMappedFiles().size() > 1; i++) {
+            Thread.sleep(100);
+        }
+        int coldFileNum = commitLog.getColdCommitLog().getFileNum();
+        assertThat(coldFileNum).isGreaterThan(0);
+
+        // nothing is expired, a full disk still empties the cold tier and goes on with the hot files
+        assertThat(commitLog.deleteExpiredFile(Long.MAX_VALUE / 2, 0, 1000, false)).isEqualTo(0);
+        assertThat(commitLog.deleteExpiredFile(Long.MAX_VALUE / 2, 0, 1000, true)).isEqualTo(coldFileNum);
+        assertThat(commitLog.getColdCommitLog().getFileNum()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRefuseColdTierOnSameDevice() throws Exception {
+        messageStore.shutdown();
+        messageStore.destroy();
+        messageStore = createMessageStore(false);
+        assertThat(messageStore.getCommitLog().getColdCommitLog()).isNull();
+    }
+}
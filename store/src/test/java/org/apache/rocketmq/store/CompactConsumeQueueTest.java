@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactConsumeQueueTest extends StoreTestBase {
+    private static final String COMPACT_TOPIC = "CompactTopic";
+    private static final int QUEUE_NUM = 2;
+    private static final int MSG_NUM = 600;
+
+    private String baseDir;
+    private final ConcurrentMap<String, TopicConfig> topicConfigTable = new ConcurrentHashMap<String, TopicConfig>();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        TopicConfig topicConfig = new TopicConfig(COMPACT_TOPIC);
+        topicConfig.setCompactConsumeQueue(true);
+        topicConfigTable.put(COMPACT_TOPIC, topicConfig);
+        topicConfigTable.put("StoreTest", new TopicConfig("StoreTest"));
+        messageStore = createMessageStore();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        store.setTopicConfigTable(topicConfigTable);
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private void putMessages() throws Exception {
+        for (int i = 0; i < MSG_NUM; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            // interleave a standard topic so physical offsets of a queue are not contiguous
+            msg.setTopic(i % 3 == 0 ? "StoreTest" : COMPACT_TOPIC);
+            msg.setQueueId(i % QUEUE_NUM);
+            msg.setTags(i % 5 == 0 ? "TagA" : "TagB");
+            msg.setKeys("CompactKey" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void checkMessages(int queueId, long maxOffset) {
+        assertThat(messageStore.getMinOffsetInQueue(COMPACT_TOPIC, queueId)).isEqualTo(0);
+        assertThat(messageStore.getMaxOffsetInQueue(COMPACT_TOPIC, queueId)).isEqualTo(maxOffset);
+        for (long offset = 0; offset < maxOffset; offset++) {
+            GetMessageResult result = messageStore.getMessage("group", COMPACT_TOPIC, queueId, offset, 1, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            assertThat(result.getNextBeginOffset()).isEqualTo(offset + 1);
+            MessageExt messageExt = MessageDecoder.decode(result.getMessageBufferList().get(0), true, false);
+            assertThat(messageExt.getTopic()).isEqualTo(COMPACT_TOPIC);
+            assertThat(messageExt.getQueueOffset()).isEqualTo(offset);
+            result.release();
+        }
+
+        GetMessageResult result = messageStore.getMessage("group", COMPACT_TOPIC, queueId, 60, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getMessageCount()).isEqualTo((int) Math.min(32, maxOffset - 60));
+        result.release();
+    }
+
+    @Test
+    public void testCompactConsumeQueue() throws Exception {
+        putMessages();
+
+        ConsumeQueue consumeQueue = messageStore.findConsumeQueue(COMPACT_TOPIC, 0);
+        assertThat(consumeQueue).isInstanceOf(CompactConsumeQueue.class);
+        assertThat(messageStore.findConsumeQueue("StoreTest", 0)).isNotInstanceOf(CompactConsumeQueue.class);
+        assertThat(new File(StorePathConfigHelper.getStorePathCompactConsumeQueue(baseDir), COMPACT_TOPIC)).isDirectory();
+
+        // 200 standard units take 4000 bytes, the block encoding needs less than half of that
+        long maxOffset = MSG_NUM / 3;
+        assertThat(consumeQueue.getMappedFileQueue().getMappedFiles()).hasSize(1);
+        assertThat(consumeQueue.getMappedFileQueue().getMaxOffset()).isLessThan(maxOffset * ConsumeQueue.CQ_STORE_UNIT_SIZE / 2);
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            checkMessages(queueId, maxOffset);
+        }
+
+        long storeTime = messageStore.getMessageStoreTimeStamp(COMPACT_TOPIC, 0, 123);
+        long offset = messageStore.getOffsetInQueueByTime(COMPACT_TOPIC, 0, storeTime);
+        assertThat(messageStore.getMessageStoreTimeStamp(COMPACT_TOPIC, 0, offset)).isEqualTo(storeTime);
+
+        messageStore.shutdown();
+        messageStore = createMessageStore();
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            checkMessages(queueId, maxOffset);
+        }
+    }
+
+    @Test
+    public void testCompactFormatChangedAtRuntime() {
+        assertThat(messageStore.findConsumeQueue("StoreTest", 0)).isNotInstanceOf(CompactConsumeQueue.class);
+
+        topicConfigTable.get("StoreTest").setCompactConsumeQueue(true);
+        assertThat(messageStore.findConsumeQueue("StoreTest", 1)).isInstanceOf(CompactConsumeQueue.class);
+        // a queue that already exists keeps its format
+        assertThat(messageStore.findConsumeQueue("StoreTest", 0)).isNotInstanceOf(CompactConsumeQueue.class);
+    }
+
+    @Test
+    public void testTruncateDirtyLogicFiles() throws Exception {
+        putMessages();
+
+        ConsumeQueue consumeQueue = messageStore.findConsumeQueue(COMPACT_TOPIC, 1);
+        SelectMappedBufferResult result = consumeQueue.getIndexBuffer(130);
+        long phyOffset = result.getByteBuffer().getLong();
+        result.release();
+
+        consumeQueue.truncateDirtyLogicFiles(phyOffset);
+        assertThat(consumeQueue.getMaxOffsetInQueue()).isEqualTo(130);
+        assertThat(consumeQueue.getIndexBuffer(130)).isNull();
+        checkMessages(1, 130);
+
+        // the dropped tail is zeroed, so recovering the files again stops at the same place
+        consumeQueue.recover();
+        assertThat(consumeQueue.getMaxOffsetInQueue()).isEqualTo(130);
+        assertThat(consumeQueue.getMaxPhysicOffset()).isLessThanOrEqualTo(phyOffset);
+        checkMessages(1, 130);
+        checkMessages(0, MSG_NUM / 3);
+    }
+}
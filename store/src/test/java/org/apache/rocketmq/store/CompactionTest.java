@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactionTest extends StoreTestBase {
+    private static final String TOPIC = "StoreTest";
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        messageStore = createMessageStore();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setCompactionTopics(TOPIC);
+        messageStoreConfig.setCompactionInterval(Long.MAX_VALUE);
+        messageStoreConfig.setCompactionMinMessages(1);
+        // the compacted view counts as read from disk
+        messageStoreConfig.setMaxTransferCountOnMessageInDisk(32);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private void putMessage(String keys, int value) throws Exception {
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setQueueId(0);
+        msg.setKeys(keys);
+        msg.setBody(String.valueOf(value).getBytes());
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+    }
+
+    private void waitForDispatch() throws Exception {
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void assertCompactedView(long offset, long... expectedOffsets) {
+        GetMessageResult result = messageStore.getMessage("group", TOPIC, 0, offset, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getMessageCount()).isEqualTo(expectedOffsets.length);
+        for (int i = 0; i < expectedOffsets.length; i++) {
+            MessageExt messageExt = MessageDecoder.decode(result.getMessageBufferList().get(i), true, false);
+            assertThat(messageExt.getQueueOffset()).isEqualTo(expectedOffsets[i]);
+            assertThat(new String(messageExt.getBody())).isEqualTo(String.valueOf(expectedOffsets[i]));
+        }
+        result.release();
+    }
+
+    @Test
+    public void testKeepLatestPerKey() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            putMessage("k" + i % 10, i);
+        }
+        putMessage("", 100);
+        waitForDispatch();
+
+        messageStore.getCompactionService().compactAll();
+        CompactedQueue compactedQueue = messageStore.getCompactionService().findCompactedQueue(TOPIC, 0);
+        assertThat(compactedQueue.getCompactedUpTo()).isEqualTo(101);
+        assertThat(compactedQueue.getMessageNum()).isEqualTo(11);
+
+        assertCompactedView(0, 90, 91, 92, 93, 94, 95, 96, 97, 98, 99, 100);
+        assertCompactedView(95, 95, 96, 97, 98, 99, 100);
+        GetMessageResult result = messageStore.getMessage("group", TOPIC, 0, 0, 32, null);
+        assertThat(result.getNextBeginOffset()).isEqualTo(101);
+        assertThat(result.getMinOffset()).isEqualTo(90);
+        assertThat(result.getMaxOffset()).isEqualTo(101);
+        result.release();
+
+        // beyond the compacted view the commit log serves as usual
+        for (int i = 101; i < 106; i++) {
+            putMessage("k" + i % 10, i);
+        }
+        waitForDispatch();
+        result = messageStore.getMessage("group", TOPIC, 0, 101, 32, null);
+        assertThat(result.getMessageCount()).isEqualTo(5);
+        result.release();
+
+        messageStore.getCompactionService().compactAll();
+        assertThat(compactedQueue.getMessageNum()).isEqualTo(11);
+        assertCompactedView(0, 90, 96, 97, 98, 99, 100, 101, 102, 103, 104, 105);
+        assertThat(messageStore.getMinOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+    }
+
+    @Test
+    public void testMaxKeysPerRound() throws Exception {
+        messageStore.getMessageStoreConfig().setCompactionMaxKeysPerRound(3);
+        for (int i = 0; i < 30; i++) {
+            putMessage("k" + i % 10, i);
+        }
+        waitForDispatch();
+
+        // a round stops at the fourth key
+        ConsumeQueue logic = messageStore.findConsumeQueue(TOPIC, 0);
+        CompactedQueue compactedQueue = messageStore.getCompactionService().findOrCreateCompactedQueue(TOPIC, 0);
+        assertThat(compactedQueue.compact(logic, 1)).isTrue();
+        assertThat(compactedQueue.getCompactedUpTo()).isEqualTo(3);
+        assertThat(compactedQueue.getMessageNum()).isEqualTo(3);
+
+        // the rest is folded in round by round, keys seen again replace the ones of the previous generation
+        messageStore.getCompactionService().compactAll();
+        assertThat(compactedQueue.getCompactedUpTo()).isEqualTo(30);
+        assertThat(compactedQueue.getMessageNum()).isEqualTo(10);
+        assertCompactedView(0, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29);
+    }
+
+    @Test
+    public void testReloadCompactedView() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            putMessage("k" + i % 4, i);
+        }
+        waitForDispatch();
+        messageStore.getCompactionService().compactAll();
+        // a second generation, the first one goes
+        for (int i = 20; i < 22; i++) {
+            putMessage("k" + i % 4, i);
+        }
+        waitForDispatch();
+        messageStore.getCompactionService().compactAll();
+        assertThat(new File(baseDir, "compaction/" + TOPIC + "/0").list()).hasSize(1);
+
+        messageStore.shutdown();
+        messageStore = createMessageStore();
+        CompactedQueue compactedQueue = messageStore.getCompactionService().findCompactedQueue(TOPIC, 0);
+        assertThat(compactedQueue.getCompactedUpTo()).isEqualTo(22);
+        assertCompactedView(0, 18, 19, 20, 21);
+    }
+}
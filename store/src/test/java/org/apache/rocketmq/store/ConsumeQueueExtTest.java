@@ -88,6 +88,37 @@ public class ConsumeQueueExtTest {
         }
     }
 
+    @Test
+    public void testPutExpireTimestamp() {
+        ConsumeQueueExt consumeQueueExt = genExt();
+
+        try {
+            ConsumeQueueExt.CqExtUnit expiring = genUnit(true);
+            expiring.setExpireTimestamp(expiring.getMsgStoreTime() + 1000);
+            ConsumeQueueExt.CqExtUnit plain = genUnit(false);
+
+            long expiringAddr = consumeQueueExt.put(expiring);
+            long plainAddr = consumeQueueExt.put(plain);
+            assertThat(expiringAddr).isLessThan(0);
+            assertThat(plainAddr).isLessThan(0);
+
+            ConsumeQueueExt.CqExtUnit getUnit = consumeQueueExt.get(expiringAddr);
+            assertThat(getUnit).isEqualTo(expiring);
+            assertThat(getUnit.getSize()).isEqualTo((short) (unitSizeWithBitMap + 8));
+            assertThat(getUnit.isExpired(expiring.getMsgStoreTime() + 999)).isFalse();
+            assertThat(getUnit.isExpired(expiring.getMsgStoreTime() + 1000)).isTrue();
+
+            // units without an expiry keep the old layout
+            getUnit = consumeQueueExt.get(plainAddr);
+            assertThat(getUnit).isEqualTo(plain);
+            assertThat(getUnit.getSize()).isEqualTo(ConsumeQueueExt.CqExtUnit.MIN_EXT_UNIT_SIZE);
+            assertThat(getUnit.isExpired(Long.MAX_VALUE)).isFalse();
+        } finally {
+            consumeQueueExt.destroy();
+            UtilAll.deleteFile(new File(storePath));
+        }
+    }
+
     @Test
     public void testPut() {
         ConsumeQueueExt consumeQueueExt = genExt();
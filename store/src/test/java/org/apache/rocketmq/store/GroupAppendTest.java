@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+
+public class GroupAppendTest extends StoreTestBase {
+    private static final int THREAD_NUM = 8;
+    private static final int MSG_NUM_PER_THREAD = 200;
+
+    private MessageStoreConfig messageStoreConfig;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        String baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        messageStoreConfig.setEnableGroupAppend(true);
+        messageStoreConfig.setGroupAppendWindowMicros(100);
+        messageStoreConfig.setGroupAppendMaxBytes(1024 * 16);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        messageStore = startMessageStore();
+    }
+
+    private DefaultMessageStore startMessageStore() throws Exception {
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    @Test
+    public void testGroupAppendAcrossFiles() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(THREAD_NUM);
+        final AtomicInteger failed = new AtomicInteger(0);
+        for (int i = 0; i < THREAD_NUM; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<CompletableFuture<PutMessageResult>> futures = new ArrayList<>();
+                        for (int j = 0; j < MSG_NUM_PER_THREAD; j++) {
+                            MessageExtBrokerInner msg = buildMessage();
+                            msg.setQueueId(j % 4);
+                            futures.add(messageStore.asyncPutMessage(msg));
+                        }
+                        for (CompletableFuture<PutMessageResult> future : futures) {
+                            if (future.get().getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+        assertThat(failed.get()).isEqualTo(0);
+
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+
+        int total = 0;
+        for (int queueId = 0; queueId < 4; queueId++) {
+            long maxOffset = messageStore.getMaxOffsetInQueue("StoreTest", queueId);
+            long lastPhyOffset = -1;
+            for (long offset = 0; offset < maxOffset; offset++) {
+                GetMessageResult result = messageStore.getMessage("group", "StoreTest", queueId, offset, 1, null);
+                assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+                ByteBuffer byteBuffer = result.getMessageBufferList().get(0);
+                MessageExt messageExt = MessageDecoder.decode(byteBuffer, true, false);
+                assertThat(messageExt.getQueueOffset()).isEqualTo(offset);
+                assertThat(messageExt.getCommitLogOffset()).isGreaterThan(lastPhyOffset);
+                lastPhyOffset = messageExt.getCommitLogOffset();
+                result.release();
+            }
+            total += maxOffset;
+        }
+        assertThat(total).isEqualTo(THREAD_NUM * MSG_NUM_PER_THREAD);
+
+        List<MappedFile> mappedFiles = new ArrayList<>(messageStore.getCommitLog().mappedFileQueue.getMappedFiles());
+        assertThat(mappedFiles.size()).isGreaterThan(1);
+    }
+
+    @Test
+    public void testFailedAppendLeavesBlankSlot() throws Exception {
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setQueueId(0);
+        assertThat(messageStore.asyncPutMessage(msg).get().getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+
+        List<MappedFile> mappedFiles = messageStore.getCommitLog().mappedFileQueue.getMappedFiles();
+        MappedFile failingFile = spy(mappedFiles.get(mappedFiles.size() - 1));
+        doThrow(new IllegalStateException("write error")).doCallRealMethod()
+            .when(failingFile).writeReserved(anyInt(), any(ByteBuffer.class));
+        mappedFiles.set(mappedFiles.size() - 1, failingFile);
+
+        msg = buildMessage();
+        msg.setQueueId(0);
+        PutMessageResult result = messageStore.asyncPutMessage(msg).get();
+        assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.UNKNOWN_ERROR);
+        assertThat(result.getAppendMessageResult()).isNull();
+        msg = buildMessage();
+        msg.setQueueId(0);
+        result = messageStore.asyncPutMessage(msg).get();
+        assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        // the failed append gave its queue offset back
+        assertThat(result.getAppendMessageResult().getLogicsOffset()).isEqualTo(1);
+        long lastPhyOffset = result.getAppendMessageResult().getWroteOffset();
+
+        // reput skips the blank record in the middle of the file
+        assertQueueReadable(2, lastPhyOffset);
+
+        // so does recovery
+        messageStore.shutdown();
+        messageStore = startMessageStore();
+        assertQueueReadable(2, lastPhyOffset);
+    }
+
+    private void assertQueueReadable(long queueNums, long lastPhyOffset) throws InterruptedException {
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        assertThat(messageStore.getMaxOffsetInQueue("StoreTest", 0)).isEqualTo(queueNums);
+        for (long offset = 0; offset < queueNums; offset++) {
+            GetMessageResult result = messageStore.getMessage("group", "StoreTest", 0, offset, 1, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            MessageExt messageExt = MessageDecoder.decode(result.getMessageBufferList().get(0), true, false);
+            assertThat(messageExt.getQueueOffset()).isEqualTo(offset);
+            if (offset == queueNums - 1) {
+                assertThat(messageExt.getCommitLogOffset()).isEqualTo(lastPhyOffset);
+            }
+            result.release();
+        }
+    }
+}
@@ -21,9 +21,11 @@ import org.apache.rocketmq.common.BrokerConfig;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.running.RunningStats;
 import org.apache.rocketmq.store.config.BrokerRole;
 import org.apache.rocketmq.store.config.FlushDiskType;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.ha.HAService;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
 import org.junit.After;
 import org.junit.Before;
@@ -153,6 +155,81 @@ public class HATest {
         }
     }
 
+    @Test
+    public void testZeroCopyTransferWithInFlightLimit() throws Exception {
+        QUEUE_TOTAL = 1;
+        MessageBody = new byte[1024];
+        // many small batches and a window of a few of them on the wire
+        masterMessageStoreConfig.setHaZeroCopyBatchSize(1024 * 16);
+        masterMessageStoreConfig.setHaMaxInFlightBytes(1024 * 64);
+        for (long i = 0; i < 500; i++) {
+            assertEquals(PutMessageStatus.PUT_OK, messageStore.putMessage(buildMessage()).getPutMessageStatus());
+        }
+        long masterMaxOffset = messageStore.getMaxPhyOffset();
+        assertEquals(masterMaxOffset, slaveMessageStore.getMaxPhyOffset());
+
+        HAService haService = ((DefaultMessageStore) messageStore).getHaService();
+        for (int i = 0; i < 100 && haService.getReplicationLagBytes() != 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, haService.getReplicationLagBytes());
+        assertEquals(0, haService.getInFlightBytes());
+        assertEquals("0", messageStore.getRuntimeInfo().get(RunningStats.haReplicationLagBytes.name()));
+
+        long lastWroteOffset = messageStore.getCommitLogOffsetInQueue("FooBar", 0, messageStore.getMaxOffsetInQueue("FooBar", 0) - 1);
+        MessageExt masterMsg = messageStore.lookMessageByOffset(lastWroteOffset);
+        MessageExt slaveMsg = slaveMessageStore.lookMessageByOffset(lastWroteOffset);
+        assertNotNull(slaveMsg);
+        assertEquals(masterMsg.getMsgId(), slaveMsg.getMsgId());
+        assertTrue(Arrays.equals(masterMsg.getBody(), slaveMsg.getBody()));
+    }
+
+    @Test
+    public void testAckQuorum() throws Exception {
+        QUEUE_TOTAL = 1;
+        MessageBody = StoreMessage.getBytes();
+        masterMessageStoreConfig.setHaAckQuorum(2);
+        // only one slave connected
+        PutMessageResult result = messageStore.asyncPutMessage(buildMessage()).get();
+        assertEquals(PutMessageStatus.SLAVE_NOT_AVAILABLE, result.getPutMessageStatus());
+
+        MessageStoreConfig secondSlaveConfig = new MessageStoreConfig();
+        secondSlaveConfig.setBrokerRole(BrokerRole.SLAVE);
+        secondSlaveConfig.setStorePathRootDir(storePathRootDir + File.separator + "slave2");
+        secondSlaveConfig.setStorePathCommitLog(storePathRootDir + File.separator + "slave2" + File.separator + "commitlog");
+        secondSlaveConfig.setHaListenPort(10944);
+        buildMessageStoreConfig(secondSlaveConfig);
+        MessageStore secondSlaveStore = buildMessageStore(secondSlaveConfig, 2L);
+        assertTrue(secondSlaveStore.load());
+        secondSlaveStore.updateHaMasterAddress("127.0.0.1:10912");
+        secondSlaveStore.start();
+        try {
+            HAService haService = ((DefaultMessageStore) messageStore).getHaService();
+            for (int i = 0; i < 100 && haService.getConnectionCount().get() < 2; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, haService.getConnectionCount().get());
+            // the new slave asks for data with its first heartbeat
+            for (int i = 0; i < 100 && secondSlaveStore.getMaxPhyOffset() < messageStore.getMaxPhyOffset(); i++) {
+                Thread.sleep(100);
+            }
+
+            for (int i = 0; i < 5; i++) {
+                MessageExtBrokerInner msg = buildMessage();
+                result = messageStore.asyncPutMessage(msg).get();
+                assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+                long wroteOffset = result.getAppendMessageResult().getWroteOffset();
+                assertTrue(haService.getQuorumAckOffset() >= wroteOffset + result.getAppendMessageResult().getWroteBytes());
+                // acked by both slaves
+                assertTrue(Arrays.equals(msg.getBody(), slaveMessageStore.lookMessageByOffset(wroteOffset).getBody()));
+                assertTrue(Arrays.equals(msg.getBody(), secondSlaveStore.lookMessageByOffset(wroteOffset).getBody()));
+            }
+        } finally {
+            secondSlaveStore.shutdown();
+            secondSlaveStore.destroy();
+        }
+    }
+
     @After
     public void destroy() throws Exception{
         Thread.sleep(5000L);
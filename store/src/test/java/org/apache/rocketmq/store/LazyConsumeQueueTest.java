@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LazyConsumeQueueTest extends StoreTestBase {
+    private static final String TOPIC = "StoreTest";
+    private static final int QUEUE_NUM = 4;
+    private static final int MSG_NUM_PER_QUEUE = 250;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+    /**
+     * Unload idle queues right after every consume queue lookup, before the caller reads the queue.
+     */
+    private volatile boolean unloadAfterLookup = false;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        messageStore = createMessageStore(false, 1000 * 60);
+        putMessages(MSG_NUM_PER_QUEUE);
+        messageStore.shutdown();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore(boolean lazy, long idleUnmapInterval) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        // 100 units per file
+        messageStoreConfig.setMappedFileSizeConsumeQueue(ConsumeQueue.CQ_STORE_UNIT_SIZE * 100);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setConsumeQueueLazyLoadEnable(lazy);
+        messageStoreConfig.setConsumeQueueIdleUnmapInterval(idleUnmapInterval);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig()) {
+            @Override
+            public ConsumeQueue findConsumeQueue(String topic, int queueId) {
+                ConsumeQueue logic = super.findConsumeQueue(topic, queueId);
+                if (unloadAfterLookup) {
+                    this.getLazyConsumeQueueService().unloadIdleQueues();
+                }
+                return logic;
+            }
+        };
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private void putMessages(int numPerQueue) throws Exception {
+        for (int i = 0; i < numPerQueue * QUEUE_NUM; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setQueueId(i % QUEUE_NUM);
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private ConsumeQueue peekConsumeQueue(int queueId) {
+        return messageStore.getConsumeQueueTable().get(TOPIC).get(queueId);
+    }
+
+    private void assertReadable(int queueId, long offset) {
+        GetMessageResult result = messageStore.getMessage("group", TOPIC, queueId, offset, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        result.release();
+    }
+
+    @Test
+    public void testLoadOnFirstAccess() throws Exception {
+        messageStore = createMessageStore(true, 1000 * 60);
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            ConsumeQueue logic = peekConsumeQueue(queueId);
+            assertThat(logic.isLoaded()).isFalse();
+            assertThat(logic.getMaxOffsetInQueue()).isEqualTo(MSG_NUM_PER_QUEUE);
+            assertThat(logic.getMappedFileQueue().getMappedFiles()).isEmpty();
+        }
+
+        assertReadable(0, 120);
+        assertThat(peekConsumeQueue(0).isLoaded()).isTrue();
+        assertThat(peekConsumeQueue(0).getMappedFileQueue().getMappedFiles()).hasSize(3);
+        assertThat(peekConsumeQueue(1).isLoaded()).isFalse();
+
+        // writing goes on where the unloaded queues ended
+        putMessages(10);
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            assertThat(peekConsumeQueue(queueId).isLoaded()).isTrue();
+            assertThat(messageStore.getMaxOffsetInQueue(TOPIC, queueId)).isEqualTo(MSG_NUM_PER_QUEUE + 10);
+            assertReadable(queueId, MSG_NUM_PER_QUEUE + 5);
+        }
+    }
+
+    @Test
+    public void testUnmapIdleQueues() throws Exception {
+        messageStore = createMessageStore(true, 500);
+        assertReadable(2, 200);
+        ConsumeQueue logic = peekConsumeQueue(2);
+        assertThat(logic.isLoaded()).isTrue();
+
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while ((logic.isLoaded() || !logic.getMappedFileQueue().getMappedFiles().isEmpty())
+            && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(logic.isLoaded()).isFalse();
+        assertThat(logic.getMappedFileQueue().getMappedFiles()).isEmpty();
+        assertThat(logic.getMaxOffsetInQueue()).isEqualTo(MSG_NUM_PER_QUEUE);
+
+        // mapped again on access
+        assertReadable(2, 10);
+        assertThat(logic.isLoaded()).isTrue();
+    }
+
+    @Test
+    public void testUnmapLeastRecentlyUsedOverCap() throws Exception {
+        messageStore = createMessageStore(true, 1000 * 60);
+        messageStore.getMessageStoreConfig().setMaxMappedConsumeQueueFiles(6);
+        LazyConsumeQueueService lazyConsumeQueueService = messageStore.getLazyConsumeQueueService();
+        lazyConsumeQueueService.shutdown();
+
+        for (int queueId = 0; queueId < 3; queueId++) {
+            assertReadable(queueId, 0);
+            Thread.sleep(50);
+        }
+        // the queues touched within the last second are spared
+        Thread.sleep(1000);
+        assertReadable(2, 0);
+        lazyConsumeQueueService.unloadIdleQueues();
+
+        assertThat(peekConsumeQueue(0).isLoaded()).isFalse();
+        assertThat(peekConsumeQueue(1).isLoaded()).isTrue();
+        assertThat(peekConsumeQueue(2).isLoaded()).isTrue();
+        assertThat(lazyConsumeQueueService.getMappedFileNums()).isEqualTo(6);
+    }
+
+    @Test
+    public void testSkipPinnedQueue() throws Exception {
+        messageStore = createMessageStore(true, 0);
+        LazyConsumeQueueService lazyConsumeQueueService = messageStore.getLazyConsumeQueueService();
+        lazyConsumeQueueService.shutdown();
+
+        ConsumeQueue logic = messageStore.findConsumeQueue(TOPIC, 1);
+        logic.pin();
+        lazyConsumeQueueService.unloadIdleQueues();
+        assertThat(logic.isLoaded()).isTrue();
+        assertThat(logic.getMappedFileQueue().getMappedFiles()).hasSize(3);
+
+        logic.unpin();
+        lazyConsumeQueueService.unloadIdleQueues();
+        assertThat(logic.isLoaded()).isFalse();
+    }
+
+    @Test
+    public void testPullRacingUnload() throws Exception {
+        messageStore = createMessageStore(true, 0);
+        LazyConsumeQueueService lazyConsumeQueueService = messageStore.getLazyConsumeQueueService();
+        lazyConsumeQueueService.shutdown();
+
+        // an unload between the lookup and the read would roll the pull over to the next file
+        unloadAfterLookup = true;
+        for (int i = 0; i < 10; i++) {
+            GetMessageResult result = messageStore.getMessage("group", TOPIC, 3, 90, 32, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            assertThat(result.getNextBeginOffset()).isEqualTo(100);
+            result.release();
+        }
+        assertThat(lazyConsumeQueueService.getUnloadTimes()).isGreaterThanOrEqualTo(10);
+    }
+
+    @Test
+    public void testOffsetByTimeRacingUnload() throws Exception {
+        messageStore = createMessageStore(true, 0);
+        LazyConsumeQueueService lazyConsumeQueueService = messageStore.getLazyConsumeQueueService();
+        lazyConsumeQueueService.shutdown();
+
+        long storeTime = messageStore.getMessageStoreTimeStamp(TOPIC, 3, 150);
+        long offset = messageStore.getOffsetInQueueByTime(TOPIC, 3, storeTime);
+        assertThat(offset).isGreaterThan(0);
+
+        // searched on an unloaded queue the offset would fall back to 0
+        unloadAfterLookup = true;
+        assertThat(messageStore.getOffsetInQueueByTime(TOPIC, 3, storeTime)).isEqualTo(offset);
+        assertThat(lazyConsumeQueueService.getUnloadTimes()).isGreaterThan(0);
+    }
+}
@@ -52,6 +52,30 @@ public class MappedFileTest {
         assertThat(mappedFile.destroy(1000)).isTrue();
     }
 
+    @Test
+    public void testPublishTimesOutBehindUnpublishedSlot() throws IOException {
+        MappedFile mappedFile = new MappedFile("target/unit_test_store/MappedFileTest/001", 1024 * 64);
+        int first = mappedFile.reserve(16, 8);
+        int second = mappedFile.reserve(16, 8);
+        assertThat(first).isEqualTo(0);
+        assertThat(second).isEqualTo(16);
+
+        // the writer of the first slot never publishes it
+        long begin = System.currentTimeMillis();
+        assertThat(mappedFile.publish(second, 16, 0)).isFalse();
+        assertThat(System.currentTimeMillis() - begin).isGreaterThanOrEqualTo(MappedFile.PUBLISH_WAIT_TIMEOUT_MILLIS);
+        assertThat(mappedFile.getWrotePosition()).isEqualTo(0);
+        assertThat(mappedFile.awaitPublished()).isFalse();
+
+        assertThat(mappedFile.publish(first, 16, 0)).isTrue();
+        assertThat(mappedFile.publish(second, 16, 0)).isTrue();
+        assertThat(mappedFile.awaitPublished()).isTrue();
+        assertThat(mappedFile.getWrotePosition()).isEqualTo(32);
+
+        mappedFile.shutdown(1000);
+        assertThat(mappedFile.destroy(1000)).isTrue();
+    }
+
     @After
     public void destory() {
         File file = new File("target/unit_test_store");
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.stats.StatsItem;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageTtlTest extends StoreTestBase {
+    private static final String TOPIC = "StoreTest";
+    private static final String GROUP = "group";
+
+    private String baseDir;
+    private BrokerStatsManager brokerStatsManager;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        brokerStatsManager = new BrokerStatsManager("simpleTest");
+    }
+
+    @After
+    public void destroy() {
+        if (messageStore != null) {
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+        brokerStatsManager.shutdown();
+    }
+
+    private DefaultMessageStore createMessageStore(boolean consumeQueueExt) throws Exception {
+        return createMessageStore(consumeQueueExt, true);
+    }
+
+    private DefaultMessageStore createMessageStore(boolean consumeQueueExt, boolean ttlEnable) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setMessageTtlEnable(ttlEnable);
+        messageStoreConfig.setEnableConsumeQueueExt(consumeQueueExt);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, brokerStatsManager,
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private void putMessage(String ttl, int value) {
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setQueueId(0);
+        msg.setBody(String.valueOf(value).getBytes());
+        if (ttl != null) {
+            MessageAccessor.putProperty(msg, MessageConst.PROPERTY_MESSAGE_TTL, ttl);
+        }
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+    }
+
+    private void putMessages() throws Exception {
+        putMessage("200", 0);
+        putMessage(null, 1);
+        putMessage("3600000", 2);
+        putMessage("200", 3);
+        putMessage("not a number", 4);
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(300);
+    }
+
+    private void assertExpiredSkipped() throws Exception {
+        putMessages();
+        GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, 0, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getNextBeginOffset()).isEqualTo(5);
+        assertThat(result.getMessageCount()).isEqualTo(3);
+        int[] expected = {1, 2, 4};
+        for (int i = 0; i < expected.length; i++) {
+            MessageExt messageExt = MessageDecoder.decode(result.getMessageBufferList().get(i), true, false);
+            assertThat(new String(messageExt.getBody())).isEqualTo(String.valueOf(expected[i]));
+        }
+        result.release();
+
+        StatsItem expired = brokerStatsManager.getStatsItem(BrokerStatsManager.GROUP_GET_EXPIRED_NUMS,
+            brokerStatsManager.buildStatsKey(TOPIC, GROUP));
+        assertThat(expired.getValue().get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSkipExpiredByConsumeQueueExt() throws Exception {
+        messageStore = createMessageStore(true);
+        assertExpiredSkipped();
+    }
+
+    private void assertNothingSkippedOnGet() {
+        GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, 0, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getMessageCount()).isEqualTo(5);
+        result.release();
+    }
+
+    @Test
+    public void testKeepExpiredWithoutConsumeQueueExt() throws Exception {
+        // the expiry is only known from the ext unit, the commit log is not read for it
+        messageStore = createMessageStore(false);
+        putMessages();
+        assertNothingSkippedOnGet();
+    }
+
+    @Test
+    public void testKeepExpiredWithoutExpireTimestampInExt() throws Exception {
+        // ext units written while the TTL was disabled carry no expire timestamp
+        messageStore = createMessageStore(true, false);
+        putMessages();
+        messageStore.shutdown();
+
+        messageStore = createMessageStore(true, true);
+        assertNothingSkippedOnGet();
+    }
+
+    @Test
+    public void testKeepExpiredWhenTtlDisabled() throws Exception {
+        messageStore = createMessageStore(true, false);
+        putMessages();
+        assertNothingSkippedOnGet();
+    }
+
+    @Test
+    public void testFilterByExpireTimestamp() {
+        ConsumeQueueExt.CqExtUnit expiredUnit = new ConsumeQueueExt.CqExtUnit(1L, System.currentTimeMillis() - 1000, null);
+        expiredUnit.setExpireTimestamp(System.currentTimeMillis() - 1);
+        ConsumeQueueExt.CqExtUnit liveUnit = new ConsumeQueueExt.CqExtUnit(1L, System.currentTimeMillis(), null);
+        liveUnit.setExpireTimestamp(System.currentTimeMillis() + 3600 * 1000);
+
+        MessageFilter ttlFilter = new DefaultMessageFilter(null, true);
+        assertThat(ttlFilter.isMatchedByConsumeQueue(1L, expiredUnit)).isFalse();
+        assertThat(ttlFilter.isMatchedByConsumeQueue(1L, liveUnit)).isTrue();
+        assertThat(ttlFilter.isMatchedByConsumeQueue(1L, null)).isTrue();
+        assertThat(new DefaultMessageFilter(null).isMatchedByConsumeQueue(1L, expiredUnit)).isTrue();
+    }
+}
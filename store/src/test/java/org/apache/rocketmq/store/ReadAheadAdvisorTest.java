@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReadAheadAdvisorTest extends StoreTestBase {
+    private static final int MSG_NUM = 100;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        // every read counts as a catch up read
+        messageStoreConfig.setAccessMessageInMemoryMaxRatio(0);
+        messageStoreConfig.setAdaptiveReadAheadEnable(true);
+        messageStoreConfig.setAdaptiveReadAheadSize(1024 * 16);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    @Test
+    public void testSequentialCatchUpRead() throws Exception {
+        for (int i = 0; i < MSG_NUM; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setQueueId(0);
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+
+        long offset = 0;
+        int reads = 0;
+        while (offset < MSG_NUM) {
+            GetMessageResult result = messageStore.getMessage("group", "StoreTest", 0, offset, 32, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            offset = result.getNextBeginOffset();
+            result.release();
+            reads++;
+        }
+        assertThat(reads).isGreaterThan(3);
+
+        // the first read and the first repeated one only learn the pattern
+        ReadAheadAdvisor readAheadAdvisor = messageStore.getReadAheadAdvisor();
+        assertThat(readAheadAdvisor.getAdviseTimes()).isEqualTo(reads - 2);
+        StoreStatsService storeStatsService = messageStore.getStoreStatsService();
+        assertThat(storeStatsService.getGetMessageHitMemoryCount().get() + storeStatsService.getGetMessageHitDiskCount().get())
+            .isEqualTo(MSG_NUM);
+
+        // a random jump starts over
+        GetMessageResult result = messageStore.getMessage("group", "StoreTest", 0, 10, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        result.release();
+        assertThat(readAheadAdvisor.getAdviseTimes()).isEqualTo(reads - 2);
+    }
+}
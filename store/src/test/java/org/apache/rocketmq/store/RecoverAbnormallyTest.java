@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecoverAbnormallyTest extends StoreTestBase {
+    private static final String TOPIC = "StoreTest";
+    private static final int QUEUE_NUM = 4;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        messageStore = createMessageStore();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(64 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setRecoverThreadNum(4);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    @Test
+    public void testRecoverWithSealedChecksums() throws Exception {
+        int total = 1000;
+        for (int i = 0; i < total; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setQueueId(i % QUEUE_NUM);
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        long maxPhyOffset = messageStore.getMaxPhyOffset();
+        messageStore.shutdown();
+
+        // every full file got sealed
+        SealedFileChecksums checksums = messageStore.getCommitLog().getSealedFileChecksums();
+        long fileSize = messageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        assertThat(maxPhyOffset / fileSize).isGreaterThan(2);
+        for (long offset = 0; offset + fileSize <= maxPhyOffset; offset += fileSize) {
+            assertThat(checksums.getChecksum(offset)).isNotNull();
+        }
+        assertThat(messageStore.getStoreCheckpoint().getPhysicMsgOffset()).isEqualTo(maxPhyOffset);
+
+        // pretend the broker crashed before any consume queue was flushed, recovery has to replay every file
+        File abortFile = new File(StorePathConfigHelper.getAbortFile(baseDir));
+        assertThat(abortFile.createNewFile()).isTrue();
+        StoreTestBase.deleteFile(StorePathConfigHelper.getStorePathConsumeQueue(baseDir));
+        StoreCheckpoint storeCheckpoint = new StoreCheckpoint(StorePathConfigHelper.getStoreCheckpoint(baseDir));
+        storeCheckpoint.setLogicsMsgOffset(0);
+        storeCheckpoint.flush();
+        storeCheckpoint.shutdown();
+
+        messageStore = createMessageStore();
+        assertThat(messageStore.getMaxPhyOffset()).isEqualTo(maxPhyOffset);
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            assertThat(messageStore.getMaxOffsetInQueue(TOPIC, queueId)).isEqualTo(total / QUEUE_NUM);
+        }
+        GetMessageResult result = messageStore.getMessage("group", TOPIC, 1, total / QUEUE_NUM - 1, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getMessageCount()).isEqualTo(1);
+        result.release();
+    }
+}
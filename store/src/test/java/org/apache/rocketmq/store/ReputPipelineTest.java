@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReputPipelineTest extends StoreTestBase {
+    private static final int QUEUE_NUM = 8;
+    private static final int MSG_NUM = 400;
+
+    private final AtomicInteger arrivedNum = new AtomicInteger(0);
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        String baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.ASYNC_FLUSH);
+        messageStoreConfig.setEnableReputPipeline(true);
+        messageStoreConfig.setReputQueueDispatchThreadNum(3);
+        messageStoreConfig.setReputDispatchQueueCapacity(16);
+        messageStoreConfig.setFlushConsumeQueueThoroughInterval(0);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                    arrivedNum.incrementAndGet();
+                }
+            }, new BrokerConfig());
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    @Test
+    public void testPipelinedDispatch() throws Exception {
+        long lastStoreTimestamp = 0;
+        for (int i = 0; i < MSG_NUM; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setQueueId(i % QUEUE_NUM);
+            msg.setKeys("PipelineKey" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            PutMessageResult putMessageResult = messageStore.putMessage(msg);
+            assertThat(putMessageResult.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+            lastStoreTimestamp = putMessageResult.getAppendMessageResult().getStoreTimestamp();
+        }
+
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        assertThat(arrivedNum.get()).isEqualTo(MSG_NUM);
+
+        // the logics checkpoint follows the pipeline watermark, which reaches the last message once all is dispatched
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messageStore.getStoreCheckpoint().getLogicsMsgTimestamp() != lastStoreTimestamp
+            && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(messageStore.getStoreCheckpoint().getLogicsMsgTimestamp()).isEqualTo(lastStoreTimestamp);
+
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            assertThat(messageStore.getMaxOffsetInQueue("StoreTest", queueId)).isEqualTo(MSG_NUM / QUEUE_NUM);
+            long lastPhyOffset = -1;
+            for (long offset = 0; offset < MSG_NUM / QUEUE_NUM; offset++) {
+                GetMessageResult result = messageStore.getMessage("group", "StoreTest", queueId, offset, 1, null);
+                assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+                ByteBuffer byteBuffer = result.getMessageBufferList().get(0);
+                MessageExt messageExt = MessageDecoder.decode(byteBuffer, true, false);
+                assertThat(messageExt.getQueueOffset()).isEqualTo(offset);
+                assertThat(messageExt.getCommitLogOffset()).isGreaterThan(lastPhyOffset);
+                lastPhyOffset = messageExt.getCommitLogOffset();
+                result.release();
+            }
+        }
+
+        for (int i = 0; i < MSG_NUM; i += 37) {
+            QueryMessageResult result = messageStore.queryMessage("StoreTest", "PipelineKey" + i, 10, 0, Long.MAX_VALUE);
+            assertThat(result.getMessageBufferList()).hasSize(1);
+            result.release();
+        }
+    }
+}
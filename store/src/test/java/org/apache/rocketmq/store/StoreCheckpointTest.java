@@ -47,6 +47,23 @@ public class StoreCheckpointTest {
         assertThat(storeCheckpoint.getLogicsMsgTimestamp()).isEqualTo(logicsMsgTimestamp);
     }
 
+    @Test
+    public void testWriteAndReadOffset() throws IOException {
+        StoreCheckpoint storeCheckpoint = new StoreCheckpoint("target/checkpoint_test/0001");
+        assertThat(storeCheckpoint.getMinOffset()).isEqualTo(-1);
+        storeCheckpoint.setPhysicMsgOffset(4096);
+        assertThat(storeCheckpoint.getMinOffset()).isEqualTo(-1);
+        storeCheckpoint.setLogicsMsgOffset(1024);
+        storeCheckpoint.flush();
+        storeCheckpoint.shutdown();
+
+        storeCheckpoint = new StoreCheckpoint("target/checkpoint_test/0001");
+        assertThat(storeCheckpoint.getPhysicMsgOffset()).isEqualTo(4096);
+        assertThat(storeCheckpoint.getLogicsMsgOffset()).isEqualTo(1024);
+        assertThat(storeCheckpoint.getMinOffset()).isEqualTo(1024);
+        storeCheckpoint.shutdown();
+    }
+
     @After
     public void destory() {
         File file = new File("target/checkpoint_test");
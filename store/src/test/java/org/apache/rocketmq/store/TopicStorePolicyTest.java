@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.TopicFlushType;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.topic.TopicValidator;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TopicStorePolicyTest extends StoreTestBase {
+    private static final String SYNC_TOPIC = "SyncTopic";
+    private static final String ASYNC_TOPIC = "AsyncTopic";
+    private static final String SHORT_TOPIC = "ShortTopic";
+    private static final String LONG_TOPIC = "LongTopic";
+    private static final int MSG_NUM = 120;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+    private final ConcurrentMap<String, TopicConfig> topicConfigTable = new ConcurrentHashMap<String, TopicConfig>();
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+
+        TopicConfig syncTopic = new TopicConfig(SYNC_TOPIC);
+        syncTopic.setFlushType(TopicFlushType.SYNC_FLUSH);
+        topicConfigTable.put(SYNC_TOPIC, syncTopic);
+        TopicConfig asyncTopic = new TopicConfig(ASYNC_TOPIC);
+        asyncTopic.setFlushType(TopicFlushType.ASYNC_FLUSH);
+        topicConfigTable.put(ASYNC_TOPIC, asyncTopic);
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore(FlushDiskType flushDiskType) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(ConsumeQueue.CQ_STORE_UNIT_SIZE * 50);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(flushDiskType);
+        // keep the periodic flush out of the way
+        messageStoreConfig.setFlushIntervalCommitLog(1000 * 60);
+        messageStoreConfig.setFlushCommitLogThoroughInterval(1000 * 60);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        store.setTopicConfigTable(topicConfigTable);
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private PutMessageResult putMessage(String topic) {
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setTopic(topic);
+        msg.setQueueId(0);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        PutMessageResult result = messageStore.putMessage(msg);
+        assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        return result;
+    }
+
+    @Test
+    public void testTopicFlushType() throws Exception {
+        messageStore = createMessageStore(FlushDiskType.ASYNC_FLUSH);
+        CommitLog commitLog = messageStore.getCommitLog();
+
+        MessageExtBrokerInner msg = buildMessage();
+        assertThat(commitLog.isSyncFlush(msg)).isFalse();
+        msg.setTopic(SYNC_TOPIC);
+        assertThat(commitLog.isSyncFlush(msg)).isTrue();
+        msg.setTopic(ASYNC_TOPIC);
+        assertThat(commitLog.isSyncFlush(msg)).isFalse();
+
+        // a delayed message is stored under the schedule topic but flushed like its real topic
+        msg.setTopic(TopicValidator.RMQ_SYS_SCHEDULE_TOPIC);
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, SYNC_TOPIC);
+        assertThat(commitLog.isSyncFlush(msg)).isTrue();
+
+        putMessage("StoreTest");
+        PutMessageResult result = putMessage(SYNC_TOPIC);
+        AppendMessageResult appendResult = result.getAppendMessageResult();
+        // the sync topic waited for the fsync, taking everything written before it along
+        assertThat(commitLog.mappedFileQueue.getFlushedWhere()).isGreaterThanOrEqualTo(appendResult.getWroteOffset() + appendResult.getWroteBytes());
+
+        result = putMessage(ASYNC_TOPIC);
+        assertThat(commitLog.mappedFileQueue.getFlushedWhere()).isLessThanOrEqualTo(result.getAppendMessageResult().getWroteOffset());
+    }
+
+    @Test
+    public void testAsyncTopicOnSyncBroker() throws Exception {
+        messageStore = createMessageStore(FlushDiskType.SYNC_FLUSH);
+        CommitLog commitLog = messageStore.getCommitLog();
+
+        MessageExtBrokerInner msg = buildMessage();
+        assertThat(commitLog.isSyncFlush(msg)).isTrue();
+        msg.setTopic(ASYNC_TOPIC);
+        assertThat(commitLog.isSyncFlush(msg)).isFalse();
+
+        putMessage(ASYNC_TOPIC);
+        PutMessageResult result = putMessage(SYNC_TOPIC);
+        AppendMessageResult appendResult = result.getAppendMessageResult();
+        assertThat(commitLog.mappedFileQueue.getFlushedWhere()).isGreaterThanOrEqualTo(appendResult.getWroteOffset() + appendResult.getWroteBytes());
+    }
+
+    @Test
+    public void testTopicRetention() throws Exception {
+        TopicConfig shortTopic = new TopicConfig(SHORT_TOPIC);
+        shortTopic.setFileReservedTime(0);
+        topicConfigTable.put(SHORT_TOPIC, shortTopic);
+        messageStore = createMessageStore(FlushDiskType.ASYNC_FLUSH);
+        assertThat(messageStore.getCommitLogReservedTime()).isEqualTo(messageStore.getMessageStoreConfig().getFileReservedTime());
+
+        for (int i = 0; i < MSG_NUM; i++) {
+            putMessage(SHORT_TOPIC);
+            putMessage("StoreTest");
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(10);
+
+        ConsumeQueue consumeQueue = messageStore.findConsumeQueue(SHORT_TOPIC, 0);
+        assertThat(consumeQueue.getMappedFileQueue().getMappedFiles()).hasSize(3);
+        getCleanConsumeQueueService().run();
+
+        // everything expired, only the last message of the queue is kept
+        assertThat(consumeQueue.getMappedFileQueue().getMappedFiles()).hasSize(1);
+        assertThat(messageStore.getMinOffsetInQueue(SHORT_TOPIC, 0)).isEqualTo(MSG_NUM - 1);
+        GetMessageResult result = messageStore.getMessage("group", SHORT_TOPIC, 0, 0, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.OFFSET_TOO_SMALL);
+        assertThat(result.getNextBeginOffset()).isEqualTo(MSG_NUM - 1);
+        result = messageStore.getMessage("group", SHORT_TOPIC, 0, MSG_NUM - 1, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        result.release();
+
+        // topics following the broker retention are untouched
+        assertThat(messageStore.getMinOffsetInQueue("StoreTest", 0)).isEqualTo(0);
+
+        TopicConfig longTopic = new TopicConfig(LONG_TOPIC);
+        longTopic.setFileReservedTime(messageStore.getMessageStoreConfig().getFileReservedTime() + 24);
+        topicConfigTable.put(LONG_TOPIC, longTopic);
+        assertThat(messageStore.getCommitLogReservedTime()).isEqualTo(longTopic.getFileReservedTime());
+    }
+
+    private DefaultMessageStore.CleanConsumeQueueService getCleanConsumeQueueService() throws Exception {
+        Field serviceField = messageStore.getClass().getDeclaredField("cleanConsumeQueueService");
+        serviceField.setAccessible(true);
+        return (DefaultMessageStore.CleanConsumeQueueService) serviceField.get(messageStore);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransientStorePoolTest {
+    private static final int FILE_SIZE = 64 * 1024;
+
+    private MessageStoreConfig messageStoreConfig;
+    private TransientStorePool transientStorePool;
+
+    @Before
+    public void init() {
+        messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setTransientStorePoolEnable(true);
+        messageStoreConfig.setMappedFileSizeCommitLog(FILE_SIZE);
+        messageStoreConfig.setTransientStorePoolSize(2);
+        messageStoreConfig.setTransientStorePoolMaxSize(4);
+        // pinning falls back to plain direct buffers where libnuma is missing
+        messageStoreConfig.setTransientStorePoolNumaNodes("0");
+        transientStorePool = new TransientStorePool(messageStoreConfig);
+        transientStorePool.init();
+    }
+
+    @After
+    public void destroy() {
+        transientStorePool.destroy();
+    }
+
+    @Test
+    public void testGrowOnBorrowWithinBounds() throws Exception {
+        assertThat(transientStorePool.getAllocatedBufferNums()).isEqualTo(2);
+        assertThat(transientStorePool.availableBufferNums()).isEqualTo(4);
+
+        List<ByteBuffer> borrowed = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer byteBuffer = transientStorePool.borrowBuffer();
+            assertThat(byteBuffer).isNotNull();
+            assertThat(byteBuffer.capacity()).isEqualTo(FILE_SIZE);
+            borrowed.add(byteBuffer);
+        }
+        assertThat(transientStorePool.getAllocatedBufferNums()).isEqualTo(4);
+        assertThat(transientStorePool.getBorrowMissTimes()).isEqualTo(2);
+        assertThat(transientStorePool.availableBufferNums()).isEqualTo(0);
+
+        messageStoreConfig.setTransientStorePoolBorrowTimeout(100);
+        assertThat(transientStorePool.borrowBuffer()).isNull();
+        assertThat(transientStorePool.getBorrowWaitTimeMs()).isGreaterThanOrEqualTo(100);
+
+        // a waiting borrower gets the next buffer returned
+        messageStoreConfig.setTransientStorePoolBorrowTimeout(5000);
+        final ByteBuffer returned = borrowed.remove(0);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                transientStorePool.returnBuffer(returned);
+            }
+        }).start();
+        assertThat(transientStorePool.borrowBuffer()).isSameAs(returned);
+        borrowed.add(returned);
+
+        for (ByteBuffer byteBuffer : borrowed) {
+            transientStorePool.returnBuffer(byteBuffer);
+        }
+    }
+
+    @Test
+    public void testAdjust() {
+        // a lagging commit grows the pool
+        transientStorePool.adjust(FILE_SIZE);
+        assertThat(transientStorePool.getAllocatedBufferNums()).isEqualTo(3);
+        transientStorePool.adjust(FILE_SIZE);
+        transientStorePool.adjust(FILE_SIZE);
+        assertThat(transientStorePool.getAllocatedBufferNums()).isEqualTo(4);
+
+        // idle buffers are freed one per idle period, never below the initial size
+        messageStoreConfig.setTransientStorePoolShrinkIdleTime(0);
+        for (int i = 0; i < 4; i++) {
+            transientStorePool.adjust(0);
+        }
+        assertThat(transientStorePool.getAllocatedBufferNums()).isEqualTo(2);
+
+        messageStoreConfig.setTransientStorePoolShrinkIdleTime(1000 * 60);
+        transientStorePool.adjust(FILE_SIZE);
+        transientStorePool.adjust(0);
+        assertThat(transientStorePool.getAllocatedBufferNums()).isEqualTo(3);
+    }
+}
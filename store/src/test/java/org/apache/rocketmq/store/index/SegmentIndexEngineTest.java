@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.QueryMessageResult;
+import org.apache.rocketmq.store.StoreCheckpoint;
+import org.apache.rocketmq.store.StoreTestBase;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentIndexEngineTest extends StoreTestBase {
+    private static final int MSG_NUM = 500;
+    private static final int HOT_KEY_NUM = 10;
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        messageStore = createMessageStore();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.ASYNC_FLUSH);
+        messageStoreConfig.setIndexEngineType(IndexService.ENGINE_SEGMENT);
+        messageStoreConfig.setIndexSegmentMemtableSize(100);
+        messageStoreConfig.setIndexSegmentCompactFanIn(2);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private SegmentIndexEngine getIndexEngine() throws Exception {
+        Field field = DefaultMessageStore.class.getDeclaredField("indexService");
+        field.setAccessible(true);
+        return (SegmentIndexEngine) ((IndexService) field.get(messageStore)).getIndexEngine();
+    }
+
+    private int queryCount(String key, long begin, long end) {
+        QueryMessageResult result = messageStore.queryMessage("StoreTest", key, 64, begin, end);
+        int count = result.getMessageBufferList().size();
+        result.release();
+        return count;
+    }
+
+    @Test
+    public void testQueryAcrossSegments() throws Exception {
+        long beginTime = System.currentTimeMillis();
+        for (int i = 0; i < MSG_NUM; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setKeys("HotKey" + (i % HOT_KEY_NUM) + " UniqKey" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+
+        // 1000 keys with a 100 entry memory table and room for 1000 entries per segment
+        SegmentIndexEngine indexEngine = getIndexEngine();
+        for (int i = 0; i < 100 && indexEngine.getSegmentNum() > 2; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(indexEngine.getSegmentNum()).isBetween(1, 2);
+
+        assertThat(queryCount("HotKey3", 0, Long.MAX_VALUE)).isEqualTo(MSG_NUM / HOT_KEY_NUM);
+        assertThat(queryCount("UniqKey0", 0, Long.MAX_VALUE)).isEqualTo(1);
+        assertThat(queryCount("UniqKey" + (MSG_NUM - 1), 0, Long.MAX_VALUE)).isEqualTo(1);
+        assertThat(queryCount("NoSuchKey", 0, Long.MAX_VALUE)).isEqualTo(0);
+        assertThat(queryCount("HotKey3", 0, beginTime - 1)).isEqualTo(0);
+
+        messageStore.shutdown();
+        messageStore = createMessageStore();
+
+        assertThat(queryCount("HotKey7", 0, Long.MAX_VALUE)).isEqualTo(MSG_NUM / HOT_KEY_NUM);
+        assertThat(queryCount("UniqKey42", 0, Long.MAX_VALUE)).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecoverUnsealedEntries() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setKeys("RecoverKey" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        messageStore.shutdown();
+
+        // pretend the broker crashed while the entries were still in the memory table
+        File abortFile = new File(StorePathConfigHelper.getAbortFile(baseDir));
+        assertThat(abortFile.createNewFile()).isTrue();
+        StoreTestBase.deleteFile(StorePathConfigHelper.getStorePathSegmentIndex(baseDir));
+        StoreCheckpoint storeCheckpoint = new StoreCheckpoint(StorePathConfigHelper.getStoreCheckpoint(baseDir));
+        storeCheckpoint.setIndexMsgTimestamp(0);
+        storeCheckpoint.flush();
+        storeCheckpoint.shutdown();
+
+        messageStore = createMessageStore();
+        assertThat(queryCount("RecoverKey0", 0, Long.MAX_VALUE)).isEqualTo(1);
+        assertThat(queryCount("RecoverKey49", 0, Long.MAX_VALUE)).isEqualTo(1);
+    }
+
+    @Test
+    public void testSegmentLookup() throws Exception {
+        final int keyNum = 1000;
+        File file = new File(baseDir, "segment");
+        IndexSegment segment = IndexSegment.write(file, new IndexSegment.EntryCursor() {
+            private int index = -1;
+
+            @Override
+            public boolean next() {
+                return ++index < keyNum * 2;
+            }
+
+            @Override
+            public String getKey() {
+                return String.format("key%06d", index / 2);
+            }
+
+            @Override
+            public long getPhyOffset() {
+                return index % 2 == 0 ? index + 1 : index - 1;
+            }
+
+            @Override
+            public long getStoreTimestamp() {
+                return 1000 + index;
+            }
+        }, keyNum);
+
+        assertThat(segment.getKeyCount()).isEqualTo(keyNum);
+        assertThat(segment.getEntryCount()).isEqualTo(keyNum * 2);
+        assertThat(segment.getBeginPhyOffset()).isEqualTo(0);
+        assertThat(segment.getEndPhyOffset()).isEqualTo(keyNum * 2 - 1);
+
+        List<Long> phyOffsets = new ArrayList<Long>();
+        segment.selectPhyOffset(phyOffsets, "key000777", 10, 0, Long.MAX_VALUE);
+        assertThat(phyOffsets).containsExactly(1555L, 1554L);
+
+        phyOffsets.clear();
+        segment.selectPhyOffset(phyOffsets, "key000777", 1, 0, Long.MAX_VALUE);
+        assertThat(phyOffsets).containsExactly(1555L);
+
+        phyOffsets.clear();
+        segment.selectPhyOffset(phyOffsets, "key000777", 10, 1000 + 1555, Long.MAX_VALUE);
+        assertThat(phyOffsets).containsExactly(1554L);
+
+        phyOffsets.clear();
+        segment.selectPhyOffset(phyOffsets, "key001000", 10, 0, Long.MAX_VALUE);
+        assertThat(phyOffsets).isEmpty();
+        segment.close();
+
+        IndexSegment reopened = IndexSegment.open(file);
+        assertThat(reopened.mightContain("key000001")).isTrue();
+        reopened.selectPhyOffset(phyOffsets, "key000000", 10, 0, Long.MAX_VALUE);
+        assertThat(phyOffsets).containsExactly(1L, 0L);
+        assertThat(reopened.destroy()).isTrue();
+    }
+}
@@ -18,6 +18,7 @@
 package org.apache.rocketmq.store.schedule;
 
 import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
@@ -96,6 +97,7 @@ public class ScheduleMessageServiceTest {
         messageStoreConfig.setMappedFileSizeConsumeQueueExt(cqExtFileSize);
         messageStoreConfig.setMessageIndexEnable(false);
         messageStoreConfig.setEnableConsumeQueueExt(true);
+        messageStoreConfig.setScheduleDeliverBatchSize(4);
         messageStoreConfig.setStorePathRootDir(storePath);
         messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
 
@@ -163,6 +165,32 @@ public class ScheduleMessageServiceTest {
 
     }
 
+    @Test
+    public void deliverLevelsInBatchesTest() throws Exception {
+        int msgNum = 10;
+        for (int level = 1; level <= 2; level++) {
+            for (int i = 0; i < msgNum; i++) {
+                MessageExtBrokerInner msg = buildMessage();
+                msg.setQueueId(0);
+                msg.setDelayTimeLevel(level);
+                assertThat(messageStore.putMessage(msg).isOk()).isTrue();
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 15 * 1000;
+        while (messageStore.getMaxOffsetInQueue(topic, 0) < 2 * msgNum && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertThat(messageStore.getMaxOffsetInQueue(topic, 0)).isEqualTo(2 * msgNum);
+
+        // stopping waits for the rounds in flight and persists the offsets they reached
+        scheduleMessageService.shutdown();
+        String json = MixAll.file2String(scheduleMessageService.configFilePath());
+        DelayOffsetSerializeWrapper wrapper = DelayOffsetSerializeWrapper.fromJson(json, DelayOffsetSerializeWrapper.class);
+        assertThat(wrapper.getOffsetTable().get(1)).isEqualTo(msgNum);
+        assertThat(wrapper.getOffsetTable().get(2)).isEqualTo(msgNum);
+    }
+
     /**
      * add some [error/no use] code test
      */
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.schedule;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.topic.TopicValidator;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.StoreTestBase;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimerWheelTest extends StoreTestBase {
+    private static final String TOPIC = "StoreTest";
+
+    private String baseDir;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        baseDir = createBaseDir();
+        baseDirs.add(baseDir);
+        messageStore = createMessageStore();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setTimerWheelEnable(true);
+        messageStoreConfig.setTimerMaxDelaySec(3600 * 48);
+        messageStoreConfig.setTimerLogFileSize(1024);
+        messageStoreConfig.setStorePathRootDir(baseDir);
+        messageStoreConfig.setStorePathCommitLog(baseDir + File.separator + "commitlog");
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private PutMessageStatus putTimerMessage(long deliverTimeMs) {
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setQueueId(0);
+        msg.setDeliverTimeMs(deliverTimeMs);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return messageStore.putMessage(msg).getPutMessageStatus();
+    }
+
+    private void waitForDelivery(long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (messageStore.getMaxOffsetInQueue(TOPIC, 0) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(expected);
+    }
+
+    @Test
+    public void testDeliverAtTime() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= 3; i++) {
+            assertThat(putTimerMessage(now + i * 1000 + 500)).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        // already due, stored right away
+        assertThat(putTimerMessage(now)).isEqualTo(PutMessageStatus.PUT_OK);
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+
+        assertThat(messageStore.getMaxOffsetInQueue(TopicValidator.RMQ_SYS_TIMER_TOPIC, 0)).isEqualTo(3);
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(1);
+
+        waitForDelivery(4);
+        GetMessageResult result = messageStore.getMessage("group", TOPIC, 0, 1, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getMessageCount()).isEqualTo(3);
+        for (int i = 0; i < 3; i++) {
+            MessageExt messageExt = MessageDecoder.decode(result.getMessageBufferList().get(i), true, false);
+            assertThat(messageExt.getTopic()).isEqualTo(TOPIC);
+            assertThat(messageExt.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS)).isNull();
+            assertThat(messageExt.getStoreTimestamp()).isGreaterThanOrEqualTo(now + 1500);
+        }
+        result.release();
+        assertThat(messageStore.getTimerWheel().getDeliverTimes()).isEqualTo(3);
+        assertThat(messageStore.getTimerWheel().getEnqueueOffset()).isEqualTo(3);
+    }
+
+    @Test
+    public void testUpperLevels() throws Exception {
+        long now = System.currentTimeMillis();
+        assertThat(putTimerMessage(now + 90 * 1000)).isEqualTo(PutMessageStatus.PUT_OK);
+        assertThat(putTimerMessage(now + 3 * 3600 * 1000)).isEqualTo(PutMessageStatus.PUT_OK);
+        assertThat(putTimerMessage(now + 30 * 3600 * 1000)).isEqualTo(PutMessageStatus.PUT_OK);
+        // beyond timerMaxDelaySec
+        assertThat(putTimerMessage(now + 50 * 3600 * 1000)).isEqualTo(PutMessageStatus.MESSAGE_ILLEGAL);
+
+        long deadline = System.currentTimeMillis() + 5 * 1000;
+        while (messageStore.getTimerWheel().getEnqueueOffset() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(messageStore.getTimerWheel().getEnqueueOffset()).isEqualTo(3);
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+        assertThat(messageStore.getTimerWheel().getDeliverTimes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws Exception {
+        long deliverTimeMs = System.currentTimeMillis() + 3000;
+        assertThat(putTimerMessage(deliverTimeMs)).isEqualTo(PutMessageStatus.PUT_OK);
+        assertThat(putTimerMessage(System.currentTimeMillis() + 3600 * 1000)).isEqualTo(PutMessageStatus.PUT_OK);
+        while (messageStore.getTimerWheel().getEnqueueOffset() < 2) {
+            Thread.sleep(10);
+        }
+        messageStore.shutdown();
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+
+        // the message falls due while the broker is down
+        while (System.currentTimeMillis() < deliverTimeMs + 1000) {
+            Thread.sleep(50);
+        }
+        messageStore = createMessageStore();
+        assertThat(messageStore.getTimerWheel().getEnqueueOffset()).isEqualTo(2);
+        waitForDelivery(1);
+        assertThat(messageStore.getTimerWheel().getDeliverTimes()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCatchUpThroughAllLevels() throws Exception {
+        TimerWheel timerWheel = messageStore.getTimerWheel();
+        timerWheel.shutdown();
+        // pretend the wheel stood still for three days
+        long base = System.currentTimeMillis() / 1000 - 3 * 24 * 3600;
+        Field currReadSecField = TimerWheel.class.getDeclaredField("currReadSec");
+        currReadSecField.setAccessible(true);
+        currReadSecField.set(timerWheel, base);
+
+        long[] delays = {30, 600, 5 * 3600, 40 * 3600, 60 * 3600};
+        for (long delay : delays) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setTopic(TopicValidator.RMQ_SYS_TIMER_TOPIC);
+            msg.setQueueId(0);
+            msg.setDeliverTimeMs((base + delay) * 1000);
+            MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, TOPIC);
+            MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, "0");
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        while (messageStore.dispatchBehindBytes() > 0) {
+            Thread.sleep(10);
+        }
+        timerWheel.start();
+
+        waitForDelivery(delays.length);
+        assertThat(timerWheel.getDeliverTimes()).isEqualTo(delays.length);
+        // only the timer 60 hours ahead was still beyond the wheel when the slot firing 23 hours later came up
+        assertThat(timerWheel.getRollTimes()).isEqualTo(1);
+        assertThat(timerWheel.getCurrReadSec()).isGreaterThan(base + 60 * 3600);
+    }
+}
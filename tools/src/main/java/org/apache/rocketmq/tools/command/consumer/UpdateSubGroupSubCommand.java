@@ -86,6 +86,14 @@ public class UpdateSubGroupSubCommand implements SubCommand {
         opt.setRequired(false);
         options.addOption(opt);
 
+        opt = new Option("x", "consumeQuotaTps", true, "messages a second the group may pull from each broker, -1 unlimited");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("y", "consumeQuotaBytes", true, "bytes a second the group may pull from each broker, -1 unlimited");
+        opt.setRequired(false);
+        options.addOption(opt);
+
         return options;
     }
 
@@ -151,6 +159,16 @@ public class UpdateSubGroupSubCommand implements SubCommand {
                     .getOptionValue('a').trim()));
             }
 
+            // consumeQuotaTps
+            if (commandLine.hasOption('x')) {
+                subscriptionGroupConfig.setConsumeQuotaTps(Integer.parseInt(commandLine.getOptionValue('x').trim()));
+            }
+
+            // consumeQuotaBytes
+            if (commandLine.hasOption('y')) {
+                subscriptionGroupConfig.setConsumeQuotaBytes(Long.parseLong(commandLine.getOptionValue('y').trim()));
+            }
+
             if (commandLine.hasOption('b')) {
                 String addr = commandLine.getOptionValue('b').trim();
 
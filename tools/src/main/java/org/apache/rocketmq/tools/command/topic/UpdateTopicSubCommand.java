@@ -22,6 +22,7 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.TopicFlushType;
 import org.apache.rocketmq.common.sysflag.TopicSysFlag;
 import org.apache.rocketmq.remoting.RPCHook;
 import org.apache.rocketmq.srvutil.ServerUtil;
@@ -83,6 +84,26 @@ public class UpdateTopicSubCommand implements SubCommand {
         opt.setRequired(false);
         options.addOption(opt);
 
+        opt = new Option("f", "flushType", true, "set topic's flush type(DEFAULT|SYNC_FLUSH|ASYNC_FLUSH)");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("d", "fileReservedTime", true, "set hours messages of the topic are kept, -1 follows the broker");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("x", "produceQuotaTps", true, "set messages a second the topic may take on each broker, -1 unlimited");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("y", "produceQuotaBytes", true, "set bytes a second the topic may take on each broker, -1 unlimited");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("q", "compactConsumeQueue", true, "set whether new consume queues of the topic use the compact format(true|false)");
+        opt.setRequired(false);
+        options.addOption(opt);
+
         return options;
     }
 
@@ -132,6 +153,26 @@ public class UpdateTopicSubCommand implements SubCommand {
             }
             topicConfig.setOrder(isOrder);
 
+            if (commandLine.hasOption('f')) {
+                topicConfig.setFlushType(TopicFlushType.valueOf(commandLine.getOptionValue('f').trim()));
+            }
+
+            if (commandLine.hasOption('d')) {
+                topicConfig.setFileReservedTime(Integer.parseInt(commandLine.getOptionValue('d').trim()));
+            }
+
+            if (commandLine.hasOption('x')) {
+                topicConfig.setProduceQuotaTps(Integer.parseInt(commandLine.getOptionValue('x').trim()));
+            }
+
+            if (commandLine.hasOption('y')) {
+                topicConfig.setProduceQuotaBytes(Long.parseLong(commandLine.getOptionValue('y').trim()));
+            }
+
+            if (commandLine.hasOption('q')) {
+                topicConfig.setCompactConsumeQueue(Boolean.parseBoolean(commandLine.getOptionValue('q').trim()));
+            }
+
             if (commandLine.hasOption('b')) {
                 String addr = commandLine.getOptionValue('b').trim();
 
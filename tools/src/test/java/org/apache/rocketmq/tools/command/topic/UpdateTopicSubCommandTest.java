@@ -37,7 +37,8 @@ public class UpdateTopicSubCommandTest {
             "-p 6",
             "-o false",
             "-u false",
-            "-s false"};
+            "-s false",
+            "-q true"};
         final CommandLine commandLine =
             ServerUtil.parseCmdLine("mqadmin " + cmd.commandName(), subargs, cmd.buildCommandlineOptions(options), new PosixParser());
         assertThat(commandLine.getOptionValue('b').trim()).isEqualTo("127.0.0.1:10911");
@@ -48,5 +49,6 @@ public class UpdateTopicSubCommandTest {
         assertThat(commandLine.getOptionValue('o').trim()).isEqualTo("false");
         assertThat(commandLine.getOptionValue('u').trim()).isEqualTo("false");
         assertThat(commandLine.getOptionValue('s').trim()).isEqualTo("false");
+        assertThat(commandLine.getOptionValue('q').trim()).isEqualTo("true");
     }
 }
\ No newline at end of file